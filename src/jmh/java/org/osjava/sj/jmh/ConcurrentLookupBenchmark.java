@@ -0,0 +1,104 @@
+package org.osjava.sj.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read scaling: Throughput of lookups into one shared namespace by 1 to 8 threads. With perfect scaling the score per benchmark grows linearly with the number of threads. More threads: Run with "-t".
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ConcurrentLookupBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+
+        @Param({"1000"})
+        public int size;
+
+        MemoryContext root;
+        String[] paths;
+
+        @Setup
+        public void setUp() throws NamingException {
+            root = Namespaces.root();
+            final Context ctx = root.createSubcontext("app").createSubcontext("config");
+            final String[] names = Namespaces.fill(ctx, size);
+            paths = new String[size];
+            for (int i = 0; i < size; i++) {
+                paths[i] = "app/config/" + names[i];
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws NamingException {
+            root.close();
+        }
+    }
+
+    /**
+     * Every thread walks through the names on its own, starting at a different offset.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private static int offsets;
+        int next;
+
+        @Setup
+        public void setUp() {
+            synchronized (Cursor.class) {
+                next = offsets++ * 7919;
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object threads1(Shared shared, Cursor cursor) throws NamingException {
+        return lookup(shared, cursor);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public Object threads2(Shared shared, Cursor cursor) throws NamingException {
+        return lookup(shared, cursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object threads4(Shared shared, Cursor cursor) throws NamingException {
+        return lookup(shared, cursor);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object threads8(Shared shared, Cursor cursor) throws NamingException {
+        return lookup(shared, cursor);
+    }
+
+    private static Object lookup(Shared shared, Cursor cursor) throws NamingException {
+        final String[] paths = shared.paths;
+        return shared.root.lookup(paths[(cursor.next++ & Integer.MAX_VALUE) % paths.length]);
+    }
+}
@@ -0,0 +1,37 @@
+package org.osjava.sj.jmh;
+
+/**
+ * Bean declared in roots made by {@link RootGenerator}, created by BeanConverter.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class GeneratedBean {
+
+    private String name;
+    private int size;
+    private boolean enabled;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+}
@@ -0,0 +1,67 @@
+package org.osjava.sj.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * list and listBindings of a context holding size bindings, including iterating over all of them.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ListBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private MemoryContext ctx;
+
+    @Setup
+    public void setUp() throws NamingException {
+        ctx = Namespaces.root();
+        Namespaces.fill(ctx, size);
+    }
+
+    @TearDown
+    public void tearDown() throws NamingException {
+        ctx.close();
+    }
+
+    @Benchmark
+    public void list(Blackhole blackhole) throws NamingException {
+        drain(ctx.list(""), blackhole);
+    }
+
+    @Benchmark
+    public void listBindings(Blackhole blackhole) throws NamingException {
+        drain(ctx.listBindings(""), blackhole);
+    }
+
+    private static void drain(NamingEnumeration<?> enumeration, Blackhole blackhole) throws NamingException {
+        while (enumeration.hasMore()) {
+            blackhole.consume(enumeration.next());
+        }
+        enumeration.close();
+    }
+}
@@ -0,0 +1,160 @@
+package org.osjava.sj.jmh;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osjava.sj.jndi.MemoryContext;
+import org.osjava.sj.loader.FileBasedJndiLoader;
+import org.osjava.sj.loader.NioBasedJndiLoader;
+
+import javax.naming.Binding;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a root made by {@link RootGenerator} into a new MemoryContext with FileBasedJndiLoader, NioBasedJndiLoader.load() or NioBasedJndiLoader.loadJar(). The score is loads/s, the secondary results "files" and "bindings" are files/s and bindings/s. The peak heap usage during an iteration is printed after the iteration.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class LoaderBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Root {
+
+        @Param({"10", "100"})
+        public int directories;
+
+        @Param({"10"})
+        public int filesPerDirectory;
+
+        @Param({"20"})
+        public int keysPerFile;
+
+        @Param({"file", "nio", "jar"})
+        public String loader;
+
+        File tmp;
+        File root;
+        File jar;
+        int files;
+        int bindings;
+
+        @Setup
+        public void setUp() throws Exception {
+            tmp = Files.createTempDirectory("sj-bench").toFile();
+            root = new File(tmp, "root");
+            files = new RootGenerator(directories, filesPerDirectory, keysPerFile).generate(root).size();
+            jar = RootGenerator.jar(root, new File(tmp, "root.jar"));
+            final MemoryContext ctx = load();
+            bindings = count(ctx);
+            ctx.close();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            FileUtils.deleteDirectory(tmp);
+        }
+
+        MemoryContext load() throws NamingException, IOException {
+            final Hashtable<String, String> env = Namespaces.environment();
+            final MemoryContext ctx = new MemoryContext(env);
+            if ("file".equals(loader)) {
+                new FileBasedJndiLoader(env).load(root, ctx);
+            }
+            else if ("nio".equals(loader)) {
+                new NioBasedJndiLoader(env).load(root, ctx, false);
+            }
+            else {
+                new NioBasedJndiLoader(env).loadJar(jar, "root", ctx, false);
+            }
+            return ctx;
+        }
+
+        private static int count(Context ctx) throws NamingException {
+            int count = 0;
+            final NamingEnumeration<Binding> bindings = ctx.listBindings("");
+            while (bindings.hasMore()) {
+                final Object object = bindings.next().getObject();
+                count += object instanceof Context ? count((Context) object) : 1;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Files and bindings loaded, reported by JMH per second.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Loaded {
+        public long files;
+        public long bindings;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            files = 0;
+            bindings = 0;
+        }
+    }
+
+    /**
+     * Peak heap usage summed over all heap pools. Only approximately the peak of the whole heap, since the pools peak at different times.
+     */
+    @State(Scope.Benchmark)
+    public static class PeakHeap {
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                }
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void print() {
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            System.out.printf(" [peak heap %.1f MB]", peak / (1024.0 * 1024.0));
+        }
+    }
+
+    @Benchmark
+    public Context load(Root root, Loaded loaded, PeakHeap peakHeap) throws NamingException, IOException {
+        final MemoryContext ctx = root.load();
+        loaded.files += root.files;
+        loaded.bindings += root.bindings;
+        return ctx;
+    }
+}
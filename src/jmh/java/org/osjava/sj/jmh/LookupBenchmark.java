@@ -0,0 +1,79 @@
+package org.osjava.sj.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osjava.sj.jndi.DelimiterConvertingContext;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NamingException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup of one object at the end of a path of depth subcontexts, each holding fanOut bindings. Via "delimiter" the lookup goes through DelimiterConvertingContext with "." as delimiter, as SimpleJndiContextFactory hands it out.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class LookupBenchmark {
+
+    @Param({"1", "4", "8"})
+    public int depth;
+
+    @Param({"1", "100", "10000"})
+    public int fanOut;
+
+    @Param({"direct", "delimiter"})
+    public String via;
+
+    private MemoryContext root;
+    private Context ctx;
+    private String path;
+    private Name name;
+
+    @Setup
+    public void setUp() throws NamingException {
+        root = Namespaces.root();
+        final String slashed = Namespaces.path(root, depth, fanOut);
+        name = root.getNameParser("").parse(slashed);
+        if ("delimiter".equals(via)) {
+            ctx = new DelimiterConvertingContext(root);
+            path = slashed.replace('/', '.');
+        }
+        else {
+            ctx = root;
+            path = slashed;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws NamingException {
+        root.close();
+    }
+
+    @Benchmark
+    public Object lookupString() throws NamingException {
+        return ctx.lookup(path);
+    }
+
+    @Benchmark
+    public Object lookupName() throws NamingException {
+        return ctx.lookup(name);
+    }
+}
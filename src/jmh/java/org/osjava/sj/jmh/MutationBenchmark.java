@@ -0,0 +1,67 @@
+package org.osjava.sj.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.NamingException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * bind/unbind and rebind churn in a context already holding size bindings. The number of bindings stays the same during a run.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class MutationBenchmark {
+
+    private static final int CHURN = 1024;
+
+    @Param({"100", "10000"})
+    public int size;
+
+    private MemoryContext ctx;
+    private String[] existing;
+    private String[] churn;
+    private int next;
+
+    @Setup
+    public void setUp() throws NamingException {
+        ctx = Namespaces.root();
+        existing = Namespaces.fill(ctx, size);
+        churn = Namespaces.names("churn", CHURN);
+    }
+
+    @TearDown
+    public void tearDown() throws NamingException {
+        ctx.close();
+    }
+
+    @Benchmark
+    public void bindUnbind() throws NamingException {
+        final String name = churn[next++ & (CHURN - 1)];
+        ctx.bind(name, name);
+        ctx.unbind(name);
+    }
+
+    @Benchmark
+    public void rebind() throws NamingException {
+        final int i = next++;
+        ctx.rebind(existing[i % size], i);
+    }
+}
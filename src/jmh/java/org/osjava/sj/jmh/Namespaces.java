@@ -0,0 +1,76 @@
+package org.osjava.sj.jmh;
+
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import java.util.Hashtable;
+
+/**
+ * Builds the namespaces the benchmarks run against. All are created in @Setup, never measured.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+final class Namespaces {
+
+    /** Name of the object bound at the end of the path created by {@link #path(Context, int, int)}. */
+    static final String LEAF = "leaf";
+
+    private Namespaces() {
+    }
+
+    /**
+     * Separator "/", delimiter "." as with SimpleJndiContextFactory and org.osjava.sj.delimiter = "."
+     */
+    static Hashtable<String, String> environment() {
+        final Hashtable<String, String> env = new Hashtable<String, String>();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        env.put("org.osjava.sj.delimiter", ".");
+        return env;
+    }
+
+    static MemoryContext root() {
+        return new MemoryContext(environment());
+    }
+
+    /**
+     * Creates a chain of depth subcontexts "c0/c1/...", each of them (and ctx) holding fanOut - 1 other bindings besides the next link, and binds {@link #LEAF} in the last one.
+     *
+     * @return the path of {@link #LEAF}, e. g. "c0/c1/leaf".
+     */
+    static String path(Context ctx, int depth, int fanOut) throws NamingException {
+        final StringBuilder path = new StringBuilder();
+        Context current = ctx;
+        for (int level = 0; level <= depth; level++) {
+            for (int i = 1; i < fanOut; i++) {
+                current.bind("sibling" + i, i);
+            }
+            if (level < depth) {
+                current = current.createSubcontext("c" + level);
+                path.append('c').append(level).append('/');
+            }
+        }
+        current.bind(LEAF, "value");
+        return path.append(LEAF).toString();
+    }
+
+    /**
+     * Binds size objects "name0" ... directly into ctx.
+     */
+    static String[] fill(Context ctx, int size) throws NamingException {
+        final String[] names = names("name", size);
+        for (int i = 0; i < size; i++) {
+            ctx.bind(names[i], i);
+        }
+        return names;
+    }
+
+    static String[] names(String prefix, int count) {
+        final String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = prefix + i;
+        }
+        return names;
+    }
+}
@@ -0,0 +1,227 @@
+package org.osjava.sj.jmh;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Writes synthetic roots of any size for load benchmarks. Directories form a tree with up to 4 subdirectories each. Files are .properties, .xml and .ini in turn, every 20th a DataSource and every 20th a bean declaration. Every 4th entry of the other files is typed as java.lang.Integer or java.lang.Boolean. Keys are delimited by ".".
+ * <p>
+ * Same parameters, same root: Nothing is random.
+ * <pre>
+ * java org.osjava.sj.jmh.RootGenerator target/root 100 10 20
+ * </pre>
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public final class RootGenerator {
+
+    private final int directories;
+    private final int filesPerDirectory;
+    private final int keysPerFile;
+    private String[] formats = {"properties", "xml", "ini"};
+    private int typedEvery = 4;
+    private int dataSourceEvery = 20;
+    private int beanEvery = 20;
+
+    /**
+     * @param directories including the root directory.
+     */
+    public RootGenerator(int directories, int filesPerDirectory, int keysPerFile) {
+        this.directories = directories;
+        this.filesPerDirectory = filesPerDirectory;
+        this.keysPerFile = keysPerFile;
+    }
+
+    /**
+     * @param formats file types used in turn for plain files: "properties", "xml", "ini".
+     */
+    public RootGenerator setFormats(String... formats) {
+        this.formats = formats;
+        return this;
+    }
+
+    /**
+     * @param typedEvery every nth key gets a type. 0: No typed entries.
+     */
+    public RootGenerator setTypedEvery(int typedEvery) {
+        this.typedEvery = typedEvery;
+        return this;
+    }
+
+    /**
+     * @param dataSourceEvery every nth file declares a DataSource. 0: None.
+     */
+    public RootGenerator setDataSourceEvery(int dataSourceEvery) {
+        this.dataSourceEvery = dataSourceEvery;
+        return this;
+    }
+
+    /**
+     * @param beanEvery every nth file declares a {@link GeneratedBean}. 0: None.
+     */
+    public RootGenerator setBeanEvery(int beanEvery) {
+        this.beanEvery = beanEvery;
+        return this;
+    }
+
+    /**
+     * @param root created if missing. Existing content is not removed.
+     * @return the files written.
+     */
+    public List<File> generate(File root) throws IOException {
+        final List<File> dirs = new ArrayList<File>(directories);
+        final List<File> files = new ArrayList<File>(directories * filesPerDirectory);
+        int fileIndex = 0;
+        for (int d = 0; d < directories; d++) {
+            final File dir = d == 0 ? root : new File(dirs.get((d - 1) / 4), "dir" + d);
+            dirs.add(dir);
+            dir.mkdirs();
+            for (int f = 0; f < filesPerDirectory; f++, fileIndex++) {
+                files.add(write(dir, fileIndex));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Packs root into jarFile below directory "root", as needed by NioBasedJndiLoader.loadJar(jarFile, "root", ...).
+     */
+    public static File jar(File root, File jarFile) throws IOException {
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile))) {
+            addToJar(root, "root/", out);
+        }
+        return jarFile;
+    }
+
+    private static void addToJar(File dir, String path, JarOutputStream out) throws IOException {
+        out.putNextEntry(new JarEntry(path));
+        out.closeEntry();
+        final File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                addToJar(child, path + child.getName() + "/", out);
+            }
+            else {
+                out.putNextEntry(new JarEntry(path + child.getName()));
+                out.write(FileUtils.readFileToByteArray(child));
+                out.closeEntry();
+            }
+        }
+    }
+
+    private File write(File dir, int index) throws IOException {
+        final String name = "file" + index;
+        final File file;
+        final String content;
+        if (dataSourceEvery > 0 && index % dataSourceEvery == dataSourceEvery - 1) {
+            file = new File(dir, name + ".properties");
+            content = dataSource(name);
+        }
+        else if (beanEvery > 0 && index % beanEvery == beanEvery / 2) {
+            file = new File(dir, name + ".properties");
+            content = bean(name);
+        }
+        else {
+            final String format = formats[index % formats.length];
+            file = new File(dir, name + "." + format);
+            content = "xml".equals(format) ? xml() : "ini".equals(format) ? ini() : properties();
+        }
+        FileUtils.writeStringToFile(file, content, StandardCharsets.UTF_8.name());
+        return file;
+    }
+
+    private String properties() {
+        final StringBuilder content = new StringBuilder();
+        for (int k = 0; k < keysPerFile; k++) {
+            content.append("key").append(k).append('=').append(value(k)).append('\n');
+            if (typed(k)) {
+                content.append("key").append(k).append(".type=").append(type(k)).append('\n');
+            }
+        }
+        return content.toString();
+    }
+
+    private String xml() {
+        final StringBuilder content = new StringBuilder("<config>\n");
+        for (int k = 0; k < keysPerFile; k++) {
+            content.append("  <key").append(k);
+            if (typed(k)) {
+                content.append(" type=\"").append(type(k)).append('"');
+            }
+            content.append('>').append(value(k)).append("</key").append(k).append(">\n");
+        }
+        return content.append("</config>\n").toString();
+    }
+
+    /**
+     * Blocks of 10 keys.
+     */
+    private String ini() {
+        final StringBuilder content = new StringBuilder();
+        for (int k = 0; k < keysPerFile; k++) {
+            if (k % 10 == 0) {
+                content.append("[block").append(k / 10).append("]\n");
+            }
+            content.append("key").append(k).append('=').append(value(k)).append('\n');
+            if (typed(k)) {
+                content.append("key").append(k).append(".type=").append(type(k)).append('\n');
+            }
+        }
+        return content.toString();
+    }
+
+    private static String dataSource(String name) {
+        return "type=javax.sql.DataSource\n"
+                + "driver=org.hsqldb.jdbc.JDBCDriver\n"
+                + "url=jdbc:hsqldb:mem:" + name + "\n"
+                + "user=sa\n"
+                + "password=\n";
+    }
+
+    private static String bean(String name) {
+        return "type=" + GeneratedBean.class.getName() + "\n"
+                + "converter=org.osjava.sj.loader.convert.BeanConverter\n"
+                + "name=" + name + "\n"
+                + "size=" + name.length() + "\n"
+                + "enabled=true\n";
+    }
+
+    private boolean typed(int key) {
+        return typedEvery > 0 && key % typedEvery == typedEvery - 1;
+    }
+
+    private String type(int key) {
+        return (key / typedEvery) % 2 == 0 ? "java.lang.Integer" : "java.lang.Boolean";
+    }
+
+    private String value(int key) {
+        if (typed(key)) {
+            return "java.lang.Integer".equals(type(key)) ? String.valueOf(key) : "true";
+        }
+        return "value of key " + key;
+    }
+
+    /**
+     * Arguments: target directory, directories, files per directory, keys per file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println("Usage: RootGenerator <target directory> <directories> <files per directory> <keys per file>");
+            System.exit(1);
+        }
+        final List<File> files = new RootGenerator(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]))
+                .generate(new File(args[0]));
+        System.out.println(files.size() + " files written to " + args[0]);
+    }
+}
@@ -98,6 +98,14 @@ public class PoolSetup {
         //  Runtime.getRuntime().addShutdownHook( new ShutdownDbcpThread(name) );
     }
 
+    /**
+     * Closes the pool registered by {@link #setupConnection(String, String, String, String, Properties)} and its idle connections.
+     */
+    static void closePool(String name) throws SQLException {
+        PoolingDriver driver = (PoolingDriver) DriverManager.getDriver("jdbc:apache:commons:dbcp:");
+        driver.closePool(name);
+    }
+
     static String getUrl(String poolName) {
         return "jdbc:apache:commons:dbcp:" + poolName;
     }
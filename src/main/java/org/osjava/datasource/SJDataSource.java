@@ -32,19 +32,25 @@
 
 package org.osjava.datasource;
 
+import org.osjava.sj.jndi.FlightRecorderEvent;
+
 import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 
 /**
  * A basic implementation of a DataSource with optional connection pooling.
  */
-public class SJDataSource implements DataSource {
+public class SJDataSource implements DataSource, Closeable {
 
     private PrintWriter printWriter;
     private String username;
@@ -60,6 +66,11 @@ public class SJDataSource implements DataSource {
      */
     private String poolUrl = null;
 
+    /**
+     * Number of SJDataSources using a pool, by pool name. The pool is closed when the last of them is closed. Guarded by SJDataSource.class.
+     */
+    private static final Map<String, Integer> poolUsers = new HashMap<String, Integer>();
+
     public SJDataSource(String driverName, String url, String username, String password, Properties properties) {
         ensureLoaded(driverName);
         this.driverName = driverName;
@@ -95,8 +106,16 @@ public class SJDataSource implements DataSource {
         String poolName = properties.getProperty("pool");
         if (poolName != null) {  // we want a connection name named like the pool property
             synchronized (SJDataSource.class) {
-                if (poolUrl == null) {  // we didn't create a connection pool already, so do it now
-                    PoolSetup.setupConnection(poolName, url, username, password, properties);
+                if (poolUrl == null) {  // we didn't use a connection pool already, so do it now
+                    final Integer users = poolUsers.get(poolName);
+                    if (users == null) {  // another SJDataSource may have created the pool of this name already
+                        final Object event = FlightRecorderEvent.POOL_CREATION.begin();
+                        PoolSetup.setupConnection(poolName, url, username, password, properties);
+                        if (event != null) {
+                            FlightRecorderEvent.POOL_CREATION.commit(event, poolName, url);
+                        }
+                    }
+                    poolUsers.put(poolName, users == null ? 1 : users + 1);
                     poolUrl = PoolSetup.getUrl(poolName);
                 }
             }
@@ -116,6 +135,34 @@ public class SJDataSource implements DataSource {
         }
     }
 
+    /**
+     * Stops using the connection pool. The pool is closed when no other SJDataSource with the same pool name uses it anymore. Further calls of getConnection() use or build a pool again.
+     */
+    public void close() throws IOException {
+        synchronized (SJDataSource.class) {
+            if (poolUrl == null) {
+                return;
+            }
+            final String poolName = properties.getProperty("pool");
+            final int users = poolUsers.get(poolName) - 1;
+            if (users > 0) {
+                poolUsers.put(poolName, users);
+                poolUrl = null;
+                return;
+            }
+            poolUsers.remove(poolName);
+            try {
+                PoolSetup.closePool(poolName);
+            }
+            catch (SQLException e) {
+                throw new IOException(e);
+            }
+            finally {
+                poolUrl = null;
+            }
+        }
+    }
+
     public PrintWriter getLogWriter() throws SQLException {
         return printWriter;
     }
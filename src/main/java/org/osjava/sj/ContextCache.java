@@ -0,0 +1,422 @@
+package org.osjava.sj;
+
+import org.apache.commons.lang.BooleanUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osjava.sj.jndi.MappedContext;
+import org.osjava.sj.jndi.MemoryContext;
+import org.osjava.sj.jndi.PersistentJournal;
+import org.osjava.sj.loader.JndiLoader;
+import org.osjava.sj.loader.SnapshotImage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.naming.Context;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of shared contexts ({@link SimpleJndi#SHARED}) as used by {@link MemoryContextFactory} and {@link SimpleJndiContextFactory}.
+ * <p>
+ * Contexts are keyed by a fingerprint of all environment properties that influence how a root is loaded and how names are parsed ({@link #fingerprint(Hashtable)}), not only by {@link SimpleJndi#ROOT}. So two environments pointing to the same root, but using different delimiters or ENC spaces, get different contexts.
+ * <p>
+ * By default cached contexts are strongly referenced until they are closed, which is the behaviour of former versions. With {@link #RETENTION} set to "weak" or "soft" a context no longer referenced by any caller (e. g. an InitialContext not closed on undeploy) can be garbage collected. With {@link #IDLE_TIMEOUT} a context not requested from the factory for the given number of milliseconds is removed from the cache. Neither kind of eviction closes the context, it is only no longer pinned by the cache.
+ * <p>
+ * With {@link #JMX} set to "true" every cached context of a named cache is registered as {@link SharedContextMXBean} until it is removed or evicted.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class ContextCache<V extends Context> {
+
+    /** "strong" (default), "soft" or "weak". */
+    public static final String RETENTION = "org.osjava.sj.jndi.cache.retention";
+    /** Milliseconds a shared context may stay unrequested before it is evicted. Not set or &lt;= 0: never. */
+    public static final String IDLE_TIMEOUT = "org.osjava.sj.jndi.cache.idleTimeout";
+    /** "true": Register a {@link SharedContextMXBean} for every cached context and record its lookup statistics. Default: "false". */
+    public static final String JMX = "org.osjava.sj.jmx";
+
+    /**
+     * The environment properties a shared context depends on, including those deciding what close() does with its resources. {@link org.osjava.sj.jndi.MemoryContext#IGNORE_CLOSE}, {@link SimpleJndi#SHARED} and java.naming.factory.initial are deliberately missing: They do not change the content of a context and are toggled between calls for the same context. Listed rather than derived from all org.osjava.sj.* properties, because the fingerprint is visible over JMX and must not contain e. g. {@link org.osjava.sj.remote.RemoteContext#SECRET}.
+     */
+    static final String[] FINGERPRINT_KEYS = {
+            SimpleJndi.ROOT,
+            SimpleJndi.ENC,
+            SimpleJndi.CONTEXT_FACTORY,
+            SimpleJndi.JNDI_SYNTAX_SEPARATOR,
+            SimpleJndi.FILENAME_TO_CONTEXT,
+            SimpleJndi.PATH_SEPARATOR,
+            JndiLoader.DELIMITER,
+            JndiLoader.COLON_REPLACE,
+            Context.OBJECT_FACTORIES,
+            PersistentJournal.FILE,
+            SnapshotImage.IMAGE,
+            MappedContext.MAPPED_FILE,
+            MemoryContext.CLOSE_RESOURCES,
+            MemoryContext.INTERCEPTORS,
+            MemoryContext.INTERCEPTOR_SERVICES,
+            "jndi.syntax.direction"
+    };
+
+    public enum Retention { STRONG, SOFT, WEAK }
+
+    public enum EvictionCause {
+        /** Not requested for longer than {@link #IDLE_TIMEOUT}. */
+        IDLE,
+        /** Weakly or softly referenced context has been garbage collected. */
+        COLLECTED
+    }
+
+    public interface EvictionListener {
+        /**
+         * @param context null when cause is {@link EvictionCause#COLLECTED}.
+         */
+        void evicted(String fingerprint, @Nullable Context context, EvictionCause cause);
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContextCache.class);
+
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+    private final ReferenceQueue<V> collected = new ReferenceQueue<V>();
+    private final List<EvictionListener> listeners = new CopyOnWriteArrayList<EvictionListener>();
+    private final AtomicLong idleEvictions = new AtomicLong();
+    private final AtomicLong collectedEvictions = new AtomicLong();
+    private final ConcurrentHashMap<String, SharedContextMonitor> monitors = new ConcurrentHashMap<String, SharedContextMonitor>();
+    /* Part of the monitors' ObjectNames, null: No monitoring. */
+    private final String name;
+
+    public ContextCache() {
+        this(null);
+    }
+
+    /**
+     * @param name Distinguishes the MBeans of this cache from those of other caches, see {@link #JMX}.
+     */
+    public ContextCache(@Nullable String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return A stable key built from {@link #FINGERPRINT_KEYS}. Unset properties and properties set to null are treated alike.
+     */
+    @NotNull
+    public static String fingerprint(@NotNull Hashtable environment) {
+        final TreeMap<String, String> relevant = new TreeMap<String, String>();
+        for (String key : FINGERPRINT_KEYS) {
+            final Object value = environment.get(key);
+            if (value != null) {
+                relevant.put(key, value.toString().trim());
+            }
+        }
+        return relevant.toString();
+    }
+
+    /**
+     * @return The context cached under fingerprint or null if there is none.
+     */
+    @Nullable
+    public V get(@NotNull String fingerprint) {
+        expungeStaleEntries();
+        final Entry<V> entry = entries.get(fingerprint);
+        if (entry == null) {
+            return null;
+        }
+        final V context = entry.get();
+        if (context == null) {
+            // Collected, but not yet polled from the queue.
+            if (entries.remove(fingerprint, entry)) {
+                fireEvicted(fingerprint, null, EvictionCause.COLLECTED);
+            }
+            return null;
+        }
+        entry.touch();
+        return context;
+    }
+
+    /**
+     * Caches context unless another context has been cached under the same fingerprint in the meantime.
+     *
+     * @param environment Determines {@link Retention} and idle timeout of the new entry.
+     * @return null if context was cached, otherwise the context already cached. Then the caller should close its own context and use the returned one.
+     */
+    @Nullable
+    public V putIfAbsent(@NotNull String fingerprint, @NotNull V context, @NotNull Hashtable environment) {
+        expungeStaleEntries();
+        final Entry<V> entry = new Entry<V>(fingerprint, context, retention(environment), idleTimeout(environment), collected);
+        while (true) {
+            final Entry<V> existing = entries.putIfAbsent(fingerprint, entry);
+            if (existing == null) {
+                return null;
+            }
+            final V existingContext = existing.get();
+            if (existingContext != null) {
+                existing.touch();
+                return existingContext;
+            }
+            if (entries.replace(fingerprint, existing, entry)) {
+                fireEvicted(fingerprint, null, EvictionCause.COLLECTED);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Removes the entry for fingerprint only if it still refers to context, so closing a stale context can not remove its successor.
+     */
+    public boolean remove(@NotNull String fingerprint, @NotNull Context context) {
+        final Entry<V> entry = entries.get(fingerprint);
+        if (entry != null && entry.get() == context && entries.remove(fingerprint, entry)) {
+            unmonitor(fingerprint);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Registers a {@link SharedContextMonitor} for the context just cached under fingerprint, if {@link #JMX} is "true" in environment.
+     *
+     * @param root The MemoryContext behind the cached context.
+     * @param loader Loaded root, null if there is nothing to reload.
+     */
+    void monitor(@NotNull String fingerprint, @NotNull MemoryContext root, @NotNull Hashtable environment, long loadDurationMillis, @Nullable SimpleJndi loader) {
+        if (name == null || !BooleanUtils.toBoolean((String) environment.get(JMX))) {
+            return;
+        }
+        try {
+            final SharedContextMonitor monitor = new SharedContextMonitor(name, fingerprint, root, loader, loadDurationMillis);
+            final SharedContextMonitor replaced = monitors.put(fingerprint, monitor);
+            if (replaced != null) {
+                replaced.unregister();
+            }
+            monitor.register();
+        }
+        catch (JMException e) {
+            LOGGER.warn("Unable to monitor shared context {}: {}", fingerprint, e.toString());
+        }
+    }
+
+    private void unmonitor(String fingerprint) {
+        final SharedContextMonitor monitor = monitors.remove(fingerprint);
+        if (monitor != null) {
+            monitor.unregister();
+        }
+    }
+
+    /**
+     * Removes all contexts not requested within their idle timeout. Called on every access of the cache, but can also be called by a scheduler.
+     *
+     * @return number of evicted contexts
+     */
+    public int evictIdle() {
+        int evicted = 0;
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, Entry<V>> mapEntry : entries.entrySet()) {
+            final Entry<V> entry = mapEntry.getValue();
+            if (entry.isIdle(now) && entries.remove(mapEntry.getKey(), entry)) {
+                evicted++;
+                idleEvictions.incrementAndGet();
+                fireEvicted(mapEntry.getKey(), entry.get(), EvictionCause.IDLE);
+            }
+        }
+        return evicted;
+    }
+
+    public int size() {
+        expungeStaleEntries();
+        return entries.size();
+    }
+
+    @NotNull
+    public Set<String> fingerprints() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * @return Contexts currently cached. Collected contexts are skipped.
+     */
+    @NotNull
+    public List<V> contexts() {
+        final List<V> contexts = new ArrayList<V>();
+        for (Entry<V> entry : entries.values()) {
+            final V context = entry.get();
+            if (context != null) {
+                contexts.add(context);
+            }
+        }
+        return contexts;
+    }
+
+    public long getIdleEvictionCount() {
+        return idleEvictions.get();
+    }
+
+    public long getCollectedEvictionCount() {
+        return collectedEvictions.get();
+    }
+
+    public void addEvictionListener(@NotNull EvictionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeEvictionListener(@NotNull EvictionListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void clear() {
+        entries.clear();
+        for (String fingerprint : monitors.keySet()) {
+            unmonitor(fingerprint);
+        }
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends V> reference;
+        while ((reference = collected.poll()) != null) {
+            final String fingerprint = ((KeyedReference) reference).fingerprint();
+            final Entry<V> entry = entries.get(fingerprint);
+            if (entry != null && entry.reference == reference && entries.remove(fingerprint, entry)) {
+                fireEvicted(fingerprint, null, EvictionCause.COLLECTED);
+            }
+        }
+        if (hasIdleTimeouts()) {
+            evictIdle();
+        }
+    }
+
+    private boolean hasIdleTimeouts() {
+        for (Entry<V> entry : entries.values()) {
+            if (entry.idleTimeout > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void fireEvicted(String fingerprint, @Nullable Context context, EvictionCause cause) {
+        if (cause == EvictionCause.COLLECTED) {
+            collectedEvictions.incrementAndGet();
+        }
+        LOGGER.debug("Evicted shared context {}: {}", fingerprint, cause);
+        unmonitor(fingerprint);
+        for (EvictionListener listener : listeners) {
+            try {
+                listener.evicted(fingerprint, context, cause);
+            }
+            catch (RuntimeException e) {
+                LOGGER.error("EvictionListener {} failed.", listener, e);
+            }
+        }
+    }
+
+    @NotNull
+    static Retention retention(@NotNull Hashtable environment) {
+        final Object value = environment.get(RETENTION);
+        if (value == null || value.toString().trim().isEmpty()) {
+            return Retention.STRONG;
+        }
+        try {
+            return Retention.valueOf(value.toString().trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            LOGGER.warn("Unsupported {}={}. Using \"strong\".", RETENTION, value);
+            return Retention.STRONG;
+        }
+    }
+
+    static long idleTimeout(@NotNull Hashtable environment) {
+        final Object value = environment.get(IDLE_TIMEOUT);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.toString().trim());
+        }
+        catch (NumberFormatException e) {
+            LOGGER.warn("Unsupported {}={}. Idle eviction disabled.", IDLE_TIMEOUT, value);
+            return 0;
+        }
+    }
+
+    private interface KeyedReference {
+        String fingerprint();
+    }
+
+    private static class KeyedWeakReference<T> extends WeakReference<T> implements KeyedReference {
+        private final String fingerprint;
+
+        KeyedWeakReference(String fingerprint, T referent, ReferenceQueue<? super T> queue) {
+            super(referent, queue);
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public String fingerprint() {
+            return fingerprint;
+        }
+    }
+
+    private static class KeyedSoftReference<T> extends SoftReference<T> implements KeyedReference {
+        private final String fingerprint;
+
+        KeyedSoftReference(String fingerprint, T referent, ReferenceQueue<? super T> queue) {
+            super(referent, queue);
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public String fingerprint() {
+            return fingerprint;
+        }
+    }
+
+    private static class Entry<V> {
+        private final V strong;
+        private final Reference<V> reference;
+        private final long idleTimeout;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        Entry(String fingerprint, V context, Retention retention, long idleTimeout, ReferenceQueue<V> queue) {
+            switch (retention) {
+                case WEAK:
+                    strong = null;
+                    reference = new KeyedWeakReference<V>(fingerprint, context, queue);
+                    break;
+                case SOFT:
+                    strong = null;
+                    reference = new KeyedSoftReference<V>(fingerprint, context, queue);
+                    break;
+                default:
+                    strong = context;
+                    reference = null;
+            }
+            this.idleTimeout = idleTimeout;
+        }
+
+        @Nullable
+        V get() {
+            return strong != null ? strong : reference.get();
+        }
+
+        void touch() {
+            if (idleTimeout > 0) {
+                lastAccess = System.currentTimeMillis();
+            }
+        }
+
+        boolean isIdle(long now) {
+            return idleTimeout > 0 && now - lastAccess > idleTimeout;
+        }
+    }
+}
@@ -1,12 +1,23 @@
 package org.osjava.sj;
 
+import org.apache.commons.lang.BooleanUtils;
+import org.osjava.sj.jndi.MappedContext;
+import org.osjava.sj.jndi.PersistentJournal;
 import org.osjava.sj.loader.JndiLoader;
+import org.osjava.sj.loader.LoadProfiler;
+import org.osjava.sj.loader.NioBasedJndiLoader;
+import org.osjava.sj.loader.SnapshotImage;
 
 import javax.naming.Context;
+import javax.naming.NamingException;
 import java.util.Hashtable;
 
 import static org.osjava.sj.SimpleJndi.CONTEXT_FACTORY;
+import static org.osjava.sj.jndi.MemoryContext.CLOSE_RESOURCES;
+import static org.osjava.sj.jndi.MemoryContext.CLOSE_TIMEOUT;
 import static org.osjava.sj.jndi.MemoryContext.IGNORE_CLOSE;
+import static org.osjava.sj.jndi.MemoryContext.INTERCEPTORS;
+import static org.osjava.sj.jndi.MemoryContext.INTERCEPTOR_SERVICES;
 
 /**
  * @author Holger Thurow (thurow.h@gmail.com)
@@ -29,6 +40,20 @@ class ContextFactory {
         overwriteWithSystemProperty(IGNORE_CLOSE, env);
         overwriteWithSystemProperty("jndi.syntax.direction", env);
         overwriteWithSystemProperty(CONTEXT_FACTORY, env);
+        overwriteWithSystemProperty(ContextCache.RETENTION, env);
+        overwriteWithSystemProperty(ContextCache.IDLE_TIMEOUT, env);
+        overwriteWithSystemProperty(ContextCache.JMX, env);
+        overwriteWithSystemProperty(CLOSE_RESOURCES, env);
+        overwriteWithSystemProperty(CLOSE_TIMEOUT, env);
+        overwriteWithSystemProperty(INTERCEPTORS, env);
+        overwriteWithSystemProperty(INTERCEPTOR_SERVICES, env);
+        overwriteWithSystemProperty(PersistentJournal.FILE, env);
+        overwriteWithSystemProperty(PersistentJournal.COMPACT_THRESHOLD, env);
+        overwriteWithSystemProperty(SnapshotImage.IMAGE, env);
+        overwriteWithSystemProperty(LoadProfiler.REPORT, env);
+        overwriteWithSystemProperty(NioBasedJndiLoader.PARALLELISM, env);
+        overwriteWithSystemProperty(MappedContext.MAPPED_FILE, env);
+        overwriteWithSystemProperty(MappedContext.MAPPED_REFRESH_INTERVAL, env);
 
     }
 
@@ -58,4 +83,14 @@ class ContextFactory {
             env.put(key, value);
         }
     }
+
+    /**
+     * Sets {@link org.osjava.sj.jndi.MemoryContext#IGNORE_CLOSE} of a shared context to the value requested by environment, "false" if not set.
+     */
+    static void setIgnoreClose(Context ctx, Hashtable environment) throws NamingException {
+        String ignoreClose = (String) environment.get(IGNORE_CLOSE);
+        ctx.addToEnvironment(
+                IGNORE_CLOSE,
+                BooleanUtils.toStringTrueFalse(BooleanUtils.toBoolean(ignoreClose)));
+    }
 }
@@ -0,0 +1,29 @@
+package org.osjava.sj;
+
+import org.osjava.sj.jndi.MappedContext;
+import org.osjava.sj.jndi.MappedNamespace;
+
+import javax.naming.ConfigurationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.spi.InitialContextFactory;
+import java.io.File;
+import java.util.Hashtable;
+
+/**
+ * Initial Context Factory for a {@link MappedContext}: A read-only view of the namespace another process published with {@link MappedNamespace#publish(Context, File)} to the file set by {@link MappedContext#MAPPED_FILE}.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class MappedContextFactory extends ContextFactory implements InitialContextFactory {
+
+    @Override
+    public Context getInitialContext(Hashtable environment) throws NamingException {
+        overwriteEnvironmentWithSystemProperties(environment);
+        final Object file = environment.get(MappedContext.MAPPED_FILE);
+        if (file == null || file.toString().trim().isEmpty()) {
+            throw new ConfigurationException(MappedContext.MAPPED_FILE + " not set.");
+        }
+        return new MappedContext(new File(file.toString().trim()), environment);
+    }
+}
@@ -47,7 +47,6 @@ import javax.naming.Context;
 import javax.naming.NamingException;
 import javax.naming.spi.InitialContextFactory;
 import java.util.Hashtable;
-import java.util.concurrent.ConcurrentHashMap;
 
 import static org.osjava.sj.jndi.MemoryContext.IGNORE_CLOSE;
 
@@ -59,8 +58,7 @@ import static org.osjava.sj.jndi.MemoryContext.IGNORE_CLOSE;
  */
 public class MemoryContextFactory extends ContextFactory implements InitialContextFactory {
 
-    private static final ConcurrentHashMap<String, Context> contextsByRoot =
-            new ConcurrentHashMap<String, Context>();
+    private static final ContextCache<Context> contextsByRoot = new ContextCache<Context>("MemoryContextFactory");
 
     /**
      * @see javax.naming.spi.InitialContextFactory#getInitialContext(java.util.Hashtable)
@@ -81,18 +79,14 @@ public class MemoryContextFactory extends ContextFactory implements InitialConte
             return new MemoryContext(environment);
         }
         else {
-            String root = (String) environment.get("org.osjava.sj.root");
-            final Context ctx = contextsByRoot.get(root);
+            final String fingerprint = ContextCache.fingerprint(environment);
+            final Context ctx = contextsByRoot.get(fingerprint);
             // ctx.listBindings("").hasMore(): Ob alle Kontexte zerstört wurden.
             if (ctx != null) {
-                String ignoreClose = (String) environment.get(IGNORE_CLOSE);
-                ctx.addToEnvironment(
-                        IGNORE_CLOSE,
-                        BooleanUtils.toStringTrueFalse(BooleanUtils.toBoolean(ignoreClose)));
+                setIgnoreClose(ctx, environment);
                 return ctx;
             }
             else {
-                final String finalRoot = root;
                 MemoryContext context = new MemoryContext(environment) {
                     private boolean isClosed;
                     @Override
@@ -103,7 +97,7 @@ public class MemoryContextFactory extends ContextFactory implements InitialConte
                             if (!BooleanUtils.toBoolean(ignoreClose)) {
                                 // first remove, so the context will be removed even when close()
                                 // throws an Exception
-                                contextsByRoot.remove(finalRoot);
+                                contextsByRoot.remove(fingerprint, this);
                                 super.forceClose();
                                 isClosed = true;
                             }
@@ -111,12 +105,26 @@ public class MemoryContextFactory extends ContextFactory implements InitialConte
                     }
 
                 };
-                contextsByRoot.put(root, context);
+                final Context cached = contextsByRoot.putIfAbsent(fingerprint, context, environment);
+                if (cached != null) {
+                    // Lost the race against a concurrent getInitialContext(). close() does nothing if the environment ignores close.
+                    context.forceClose();
+                    setIgnoreClose(cached, environment);
+                    return cached;
+                }
+                contextsByRoot.monitor(fingerprint, context, environment, 0, null);
                 return context;
             }
         }
     }
 
+    /**
+     * @return The shared contexts created by this factory, e. g. to monitor its size or register an {@link ContextCache.EvictionListener}.
+     */
+    public static ContextCache<Context> getContextCache() {
+        return contextsByRoot;
+    }
+
     /**
      * package-private: Only for Testing!
      */
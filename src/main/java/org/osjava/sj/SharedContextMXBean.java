@@ -0,0 +1,86 @@
+package org.osjava.sj;
+
+import java.util.Date;
+
+/**
+ * Management interface of a shared context cached by {@link MemoryContextFactory} or {@link SimpleJndiContextFactory}, registered when {@link ContextCache#JMX} is "true". See {@link SharedContextMonitor}.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public interface SharedContextMXBean {
+
+    String getFingerprint();
+
+    String getRoot();
+
+    /**
+     * @return Bound objects in the whole tree, contexts not included.
+     */
+    int getBindingCount();
+
+    int getSubcontextCount();
+
+    long getLookupCount();
+
+    /**
+     * @return Lookups that failed, mostly because the name was not bound.
+     */
+    long getMissCount();
+
+    /**
+     * @return Misses per lookup.
+     */
+    double getMissRatio();
+
+    /**
+     * @return Average since the statistics have been (re)started.
+     */
+    double getLookupsPerSecond();
+
+    long getLatencyP50Nanos();
+
+    long getLatencyP90Nanos();
+
+    long getLatencyP99Nanos();
+
+    long getLatencyMaxNanos();
+
+    /**
+     * @return Objects created from bound References, e. g. DataSources.
+     */
+    long getResolvedReferenceCount();
+
+    /**
+     * @return Duration of the last (re)load, 0 if the factory loads nothing.
+     */
+    long getLoadDurationMillis();
+
+    Date getLastLoadTime();
+
+    /**
+     * @param name Context to dump, "" for the root.
+     * @param maxDepth Levels of subcontexts to descend.
+     * @param maxEntries Lines to dump at most.
+     * @return One line per binding, subcontexts indented. String values are shown, unless name or value look like a password, other objects only by type.
+     */
+    String dump(String name, int maxDepth, int maxEntries);
+
+    /**
+     * Estimates the heap used by a context and its subcontexts. Walks all bound objects, so do not poll it.
+     *
+     * @param name Context to measure, "" for the root.
+     * @param maxDepth Levels of subcontexts to report.
+     * @param sharing How objects reachable from more than one binding are counted: "ONCE" (default), "EACH" or "EXCLUDE". See {@link org.osjava.sj.jndi.Footprint.Sharing}.
+     * @return One line per context with its total, its structure split into context objects, maps, names, environments and parsers, and its values.
+     */
+    String footprint(String name, int maxDepth, String sharing);
+
+    /**
+     * Loads the root again. Only supported for {@link SimpleJndiContextFactory}. Objects created by converters are rebound only if their properties changed.
+     *
+     * @return Number of bindings changed.
+     */
+    int reload();
+
+    void resetStatistics();
+}
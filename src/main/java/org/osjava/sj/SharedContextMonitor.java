@@ -0,0 +1,329 @@
+package org.osjava.sj;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osjava.sj.jndi.Footprint;
+import org.osjava.sj.jndi.LookupStatistics;
+import org.osjava.sj.jndi.MemoryContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.naming.Binding;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.Date;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * MBean of one shared context, registered as org.osjava.sj:type=SharedContext,factory=...,root=...,id=... by {@link ContextCache} while the context is cached.
+ * <p>
+ * Lookup statistics are recorded by {@link LookupStatistics} of the context's namespace while the MBean is registered. Counts of bindings and subcontexts walk the tree on every read. The context is weakly referenced, so the MBean does not keep a context alive the cache would let go.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class SharedContextMonitor implements SharedContextMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedContextMonitor.class);
+    private static final int MAX_VALUE_LENGTH = 120;
+    private static final String MASK = "****";
+    private static final Pattern SECRET_NAME = Pattern.compile("(?i)passw|pwd|secret|token|credential|private.?key");
+    /* Credentials in URL parameters or user info, e. g. jdbc:...?password=x or //user:x@host. */
+    private static final Pattern SECRET_VALUE = Pattern.compile("(?i)(passw\\w*|pwd|secret|token)\\s*[=:]|//[^/@\\s]+:[^/@\\s]*@");
+
+    private final String fingerprint;
+    private final String root;
+    private final WeakReference<MemoryContext> context;
+    /* null: The factory loads nothing, so there is nothing to reload. Weak, as the context: Kept reachable by the cached context, see SimpleJndiContextFactory. */
+    private final WeakReference<SimpleJndi> loader;
+    private final ObjectName objectName;
+    private volatile long loadDurationMillis;
+    private volatile long lastLoadTime;
+
+    SharedContextMonitor(@NotNull String factory, @NotNull String fingerprint, @NotNull MemoryContext context, @Nullable SimpleJndi loader, long loadDurationMillis) throws JMException {
+        this.fingerprint = fingerprint;
+        final Object root = context.getEnvironment().get(SimpleJndi.ROOT);
+        this.root = root != null ? root.toString() : "";
+        this.context = new WeakReference<MemoryContext>(context);
+        this.loader = loader != null ? new WeakReference<SimpleJndi>(loader) : null;
+        this.loadDurationMillis = loadDurationMillis;
+        this.lastLoadTime = System.currentTimeMillis();
+        objectName = new ObjectName("org.osjava.sj:type=SharedContext,factory=" + factory
+                + ",root=" + ObjectName.quote(this.root) + ",id=" + Integer.toHexString(fingerprint.hashCode()));
+        context.enableStatistics();
+    }
+
+    @NotNull
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    void register() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        }
+        catch (JMException e) {
+            LOGGER.warn("Unable to register {}: {}", objectName, e.toString());
+        }
+    }
+
+    void unregister() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        }
+        catch (JMException e) {
+            LOGGER.warn("Unable to unregister {}: {}", objectName, e.toString());
+        }
+        final MemoryContext memoryContext = context.get();
+        if (memoryContext != null) {
+            memoryContext.disableStatistics();
+        }
+    }
+
+    @NotNull
+    private MemoryContext context() {
+        final MemoryContext memoryContext = context.get();
+        if (memoryContext == null || memoryContext.isClosed()) {
+            throw new IllegalStateException("Context " + root + " has been closed or collected.");
+        }
+        return memoryContext;
+    }
+
+    @NotNull
+    private LookupStatistics statistics() {
+        final LookupStatistics statistics = context().getStatistics();
+        return statistics != null ? statistics : context().enableStatistics();
+    }
+
+    @Override
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public String getRoot() {
+        return root;
+    }
+
+    @Override
+    public int getBindingCount() {
+        return count()[0];
+    }
+
+    @Override
+    public int getSubcontextCount() {
+        return count()[1];
+    }
+
+    /**
+     * @return bindings, subcontexts
+     */
+    private int[] count() {
+        final int[] counts = new int[2];
+        try {
+            count(context(), counts);
+        }
+        catch (NamingException e) {
+            throw new IllegalStateException(e.toString());
+        }
+        return counts;
+    }
+
+    private static void count(Context context, int[] counts) throws NamingException {
+        final NamingEnumeration bindings = context.listBindings("");
+        while (bindings.hasMore()) {
+            final Object object = ((Binding) bindings.next()).getObject();
+            if (object instanceof Context) {
+                counts[1]++;
+                if (object instanceof MemoryContext) {
+                    count((Context) object, counts);
+                }
+            }
+            else {
+                counts[0]++;
+            }
+        }
+    }
+
+    @Override
+    public long getLookupCount() {
+        return statistics().getLookupCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return statistics().getMissCount();
+    }
+
+    @Override
+    public double getMissRatio() {
+        final LookupStatistics statistics = statistics();
+        final long lookups = statistics.getLookupCount();
+        return lookups == 0 ? 0 : (double) statistics.getMissCount() / lookups;
+    }
+
+    @Override
+    public double getLookupsPerSecond() {
+        final LookupStatistics statistics = statistics();
+        final long millis = Math.max(1, System.currentTimeMillis() - statistics.getStarted());
+        return statistics.getLookupCount() * 1000.0 / millis;
+    }
+
+    @Override
+    public long getLatencyP50Nanos() {
+        return statistics().getLatencyNanos(50);
+    }
+
+    @Override
+    public long getLatencyP90Nanos() {
+        return statistics().getLatencyNanos(90);
+    }
+
+    @Override
+    public long getLatencyP99Nanos() {
+        return statistics().getLatencyNanos(99);
+    }
+
+    @Override
+    public long getLatencyMaxNanos() {
+        return statistics().getMaxLatencyNanos();
+    }
+
+    @Override
+    public long getResolvedReferenceCount() {
+        return statistics().getResolvedReferenceCount();
+    }
+
+    @Override
+    public long getLoadDurationMillis() {
+        return loadDurationMillis;
+    }
+
+    @Override
+    public Date getLastLoadTime() {
+        return new Date(lastLoadTime);
+    }
+
+    @Override
+    public String dump(String name, int maxDepth, int maxEntries) {
+        final StringBuilder dump = new StringBuilder();
+        try {
+            final MemoryContext memoryContext = context();
+            final Object start = name == null || name.isEmpty() ? memoryContext : memoryContext.lookup(name);
+            if (!(start instanceof Context)) {
+                return String.valueOf(start);
+            }
+            final String separator = String.valueOf(memoryContext.getEnvironment().get(SimpleJndi.JNDI_SYNTAX_SEPARATOR));
+            dump((Context) start, "", separator, maxDepth, new int[] {maxEntries}, dump);
+        }
+        catch (NamingException e) {
+            throw new IllegalArgumentException(e.toString());
+        }
+        return dump.toString();
+    }
+
+    @Override
+    public String footprint(String name, int maxDepth, String sharing) {
+        try {
+            final MemoryContext memoryContext = context();
+            final Object start = name == null || name.isEmpty() ? memoryContext : memoryContext.lookup(name);
+            if (!(start instanceof MemoryContext)) {
+                throw new IllegalArgumentException(name + " is not a MemoryContext");
+            }
+            final Footprint.Sharing policy = sharing == null || sharing.trim().isEmpty()
+                    ? Footprint.Sharing.ONCE
+                    : Footprint.Sharing.valueOf(sharing.trim().toUpperCase(Locale.ROOT));
+            return ((MemoryContext) start).footprint(policy).report(maxDepth);
+        }
+        catch (NamingException e) {
+            throw new IllegalArgumentException(e.toString());
+        }
+    }
+
+    /**
+     * @return true if name or value looks like it holds a password, e. g. "password", "db.secret" or a JDBC URL with credentials.
+     */
+    static boolean isSecret(String name, String value) {
+        return SECRET_NAME.matcher(name).find() || SECRET_VALUE.matcher(value).find();
+    }
+
+    /**
+     * @param remaining Lines still allowed.
+     */
+    private static void dump(Context context, String indent, String separator, int depth, int[] remaining, StringBuilder dump) throws NamingException {
+        final NamingEnumeration bindings = context.listBindings("");
+        while (bindings.hasMore()) {
+            if (remaining[0]-- <= 0) {
+                dump.append(indent).append("...\n");
+                return;
+            }
+            final Binding binding = (Binding) bindings.next();
+            final Object object = binding.getObject();
+            if (object instanceof Context) {
+                dump.append(indent).append(binding.getName()).append(separator).append('\n');
+                if (depth > 0) {
+                    dump((Context) object, indent + "  ", separator, depth - 1, remaining, dump);
+                }
+            }
+            else {
+                dump.append(indent).append(binding.getName());
+                if (object instanceof String) {
+                    String value = isSecret(binding.getName(), (String) object) ? MASK : (String) object;
+                    if (value.length() > MAX_VALUE_LENGTH) {
+                        value = value.substring(0, MAX_VALUE_LENGTH) + "...";
+                    }
+                    dump.append(" = ").append(value);
+                }
+                else if (object == null) {
+                    dump.append(" = null");
+                }
+                if (object != null) {
+                    dump.append(" (").append(object.getClass().getName()).append(')');
+                }
+                dump.append('\n');
+            }
+        }
+    }
+
+    @Override
+    public int reload() {
+        if (loader == null) {
+            throw new UnsupportedOperationException("Nothing to reload: " + fingerprint + " is not loaded from a root directory.");
+        }
+        final SimpleJndi simpleJndi = loader.get();
+        if (simpleJndi == null) {
+            throw new IllegalStateException("Context " + root + " has been closed or collected.");
+        }
+        final long start = System.currentTimeMillis();
+        try {
+            final int changed = simpleJndi.reload(context());
+            loadDurationMillis = System.currentTimeMillis() - start;
+            lastLoadTime = System.currentTimeMillis();
+            return changed;
+        }
+        catch (NamingException e) {
+            LOGGER.error("Reloading {} failed.", root, e);
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    @Override
+    public void resetStatistics() {
+        final MemoryContext memoryContext = context();
+        memoryContext.disableStatistics();
+        memoryContext.enableStatistics();
+    }
+}
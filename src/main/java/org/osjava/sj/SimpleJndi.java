@@ -35,18 +35,37 @@ import org.apache.commons.lang.BooleanUtils;
 import org.apache.commons.lang.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.osjava.sj.jndi.MemoryContext;
+import org.osjava.sj.jndi.MemoryContextBatch;
+import org.osjava.sj.jndi.PersistentJournal;
 import org.osjava.sj.loader.JndiLoader;
+import org.osjava.sj.loader.LoadProfiler;
 import org.osjava.sj.loader.NioBasedJndiLoader;
+import org.osjava.sj.loader.SnapshotImage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.naming.Binding;
 import javax.naming.Context;
 import javax.naming.InitialContext;
+import javax.naming.Name;
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 public class SimpleJndi {
 
@@ -62,18 +81,41 @@ public class SimpleJndi {
     private static final Logger LOGGER = LoggerFactory.getLogger(SimpleJndi.class);
 
     private Hashtable<String, String> env;
+    /* Set by tools, replaces the profiler created for LoadProfiler.REPORT. */
+    private final LoadProfiler profiler;
+    /* The properties every object created by a converter was created from, keyed by identity, so reload() can tell changed objects from new instances of the same. null unless the root can be reloaded. */
+    private Map<Object, Properties> sources;
 
     SimpleJndi(Hashtable<String, String> environment) {
+        this(environment, null);
+    }
+
+    SimpleJndi(Hashtable<String, String> environment, @Nullable LoadProfiler profiler) {
         this.env = environment;
+        this.profiler = profiler;
+        if (BooleanUtils.toBoolean(environment.get(SHARED)) && BooleanUtils.toBoolean(environment.get(ContextCache.JMX))) {
+            // Reloadable by SharedContextMonitor.
+            sources = Collections.synchronizedMap(new IdentityHashMap<Object, Properties>());
+        }
     }
 
     InitialContext loadRoot() throws NamingException {
 
-        final InitialContext initialContext = new InitialContext(env);
+        final RootContext initialContext = new RootContext(env);
         Context ctxt = initialContext;
         ctxt = createENC(env, ctxt);
 //        FileBasedJndiLoader loader = new FileBasedJndiLoader(env);
-        NioBasedJndiLoader loader = new NioBasedJndiLoader(env);
+        final SnapshotImage image = openImage(initialContext);
+        NioBasedJndiLoader loader = image != null ? image.loader() : new NioBasedJndiLoader(env);
+        final String report = env.get(LoadProfiler.REPORT);
+        final boolean reported = report != null && !report.trim().isEmpty() && !report.trim().equalsIgnoreCase("false");
+        if (profiler != null) {
+            loader.setProfiler(profiler);
+        }
+        else if (reported) {
+            loader.setProfiler(new LoadProfiler());
+        }
+        loader.recordSources(sources);
         String root = getRoot(env);
         if (root != null && !root.isEmpty()) {
             final String[] roots = extractRoots(root);
@@ -121,9 +163,248 @@ public class SimpleJndi {
         else {
             logger.warn("Mistakenly no root provided?");
         }
+        if (loader.getProfiler() != null) {
+            loader.getProfiler().finish();
+            if (reported) {
+                report(loader.getProfiler(), report.trim());
+            }
+        }
+        if (image != null) {
+            try {
+                image.save();
+            }
+            catch (IOException e) {
+                LOGGER.warn("Unable to write {}={}", SnapshotImage.IMAGE, env.get(SnapshotImage.IMAGE), e);
+            }
+        }
+        final String persistenceFile = env.get(PersistentJournal.FILE);
+        if (persistenceFile != null && !persistenceFile.trim().isEmpty()) {
+            final Context rootContext = initialContext.getRoot();
+            if (rootContext instanceof MemoryContext) {
+                try {
+                    ((MemoryContext) rootContext).persistTo(new File(persistenceFile.trim()));
+                }
+                catch (NamingException e) {
+                    throwException(initialContext, e, "Unable to persist runtime bindings to " + persistenceFile);
+                }
+            }
+            else {
+                LOGGER.warn("{} ignored. Only supported for MemoryContext, not for {}.", PersistentJournal.FILE, rootContext.getClass().getName());
+            }
+        }
         return initialContext;
     }
 
+    /**
+     * @param report "true" or the file to write the JSON report to.
+     */
+    private static void report(LoadProfiler profiler, String report) {
+        LOGGER.info("Load report:\n{}", profiler.summary(10));
+        if (!report.equalsIgnoreCase("true")) {
+            final File file = new File(report);
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+                writer.write(profiler.toJson());
+            }
+            catch (IOException e) {
+                LOGGER.warn("Unable to write {}={}", LoadProfiler.REPORT, file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * @return null if no {@link SnapshotImage#IMAGE} is configured.
+     */
+    @Nullable
+    private SnapshotImage openImage(RootContext initialContext) throws NamingException {
+        final String imageFile = env.get(SnapshotImage.IMAGE);
+        if (imageFile == null || imageFile.trim().isEmpty()) {
+            return null;
+        }
+        final Context rootContext = initialContext.getRoot();
+        if (!(rootContext instanceof MemoryContext)) {
+            // Objects created by converters are bound as LazyBindings, which only MemoryContext creates on lookup.
+            LOGGER.warn("{} ignored. Only supported for MemoryContext, not for {}.", SnapshotImage.IMAGE, rootContext.getClass().getName());
+            return null;
+        }
+        return SnapshotImage.open(new File(imageFile.trim()), env);
+    }
+
+    /**
+     * @param loaded Returned by {@link #loadRoot()}.
+     * @return The context created by {@link #CONTEXT_FACTORY}, a {@link MemoryContext} by default.
+     */
+    static Context getRoot(InitialContext loaded) throws NamingException {
+        return ((RootContext) loaded).getRoot();
+    }
+
+    /**
+     * Loads the root again and applies what changed to root in one {@link MemoryContextBatch}: New subcontexts are created, new and changed objects are (re)bound. Nothing is unbound, because bindings missing in the files may have been bound at runtime. Lookups see root either before or after the reload.
+     * <p>
+     * An object created by a converter counts as changed if its properties changed, so an unchanged DataSource keeps its pool. Objects loaded in vain are closed if they are {@link AutoCloseable}. Objects replaced are closed if {@link MemoryContext#CLOSE_RESOURCES} is set, as if their context had been closed.
+     *
+     * @param root The root loaded before.
+     * @return Number of bindings changed.
+     */
+    int reload(@NotNull MemoryContext root) throws NamingException {
+        final Hashtable<String, String> reloadEnv = new Hashtable<String, String>(env);
+        // The journal is held by root.
+        reloadEnv.remove(PersistentJournal.FILE);
+        // Otherwise CONTEXT_FACTORY would return root itself.
+        reloadEnv.remove(SHARED);
+        // Parse all files, so every converted object is recorded with its properties.
+        reloadEnv.remove(SnapshotImage.IMAGE);
+        // The loaded tree is closed, but the objects moved into root must stay open. Objects not moved are closed below.
+        reloadEnv.remove(MemoryContext.IGNORE_CLOSE);
+        reloadEnv.remove(MemoryContext.CLOSE_RESOURCES);
+        final SimpleJndi reloader = new SimpleJndi(reloadEnv);
+        reloader.sources = Collections.synchronizedMap(new IdentityHashMap<Object, Properties>());
+        final InitialContext loaded = reloader.loadRoot();
+        final Map<Object, Properties> merged = new IdentityHashMap<Object, Properties>();
+        final List<Object> unused = new ArrayList<Object>();
+        final List<Object> replaced = new ArrayList<Object>();
+        final int changed;
+        try {
+            final MemoryContextBatch batch = root.batch();
+            final Name prefix = root.getNameParser("").parse("");
+            changed = reloader.merge(getRoot(loaded), root, prefix, batch, this, merged, unused, replaced);
+            batch.commit();
+            if (sources != null) {
+                synchronized (sources) {
+                    sources.clear();
+                    sources.putAll(merged);
+                }
+            }
+        }
+        catch (NamingException e) {
+            // Nothing applied: Everything loaded is unused.
+            unused.clear();
+            replaced.clear();
+            collect(getRoot(loaded), unused);
+            throw e;
+        }
+        finally {
+            loaded.close();
+            close(unused);
+            if (BooleanUtils.toBoolean(String.valueOf(root.getEnvironment().get(MemoryContext.CLOSE_RESOURCES)))) {
+                close(replaced);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @param current Of the root loaded before, null if the subcontext is new.
+     * @param previous Loaded the root before.
+     * @param merged Filled with the objects now bound in root and their properties, if created by a converter.
+     * @param unused Filled with the objects of this load not bound into root.
+     * @param replaced Filled with the objects of root replaced.
+     */
+    private int merge(Context loaded, @Nullable Context current, Name prefix, MemoryContextBatch batch, SimpleJndi previous,
+                      Map<Object, Properties> merged, List<Object> unused, List<Object> replaced) throws NamingException {
+        final Map<String, Object> currentBindings = new HashMap<String, Object>();
+        if (current != null) {
+            final NamingEnumeration bindings = current.listBindings("");
+            while (bindings.hasMore()) {
+                final Binding binding = (Binding) bindings.next();
+                currentBindings.put(binding.getName(), binding.getObject());
+            }
+        }
+        int changed = 0;
+        final NamingEnumeration bindings = loaded.listBindings("");
+        while (bindings.hasMore()) {
+            final Binding binding = (Binding) bindings.next();
+            final Name name = ((Name) prefix.clone()).add(binding.getName());
+            final Object object = binding.getObject();
+            final Object currentObject = currentBindings.get(binding.getName());
+            if (object instanceof Context) {
+                if (!(currentObject instanceof Context)) {
+                    batch.createSubcontext(name);
+                    changed++;
+                }
+                changed += merge((Context) object, currentObject instanceof Context ? (Context) currentObject : null, name, batch, previous, merged, unused, replaced);
+            }
+            else if (!currentBindings.containsKey(binding.getName())) {
+                batch.bind(name, object);
+                moved(object, merged);
+                changed++;
+            }
+            else if (isUnchanged(object, currentObject, previous)) {
+                unused.add(object);
+                if (previous.sources != null && currentObject != null && previous.sources.get(currentObject) != null) {
+                    merged.put(currentObject, previous.sources.get(currentObject));
+                }
+            }
+            else {
+                batch.rebind(name, object);
+                moved(object, merged);
+                replaced.add(currentObject);
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return true if loaded equals current or both were created from the same properties.
+     */
+    private boolean isUnchanged(@Nullable Object loaded, @Nullable Object current, SimpleJndi previous) {
+        if (loaded == null ? current == null : loaded.equals(current)) {
+            return true;
+        }
+        if (loaded == null || current == null || previous.sources == null) {
+            return false;
+        }
+        final Properties loadedSource = sources.get(loaded);
+        return loadedSource != null && loadedSource.equals(previous.sources.get(current));
+    }
+
+    private void moved(@Nullable Object object, Map<Object, Properties> merged) {
+        final Properties source = object != null ? sources.get(object) : null;
+        if (source != null) {
+            merged.put(object, source);
+        }
+    }
+
+    private static void collect(Context context, List<Object> objects) throws NamingException {
+        final NamingEnumeration bindings = context.listBindings("");
+        while (bindings.hasMore()) {
+            final Object object = ((Binding) bindings.next()).getObject();
+            if (object instanceof Context) {
+                collect((Context) object, objects);
+            }
+            else {
+                objects.add(object);
+            }
+        }
+    }
+
+    private static void close(List<Object> objects) {
+        for (Object object : objects) {
+            if (object instanceof AutoCloseable && !(object instanceof Context)) {
+                try {
+                    ((AutoCloseable) object).close();
+                }
+                catch (Exception e) {
+                    LOGGER.warn("Closing {} failed.", object, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives access to the context created by {@link #CONTEXT_FACTORY}.
+     */
+    private static final class RootContext extends InitialContext {
+
+        RootContext(Hashtable<?, ?> environment) throws NamingException {
+            super(environment);
+        }
+
+        Context getRoot() throws NamingException {
+            return getDefaultInitCtx();
+        }
+    }
+
     private void throwException(final InitialContext initialContext, final Exception e, final String msg) throws NamingException {
         LOGGER.error(msg, e);
         initialContext.close();
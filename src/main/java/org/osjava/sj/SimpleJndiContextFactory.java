@@ -32,13 +32,14 @@ package org.osjava.sj;
 
 import org.apache.commons.lang.BooleanUtils;
 import org.osjava.sj.jndi.DelimiterConvertingContext;
+import org.osjava.sj.jndi.MemoryContext;
+import org.osjava.sj.loader.LoadProfiler;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.naming.spi.InitialContextFactory;
 import java.util.Hashtable;
-import java.util.concurrent.ConcurrentHashMap;
 
 import static org.osjava.sj.jndi.MemoryContext.IGNORE_CLOSE;
 
@@ -48,8 +49,8 @@ import static org.osjava.sj.jndi.MemoryContext.IGNORE_CLOSE;
  * @author Henri Yandell, Holger Thurow
  */
 public class SimpleJndiContextFactory extends ContextFactory implements InitialContextFactory {
-    private static final ConcurrentHashMap<String, DelimiterConvertingContext> contextsByRoot =
-            new ConcurrentHashMap<String, DelimiterConvertingContext>();
+    private static final ContextCache<DelimiterConvertingContext> contextsByRoot =
+            new ContextCache<DelimiterConvertingContext>("SimpleJndiContextFactory");
 
     /**
      * package-private: Only for Testing!
@@ -58,6 +59,28 @@ public class SimpleJndiContextFactory extends ContextFactory implements InitialC
         contextsByRoot.clear();
     }
 
+    /**
+     * @return The shared contexts created by this factory, e. g. to monitor its size or register an {@link ContextCache.EvictionListener}.
+     */
+    public static ContextCache<DelimiterConvertingContext> getContextCache() {
+        return contextsByRoot;
+    }
+
+    /**
+     * Loads the root of environment like {@link #getInitialContext(Hashtable)} would, but always a new one, not shared, and profiled. For tools inspecting a configuration.
+     *
+     * @param environment Not changed.
+     * @return The context created by {@link SimpleJndi#CONTEXT_FACTORY}, to be closed by the caller.
+     */
+    public static Context loadRoot(final Hashtable<String, String> environment, final LoadProfiler profiler) throws NamingException {
+        final Hashtable<String, String> env = new Hashtable<String, String>(environment);
+        overwriteEnvironmentWithSystemProperties(env);
+        initializeStandardJndiEnvironment(env);
+        env.remove(SimpleJndi.SHARED);
+        env.remove(IGNORE_CLOSE);
+        return SimpleJndi.getRoot(new SimpleJndi(env, profiler).loadRoot());
+    }
+
     /**
      * @see InitialContextFactory#getInitialContext(java.util.Hashtable)
      */
@@ -71,19 +94,22 @@ public class SimpleJndiContextFactory extends ContextFactory implements InitialC
             return new DelimiterConvertingContext(new SimpleJndi(environment).loadRoot());
         }
         else {
-            final String root = (String) environment.get(SimpleJndi.ROOT);
-            final Context ctx = contextsByRoot.get(root);
+            final String fingerprint = ContextCache.fingerprint(environment);
+            final Context ctx = contextsByRoot.get(fingerprint);
             if (ctx != null) {
-                String ignoreClose = (String) environment.get(IGNORE_CLOSE);
-                ctx.addToEnvironment(
-                        IGNORE_CLOSE,
-                        BooleanUtils.toStringTrueFalse(BooleanUtils.toBoolean(ignoreClose)));
+                setIgnoreClose(ctx, environment);
                 return ctx;
             }
             else {
-                InitialContext context = new SimpleJndi(environment).loadRoot();
+                final long start = System.currentTimeMillis();
+                final SimpleJndi simpleJndi = new SimpleJndi(environment);
+                InitialContext context = simpleJndi.loadRoot();
+                final long loadDuration = System.currentTimeMillis() - start;
                 final DelimiterConvertingContext delimiterConvertingContext = new DelimiterConvertingContext(context) {
                     private boolean isClosed;
+                    /* SharedContextMonitor references the loader weakly: Reachable as long as this context is cached. */
+                    @SuppressWarnings("unused")
+                    private final SimpleJndi loader = simpleJndi;
 
                     @Override
                     public void close() throws NamingException {
@@ -92,14 +118,30 @@ public class SimpleJndiContextFactory extends ContextFactory implements InitialC
                             String ignoreClose = (String) getEnvironment().get(IGNORE_CLOSE);
                             if (!BooleanUtils.toBoolean(ignoreClose)) {
                                 // first remove, so the context will be removed even when close() throws an Exception.
-                                contextsByRoot.remove(root);
+                                contextsByRoot.remove(fingerprint, this);
                                 target.close();
                                 isClosed = true;
                             }
                         }
                     }
                 };
-                contextsByRoot.put(root, delimiterConvertingContext);
+                final Context root = SimpleJndi.getRoot(context);
+                final DelimiterConvertingContext cached =
+                        contextsByRoot.putIfAbsent(fingerprint, delimiterConvertingContext, environment);
+                if (cached != null) {
+                    // Lost the race against a concurrent getInitialContext(): Drop the root loaded in vain. close() does nothing if the environment ignores close.
+                    if (root instanceof MemoryContext) {
+                        ((MemoryContext) root).forceClose();
+                    }
+                    else {
+                        context.close();
+                    }
+                    setIgnoreClose(cached, environment);
+                    return cached;
+                }
+                if (root instanceof MemoryContext) {
+                    contextsByRoot.monitor(fingerprint, (MemoryContext) root, environment, loadDuration, simpleJndi);
+                }
                 return delimiterConvertingContext;
             }
         }
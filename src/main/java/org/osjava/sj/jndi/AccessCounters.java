@@ -0,0 +1,386 @@
+package org.osjava.sj.jndi;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.naming.Name;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Counts the lookups of every binding of a context tree, see {@link MemoryContext#enableAccessCounters()}.
+ * <p>
+ * A lookup finding a binding counts as hit of that binding, a lookup finding nothing as miss of the name looked up. Counters are kept per context and binding, so a lookup builds no name. It allocates only when it counts a binding or a missed name for the first time. Contended counters spread their increments over several cells, like java.util.concurrent.atomic.LongAdder, so concurrent lookups of the same hot binding do not contend. Counters stay with a context when it is renamed, a renamed binding starts counting anew. While counting is disabled a lookup only reads a null field.
+ * <p>
+ * The counters of a context are referenced by the context and only weakly from here, and are dropped when the context is destroyed or closed. At most {@link #MAX_MISSED_NAMES} missed names are counted one by one. Misses of further names are only summed up, see {@link Report#getOtherMisses()}.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class AccessCounters {
+
+    /** Number of distinct missed names counted one by one, so lookups of arbitrary names do not fill the memory. */
+    public static final int MAX_MISSED_NAMES = 1024;
+
+    /* Counters of every context looked up in since counting started. */
+    private final Set<OfContext> contexts = Collections.newSetFromMap(new ConcurrentHashMap<OfContext, Boolean>());
+    private final ReferenceQueue<MemoryContext> collected = new ReferenceQueue<MemoryContext>();
+    private final AtomicInteger missedNames = new AtomicInteger();
+    private final Counter otherMisses = new Counter();
+    private final long started = System.currentTimeMillis();
+
+    AccessCounters() {
+    }
+
+    void hit(@NotNull MemoryContext context, @NotNull Name key) {
+        final ConcurrentHashMap<Name, Counter> hits = ofContext(context).hits;
+        Counter counter = hits.get(key);
+        if (counter == null) {
+            counter = putIfAbsent(hits, key, new Counter());
+        }
+        counter.increment();
+    }
+
+    void miss(@NotNull MemoryContext context, @NotNull Name key) {
+        final ConcurrentHashMap<Name, Counter> misses = ofContext(context).misses;
+        Counter counter = misses.get(key);
+        if (counter == null) {
+            if (missedNames.incrementAndGet() > MAX_MISSED_NAMES) {
+                missedNames.decrementAndGet();
+                otherMisses.increment();
+                return;
+            }
+            final Counter created = new Counter();
+            counter = putIfAbsent(misses, key, created);
+            if (counter != created) {
+                missedNames.decrementAndGet();
+            }
+        }
+        counter.increment();
+    }
+
+    private OfContext ofContext(MemoryContext context) {
+        final OfContext counters = context.accessCounts;
+        if (counters != null && counters.owner == this) {
+            return counters;
+        }
+        synchronized (this) {
+            if (context.accessCounts == null || context.accessCounts.owner != this) {
+                expungeCollected();
+                final OfContext created = new OfContext(context, this, collected);
+                contexts.add(created);
+                context.accessCounts = created;
+            }
+            return context.accessCounts;
+        }
+    }
+
+    /**
+     * Forgets the counters of a context destroyed or closed.
+     */
+    void drop(@NotNull MemoryContext context) {
+        synchronized (this) {
+            final OfContext counters = context.accessCounts;
+            if (counters != null && counters.owner == this) {
+                context.accessCounts = null;
+                remove(counters);
+            }
+        }
+    }
+
+    /**
+     * Forgets all counters, when counting is disabled.
+     */
+    void release() {
+        synchronized (this) {
+            for (OfContext counters : contexts) {
+                final MemoryContext context = counters.get();
+                if (context != null && context.accessCounts == counters) {
+                    context.accessCounts = null;
+                }
+            }
+            contexts.clear();
+        }
+    }
+
+    private void expungeCollected() {
+        Reference<? extends MemoryContext> reference;
+        while ((reference = collected.poll()) != null) {
+            remove((OfContext) reference);
+        }
+    }
+
+    private void remove(OfContext counters) {
+        if (contexts.remove(counters)) {
+            missedNames.addAndGet(-counters.misses.size());
+        }
+    }
+
+    private static <K, V> V putIfAbsent(ConcurrentMap<K, V> map, K key, V value) {
+        final V existing = map.putIfAbsent(key, value);
+        return existing != null ? existing : value;
+    }
+
+    /**
+     * @return Milliseconds since epoch when counting started.
+     */
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * Sets all counters to 0 by forgetting them. Lookups running meanwhile may or may not be counted.
+     */
+    public void reset() {
+        synchronized (this) {
+            for (OfContext counters : contexts) {
+                counters.hits.clear();
+                missedNames.addAndGet(-counters.misses.size());
+                counters.misses.clear();
+            }
+            otherMisses.reset();
+        }
+    }
+
+    /**
+     * Caller must hold a lock of the namespace's mutations, so names are consistent.
+     *
+     * @param root Root of the namespace, to find bindings never read.
+     */
+    @NotNull
+    Report report(@NotNull MemoryContext root, int limit) {
+        synchronized (this) {
+            expungeCollected();
+        }
+        final List<Entry> neverRead = new ArrayList<Entry>();
+        collectNeverRead(root, neverRead);
+        Collections.sort(neverRead, Entry.BY_NAME);
+        final List<Entry> hottest = new ArrayList<Entry>();
+        final List<Entry> missHotspots = new ArrayList<Entry>();
+        for (OfContext counters : contexts) {
+            final MemoryContext context = counters.get();
+            if (context != null) {
+                collect(context, counters.hits, hottest);
+                collect(context, counters.misses, missHotspots);
+            }
+        }
+        return new Report(started, top(hottest, limit), top(missHotspots, limit), neverRead, otherMisses.sum());
+    }
+
+    private void collectNeverRead(MemoryContext context, List<Entry> neverRead) {
+        final OfContext counters = context.accessCounts;
+        final Map<Name, Counter> hits = counters != null && counters.owner == this ? counters.hits : null;
+        for (Map.Entry<Name, Object> binding : context.snapshot().entrySet()) {
+            if (context.isOfNamespace(binding.getValue())) {
+                collectNeverRead((MemoryContext) binding.getValue(), neverRead);
+            }
+            else if (hits == null || !hits.containsKey(binding.getKey())) {
+                neverRead.add(new Entry(context.nameInNamespace(binding.getKey()), 0));
+            }
+        }
+    }
+
+    private static void collect(MemoryContext context, Map<Name, Counter> counters, List<Entry> entries) {
+        for (Map.Entry<Name, Counter> counter : counters.entrySet()) {
+            entries.add(new Entry(context.nameInNamespace(counter.getKey()), counter.getValue().sum()));
+        }
+    }
+
+    private static List<Entry> top(List<Entry> entries, int limit) {
+        Collections.sort(entries, Entry.BY_COUNT);
+        return entries.size() > limit ? new ArrayList<Entry>(entries.subList(0, limit)) : entries;
+    }
+
+    /**
+     * The counters of one context. Strongly referenced by the context, so they live as long as it does.
+     */
+    static final class OfContext extends WeakReference<MemoryContext> {
+        final AccessCounters owner;
+        final ConcurrentHashMap<Name, Counter> hits = new ConcurrentHashMap<Name, Counter>();
+        final ConcurrentHashMap<Name, Counter> misses = new ConcurrentHashMap<Name, Counter>();
+
+        OfContext(MemoryContext context, AccessCounters owner, ReferenceQueue<MemoryContext> queue) {
+            super(context, queue);
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * Lookups of one name.
+     */
+    public static final class Entry {
+        static final Comparator<Entry> BY_COUNT = new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                final int byCount = e1.count < e2.count ? 1 : (e1.count == e2.count ? 0 : -1);
+                return byCount != 0 ? byCount : e1.name.compareTo(e2.name);
+            }
+        };
+        static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return e1.name.compareTo(e2.name);
+            }
+        };
+
+        private final String name;
+        private final long count;
+
+        Entry(String name, long count) {
+            this.name = name;
+            this.count = count;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + count;
+        }
+    }
+
+    /**
+     * Snapshot of the counters, see {@link MemoryContext#accessReport(int)}.
+     */
+    public static final class Report {
+        private final long started;
+        private final List<Entry> hottest;
+        private final List<Entry> missHotspots;
+        private final List<Entry> neverRead;
+        private final long otherMisses;
+
+        Report(long started, List<Entry> hottest, List<Entry> missHotspots, List<Entry> neverRead, long otherMisses) {
+            this.started = started;
+            this.hottest = Collections.unmodifiableList(hottest);
+            this.missHotspots = Collections.unmodifiableList(missHotspots);
+            this.neverRead = Collections.unmodifiableList(neverRead);
+            this.otherMisses = otherMisses;
+        }
+
+        /**
+         * @return Names looked up most, most first. Contexts included.
+         */
+        @NotNull
+        public List<Entry> getHottest() {
+            return hottest;
+        }
+
+        /**
+         * @return Names looked up most without being bound, most first.
+         */
+        @NotNull
+        public List<Entry> getMissHotspots() {
+            return missHotspots;
+        }
+
+        /**
+         * @return Bound objects, not contexts, never looked up since counting started, ordered by name. Candidates for dead configuration.
+         */
+        @NotNull
+        public List<Entry> getNeverRead() {
+            return neverRead;
+        }
+
+        /**
+         * @return Misses of names not counted one by one, because {@link #MAX_MISSED_NAMES} names were counted already.
+         */
+        public long getOtherMisses() {
+            return otherMisses;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder report = new StringBuilder();
+            report.append("Lookups since ").append(new Date(started)).append('\n');
+            append(report, "Hottest", hottest);
+            append(report, "Miss hotspots", missHotspots);
+            if (otherMisses > 0) {
+                report.append(String.format("  %12d  (other names)%n", otherMisses));
+            }
+            report.append("Never read (").append(neverRead.size()).append("):\n");
+            for (Entry entry : neverRead) {
+                report.append("  ").append(entry.name).append('\n');
+            }
+            return report.toString();
+        }
+
+        private static void append(StringBuilder report, String title, List<Entry> entries) {
+            report.append(title).append(":\n");
+            for (Entry entry : entries) {
+                report.append(String.format("  %12d  %s%n", entry.count, entry.name));
+            }
+        }
+    }
+
+    /**
+     * Counts in a single field until increments collide, then in cells chosen by thread.
+     */
+    static final class Counter {
+        private static final AtomicLongFieldUpdater<Counter> BASE = AtomicLongFieldUpdater.newUpdater(Counter.class, "base");
+        private static final AtomicReferenceFieldUpdater<Counter, AtomicLongArray> CELLS =
+                AtomicReferenceFieldUpdater.newUpdater(Counter.class, AtomicLongArray.class, "cells");
+        /* Cells used, spaced by PADDING longs, so two cells are not in one cache line. */
+        private static final int STRIPES = stripes();
+        private static final int PADDING = 8;
+
+        private volatile long base;
+        private volatile AtomicLongArray cells;
+
+        private static int stripes() {
+            final int processors = Runtime.getRuntime().availableProcessors();
+            return Math.min(64, Integer.highestOneBit(Math.max(1, processors - 1)) << 1);
+        }
+
+        void increment() {
+            AtomicLongArray c = cells;
+            if (c == null) {
+                final long b = base;
+                if (BASE.compareAndSet(this, b, b + 1)) {
+                    return;
+                }
+                CELLS.compareAndSet(this, null, new AtomicLongArray(STRIPES * PADDING));
+                c = cells;
+            }
+            c.incrementAndGet((int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING);
+        }
+
+        void reset() {
+            base = 0;
+            final AtomicLongArray c = cells;
+            if (c != null) {
+                for (int i = 0; i < STRIPES; i++) {
+                    c.set(i * PADDING, 0);
+                }
+            }
+        }
+
+        long sum() {
+            long sum = base;
+            final AtomicLongArray c = cells;
+            if (c != null) {
+                for (int i = 0; i < STRIPES; i++) {
+                    sum += c.get(i * PADDING);
+                }
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.osjava.sj.jndi;
+
+import javax.naming.NamingException;
+
+/**
+ * Called around lookup, bind, rebind, unbind, list and listBindings of a {@link MemoryContext}, e. g. for tracing, metrics or caching. Configured by {@link MemoryContext#INTERCEPTORS} and {@link MemoryContext#INTERCEPTOR_SERVICES} when the root context is created and then shared by all its subcontexts.
+ * <p>
+ * Implementations must be thread-safe. To be instantiated from the environment or by {@link java.util.ServiceLoader} an implementation needs a public no-arg constructor. An expensive interceptor can be wrapped in a {@link SamplingInterceptor}.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public interface ContextInterceptor {
+
+    /**
+     * @return Usually the result of {@link ContextInvocation#proceed()}: The object looked up, the NamingEnumeration listed, null for bind, rebind and unbind.
+     */
+    Object intercept(ContextInvocation invocation) throws NamingException;
+}
@@ -0,0 +1,91 @@
+package org.osjava.sj.jndi;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.naming.Name;
+import javax.naming.NamingException;
+
+/**
+ * An operation on a {@link MemoryContext} passed through the {@link ContextInterceptor}s. Belongs to one thread and one call.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public final class ContextInvocation {
+
+    public enum Operation { LOOKUP, BIND, REBIND, UNBIND, LIST, LIST_BINDINGS }
+
+    private final ContextInterceptor[] interceptors;
+    private final MemoryContext context;
+    private final Operation operation;
+    private final Name name;
+    private Object object;
+    /* The interceptor to be called by the next proceed(). */
+    private int next;
+
+    ContextInvocation(@NotNull ContextInterceptor[] interceptors, @NotNull MemoryContext context, @NotNull Operation operation, @NotNull Name name, @Nullable Object object) {
+        this.interceptors = interceptors;
+        this.context = context;
+        this.operation = operation;
+        this.name = name;
+        this.object = object;
+    }
+
+    /**
+     * Calls the next interceptor or, after the last one, performs the operation. May be called more than once, e. g. to retry.
+     */
+    public Object proceed() throws NamingException {
+        final int current = next;
+        if (current == interceptors.length) {
+            return context.perform(this);
+        }
+        next = current + 1;
+        try {
+            return interceptors[current].intercept(this);
+        }
+        finally {
+            next = current;
+        }
+    }
+
+    @NotNull
+    public Operation getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return The context the operation was called on.
+     */
+    @NotNull
+    public MemoryContext getContext() {
+        return context;
+    }
+
+    /**
+     * @return Relative to {@link #getContext()}. Not to be modified.
+     */
+    @NotNull
+    public Name getName() {
+        return name;
+    }
+
+    /**
+     * @return The object to be bound by {@link Operation#BIND} and {@link Operation#REBIND}, null for other operations.
+     */
+    @Nullable
+    public Object getObject() {
+        return object;
+    }
+
+    /**
+     * Replaces the object to be bound, e. g. by a wrapper.
+     */
+    public void setObject(@Nullable Object object) {
+        this.object = object;
+    }
+
+    @Override
+    public String toString() {
+        return operation + " " + name;
+    }
+}
@@ -32,13 +32,15 @@
 package org.osjava.sj.jndi;
 
 import javax.naming.*;
+import javax.naming.event.EventContext;
+import javax.naming.event.NamingListener;
 import java.util.Hashtable;
 
 
 /**
  * Converts between org.osjava.sj.delimiter for parsing property files and jndi.syntax.separator for lookups when they are different.
  */
-public class DelimiterConvertingContext implements Context {
+public class DelimiterConvertingContext implements EventContext {
 
     protected Context target;
 
@@ -189,5 +191,29 @@ public class DelimiterConvertingContext implements Context {
         return this.target.getNameInNamespace();
     }
 
+    public void addNamingListener(Name name, int scope, NamingListener listener) throws NamingException {
+        eventContext().addNamingListener(name, scope, listener);
+    }
+
+    public void addNamingListener(String name, int scope, NamingListener listener) throws NamingException {
+        name = normalizeSeparator(name);
+        eventContext().addNamingListener(name, scope, listener);
+    }
+
+    public void removeNamingListener(NamingListener listener) throws NamingException {
+        eventContext().removeNamingListener(listener);
+    }
+
+    public boolean targetMustExist() throws NamingException {
+        return eventContext().targetMustExist();
+    }
+
+    private EventContext eventContext() throws OperationNotSupportedException {
+        if (!(this.target instanceof EventContext)) {
+            throw new OperationNotSupportedException(this.target.getClass().getName() + " does not support events.");
+        }
+        return (EventContext) this.target;
+    }
+
 }
 
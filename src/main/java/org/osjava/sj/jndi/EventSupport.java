@@ -0,0 +1,230 @@
+package org.osjava.sj.jndi;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.Binding;
+import javax.naming.Name;
+import javax.naming.event.EventContext;
+import javax.naming.event.NamespaceChangeListener;
+import javax.naming.event.NamingEvent;
+import javax.naming.event.NamingListener;
+import javax.naming.event.ObjectChangeListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers {@link NamingEvent}s to the {@link NamingListener}s registered with the contexts of one {@link Namespace}.
+ * <p>
+ * Mutations only enqueue a change, together with the location of the changed binding at that moment. So a change is reported with the name it had when it was made, even if a context above has been renamed before the change is delivered. A daemon thread drains the queue in batches, matches the changes against the registrations and calls the listeners, so a slow listener never delays a mutation. The thread ends when the last listener has been removed. While no listener is registered the namespace has no EventSupport at all (see {@link Namespace#events}).
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+final class EventSupport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventSupport.class);
+
+    private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+    private final LinkedBlockingQueue<Change> changes = new LinkedBlockingQueue<Change>();
+    private Thread dispatcher;
+
+    /**
+     * @param target Name relative to source, made of keys as returned by {@link MemoryContext#key(Name, int)}.
+     */
+    void add(@NotNull MemoryContext source, @NotNull Name target, int scope, @NotNull NamingListener listener) {
+        registrations.add(new Registration(source, target, scope, listener));
+        synchronized (this) {
+            if (dispatcher == null) {
+                dispatcher = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch();
+                    }
+                }, "simple-jndi-events");
+                dispatcher.setDaemon(true);
+                dispatcher.start();
+            }
+        }
+    }
+
+    /**
+     * Removes all registrations of listener.
+     */
+    void remove(@NotNull NamingListener listener) {
+        for (Registration registration : registrations) {
+            if (registration.listener == listener) {
+                registrations.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * Removes the registrations made with closed contexts.
+     */
+    void removeClosed() {
+        for (Registration registration : registrations) {
+            if (registration.source.isClosed()) {
+                registrations.remove(registration);
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return registrations.isEmpty();
+    }
+
+    /**
+     * @param oldObject masked, null if key was not bound.
+     * @param newObject masked, null if key has been unbound.
+     */
+    void changed(@NotNull MemoryContext context, @NotNull Name key, @Nullable Object oldObject, @Nullable Object newObject) {
+        changes.add(new Change(context.origin(key), oldObject, newObject, null));
+    }
+
+    /**
+     * Called after the rename, so newContext is already where it is bound now. oldContext has not been moved by the rename, only the binding below it.
+     */
+    void renamed(@NotNull MemoryContext oldContext, @NotNull Name oldKey, @NotNull MemoryContext newContext, @NotNull Name newKey, @Nullable Object object) {
+        changes.add(new Change(oldContext.origin(oldKey), object, object, newContext.origin(newKey)));
+    }
+
+    private void dispatch() {
+        final List<Change> batch = new ArrayList<Change>();
+        while (true) {
+            try {
+                final Change change = changes.poll(1, TimeUnit.SECONDS);
+                if (change == null) {
+                    synchronized (this) {
+                        if (registrations.isEmpty() && changes.isEmpty()) {
+                            dispatcher = null;
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                batch.add(change);
+                changes.drainTo(batch);
+                for (Change each : batch) {
+                    for (Registration registration : registrations) {
+                        registration.notify(each);
+                    }
+                }
+                batch.clear();
+            }
+            catch (InterruptedException e) {
+                synchronized (this) {
+                    dispatcher = null;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Where a changed binding was when the change was made: The contexts from the one holding the binding up to the root, each with the name of the binding below it.
+     */
+    static final class Origin {
+        final List<MemoryContext> contexts;
+        final List<Name> names;
+
+        Origin(List<MemoryContext> contexts, List<Name> names) {
+            this.contexts = contexts;
+            this.names = names;
+        }
+    }
+
+    private static final class Change {
+        final Origin origin;
+        final Object oldObject;
+        final Object newObject;
+        /* Only set by rename. */
+        final Origin newOrigin;
+
+        Change(Origin origin, Object oldObject, Object newObject, Origin newOrigin) {
+            this.origin = origin;
+            this.oldObject = oldObject;
+            this.newObject = newObject;
+            this.newOrigin = newOrigin;
+        }
+    }
+
+    private static final class Registration {
+        final MemoryContext source;
+        final Name target;
+        final int scope;
+        final NamingListener listener;
+
+        Registration(MemoryContext source, Name target, int scope, NamingListener listener) {
+            this.source = source;
+            this.target = target;
+            this.scope = scope;
+            this.listener = listener;
+        }
+
+        void notify(Change change) {
+            final Name oldName = inScope(change.origin);
+            final Name newName = change.newOrigin != null ? inScope(change.newOrigin) : oldName;
+            if (oldName == null && newName == null) {
+                return;
+            }
+            final int type;
+            Binding oldBinding = null;
+            Binding newBinding = null;
+            if (change.newOrigin != null) {
+                type = NamingEvent.OBJECT_RENAMED;
+                oldBinding = oldName != null ? binding(oldName, change.oldObject) : null;
+                newBinding = newName != null ? binding(newName, change.newObject) : null;
+            }
+            else if (change.oldObject == null) {
+                type = NamingEvent.OBJECT_ADDED;
+                newBinding = binding(newName, change.newObject);
+            }
+            else if (change.newObject == null) {
+                type = NamingEvent.OBJECT_REMOVED;
+                oldBinding = binding(oldName, change.oldObject);
+            }
+            else {
+                type = NamingEvent.OBJECT_CHANGED;
+                oldBinding = binding(oldName, change.oldObject);
+                newBinding = binding(newName, change.newObject);
+            }
+            if (type == NamingEvent.OBJECT_CHANGED ? !(listener instanceof ObjectChangeListener) : !(listener instanceof NamespaceChangeListener)) {
+                return;
+            }
+            try {
+                new NamingEvent(source, type, newBinding, oldBinding, null).dispatch(listener);
+            }
+            catch (RuntimeException e) {
+                LOGGER.error("NamingListener {} failed.", listener, e);
+            }
+        }
+
+        /**
+         * @return The name of the binding changed relative to source if it lay in the scope of this registration, otherwise null.
+         */
+        @Nullable
+        private Name inScope(Origin origin) {
+            final Name name = source.relativeName(origin);
+            if (name == null || !name.startsWith(target)) {
+                return null;
+            }
+            switch (scope) {
+                case EventContext.OBJECT_SCOPE:
+                    return name.size() == target.size() ? name : null;
+                case EventContext.ONELEVEL_SCOPE:
+                    return name.size() == target.size() + 1 ? name : null;
+                default:
+                    return name;
+            }
+        }
+
+        private static Binding binding(Name name, Object object) {
+            return new Binding(name.toString(), MemoryContext.unmask(object));
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package org.osjava.sj.jndi;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Java Flight Recorder event type of Simple-JNDI: {@link #LOOKUP}, {@link #FILE_LOAD}, {@link #CONVERSION} or {@link #POOL_CREATION}.
+ * <p>
+ * The event types are defined at runtime by jdk.jfr.EventFactory and driven by reflection, so Simple-JNDI still runs on JVMs without JFR. Nothing is defined unless the system property {@link #ENABLED} is "true" or {@link #enable()} has been called. Even then {@link #begin()} only reads a volatile flag as long as no recording is running, so events cost nothing when not recorded. All event types are in category "Simple-JNDI" and can be switched and tuned in a .jfc file like any other event type. {@link #LOOKUP} has a threshold, by default {@link #LOOKUP_THRESHOLD}.
+ * <p>
+ * Usage:
+ * <pre>
+ * final Object event = FlightRecorderEvent.LOOKUP.begin();
+ * ...
+ * if (event != null) {
+ *     FlightRecorderEvent.LOOKUP.commit(event, name, found);
+ * }
+ * </pre>
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public final class FlightRecorderEvent {
+
+    /** System property. "true": Define the events when this class is loaded. Default: "false". */
+    public static final String ENABLED = "org.osjava.sj.jfr";
+    /** System property. Default threshold of {@link #LOOKUP}, e. g. "1 ms". Default: "10 ms". */
+    public static final String LOOKUP_THRESHOLD = "org.osjava.sj.jfr.lookupThreshold";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlightRecorderEvent.class);
+    private static final String CATEGORY = "Simple-JNDI";
+
+    /** A lookup in a {@link MemoryContext} taking longer than the threshold. Fields: name, found. */
+    public static final FlightRecorderEvent LOOKUP = new FlightRecorderEvent("org.osjava.sj.Lookup", "JNDI Lookup",
+            "Lookup in a MemoryContext", true,
+            new Field("name", String.class, "Name"),
+            new Field("found", boolean.class, "Found"));
+    /** A file loaded into a context. Fields: path, bytes, parse time in nanoseconds, properties (keys found in the file). */
+    public static final FlightRecorderEvent FILE_LOAD = new FlightRecorderEvent("org.osjava.sj.FileLoad", "JNDI File Load",
+            "Properties, ini or xml file loaded into a context", false,
+            new Field("path", String.class, "Path"),
+            new Field("bytes", long.class, "Size", "jdk.jfr.DataAmount", "BYTES"),
+            new Field("parseTime", long.class, "Parse Time", "jdk.jfr.Timespan", "NANOSECONDS"),
+            new Field("properties", int.class, "Properties"));
+    /** A value converted while loading. Fields: type, converter, result (class name, null if nothing was created). */
+    public static final FlightRecorderEvent CONVERSION = new FlightRecorderEvent("org.osjava.sj.Conversion", "JNDI Conversion",
+            "Conversion of a loaded value into an object of the configured type", false,
+            new Field("type", String.class, "Type"),
+            new Field("converter", String.class, "Converter"),
+            new Field("result", String.class, "Result Class"));
+    /** A connection pool built by an {@link org.osjava.datasource.SJDataSource}. Fields: pool, url. */
+    public static final FlightRecorderEvent POOL_CREATION = new FlightRecorderEvent("org.osjava.sj.PoolCreation", "JNDI Pool Creation",
+            "Connection pool built by a SJDataSource", false,
+            new Field("pool", String.class, "Pool"),
+            new Field("url", String.class, "URL"));
+
+    private static final FlightRecorderEvent[] ALL = {LOOKUP, FILE_LOAD, CONVERSION, POOL_CREATION};
+
+    /* true: Events are defined and a recording is running. */
+    private static volatile boolean recording;
+    /* Guarded by FlightRecorderEvent.class */
+    private static boolean enabled;
+    private static Jfr jfr;
+
+    static {
+        if (Boolean.getBoolean(ENABLED)) {
+            enable();
+        }
+    }
+
+    private final String name;
+    private final String label;
+    private final String description;
+    private final boolean withThreshold;
+    private final Field[] fields;
+    /* jdk.jfr.EventFactory */
+    private volatile Object factory;
+
+    private FlightRecorderEvent(String name, String label, String description, boolean withThreshold, Field... fields) {
+        this.name = name;
+        this.label = label;
+        this.description = description;
+        this.withThreshold = withThreshold;
+        this.fields = fields;
+    }
+
+    /**
+     * Defines the event types, unless done before.
+     *
+     * @return false: This JVM has no Flight Recorder or defining the events failed.
+     */
+    public static synchronized boolean enable() {
+        if (enabled) {
+            return true;
+        }
+        try {
+            jfr = new Jfr();
+            for (FlightRecorderEvent event : ALL) {
+                event.factory = event.define(jfr);
+            }
+            jfr.addListener();
+            enabled = true;
+            updateRecording();
+            LOGGER.debug("Flight Recorder events defined.");
+            return true;
+        }
+        catch (ClassNotFoundException e) {
+            LOGGER.debug("No Flight Recorder in this JVM.");
+        }
+        catch (Exception e) {
+            LOGGER.warn("Unable to define Flight Recorder events.", e);
+        }
+        for (FlightRecorderEvent event : ALL) {
+            event.factory = null;
+        }
+        return false;
+    }
+
+    /**
+     * @return true: Events are defined and a recording is running.
+     */
+    public static boolean isRecording() {
+        return recording;
+    }
+
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return An event with its start time set, to be passed to {@link #commit(Object, Object...)}. null if no recording is running.
+     */
+    @Nullable
+    public Object begin() {
+        if (!recording) {
+            return null;
+        }
+        final Object eventFactory = factory;
+        if (eventFactory == null) {
+            return null;
+        }
+        try {
+            final Object event = jfr.newEvent.invoke(eventFactory);
+            jfr.begin.invoke(event);
+            return event;
+        }
+        catch (Exception e) {
+            failed(e);
+            return null;
+        }
+    }
+
+    /**
+     * Ends event and hands it to the Flight Recorder, which drops it if the event type is disabled or the event took less than the threshold.
+     *
+     * @param event As returned by {@link #begin()}. null: Nothing is done.
+     * @param values The values of the fields in the order documented with the event type.
+     */
+    public void commit(@Nullable Object event, Object... values) {
+        if (event == null) {
+            return;
+        }
+        try {
+            jfr.end.invoke(event);
+            if (!(Boolean) jfr.shouldCommit.invoke(event)) {
+                return;
+            }
+            for (int i = 0; i < fields.length && i < values.length; i++) {
+                jfr.set.invoke(event, i, values[i]);
+            }
+            jfr.commit.invoke(event);
+        }
+        catch (Exception e) {
+            failed(e);
+        }
+    }
+
+    private Object define(Jfr jfr) throws Exception {
+        final List<Object> annotations = new ArrayList<Object>();
+        annotations.add(jfr.annotation("jdk.jfr.Name", name));
+        annotations.add(jfr.annotation("jdk.jfr.Label", label));
+        annotations.add(jfr.annotation("jdk.jfr.Description", description));
+        annotations.add(jfr.annotation("jdk.jfr.Category", new String[] {CATEGORY}));
+        if (withThreshold) {
+            annotations.add(jfr.annotation("jdk.jfr.Threshold", System.getProperty(LOOKUP_THRESHOLD, "10 ms")));
+        }
+        final List<Object> descriptors = new ArrayList<Object>();
+        for (Field field : fields) {
+            final List<Object> fieldAnnotations = new ArrayList<Object>();
+            fieldAnnotations.add(jfr.annotation("jdk.jfr.Label", field.label));
+            if (field.contentType != null) {
+                fieldAnnotations.add(jfr.annotation(field.contentType, field.contentValue));
+            }
+            descriptors.add(jfr.valueDescriptor.newInstance(field.type, field.name, fieldAnnotations));
+        }
+        return jfr.create.invoke(null, annotations, descriptors);
+    }
+
+    private static void updateRecording() {
+        boolean running = false;
+        try {
+            running = jfr.isRunning();
+        }
+        catch (Exception e) {
+            LOGGER.warn("Unable to query Flight Recorder state.", e);
+        }
+        recording = running;
+    }
+
+    private static synchronized void failed(Exception e) {
+        if (enabled) {
+            LOGGER.warn("Emitting Flight Recorder events failed. No more events are emitted.", e);
+            enabled = false;
+            recording = false;
+            for (FlightRecorderEvent event : ALL) {
+                event.factory = null;
+            }
+        }
+    }
+
+    private static final class Field {
+        final String name;
+        final Class<?> type;
+        final String label;
+        final String contentType;
+        final String contentValue;
+
+        Field(String name, Class<?> type, String label) {
+            this(name, type, label, null, null);
+        }
+
+        Field(String name, Class<?> type, String label, String contentType, String contentValue) {
+            this.name = name;
+            this.type = type;
+            this.label = label;
+            this.contentType = contentType;
+            this.contentValue = contentValue;
+        }
+    }
+
+    /**
+     * The parts of the jdk.jfr API used.
+     */
+    private static final class Jfr implements InvocationHandler {
+        final Constructor<?> annotationElement;
+        final Constructor<?> valueDescriptor;
+        final Method create;
+        final Method newEvent;
+        final Method begin;
+        final Method end;
+        final Method shouldCommit;
+        final Method set;
+        final Method commit;
+        final Class<?> flightRecorder;
+        final Class<?> listener;
+
+        Jfr() throws ClassNotFoundException, NoSuchMethodException {
+            final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+            valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+            final Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            create = eventFactory.getMethod("create", List.class, List.class);
+            newEvent = eventFactory.getMethod("newEvent");
+            final Class<?> event = Class.forName("jdk.jfr.Event");
+            begin = event.getMethod("begin");
+            end = event.getMethod("end");
+            shouldCommit = event.getMethod("shouldCommit");
+            set = event.getMethod("set", int.class, Object.class);
+            commit = event.getMethod("commit");
+            flightRecorder = Class.forName("jdk.jfr.FlightRecorder");
+            listener = Class.forName("jdk.jfr.FlightRecorderListener");
+        }
+
+        Object annotation(String type, Object value) throws Exception {
+            return annotationElement.newInstance(Class.forName(type), value);
+        }
+
+        /**
+         * Keeps {@link #recording} up to date.
+         */
+        void addListener() throws Exception {
+            final Object proxy = Proxy.newProxyInstance(FlightRecorderEvent.class.getClassLoader(), new Class<?>[] {listener}, this);
+            flightRecorder.getMethod("addListener", listener).invoke(null, proxy);
+        }
+
+        boolean isRunning() throws Exception {
+            // Not initialized: No recording has ever been started. Do not initialize the Flight Recorder by asking.
+            if (!(Boolean) flightRecorder.getMethod("isInitialized").invoke(null)) {
+                return false;
+            }
+            final Object recorder = flightRecorder.getMethod("getFlightRecorder").invoke(null);
+            for (Object recording : (List<?>) flightRecorder.getMethod("getRecordings").invoke(recorder)) {
+                if ("RUNNING".equals(String.valueOf(recording.getClass().getMethod("getState").invoke(recording)))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Called as FlightRecorderListener on every change of a recording's state.
+         */
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                }
+                if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return "FlightRecorderEvent listener";
+            }
+            updateRecording();
+            return null;
+        }
+    }
+}
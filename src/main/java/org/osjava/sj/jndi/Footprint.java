@@ -0,0 +1,200 @@
+package org.osjava.sj.jndi;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Estimated heap used by a context and its subcontexts, see {@link MemoryContext#footprint(Sharing)}. Structure is what the tree costs by itself: the context objects, their binding maps, the names used as keys, the environment copies every context holds and the name parsers. Values are the objects bound, including everything they reference.
+ * <p>
+ * Sizes are estimated from the fields of classes, assuming the object layout of HotSpot. Objects of the JDK whose fields are not accessible (Java 9 and later) are estimated from their public API, e. g. maps from their size. Expect the result to be off by some percent, not by factors.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public final class Footprint {
+
+    public enum Part {
+        /** The context objects themselves. */
+        CONTEXT,
+        /** The maps holding the bindings, without keys and values. */
+        MAP,
+        /** Keys of the bindings and the names of the contexts. */
+        NAMES,
+        /** The environment, which every context holds a copy of. */
+        ENVIRONMENT,
+        /** The name parser with its own copy of the environment. */
+        PARSER,
+        /** The objects bound, subcontexts excluded. */
+        VALUES
+    }
+
+    /**
+     * How objects reachable from more than one place, e. g. the same String in the environment of every context, are accounted for.
+     */
+    public enum Sharing {
+        /** Counted where first seen. Contexts are visited in order of names, each context's parts in the order of {@link Part}. The totals add up to the heap used by the whole tree. */
+        ONCE,
+        /** Counted everywhere they are reachable from. Every part and every binding is sized as if it were alone. */
+        EACH,
+        /** Not counted at all. What remains is about what the garbage collector could free, if the subtree or the binding was gone. */
+        EXCLUDE
+    }
+
+    private final String name;
+    private final long[] bytes = new long[Part.values().length];
+    private final List<Footprint> subcontexts = new ArrayList<Footprint>();
+    private int bindingCount;
+    private boolean truncated;
+
+    Footprint(@NotNull String name) {
+        this.name = name;
+    }
+
+    void add(Part part, long size) {
+        bytes[part.ordinal()] += size;
+    }
+
+    void addSubcontext(Footprint subcontext) {
+        subcontexts.add(subcontext);
+    }
+
+    void addBinding() {
+        bindingCount++;
+    }
+
+    void truncated() {
+        truncated = true;
+    }
+
+    /**
+     * @return Full name of the context, "" for the root.
+     */
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Bytes of part of this context alone.
+     */
+    public long getBytes(@NotNull Part part) {
+        return bytes[part.ordinal()];
+    }
+
+    /**
+     * @return Bytes of part of this context and all its subcontexts.
+     */
+    public long getTotalBytes(@NotNull Part part) {
+        long total = getBytes(part);
+        for (Footprint subcontext : subcontexts) {
+            total += subcontext.getTotalBytes(part);
+        }
+        return total;
+    }
+
+    /**
+     * @return All parts but {@link Part#VALUES} of this context alone.
+     */
+    public long getStructureBytes() {
+        long structure = 0;
+        for (Part part : Part.values()) {
+            if (part != Part.VALUES) {
+                structure += getBytes(part);
+            }
+        }
+        return structure;
+    }
+
+    public long getValueBytes() {
+        return getBytes(Part.VALUES);
+    }
+
+    public long getTotalStructureBytes() {
+        long total = getStructureBytes();
+        for (Footprint subcontext : subcontexts) {
+            total += subcontext.getTotalStructureBytes();
+        }
+        return total;
+    }
+
+    public long getTotalValueBytes() {
+        return getTotalBytes(Part.VALUES);
+    }
+
+    /**
+     * @return Structure and values of the whole subtree.
+     */
+    public long getTotalBytes() {
+        return getTotalStructureBytes() + getTotalValueBytes();
+    }
+
+    /**
+     * @return Objects bound directly to this context, subcontexts not included.
+     */
+    public int getBindingCount() {
+        return bindingCount;
+    }
+
+    public int getTotalBindingCount() {
+        int total = bindingCount;
+        for (Footprint subcontext : subcontexts) {
+            total += subcontext.getTotalBindingCount();
+        }
+        return total;
+    }
+
+    /**
+     * @return In order of names.
+     */
+    @NotNull
+    public List<Footprint> getSubcontexts() {
+        return Collections.unmodifiableList(subcontexts);
+    }
+
+    /**
+     * @return true if a bound object graph was too large to be walked completely or changed while being walked. Its size is underestimated.
+     */
+    public boolean isTruncated() {
+        if (truncated) {
+            return true;
+        }
+        for (Footprint subcontext : subcontexts) {
+            if (subcontext.isTruncated()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param maxDepth Levels of subcontexts to report. Totals always include the whole subtree.
+     * @return One line per context with its totals and the parts of its structure, subcontexts indented.
+     */
+    @NotNull
+    public String report(int maxDepth) {
+        final StringBuilder report = new StringBuilder();
+        report(report, "", maxDepth);
+        return report.toString();
+    }
+
+    private void report(StringBuilder report, String indent, int depth) {
+        report.append(String.format(Locale.ROOT, "%s%s: %d bytes, %d bindings (structure %d: context %d, map %d, names %d, environment %d, parser %d; values %d)%s%n",
+                indent, name.isEmpty() ? "(root)" : name, getTotalBytes(), getTotalBindingCount(), getTotalStructureBytes(),
+                getTotalBytes(Part.CONTEXT), getTotalBytes(Part.MAP), getTotalBytes(Part.NAMES),
+                getTotalBytes(Part.ENVIRONMENT), getTotalBytes(Part.PARSER), getTotalValueBytes(),
+                isTruncated() ? " truncated" : ""));
+        if (depth > 0) {
+            for (Footprint subcontext : subcontexts) {
+                subcontext.report(report, indent + "  ", depth - 1);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return report(0).trim();
+    }
+}
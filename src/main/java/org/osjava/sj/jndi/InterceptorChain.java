@@ -0,0 +1,94 @@
+package org.osjava.sj.jndi;
+
+import org.apache.commons.lang.BooleanUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Builds the interceptors of a namespace from the environment, once when the root context is created.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+final class InterceptorChain {
+
+    static final ContextInterceptor[] NONE = new ContextInterceptor[0];
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InterceptorChain.class);
+
+    private InterceptorChain() {
+    }
+
+    /**
+     * @return Interceptors configured by {@link MemoryContext#INTERCEPTORS} in their order, followed by those found by ServiceLoader if {@link MemoryContext#INTERCEPTOR_SERVICES} is "true". {@link #NONE} if there are none.
+     * @throws IllegalArgumentException An interceptor could not be created.
+     */
+    @NotNull
+    static ContextInterceptor[] build(Hashtable env) {
+        if (env == null) {
+            return NONE;
+        }
+        final List<ContextInterceptor> interceptors = new ArrayList<ContextInterceptor>();
+        final Object configured = env.get(MemoryContext.INTERCEPTORS);
+        if (configured instanceof ContextInterceptor) {
+            interceptors.add((ContextInterceptor) configured);
+        }
+        else if (configured instanceof ContextInterceptor[]) {
+            interceptors.addAll(Arrays.asList((ContextInterceptor[]) configured));
+        }
+        else if (configured instanceof Collection) {
+            for (Object interceptor : (Collection) configured) {
+                interceptors.add((ContextInterceptor) interceptor);
+            }
+        }
+        else if (configured != null) {
+            for (String entry : StringUtils.split(configured.toString(), ',')) {
+                if (!entry.trim().isEmpty()) {
+                    interceptors.add(create(entry.trim()));
+                }
+            }
+        }
+        if (BooleanUtils.toBoolean(String.valueOf(env.get(MemoryContext.INTERCEPTOR_SERVICES)))) {
+            for (ContextInterceptor interceptor : ServiceLoader.load(ContextInterceptor.class)) {
+                interceptors.add(interceptor);
+            }
+        }
+        if (interceptors.isEmpty()) {
+            return NONE;
+        }
+        LOGGER.debug("Interceptors: {}", interceptors);
+        return interceptors.toArray(new ContextInterceptor[interceptors.size()]);
+    }
+
+    /**
+     * @param entry class name, optionally followed by "@" and a sample rate.
+     */
+    private static ContextInterceptor create(String entry) {
+        final int at = entry.lastIndexOf('@');
+        final String className = at < 0 ? entry : entry.substring(0, at).trim();
+        try {
+            final ContextInterceptor interceptor = (ContextInterceptor) Class.forName(className).newInstance();
+            return at < 0 ? interceptor : new SamplingInterceptor(interceptor, Integer.parseInt(entry.substring(at + 1).trim()));
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid sample rate in " + MemoryContext.INTERCEPTORS + ": " + entry, e);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Unable to find interceptor class: " + className, e);
+        }
+        catch (ClassCastException e) {
+            throw new IllegalArgumentException(className + " does not implement " + ContextInterceptor.class.getName(), e);
+        }
+        catch (Exception e) {
+            throw new IllegalArgumentException("Unable to create interceptor " + className + " via empty constructor.", e);
+        }
+    }
+}
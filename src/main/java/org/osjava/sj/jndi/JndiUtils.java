@@ -43,6 +43,37 @@ public class JndiUtils {
         return objName;
     }
 
+    /**
+     * The object bound to name in context, without creating an object from a bound {@link Reference}. A {@link MemoryContext} looks the name up directly. Other contexts list the context holding name.
+     *
+     * @return A bound Reference as is. A subcontext as {@link Context}.
+     */
+    public static Object lookupBound(@NotNull Context context, @NotNull Name name) throws NamingException {
+        if (context instanceof MemoryContext) {
+            return ((MemoryContext) context).lookupBound(name);
+        }
+        if (context instanceof DelimiterConvertingContext) {
+            return lookupBound(((DelimiterConvertingContext) context).target, name);
+        }
+        if (name.isEmpty()) {
+            return context;
+        }
+        final String atom = name.get(name.size() - 1);
+        final NamingEnumeration<Binding> bindings = context.listBindings(name.getPrefix(name.size() - 1));
+        try {
+            while (bindings.hasMore()) {
+                final Binding binding = bindings.next();
+                if (binding.getName().equals(atom)) {
+                    return binding.getObject();
+                }
+            }
+        }
+        finally {
+            bindings.close();
+        }
+        throw new NameNotFoundException(name + " not found.");
+    }
+
     @NotNull
     public static CompoundName toCompoundName(final String objName, final Properties env) throws InvalidNameException
     {
@@ -0,0 +1,39 @@
+package org.osjava.sj.jndi;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.naming.NamingException;
+
+/**
+ * An object bound to a {@link MemoryContext}, but created only when it is first needed, e. g. by {@link org.osjava.sj.loader.SnapshotImage} for objects built by converters. Never visible itself: Lookups, listings and closing see the object it creates, as if that had been bound. Created once, however many threads look it up concurrently, and shared by all forks.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public abstract class LazyBinding {
+
+    private Object object;
+    private boolean created;
+
+    /**
+     * @return The object, created by the first call. If creating fails, the next call tries again.
+     */
+    @Nullable
+    public final synchronized Object get() throws NamingException {
+        if (!created) {
+            object = create();
+            created = true;
+        }
+        return object;
+    }
+
+    /**
+     * @return The object if created already, otherwise null. Never creates it.
+     */
+    @Nullable
+    final synchronized Object getIfCreated() {
+        return object;
+    }
+
+    @Nullable
+    protected abstract Object create() throws NamingException;
+}
@@ -0,0 +1,97 @@
+package org.osjava.sj.jndi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lookup counts and latencies of a context tree, see {@link MemoryContext#enableStatistics()}.
+ * <p>
+ * Recording takes no lock: Counts are kept by the striped counters of {@link AccessCounters}, latencies in a histogram of power-of-two buckets updated by atomic increments. So percentiles are approximations: They tell the upper bound of the bucket, at most twice the real value.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class LookupStatistics {
+
+    private static final int BUCKETS = 64;
+
+    private final AccessCounters.Counter lookups = new AccessCounters.Counter();
+    private final AccessCounters.Counter misses = new AccessCounters.Counter();
+    private final AccessCounters.Counter resolvedReferences = new AccessCounters.Counter();
+    /* Bucket i counts latencies of less than 2^i nanoseconds and at least 2^(i-1). */
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+    private final AtomicLong maxLatency = new AtomicLong();
+    private final long started = System.currentTimeMillis();
+
+    LookupStatistics() {
+    }
+
+    void lookup(long nanos, boolean found) {
+        lookups.increment();
+        if (!found) {
+            misses.increment();
+        }
+        latencies.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+        long max;
+        while (nanos > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, nanos)) {
+            // Retry
+        }
+    }
+
+    void resolved() {
+        resolvedReferences.increment();
+    }
+
+    /**
+     * @return Milliseconds since epoch when recording started.
+     */
+    public long getStarted() {
+        return started;
+    }
+
+    public long getLookupCount() {
+        return lookups.sum();
+    }
+
+    /**
+     * @return Lookups that threw an Exception, mostly {@link javax.naming.NameNotFoundException}.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Lookups that created an object from a bound {@link javax.naming.Reference}. Later lookups of the same binding get the cached object and are not counted.
+     */
+    public long getResolvedReferenceCount() {
+        return resolvedReferences.sum();
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxLatency.get();
+    }
+
+    /**
+     * @param percentile 0 &lt; percentile &lt;= 100
+     * @return Upper bound of the latency in nanoseconds below which percentile percent of the lookups took. 0 if there was no lookup.
+     */
+    public long getLatencyNanos(double percentile) {
+        final long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = latencies.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(total * Math.min(100, percentile) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min((1L << i) - 1, getMaxLatencyNanos());
+            }
+        }
+        return getMaxLatencyNanos();
+    }
+}
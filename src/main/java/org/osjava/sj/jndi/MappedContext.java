@@ -0,0 +1,419 @@
+package org.osjava.sj.jndi;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.CompoundName;
+import javax.naming.Context;
+import javax.naming.InvalidNameException;
+import javax.naming.Name;
+import javax.naming.NameNotFoundException;
+import javax.naming.NameParser;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.NotContextException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.Reference;
+import javax.naming.spi.NamingManager;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-only {@link Context} on a namespace published by {@link MappedNamespace#publish(Context, File)}, possibly by another process.
+ * <p>
+ * Names and values are read from the memory-mapped file on every lookup. No copy of the namespace is held on the heap. Every {@link #MAPPED_REFRESH_INTERVAL} milliseconds at most, an operation checks whether a new namespace has been published and switches to it. An operation works on one namespace only, never on a mix of old and new. Subcontexts returned by lookup() follow the switch too.
+ * <p>
+ * All modifying operations throw {@link OperationNotSupportedException}.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class MappedContext implements Context {
+
+    /** Path of the file published by {@link MappedNamespace#publish(Context, File)}. */
+    public static final String MAPPED_FILE = "org.osjava.sj.mapped.file";
+    /** Milliseconds between checks for a newly published namespace. Default 1000. 0: check on every operation. */
+    public static final String MAPPED_REFRESH_INTERVAL = "org.osjava.sj.mapped.refreshInterval";
+    private static final long DEFAULT_REFRESH_INTERVAL = 1000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedContext.class);
+
+    private final Mapping mapping;
+    /* Name of this context below the root of the namespace. */
+    private final Name prefix;
+    private final Hashtable env;
+    private final Properties syntax = new Properties();
+
+    /**
+     * @param file Published by {@link MappedNamespace#publish(Context, File)}.
+     * @param env {@link #MAPPED_REFRESH_INTERVAL} is honored. The separator is taken from the published namespace unless set by "jndi.syntax.separator".
+     */
+    public MappedContext(@NotNull File file, @Nullable Hashtable env) throws NamingException {
+        this.env = env != null ? (Hashtable) env.clone() : new Hashtable();
+        final Object interval = this.env.get(MAPPED_REFRESH_INTERVAL);
+        long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+        if (interval != null) {
+            try {
+                refreshInterval = Long.parseLong(interval.toString().trim());
+            }
+            catch (NumberFormatException e) {
+                LOGGER.warn("Unsupported {}={}. Using {}.", MAPPED_REFRESH_INTERVAL, interval, DEFAULT_REFRESH_INTERVAL);
+            }
+        }
+        mapping = new Mapping(file, TimeUnit.MILLISECONDS.toNanos(refreshInterval));
+        initSyntax(mapping.image().separator);
+        prefix = new CompoundName("", syntax);
+    }
+
+    private MappedContext(MappedContext parent, Name prefix) {
+        this.mapping = parent.mapping;
+        this.env = (Hashtable) parent.env.clone();
+        this.syntax.putAll(parent.syntax);
+        this.prefix = prefix;
+    }
+
+    private void initSyntax(String publishedSeparator) {
+        syntax.put("jndi.syntax.direction", "left_to_right");
+        final Object separator = env.get("jndi.syntax.separator");
+        syntax.put("jndi.syntax.separator", separator != null ? separator.toString() : publishedSeparator);
+        if (!env.containsKey("jndi.syntax.separator")) {
+            env.put("jndi.syntax.separator", publishedSeparator);
+        }
+    }
+
+    /**
+     * Checks for a newly published namespace now, regardless of {@link #MAPPED_REFRESH_INTERVAL}.
+     *
+     * @return true: Switched to a new namespace.
+     */
+    public boolean refresh() throws NamingException {
+        return mapping.refresh();
+    }
+
+    /**
+     * @return The generation of the namespace currently read. Changes with every publish.
+     */
+    public long getGeneration() throws NamingException {
+        return mapping.image().generation;
+    }
+
+    @Override
+    public Object lookup(Name name) throws NamingException {
+        final MappedNamespace.Image image = mapping.image();
+        final int value = resolve(image, name);
+        if (value == -1) {
+            return new MappedContext(this, absolute(name));
+        }
+        if (image.isContext(value)) {
+            return new MappedContext(this, absolute(name));
+        }
+        final Object object = image.value(value);
+        if (object instanceof Reference) {
+            try {
+                return NamingManager.getObjectInstance(object, name, this, env);
+            }
+            catch (NamingException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                final NamingException namingException = new NamingException("Unable to resolve " + name);
+                namingException.setRootCause(e);
+                throw namingException;
+            }
+        }
+        return object;
+    }
+
+    @Override
+    public Object lookup(String name) throws NamingException {
+        return lookup(parse(name));
+    }
+
+    /**
+     * @return Offset of the value bound to name, -1 for the empty name, i. e. this context.
+     */
+    private int resolve(MappedNamespace.Image image, Name name) throws NamingException {
+        int table = image.root;
+        int value = -1;
+        final Name absolute = absolute(name);
+        for (int i = 0; i < absolute.size(); i++) {
+            if (value != -1) {
+                if (!image.isContext(value)) {
+                    throw new NotContextException(absolute.getPrefix(i) + " is not a context.");
+                }
+                table = image.table(value);
+            }
+            value = image.find(table, absolute.get(i).getBytes(MappedNamespace.UTF_8));
+            if (value == -1) {
+                throw new NameNotFoundException(absolute.getPrefix(i + 1) + " not found.");
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return Offset of the table of the context named name.
+     */
+    private int table(MappedNamespace.Image image, Name name) throws NamingException {
+        final int value = resolve(image, name);
+        if (value == -1) {
+            return image.root;
+        }
+        if (!image.isContext(value)) {
+            throw new NotContextException(name + " is not a context.");
+        }
+        return image.table(value);
+    }
+
+    private Name absolute(Name name) throws InvalidNameException {
+        final Name absolute = (Name) prefix.clone();
+        for (int i = 0; i < name.size(); i++) {
+            absolute.add(name.get(i));
+        }
+        return absolute;
+    }
+
+    private Name parse(String name) throws NamingException {
+        return new CompoundName(name, syntax);
+    }
+
+    @Override
+    public NamingEnumeration list(Name name) throws NamingException {
+        return new ContextNames(entries(name));
+    }
+
+    @Override
+    public NamingEnumeration list(String name) throws NamingException {
+        return list(parse(name));
+    }
+
+    @Override
+    public NamingEnumeration listBindings(Name name) throws NamingException {
+        return new ContextBindings(entries(name));
+    }
+
+    @Override
+    public NamingEnumeration listBindings(String name) throws NamingException {
+        return listBindings(parse(name));
+    }
+
+    private Map<String, Object> entries(Name name) throws NamingException {
+        final MappedNamespace.Image image = mapping.image();
+        final int table = table(image, name);
+        final Map<String, Object> entries = new LinkedHashMap<String, Object>();
+        final Name context = absolute(name);
+        for (int i = 0; i < image.size(table); i++) {
+            final String atom = image.nameAt(table, i);
+            final int value = image.valueAt(table, i);
+            if (image.isContext(value)) {
+                final Name subcontext = (Name) context.clone();
+                subcontext.add(atom);
+                entries.put(atom, new MappedContext(this, subcontext));
+            }
+            else {
+                entries.put(atom, image.value(value));
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public Object lookupLink(Name name) throws NamingException {
+        return lookup(name);
+    }
+
+    @Override
+    public Object lookupLink(String name) throws NamingException {
+        return lookup(name);
+    }
+
+    @Override
+    public NameParser getNameParser(Name name) throws NamingException {
+        return new NameParser() {
+            @Override
+            public Name parse(String name) throws NamingException {
+                return MappedContext.this.parse(name);
+            }
+        };
+    }
+
+    @Override
+    public NameParser getNameParser(String name) throws NamingException {
+        return getNameParser(parse(name));
+    }
+
+    @Override
+    public Name composeName(Name name, Name prefix) throws NamingException {
+        final Name composed = (Name) prefix.clone();
+        composed.addAll(name);
+        return composed;
+    }
+
+    @Override
+    public String composeName(String name, String prefix) throws NamingException {
+        return composeName(parse(name), parse(prefix)).toString();
+    }
+
+    @Override
+    public Object addToEnvironment(String propName, Object propVal) throws NamingException {
+        return env.put(propName, propVal);
+    }
+
+    @Override
+    public Object removeFromEnvironment(String propName) throws NamingException {
+        return env.remove(propName);
+    }
+
+    @Override
+    public Hashtable getEnvironment() throws NamingException {
+        return (Hashtable) env.clone();
+    }
+
+    /**
+     * Only drops the reference to the mapping of this context. The mapping is unmapped by the garbage collector.
+     */
+    @Override
+    public void close() throws NamingException {
+    }
+
+    @Override
+    public String getNameInNamespace() throws NamingException {
+        return prefix.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "MappedContext{file=" + mapping.file + ", name=" + prefix + "}";
+    }
+
+    @Override
+    public void bind(Name name, Object obj) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void bind(String name, Object obj) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void rebind(Name name, Object obj) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void rebind(String name, Object obj) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void unbind(Name name) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void unbind(String name) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void rename(Name oldName, Name newName) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void rename(String oldName, String newName) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void destroySubcontext(Name name) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void destroySubcontext(String name) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public Context createSubcontext(Name name) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public Context createSubcontext(String name) throws NamingException {
+        throw readOnly();
+    }
+
+    private OperationNotSupportedException readOnly() {
+        return new OperationNotSupportedException("Mapped namespace " + mapping.file + " is read-only. Publish a new one instead.");
+    }
+
+    /**
+     * The current {@link MappedNamespace.Image} of a file, shared by a root context and its subcontexts.
+     */
+    private static final class Mapping {
+        final File file;
+        private final long refreshInterval;
+        private volatile MappedNamespace.Image image;
+        private volatile long checked;
+
+        Mapping(File file, long refreshInterval) throws NamingException {
+            this.file = file;
+            this.refreshInterval = refreshInterval;
+            image = map();
+            checked = System.nanoTime();
+        }
+
+        MappedNamespace.Image image() throws NamingException {
+            if (System.nanoTime() - checked >= refreshInterval) {
+                refresh();
+            }
+            return image;
+        }
+
+        synchronized boolean refresh() throws NamingException {
+            checked = System.nanoTime();
+            final long generation;
+            try {
+                final RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    raf.seek(MappedNamespace.GENERATION);
+                    generation = raf.readLong();
+                }
+                finally {
+                    raf.close();
+                }
+            }
+            catch (IOException e) {
+                LOGGER.warn("Unable to check {} for a new namespace: {}", file, e.toString());
+                return false;
+            }
+            if (generation == image.generation) {
+                return false;
+            }
+            image = map();
+            LOGGER.debug("Switched to namespace {} of {}.", image.generation, file);
+            return true;
+        }
+
+        private MappedNamespace.Image map() throws NamingException {
+            try {
+                return new MappedNamespace.Image(file);
+            }
+            catch (IOException e) {
+                final NamingException namingException = new NamingException("Unable to map " + file);
+                namingException.setRootCause(e);
+                throw namingException;
+            }
+        }
+    }
+}
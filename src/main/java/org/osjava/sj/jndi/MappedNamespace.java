@@ -0,0 +1,474 @@
+package org.osjava.sj.jndi;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.Binding;
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NameParser;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.naming.StringRefAddr;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A sealed, read-only namespace in a file, shared by several processes through memory mapping. {@link #publish(Context, File)} writes it, {@link MappedContext} reads it.
+ * <p>
+ * Layout: A header with a generation, then per context a table of its bindings, sorted by the UTF-8 bytes of their names, each entry pointing to the name and to the value. A lookup binary searches the tables of the mapping and only creates the object finally returned, so readers need neither parse nor copy the namespace into their heap. Supported values are Strings, wrappers of primitives, BigDecimal, BigInteger, Date and {@link Reference}s with {@link StringRefAddr}s. Other objects are skipped with a warning: DataSources and the like can not be shared between processes, but their Reference can.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public final class MappedNamespace {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedNamespace.class);
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final int MAGIC = 0x534a4d4e;
+    static final int VERSION = 1;
+    /** Offset of the generation in the header. */
+    static final int GENERATION = 8;
+
+    static final byte CONTEXT = 0;
+    static final byte NULL = 1;
+    static final byte STRING = 2;
+    static final byte INTEGER = 3;
+    static final byte LONG = 4;
+    static final byte SHORT = 5;
+    static final byte BYTE = 6;
+    static final byte DOUBLE = 7;
+    static final byte FLOAT = 8;
+    static final byte BOOLEAN = 9;
+    static final byte CHARACTER = 10;
+    static final byte BIG_DECIMAL = 11;
+    static final byte BIG_INTEGER = 12;
+    static final byte DATE = 13;
+    static final byte REFERENCE = 14;
+
+    private MappedNamespace() {
+    }
+
+    /**
+     * Writes context and its subcontexts to file. Replaces an existing file atomically, so readers switch from the old to the new namespace in one step (see {@link MappedContext#MAPPED_REFRESH_INTERVAL}). Processes still reading the old file keep their mapping of it.
+     *
+     * @param context Should not change while being published. For a {@link MemoryContext} a {@link MemoryContext#fork()} is published, which does not.
+     * @return Number of bindings published.
+     */
+    public static int publish(@NotNull Context context, @NotNull File file) throws NamingException, IOException {
+        final Context source = context instanceof MemoryContext ? ((MemoryContext) context).fork() : context;
+        try {
+            final Writer writer = new Writer(source.getNameParser(""));
+            final Object separator = source.getEnvironment().get("jndi.syntax.separator");
+            writer.out.writeInt(MAGIC);
+            writer.out.writeInt(VERSION);
+            writer.out.writeLong(UUID.randomUUID().getMostSignificantBits());
+            // Offset of the root context, patched below.
+            writer.out.writeInt(0);
+            writer.writeString(separator != null ? separator.toString() : "/");
+            final int root = writer.writeContext(source, "");
+            final byte[] bytes = writer.bytes.toByteArray();
+            ByteBuffer.wrap(bytes).putInt(16, root);
+
+            final File temp = new File(file.getPath() + ".tmp");
+            final FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            finally {
+                channel.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.debug("Published {} bindings in {} bytes to {}.", writer.count, bytes.length, file);
+            return writer.count;
+        }
+        finally {
+            if (source != context) {
+                source.close();
+            }
+        }
+    }
+
+    private static final class Writer {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final NameParser parser;
+        int count;
+
+        Writer(NameParser parser) {
+            this.parser = parser;
+        }
+
+        /**
+         * Writes the subcontexts first, so the table of context can point to them.
+         *
+         * @return offset of the table.
+         */
+        int writeContext(Context context, String path) throws NamingException, IOException {
+            final List<Entry> entries = new ArrayList<Entry>();
+            final NamingEnumeration bindings = context.listBindings("");
+            try {
+                while (bindings.hasMore()) {
+                    final Binding binding = (Binding) bindings.next();
+                    final Name name = parser.parse(binding.getName());
+                    final String atom = name.size() == 1 ? name.get(0) : binding.getName();
+                    final String fullName = path.isEmpty() ? atom : path + "/" + atom;
+                    final Object object = binding.getObject();
+                    final byte[] nameBytes = atom.getBytes(UTF_8);
+                    final int valueOffset;
+                    if (object instanceof Context) {
+                        final int table = writeContext((Context) object, fullName);
+                        valueOffset = bytes.size();
+                        out.writeByte(CONTEXT);
+                        out.writeInt(table);
+                    }
+                    else if (isSupported(object)) {
+                        valueOffset = bytes.size();
+                        writeValue(object);
+                        count++;
+                    }
+                    else {
+                        LOGGER.warn("Not publishing {}: {} can not be shared between processes.", fullName, object.getClass().getName());
+                        continue;
+                    }
+                    entries.add(new Entry(nameBytes, valueOffset));
+                }
+            }
+            finally {
+                bindings.close();
+            }
+            // Names are written after their values to keep writeContext() recursive without buffering. The entries point to both.
+            for (Entry entry : entries) {
+                entry.nameOffset = bytes.size();
+                out.writeInt(entry.name.length);
+                out.write(entry.name);
+            }
+            Collections.sort(entries, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry e1, Entry e2) {
+                    return compareBytes(e1.name, e2.name);
+                }
+            });
+            final int table = bytes.size();
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeInt(entry.nameOffset);
+                out.writeInt(entry.valueOffset);
+            }
+            return table;
+        }
+
+        void writeString(String string) throws IOException {
+            final byte[] utf8 = string.getBytes(UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+
+        void writeValue(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NULL);
+            }
+            else if (value instanceof String) {
+                out.writeByte(STRING);
+                writeString((String) value);
+            }
+            else if (value instanceof Integer) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer) value);
+            }
+            else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            }
+            else if (value instanceof Short) {
+                out.writeByte(SHORT);
+                out.writeShort((Short) value);
+            }
+            else if (value instanceof Byte) {
+                out.writeByte(BYTE);
+                out.writeByte((Byte) value);
+            }
+            else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            }
+            else if (value instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) value);
+            }
+            else if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeByte((Boolean) value ? 1 : 0);
+            }
+            else if (value instanceof Character) {
+                out.writeByte(CHARACTER);
+                out.writeChar((Character) value);
+            }
+            else if (value instanceof BigDecimal) {
+                out.writeByte(BIG_DECIMAL);
+                writeString(value.toString());
+            }
+            else if (value instanceof BigInteger) {
+                out.writeByte(BIG_INTEGER);
+                writeString(value.toString());
+            }
+            else if (value instanceof Date) {
+                out.writeByte(DATE);
+                out.writeLong(((Date) value).getTime());
+            }
+            else {
+                final Reference reference = (Reference) value;
+                out.writeByte(REFERENCE);
+                writeNullable(reference.getClassName());
+                writeNullable(reference.getFactoryClassName());
+                writeNullable(reference.getFactoryClassLocation());
+                out.writeInt(reference.size());
+                for (int i = 0; i < reference.size(); i++) {
+                    writeString(reference.get(i).getType());
+                    writeString((String) reference.get(i).getContent());
+                }
+            }
+        }
+
+        private void writeNullable(String string) throws IOException {
+            if (string == null) {
+                out.writeInt(-1);
+            }
+            else {
+                writeString(string);
+            }
+        }
+    }
+
+    private static boolean isSupported(@Nullable Object value) {
+        if (value == null) {
+            return true;
+        }
+        final Class<?> type = value.getClass();
+        if (type == Reference.class) {
+            final Enumeration<RefAddr> addrs = ((Reference) value).getAll();
+            while (addrs.hasMoreElements()) {
+                final RefAddr addr = addrs.nextElement();
+                if (!(addr instanceof StringRefAddr) || addr.getContent() == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return type == String.class || type == Integer.class || type == Long.class || type == Short.class
+                || type == Byte.class || type == Double.class || type == Float.class || type == Boolean.class
+                || type == Character.class || type == BigDecimal.class || type == BigInteger.class || type == Date.class;
+    }
+
+    private static final class Entry {
+        final byte[] name;
+        /* Set when the name is written. */
+        int nameOffset;
+        final int valueOffset;
+
+        Entry(byte[] name, int valueOffset) {
+            this.name = name;
+            this.valueOffset = valueOffset;
+        }
+    }
+
+    static int compareBytes(byte[] b1, byte[] b2) {
+        final int length = Math.min(b1.length, b2.length);
+        for (int i = 0; i < length; i++) {
+            final int difference = (b1[i] & 0xff) - (b2[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return b1.length - b2.length;
+    }
+
+    /**
+     * One mapped file. Immutable, so a reader holding an Image sees one consistent namespace.
+     */
+    static final class Image {
+        final MappedByteBuffer buffer;
+        final long generation;
+        final int root;
+        final String separator;
+
+        Image(@NotNull File file) throws IOException {
+            final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            finally {
+                // The mapping stays valid.
+                channel.close();
+            }
+            if (buffer.capacity() < 20 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException(file + " is no published namespace.");
+            }
+            generation = buffer.getLong(GENERATION);
+            root = buffer.getInt(16);
+            separator = string(20);
+        }
+
+        /**
+         * @return Offset of the value bound to name in the context table, -1 if not bound.
+         */
+        int find(int table, @NotNull byte[] name) {
+            int low = 0;
+            int high = buffer.getInt(table) - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final int entry = table + 4 + middle * 8;
+                final int comparison = compareName(buffer.getInt(entry), name);
+                if (comparison < 0) {
+                    low = middle + 1;
+                }
+                else if (comparison > 0) {
+                    high = middle - 1;
+                }
+                else {
+                    return buffer.getInt(entry + 4);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Compares without decoding the name in the mapping.
+         */
+        private int compareName(int offset, byte[] name) {
+            final int length = buffer.getInt(offset);
+            final int common = Math.min(length, name.length);
+            for (int i = 0; i < common; i++) {
+                final int difference = (buffer.get(offset + 4 + i) & 0xff) - (name[i] & 0xff);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return length - name.length;
+        }
+
+        int size(int table) {
+            return buffer.getInt(table);
+        }
+
+        String nameAt(int table, int index) {
+            return string(buffer.getInt(table + 4 + index * 8));
+        }
+
+        int valueAt(int table, int index) {
+            return buffer.getInt(table + 8 + index * 8);
+        }
+
+        boolean isContext(int value) {
+            return buffer.get(value) == CONTEXT;
+        }
+
+        /**
+         * @return Table of the context bound at value.
+         */
+        int table(int value) {
+            return buffer.getInt(value + 1);
+        }
+
+        @Nullable
+        String string(int offset) {
+            final int length = buffer.getInt(offset);
+            if (length < 0) {
+                return null;
+            }
+            final byte[] bytes = new byte[length];
+            final ByteBuffer view = buffer.duplicate();
+            view.position(offset + 4);
+            view.get(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        /**
+         * @param value Offset of a value that is no context.
+         */
+        @Nullable
+        Object value(int value) {
+            final int payload = value + 1;
+            switch (buffer.get(value)) {
+                case NULL:
+                    return null;
+                case STRING:
+                    return string(payload);
+                case INTEGER:
+                    return buffer.getInt(payload);
+                case LONG:
+                    return buffer.getLong(payload);
+                case SHORT:
+                    return buffer.getShort(payload);
+                case BYTE:
+                    return buffer.get(payload);
+                case DOUBLE:
+                    return buffer.getDouble(payload);
+                case FLOAT:
+                    return buffer.getFloat(payload);
+                case BOOLEAN:
+                    return buffer.get(payload) != 0;
+                case CHARACTER:
+                    return buffer.getChar(payload);
+                case BIG_DECIMAL:
+                    return new BigDecimal(string(payload));
+                case BIG_INTEGER:
+                    return new BigInteger(string(payload));
+                case DATE:
+                    return new Date(buffer.getLong(payload));
+                case REFERENCE:
+                    return reference(payload);
+                default:
+                    throw new IllegalStateException("Unknown value tag " + buffer.get(value));
+            }
+        }
+
+        private Reference reference(int offset) {
+            final String className = string(offset);
+            offset = skip(offset);
+            final String factory = string(offset);
+            offset = skip(offset);
+            final String factoryLocation = string(offset);
+            offset = skip(offset);
+            final Reference reference = new Reference(className, factory, factoryLocation);
+            final int count = buffer.getInt(offset);
+            offset += 4;
+            for (int i = 0; i < count; i++) {
+                final String type = string(offset);
+                offset = skip(offset);
+                reference.add(new StringRefAddr(type, string(offset)));
+                offset = skip(offset);
+            }
+            return reference;
+        }
+
+        private int skip(int stringOffset) {
+            return stringOffset + 4 + Math.max(0, buffer.getInt(stringOffset));
+        }
+    }
+}
@@ -33,31 +33,77 @@
 package org.osjava.sj.jndi;
 
 import org.apache.commons.lang.BooleanUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.naming.*;
+import javax.naming.event.EventContext;
+import javax.naming.event.NamingListener;
 import javax.naming.spi.NamingManager;
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 /**
  * @author Robert M. Zigweid
  * @since Simple-JNDI 0.11
  */
-public class MemoryContext implements Cloneable, Context  {
+public class MemoryContext implements Cloneable, EventContext  {
 
     public static final String IGNORE_CLOSE = "org.osjava.sj.jndi.ignoreClose";
+    /**
+     * "true": Closing or destroying a context closes bound objects implementing {@link AutoCloseable}, e. g. pooled {@link org.osjava.datasource.SJDataSource}s. Off by default, because objects looked up may still be in use after a context has been closed.
+     */
+    public static final String CLOSE_RESOURCES = "org.osjava.sj.jndi.closeResources";
+    /** Milliseconds to wait for resources to be closed. Default 10000. */
+    public static final String CLOSE_TIMEOUT = "org.osjava.sj.jndi.closeTimeout";
+    private static final long DEFAULT_CLOSE_TIMEOUT = 10000;
+    private static final int MAX_CLOSE_THREADS = 8;
+    /**
+     * {@link ContextInterceptor}s called around lookup, bind, rebind, unbind, list and listBindings: Comma separated class names, each optionally followed by "@" and a sample rate (see {@link SamplingInterceptor}). Programmatically also a ContextInterceptor, an array or a Collection of them. Read once when the root context is created.
+     */
+    public static final String INTERCEPTORS = "org.osjava.sj.jndi.interceptors";
+    /** "true": Also call the {@link ContextInterceptor}s found by {@link java.util.ServiceLoader}, after those of {@link #INTERCEPTORS}. Default: "false". */
+    public static final String INTERCEPTOR_SERVICES = "org.osjava.sj.jndi.interceptors.serviceLoader";
     private Properties envAsProperties;
 
-    private Map<Name, Object> namesToObjects = Collections.synchronizedMap(new HashMap<Name, Object>());
-    private Map<Name, Context> subContexts = Collections.synchronizedMap(new HashMap<Name, Context>());
+    /**
+     * Objects and subcontexts share one map, so replacing a binding is a single atomic operation. Subcontexts are the values implementing {@link Context}. null values are stored as {@link #NULL}. Read by {@link #bindings()}, changed only through {@link #writable()}.
+     * <p>
+     * null while this is a fork not yet accessed (see {@link #forkOf}).
+     */
+    private volatile State state;
+    /* Not null, if this context is part of a fork and has to take its bindings from forkOf as of the generation of fork, when first accessed. */
+    private final MemoryContext forkOf;
+    private final Fork fork;
+    /* Set once by close(). Operations started afterwards fail with a NamingException, readers in progress finish with the bindings they have already seen. */
+    private volatile boolean closed;
+    /** Stands in for null values, which {@link ConcurrentHashMap} does not accept. */
+    private static final Object NULL = new Object();
+    /** Shared with all subcontexts created below the root context. */
+    private final Namespace namespace;
     private Hashtable env = new Hashtable();
     private NameParser nameParser;
-    /* The full name of this context. */
+    /* The full name of a root context. Subcontexts compute theirs from parent and atomicName, so a renamed subtree needs no update. */
     private Name nameInNamespace = null;
-    private boolean nameLock = false;
+    /* The context this subcontext is bound to, null for the root context. Changed by rename(). */
+    private volatile MemoryContext parent;
+    /* The name of this subcontext within parent. */
+    private volatile Name atomicName;
+    /* Lookup counters of this context while AccessCounters are enabled. Set and cleared by AccessCounters only. */
+    volatile AccessCounters.OfContext accessCounts;
     private static Logger LOGGER = LoggerFactory.getLogger(MemoryContext.class);
 
     /**
@@ -87,6 +133,19 @@ public class MemoryContext implements Cloneable, Context  {
      * @param parser the NameParser being used by the Context.
      */
     protected MemoryContext(Hashtable env, NameParser parser) {
+        this(env, parser, new Namespace(InterceptorChain.build(env)), null, null);
+    }
+
+    /**
+     * For subcontexts: They share the namespace of their parent. For forks: forkOf and fork are set.
+     */
+    private MemoryContext(Hashtable env, NameParser parser, Namespace namespace, MemoryContext forkOf, Fork fork) {
+        this.namespace = namespace;
+        this.forkOf = forkOf;
+        this.fork = fork;
+        if (forkOf == null) {
+            state = new State(namespace.generation, new ConcurrentHashMap<Name, Object>(), null);
+        }
         if(env != null) {
             this.env = (Hashtable)env.clone();
             Properties props = new Properties();
@@ -123,180 +182,1097 @@ public class MemoryContext implements Cloneable, Context  {
     @Override
     public String toString() {
         return "MemoryContext{" +
-                "namesToObjects=" + namesToObjects +
-                ", subContexts=" + subContexts +
+                "bindings=" + (state != null ? toMap(state.map) : "(forked)") +
                 ", env=" + env +
                 ", nameParser=" + nameParser +
-                ", nameInNamespace=" + nameInNamespace +
-                ", nameLock=" + nameLock +
+                ", nameInNamespace=" + getNameInNamespace() +
                 '}';
     }
 
     /**
+     * If name is empty "a new instance of this context" (see {@link Context#lookup(Name)}) is returned: A {@link #fork()}, taken when the new instance is first accessed. So lookup("") costs nothing as long as the instance is not used.
      *
      * @see javax.naming.Context#lookup(javax.naming.Name)
-     * @throws OperationNotSupportedException if name is empty, because "a new instance of this context" (see {@link Context#lookup(Name)}) is at this time an unsupported operation.
      */
     @Override
     public Object lookup(@NotNull Name name) throws NamingException {
+        final ContextInterceptor[] interceptors = namespace.interceptors;
+        if (interceptors.length != 0) {
+            return new ContextInvocation(interceptors, this, ContextInvocation.Operation.LOOKUP, name, null).proceed();
+        }
+        return measuredLookup(name);
+    }
+
+    /**
+     * Performs the operation of invocation after all interceptors have been called.
+     */
+    Object perform(@NotNull ContextInvocation invocation) throws NamingException {
+        final Name name = invocation.getName();
+        switch (invocation.getOperation()) {
+            case LOOKUP:
+                return measuredLookup(name);
+            case BIND:
+                bindInternal(name, invocation.getObject());
+                return null;
+            case REBIND:
+                rebindInternal(name, invocation.getObject());
+                return null;
+            case UNBIND:
+                unbindInternal(name);
+                return null;
+            case LIST:
+                return enumerate(name, false);
+            case LIST_BINDINGS:
+                return enumerate(name, true);
+            default:
+                throw new OperationNotSupportedException(invocation.getOperation().toString());
+        }
+    }
+
+    private Object measuredLookup(@NotNull Name name) throws NamingException {
+        final LookupStatistics statistics = namespace.statistics;
+        final Object event = FlightRecorderEvent.LOOKUP.begin();
+        if (statistics == null && event == null) {
+            return find(name);
+        }
+        final long start = System.nanoTime();
+        boolean found = false;
+        try {
+            final Object object = find(name);
+            found = true;
+            return object;
+        }
+        finally {
+            if (statistics != null) {
+                statistics.lookup(System.nanoTime() - start, found);
+            }
+            if (event != null) {
+                FlightRecorderEvent.LOOKUP.commit(event, nameInNamespace(name), found);
+            }
+        }
+    }
+
+    private Object find(@NotNull Name name) throws NamingException {
+        if (name.size() == 0) {
+            return fork(false);
+        }
+        return find(name, true);
+    }
+
+    /**
+     * The object bound to name, without {@link ContextInterceptor}s. A bound {@link Reference} is returned as is, not resolved. A {@link LazyBinding} is replaced by its object, as in lookup(). For {@link JndiUtils#lookupBound(Context, Name)}.
+     */
+    @Nullable
+    Object lookupBound(@NotNull Name name) throws NamingException {
         if (name.size() == 0) {
-            return newInstance();
+            ensureOpen();
+            return this;
+        }
+        return find(name, false);
+    }
+
+    private Object find(@NotNull Name name, boolean resolve) throws NamingException {
+        Target target;
+        Object o;
+        /* Unresolved: What is bound where a subcontext was expected. */
+        Object notContext;
+        do {
+            // Stamp first: Contexts are marked closed before reads are invalidated (see detachTree()).
+            final long stamp = namespace.beginRead();
+            ensureOpen();
+            target = walk(name, name.size() - 1);
+            o = target.isResolved() ? target.context.bindings().get(target.key) : null;
+            notContext = target.failedAt >= 0 ? target.context.bindings().get(target.key) : null;
+            if (namespace.validate(stamp)) {
+                break;
+            }
+        } while (true);
+
+        final AccessCounters counters = namespace.counters;
+        if (counters != null && target.foreign == null) {
+            if (o != null) {
+                counters.hit(target.context, target.key);
+            }
+            else {
+                counters.miss(target.context, target.key);
+            }
+        }
+        if (target.foreign != null) {
+            return resolve ? target.foreign.lookup(target.remaining) : JndiUtils.lookupBound(target.foreign, target.remaining);
+        }
+        if (!target.isResolved()) {
+            String msg = "MemoryContext#lookup(\"{}\"): Invalid subcontext '{}' in context '{}': {}";
+            LOGGER.error(msg, name.getSuffix(target.failedAt), target.key, target.context.getNameInNamespace(), target.context);
+            if (notContext == null) {
+                /* Missing, e. g. destroyed concurrently. */
+                throw new NameNotFoundException(target.key.toString());
+            }
+            throw new NotContextException(target.key + " in " + name);
+        }
+        if (o == null) {
+            LOGGER.debug("MemoryContext#lookup() {} not found in {}", target.key, target.context);
+            throw new NameNotFoundException(target.key.toString());
+        }
+        if (o instanceof LazyBinding) {
+            return target.context.create(target.key, (LazyBinding) o);
+        }
+        if (resolve && o instanceof Reference) {
+            return target.context.getObjectInstance(target.key, (Reference) o);
+        }
+        return unmask(o);
+    }
+
+    /**
+     * Creates the object of a LazyBinding bound to key and binds it instead. Without a lock, as {@link #getObjectInstance(Name, Reference)}. The LazyBinding creates its object once, so bindings copied concurrently and still holding it get the same object.
+     */
+    @Nullable
+    private Object create(Name key, LazyBinding lazy) throws NamingException {
+        final Object object = lazy.get();
+        bindings().replace(key, lazy, mask(object));
+        return object;
+    }
+
+    /**
+     * Resolves a Reference bound to key and caches the result.
+     */
+    @Nullable
+    private Object getObjectInstance(Name key, Reference reference) throws NamingException {
+        Object instance;
+        try {
+            instance = NamingManager.getObjectInstance(reference, null, null, getEnvironment());
+        }
+        catch (Exception e) {
+            LOGGER.error("", e);
+            NamingException namingException = new NamingException();
+            namingException.setRootCause(e);
+            throw namingException;
+        }
+        instance = instance == reference ? null : instance;
+        final LookupStatistics statistics = namespace.statistics;
+        if (statistics != null) {
+            statistics.resolved();
+        }
+        // Only cache the instance if the Reference was not rebound in the meantime. Without a lock, so lookups never wait for writers: Bindings copied concurrently for a fork or detached may miss the instance, which is resolved again then.
+        bindings().replace(key, reference, mask(instance));
+        return instance;
+    }
+
+    /**
+     * A copy of this context and its subcontexts, as returned by lookup(""). Costs the same whatever the size of the subtree: The fork shares all bindings with this context and copies a subcontext only when it is accessed in the fork. Changes made to this context afterwards are not visible in the fork and vice versa. Closing the fork does not affect this context.
+     * <p>
+     * Bound objects themselves are not copied. Both contexts refer to the same DataSource etc.
+     */
+    @NotNull
+    public MemoryContext fork() throws NamingException {
+        return fork(true);
+    }
+
+    /**
+     * @param now false: The fork is taken when one of its contexts is first accessed. Until then the namespace forked from keeps no bindings for it.
+     */
+    @NotNull
+    private MemoryContext fork(boolean now) throws NamingException {
+        ensureOpen();
+        final Fork newFork = new Fork(namespace);
+        if (now) {
+            newFork.generation();
+        }
+        // The fork is closed by its own close(), even if this context ignores close().
+        final Hashtable forkEnv = (Hashtable) env.clone();
+        forkEnv.remove(IGNORE_CLOSE);
+        final MemoryContext forked = new MemoryContext(forkEnv, null, new Namespace(namespace.interceptors), this, newFork);
+        forked.nameInNamespace = forked.nameParser.parse(getNameInNamespace());
+        return forked;
+    }
+
+    /**
+     * All contexts of a fork refer to their Fork, so the namespace forked from keeps the bindings needed by the fork until the fork is no longer referenced.
+     */
+    private static final class Fork {
+        final Namespace source;
+        /* -1 until taken. */
+        private long generation = -1;
+        private boolean released;
+
+        Fork(Namespace source) {
+            this.source = source;
+        }
+
+        /**
+         * @return The generation the fork sees. Taken on first call.
+         */
+        synchronized long generation() {
+            if (generation < 0) {
+                final Lock lock = source.mutations.writeLock();
+                lock.lock();
+                try {
+                    // A fork released before being taken is closed. It is not registered anymore, but still needs a generation.
+                    generation = released ? source.generation : source.fork(this);
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+            return generation;
+        }
+
+        synchronized void release() {
+            released = true;
+            if (generation >= 0) {
+                source.releaseFork(this);
+            }
+        }
+    }
+
+    /**
+     * The bindings of a context as of a generation. Immutable except for the map of the newest State of a context.
+     */
+    private static final class State {
+        final long generation;
+        final ConcurrentHashMap<Name, Object> map;
+        /* Older bindings still needed by forks. */
+        final State previous;
+
+        State(long generation, ConcurrentHashMap<Name, Object> map, State previous) {
+            this.generation = generation;
+            this.map = map;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * @return The current bindings for reading.
+     */
+    @NotNull
+    private ConcurrentHashMap<Name, Object> bindings() {
+        final State s = state;
+        return s != null ? s.map : materialize().map;
+    }
+
+    /**
+     * Caller must hold a lock of namespace.mutations.
+     *
+     * @return The current bindings for changing. If a fork still needs the current bindings they are copied before.
+     */
+    @NotNull
+    private ConcurrentHashMap<Name, Object> writable() {
+        State s = state;
+        if (s == null) {
+            s = materialize();
+        }
+        final long current = namespace.generation;
+        if (s.generation == current) {
+            return s.map;
+        }
+        synchronized (this) {
+            s = state;
+            if (s.generation != current) {
+                final long oldestFork = namespace.oldestFork();
+                if (oldestFork < current) {
+                    state = new State(current, new ConcurrentHashMap<Name, Object>(s.map), prune(s, oldestFork));
+                }
+                else {
+                    state = new State(current, s.map, null);
+                }
+            }
+            return state.map;
+        }
+    }
+
+    /**
+     * @return states without the versions older than the one seen by the oldest fork.
+     */
+    private static State prune(State states, long oldestFork) {
+        if (states.generation <= oldestFork || states.previous == null) {
+            return new State(states.generation, states.map, null);
+        }
+        return new State(states.generation, states.map, prune(states.previous, oldestFork));
+    }
+
+    /**
+     * @return The bindings as of generation.
+     */
+    @NotNull
+    private ConcurrentHashMap<Name, Object> bindingsAt(long generation) {
+        State s = state;
+        if (s == null) {
+            s = materialize();
+        }
+        while (s.generation > generation) {
+            s = s.previous;
+        }
+        return s.map;
+    }
+
+    /**
+     * Copies the bindings of forkOf, as of the generation of fork, on first access of this fork context. Subcontexts become forks themselves, so they are not copied until accessed.
+     */
+    @NotNull
+    private synchronized State materialize() {
+        State s = state;
+        if (s == null) {
+            final ConcurrentHashMap<Name, Object> source = forkOf.bindingsAt(fork.generation());
+            final ConcurrentHashMap<Name, Object> map = new ConcurrentHashMap<Name, Object>(Math.max(16, source.size() * 2));
+            for (Map.Entry<Name, Object> entry : source.entrySet()) {
+                Object object = entry.getValue();
+                if (forkOf.isOfNamespace(object)) {
+                    final MemoryContext forked = new MemoryContext(env, null, namespace, (MemoryContext) object, fork);
+                    forked.parent = this;
+                    forked.atomicName = entry.getKey();
+                    object = forked;
+                }
+                map.put(entry.getKey(), object);
+            }
+            // Unchanged since the fork, so valid for every generation of this namespace.
+            s = new State(0, map, null);
+            state = s;
+        }
+        return s;
+    }
+
+    /**
+     * @see javax.naming.Context#lookup(java.lang.String)
+     */
+    @Override
+    public Object lookup(@NotNull String name) throws NamingException {
+        return lookup(nameParser.parse(name));
+    }
+
+    /**
+     * @see javax.naming.Context#bind(javax.naming.Name, java.lang.Object)
+     */
+    @Override
+    public void bind(@NotNull Name name, @Nullable Object object) throws NamingException {
+        final ContextInterceptor[] interceptors = namespace.interceptors;
+        if (interceptors.length != 0) {
+            new ContextInvocation(interceptors, this, ContextInvocation.Operation.BIND, name, object).proceed();
         }
         else {
-            Name objName = name.getPrefix(1);
-            objName = JndiUtils.toCompoundName(objName, envAsProperties);
-            if (name.size() > 1) { // A subcontext is lookuped.
-                if (subContexts.containsKey(objName)) {
-                    return subContexts.get(objName).lookup(name.getSuffix(1));
-                }
-                String msg = "MemoryContext#lookup(\"{}\"): Invalid subcontext '{}' in context '{}': {}";
-                LOGGER.error(msg, name, objName, getNameInNamespace(), this);
-                throw new NamingException();
-            }
-            else { // Can be a subcontext or an object.
-                name = JndiUtils.toCompoundName(name, envAsProperties);
-                if (namesToObjects.containsKey(name)) {
-                    Object o = namesToObjects.get(objName);
-                    if (o instanceof Reference) {
-                        Object instance;
-                        try {
-                            instance = NamingManager.getObjectInstance(o, null, null, getEnvironment());
-                        }
-                        catch (Exception e) {
-                            LOGGER.error("", e);
-                            NamingException namingException = new NamingException();
-                            namingException.setRootCause(e);
-                            throw namingException;
-                        }
-                        o = instance == o ? null : instance;
-                        namesToObjects.put(objName, o);
-                    }
-                    return o;
+            bindInternal(name, object);
+        }
+    }
+
+    private void bindInternal(@NotNull Name name, @Nullable Object object) throws NamingException {
+        if(name.size() == 0) {
+            throw new InvalidNameException("Cannot bind to an empty name.");
+        }
+        final Target target;
+        final Lock lock = lockMutation();
+        try {
+            ensureOpen();
+            target = walk(name, name.size() - 1);
+            if (target.isResolved()) {
+                /* Bind only if the name is not already bound. Atomically, so concurrent binds can not overwrite each other. */
+                if(target.context.writable().putIfAbsent(target.key, mask(object)) != null) {
+                    LOGGER.error("bind() {} already bound in {}", target.key, target.context);
+                    throw new NameAlreadyBoundException("Name " + target.key.toString()
+                        + " already bound.  Use rebind() to override");
+                }
+                target.context.changed(target.key, null, mask(object));
+                return;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        if (target.foreign != null) {
+            target.foreign.bind(target.remaining, object);
+        }
+        else {
+            LOGGER.error("No such subcontext: {} in {}", target.key, target.context);
+            throw new NameNotFoundException(target.key + "");
+        }
+    }
+
+    /**
+     * @see javax.naming.Context#bind(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public void bind(@NotNull String name, @Nullable Object object) throws NamingException {
+        bind(nameParser.parse(name), object);
+    }
+
+    /**
+     * Replaces an existing binding in one atomic step. Concurrent lookups see either the old or the new object, never a missing binding.
+     *
+     * @see javax.naming.Context#rebind(javax.naming.Name, java.lang.Object)
+     */
+    @Override
+    public void rebind(@NotNull Name name, @Nullable Object object) throws NamingException {
+        final ContextInterceptor[] interceptors = namespace.interceptors;
+        if (interceptors.length != 0) {
+            new ContextInvocation(interceptors, this, ContextInvocation.Operation.REBIND, name, object).proceed();
+        }
+        else {
+            rebindInternal(name, object);
+        }
+    }
+
+    private void rebindInternal(@NotNull Name name, @Nullable Object object) throws NamingException {
+        if(name.isEmpty()) {
+            throw new InvalidNameException("Cannot bind to empty name");
+        }
+        final Target target;
+        final Lock lock = lockMutation();
+        try {
+            ensureOpen();
+            target = walk(name, name.size() - 1);
+            if (target.isResolved()) {
+                final Object old = target.context.writable().put(target.key, mask(object));
+                target.context.changed(target.key, old, mask(object));
+                return;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        if (target.foreign != null) {
+            target.foreign.rebind(target.remaining, object);
+        }
+        else {
+            LOGGER.error("Cannot bind object. Target context does not exist. name={} context={}", name, target.context);
+            throw new NamingException("Cannot bind object.  Target context does not exist.");
+        }
+    }
+
+    /**
+     * @see javax.naming.Context#rebind(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public void rebind(@NotNull String name, @Nullable Object object) throws NamingException {
+        rebind(nameParser.parse(name), object);
+    }
+
+    /**
+     * Atomically replaces the object bound to name by replacement, but only if it is currently bound to expected. Allows threads to coordinate updates of a binding without external synchronization.
+     *
+     * @param expected Compared by {@link Object#equals(Object)} as in {@link java.util.concurrent.ConcurrentMap#replace(Object, Object, Object)}. May be null.
+     * @return true if replaced, false if name is not bound to expected or not bound at all.
+     * @throws OperationNotSupportedException if name lies in a subcontext that is no MemoryContext.
+     */
+    public boolean compareAndRebind(@NotNull Name name, @Nullable Object expected, @Nullable Object replacement) throws NamingException {
+        if(name.isEmpty()) {
+            throw new InvalidNameException("Cannot bind to empty name");
+        }
+        final Target target;
+        final Lock lock = lockMutation();
+        try {
+            ensureOpen();
+            target = walk(name, name.size() - 1);
+            if (target.isResolved()) {
+                final boolean replaced = target.context.writable().replace(target.key, mask(expected), mask(replacement));
+                if (replaced) {
+                    target.context.changed(target.key, mask(expected), mask(replacement));
+                }
+                return replaced;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        return toMemoryContext(target, name).compareAndRebind(target.remaining, expected, replacement);
+    }
+
+    /**
+     * @see #compareAndRebind(Name, Object, Object)
+     */
+    public boolean compareAndRebind(@NotNull String name, @Nullable Object expected, @Nullable Object replacement) throws NamingException {
+        return compareAndRebind(nameParser.parse(name), expected, replacement);
+    }
+
+    /**
+     * Binds object to name in one atomic step unless name is already bound. Unlike {@link #bind(Name, Object)} an existing binding is not an error. A name bound to null is bound.
+     *
+     * @return true if object was bound, false if name was bound already.
+     * @throws OperationNotSupportedException if name lies in a subcontext that is no MemoryContext.
+     */
+    public boolean putIfAbsent(@NotNull Name name, @Nullable Object object) throws NamingException {
+        if(name.isEmpty()) {
+            throw new InvalidNameException("Cannot bind to empty name");
+        }
+        final Target target;
+        final Lock lock = lockMutation();
+        try {
+            ensureOpen();
+            target = walk(name, name.size() - 1);
+            if (target.isResolved()) {
+                if (target.context.writable().putIfAbsent(target.key, mask(object)) != null) {
+                    return false;
+                }
+                target.context.changed(target.key, null, mask(object));
+                return true;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        return toMemoryContext(target, name).putIfAbsent(target.remaining, object);
+    }
+
+    /**
+     * @see #putIfAbsent(Name, Object)
+     */
+    public boolean putIfAbsent(@NotNull String name, @Nullable Object object) throws NamingException {
+        return putIfAbsent(nameParser.parse(name), object);
+    }
+
+    /**
+     * Starts recording the mutations of this context's namespace, i. e. of the root context and all its subcontexts. Does nothing if a journal is recorded already. Mutations made before are not recorded. While a journal is enabled, mutations of single bindings no longer run in parallel, so the journal records them in the order they were made. Lookups are not affected.
+     *
+     * @param capacity Number of mutations kept, rounded up to a power of two. Older mutations are overwritten.
+     * @return The journal of the namespace.
+     */
+    @NotNull
+    public MutationJournal enableJournal(int capacity) {
+        final Lock lock = namespace.mutations.writeLock();
+        lock.lock();
+        try {
+            if (namespace.journal == null) {
+                namespace.journal = new MutationJournal(capacity);
+            }
+            return namespace.journal;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The journal of the namespace, null if not enabled.
+     */
+    @Nullable
+    public MutationJournal getJournal() {
+        return namespace.journal;
+    }
+
+    /**
+     * @see MutationJournal#changesSince(long)
+     * @throws NamingException No journal enabled or the changes are no longer available, see {@link MutationJournal.TruncatedException}.
+     */
+    @NotNull
+    public List<MutationJournal.Entry> changesSince(long sequence) throws NamingException {
+        final MutationJournal journal = namespace.journal;
+        if (journal == null) {
+            throw new OperationNotSupportedException("No journal enabled. See enableJournal().");
+        }
+        return journal.changesSince(sequence);
+    }
+
+    /**
+     * Starts counting the lookups of every binding of this context's namespace, i. e. of the root context and all its subcontexts. Does nothing if counting already. Cheap enough to be switched on in production for a while, see {@link AccessCounters}.
+     *
+     * @return The counters of the namespace.
+     */
+    @NotNull
+    public AccessCounters enableAccessCounters() {
+        synchronized (namespace) {
+            if (namespace.counters == null) {
+                namespace.counters = new AccessCounters();
+            }
+            return namespace.counters;
+        }
+    }
+
+    /**
+     * Stops counting lookups and drops the counters.
+     */
+    public void disableAccessCounters() {
+        synchronized (namespace) {
+            final AccessCounters counters = namespace.counters;
+            namespace.counters = null;
+            if (counters != null) {
+                counters.release();
+            }
+        }
+    }
+
+    /**
+     * @return The access counters of the namespace, null if not enabled.
+     */
+    @Nullable
+    public AccessCounters getAccessCounters() {
+        return namespace.counters;
+    }
+
+    /**
+     * Starts recording lookup counts and latencies of this context's namespace. Does nothing if recording already.
+     *
+     * @return The statistics of the namespace.
+     */
+    @NotNull
+    public LookupStatistics enableStatistics() {
+        synchronized (namespace) {
+            if (namespace.statistics == null) {
+                namespace.statistics = new LookupStatistics();
+            }
+            return namespace.statistics;
+        }
+    }
+
+    /**
+     * Stops recording lookup statistics and drops them.
+     */
+    public void disableStatistics() {
+        synchronized (namespace) {
+            namespace.statistics = null;
+        }
+    }
+
+    /**
+     * @return The lookup statistics of the namespace, null if not enabled.
+     */
+    @Nullable
+    public LookupStatistics getStatistics() {
+        return namespace.statistics;
+    }
+
+    /**
+     * @param limit Maximum number of hottest names and of miss hotspots reported. Bindings never read are all reported.
+     * @throws OperationNotSupportedException Access counters not enabled, see {@link #enableAccessCounters()}.
+     */
+    @NotNull
+    public AccessCounters.Report accessReport(int limit) throws NamingException {
+        final AccessCounters counters = namespace.counters;
+        if (counters == null) {
+            throw new OperationNotSupportedException("Access counters not enabled. See enableAccessCounters().");
+        }
+        final Lock lock = namespace.mutations.readLock();
+        lock.lock();
+        try {
+            ensureOpen();
+            MemoryContext root = this;
+            while (root.parent != null) {
+                root = root.parent;
+            }
+            return counters.report(root, limit);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Estimates the heap used by this context and its subcontexts, split into the structure of the tree and the objects bound. Walks every bound object graph, so it takes time proportional to what is reachable from the bindings, and mutations wait meanwhile. Meant for sizing and for finding bloat, not for frequent polling.
+     *
+     * @param sharing How objects reachable from more than one place are accounted for.
+     */
+    @NotNull
+    public Footprint footprint(@NotNull Footprint.Sharing sharing) throws NamingException {
+        final Lock lock = namespace.mutations.readLock();
+        lock.lock();
+        try {
+            ensureOpen();
+            final ObjectSizer sizer = new ObjectSizer(sharing);
+            if (sharing == Footprint.Sharing.EXCLUDE) {
+                // Sharing is decided for the whole namespace, not only for this subtree.
+                MemoryContext root = this;
+                while (root.parent != null) {
+                    root = root.parent;
+                }
+                root.share(sizer);
+                sizer.shared();
+            }
+            final Footprint footprint = footprint(sizer, getNameInNamespace());
+            if (sizer.isTruncated()) {
+                footprint.truncated();
+            }
+            return footprint;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The parts of a context in the order of {@link Footprint.Part}, then its subcontexts in order of names. Caller must hold a lock of namespace.mutations. The name of a subcontext is not counted again: It is the key in its parent.
+     */
+    private Footprint footprint(ObjectSizer sizer, String name) {
+        final Footprint footprint = new Footprint(name);
+        final Map<Name, Object> bindings = bindings();
+        footprint.add(Footprint.Part.CONTEXT, sizer.shallow(this) + sizer.shallow(state));
+        footprint.add(Footprint.Part.MAP, sizer.mapOverhead(bindings));
+        long names = sizer.sizeOf(nameInNamespace);
+        final SortedMap<String, Name> subcontexts = new TreeMap<String, Name>();
+        for (Map.Entry<Name, Object> entry : bindings.entrySet()) {
+            names += sizer.sizeOf(entry.getKey());
+            if (isOfNamespace(entry.getValue())) {
+                subcontexts.put(entry.getKey().toString(), entry.getKey());
+            }
+        }
+        footprint.add(Footprint.Part.NAMES, names);
+        footprint.add(Footprint.Part.ENVIRONMENT, sizer.sizeOf(env) + sizer.sizeOf(envAsProperties));
+        footprint.add(Footprint.Part.PARSER, sizer.sizeOf(nameParser));
+        for (Object value : bindings.values()) {
+            if (!isOfNamespace(value)) {
+                footprint.addBinding();
+                footprint.add(Footprint.Part.VALUES, sizer.sizeOf(value));
+            }
+        }
+        for (Name key : subcontexts.values()) {
+            final Object subcontext = bindings.get(key);
+            if (subcontext != null) {
+                footprint.addSubcontext(((MemoryContext) subcontext).footprint(sizer, nameInNamespace(key)));
+            }
+        }
+        return footprint;
+    }
+
+    /**
+     * First pass of {@link Footprint.Sharing#EXCLUDE} over the parts and bindings of this context and its subcontexts.
+     */
+    private void share(ObjectSizer sizer) {
+        final Map<Name, Object> bindings = bindings();
+        sizer.share(nameInNamespace);
+        sizer.share(env);
+        sizer.share(envAsProperties);
+        sizer.share(nameParser);
+        for (Map.Entry<Name, Object> entry : bindings.entrySet()) {
+            sizer.share(entry.getKey());
+            if (isOfNamespace(entry.getValue())) {
+                ((MemoryContext) entry.getValue()).share(sizer);
+            }
+            else {
+                sizer.share(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Keeps runtime bindings of this root context across restarts: Replays what has been recorded in file before and records all mutations from now on. Call it after the root has been loaded. {@link org.osjava.sj.SimpleJndiContextFactory} does so when {@link PersistentJournal#FILE} is set. The file is released by {@link #close()}. Roots of this JVM persisted to the same file share it, see {@link PersistentJournal}. As with {@link #enableJournal(int)} mutations of single bindings no longer run in parallel, so the file records them in the order they were made.
+     *
+     * @throws NamingException Not a root context, persistence already enabled, or the file can not be read or is locked by another process.
+     */
+    @NotNull
+    public PersistentJournal persistTo(@NotNull File file) throws NamingException {
+        if (parent != null || forkOf != null) {
+            throw new OperationNotSupportedException("Only root contexts can be persisted.");
+        }
+        synchronized (namespace) {
+            // Replaying and starting to record in one step, so no mutation in between is lost. Replaying rebinds under the read lock, which the holder of the write lock may take.
+            final Lock lock = namespace.mutations.writeLock();
+            lock.lock();
+            try {
+                ensureOpen();
+                if (namespace.persistence != null) {
+                    throw new NamingException("Already persisted to " + namespace.persistence.getFile());
                 }
-                if (subContexts.containsKey(name)) {
-                    return subContexts.get(name);
+                final long threshold = NumberUtils.toLong(String.valueOf(env.get(PersistentJournal.COMPACT_THRESHOLD)), PersistentJournal.DEFAULT_COMPACT_THRESHOLD);
+                namespace.persistence = PersistentJournal.open(this, file, threshold);
+                return namespace.persistence;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return A batch of mutations to be committed to this context and its subcontexts in one atomic step.
+     */
+    @NotNull
+    public MemoryContextBatch batch() {
+        return new MemoryContextBatch(this);
+    }
+
+    /**
+     * @see javax.naming.Context#unbind(javax.naming.Name)
+     */
+    @Override
+    public void unbind(@NotNull Name name) throws NamingException {
+        final ContextInterceptor[] interceptors = namespace.interceptors;
+        if (interceptors.length != 0) {
+            new ContextInvocation(interceptors, this, ContextInvocation.Operation.UNBIND, name, null).proceed();
+        }
+        else {
+            unbindInternal(name);
+        }
+    }
+
+    private void unbindInternal(@NotNull Name name) throws NamingException {
+        if(name.isEmpty()) {
+            throw new InvalidNameException("Cannot unbind to empty name");
+        }
+        final Target target;
+        final Lock lock = lockMutation();
+        try {
+            ensureOpen();
+            target = walk(name, name.size() - 1);
+            if (target.isResolved()) {
+                final Object old = target.context.writable().remove(target.key);
+                if (old != null) {
+                    target.context.changed(target.key, old, null);
                 }
-                LOGGER.debug("MemoryContext#lookup() {} not found in {}", name, this);
-                throw new NameNotFoundException(name.toString());
+                return;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        if (target.foreign != null) {
+            target.foreign.unbind(target.remaining);
+        }
+        else {
+            NamingException e = new NamingException("Cannot unbind object.");
+            LOGGER.error("Can not unbind object with name={} from targetContext={}.", name, target.context);
+            LOGGER.error("", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Result of {@link #walk(Name, int)}: Either a MemoryContext of this namespace (context, key), a foreign context the remaining name has to be delegated to (foreign, remaining) or the component not found (context, key, failedAt).
+     */
+    private static final class Target {
+        final MemoryContext context;
+        final Name key;
+        final Context foreign;
+        final Name remaining;
+        final int failedAt;
+
+        Target(MemoryContext context, Name key, Context foreign, Name remaining, int failedAt) {
+            this.context = context;
+            this.key = key;
+            this.foreign = foreign;
+            this.remaining = remaining;
+            this.failedAt = failedAt;
+        }
+
+        boolean isResolved() {
+            return foreign == null && failedAt < 0;
+        }
+    }
+
+    /**
+     * Walks the first depth components of name down through the subcontexts of this namespace. Takes no locks.
+     *
+     * @param depth name.size() - 1 to find the context holding the last component, name.size() to find the context named by name.
+     */
+    @NotNull
+    private Target walk(@NotNull Name name, int depth) throws InvalidNameException {
+        MemoryContext context = this;
+        for (int i = 0; i < depth; i++) {
+            final Name key = context.key(name, i);
+            final Object child = context.bindings().get(key);
+            if (child instanceof MemoryContext && ((MemoryContext) child).namespace == namespace) {
+                context = (MemoryContext) child;
+            }
+            else if (child instanceof Context) {
+                return new Target(context, key, (Context) child, name.getSuffix(i + 1), -1);
+            }
+            else {
+                return new Target(context, key, null, null, i);
             }
         }
+        return new Target(context, depth < name.size() ? context.key(name, depth) : null, null, null, -1);
     }
 
     /**
-     * IMPROVE To be implemented? See {@link OperationNotSupportedException}.
+     * @return Component i of name as key into {@link #state}. See issue #14 for the {@link CompositeName} handling.
      */
-    @Nullable
-    private Object newInstance() throws OperationNotSupportedException {
-        Context clone;
-        try {
-            clone = (Context) this.clone();
+    @NotNull
+    Name key(@NotNull Name name, int i) throws InvalidNameException {
+        final Name component = name.size() == 1 ? name : name.getSuffix(i).getPrefix(1);
+        return JndiUtils.toCompoundName(component, envAsProperties);
+    }
+
+    @NotNull
+    private static MemoryContext toMemoryContext(@NotNull Target target, @NotNull Name name) throws NamingException {
+        if (target.foreign instanceof MemoryContext) {
+            return (MemoryContext) target.foreign;
         }
-        catch (CloneNotSupportedException e) {
-            throw new OperationNotSupportedException();
+        if (target.foreign != null) {
+            throw new OperationNotSupportedException(
+                    "Atomic operations are only supported by MemoryContext: " + target.key);
         }
-        return clone;
+        LOGGER.error("Target context does not exist. name={} context={}", name, target.context);
+        throw new NamingException("Target context does not exist.");
+    }
+
+    static Object mask(@Nullable Object object) {
+        return object == null ? NULL : object;
+    }
+
+    @Nullable
+    static Object unmask(@Nullable Object object) {
+        return object == NULL ? null : object;
     }
 
     /**
-     * @see javax.naming.Context#lookup(java.lang.String)
+     * @return A snapshot of the bindings of this context with null values restored.
      */
-    @Override
-    public Object lookup(@NotNull String name) throws NamingException {
-        return lookup(nameParser.parse(name));
+    @NotNull
+    Map<Name, Object> snapshot() {
+        return toMap(bindings());
     }
 
     /**
-     * @see javax.naming.Context#bind(javax.naming.Name, java.lang.Object)
+     * @return A snapshot of bindings with null values restored.
      */
-    @Override
-    public void bind(@NotNull Name name, @Nullable Object object) throws NamingException {
-        if(name.size() == 0) {
-            throw new InvalidNameException("Cannot bind to an empty name.");
-        }
-        else if(name.size() > 1) {
-            Name prefix = name.getPrefix(1);
-            if(subContexts.containsKey(prefix)) {
-                subContexts.get(prefix).bind(name.getSuffix(1), object);
-            }
-            else {
-                LOGGER.error("No such subcontext: {} in {}", prefix, this);
-                throw new NameNotFoundException(prefix + "");
+    private static Map<Name, Object> toMap(Map<Name, Object> bindings) {
+        final Map<Name, Object> map = new HashMap<Name, Object>();
+        if (bindings != null) {
+            for (Map.Entry<Name, Object> entry : bindings.entrySet()) {
+                map.put(entry.getKey(), unmask(entry.getValue()));
             }
         }
-        else {
-            /* Determine if the name is already bound */
-            if(namesToObjects.containsKey(name) ||
-                    subContexts.containsKey(name)) {
-                LOGGER.error("bind() {} already bound in {}", name, this);
-                throw new NameAlreadyBoundException("Name " + name.toString()
-                    + " already bound.  Use rebind() to override");
-            }
-            if (object instanceof Context) {
-                subContexts.put(name, (Context) object);
+        return map;
+    }
+
+    /**
+     * Lists the context named by name from a consistent snapshot of its bindings. Delegates to foreign contexts.
+     */
+    private NamingEnumeration enumerate(@NotNull Name name, boolean withObjects) throws NamingException {
+        Target target;
+        Map<Name, Object> snapshot;
+        do {
+            // Stamp first: Contexts are marked closed before reads are invalidated (see detachTree()).
+            final long stamp = namespace.beginRead();
+            ensureOpen();
+            target = walk(name, name.size());
+            snapshot = target.isResolved() ? toMap(target.context.bindings()) : null;
+            if (namespace.validate(stamp)) {
+                break;
             }
-            else {
-                namesToObjects.put(name, object);
+        } while (true);
+        if (target.foreign != null) {
+            return withObjects ? target.foreign.listBindings(target.remaining) : target.foreign.list(target.remaining);
+        }
+        if (snapshot != null) {
+            for (Map.Entry<Name, Object> entry : snapshot.entrySet()) {
+                if (entry.getValue() instanceof LazyBinding) {
+                    entry.setValue(target.context.create(entry.getKey(), (LazyBinding) entry.getValue()));
+                }
             }
+            return withObjects ? new ContextBindings(snapshot) : new ContextNames(snapshot);
         }
+        if (!withObjects && target.context.bindings().get(target.key) != null) {
+            /* Nope, actual object */
+            throw new NotContextException(name + " cannot be listed");
+        }
+        /* Couldn't find the subcontext, e. g. destroyed concurrently: Same exception as lookup(). */
+        throw new NameNotFoundException("MemoryContext#" + (withObjects ? "listBindings" : "list") + "(\"" + name + "\"): subcontext not found.");
+    }
+
+    /* Package-private access for MemoryContextBatch. */
+
+    Namespace namespace() {
+        return namespace;
+    }
+
+    @Nullable
+    Object boundObject(@NotNull Name key) {
+        return bindings().get(key);
     }
 
     /**
-     * @see javax.naming.Context#bind(java.lang.String, java.lang.Object)
+     * As writable(): The bindings of this context, to be changed in place. For MemoryContextBatch, which must hold the write lock of namespace.mutations and change them only between {@link Namespace#beginPublish()} and {@link Namespace#endPublish()}.
      */
-    @Override
-    public void bind(@NotNull String name, @Nullable Object object) throws NamingException {
-        bind(nameParser.parse(name), object);
+    @NotNull
+    Map<Name, Object> writableBindings() {
+        return writable();
     }
 
     /**
-     * @see javax.naming.Context#rebind(javax.naming.Name, java.lang.Object)
+     * As {@link #changed(Name, Object, Object)}. For MemoryContextBatch.
      */
-    @Override
-    public void rebind(@NotNull Name name, @Nullable Object object) throws NamingException {
-        if(name.isEmpty()) {
-            throw new InvalidNameException("Cannot bind to empty name");
-        }
-        /* Look up the target context first. */
-        Object targetContext = lookup(name.getPrefix(name.size() - 1));
-        if(targetContext == null || !(targetContext instanceof Context)) {
-            throw new NamingException("Cannot bind object.  Target context does not exist.");
+    void published(@NotNull Name key, @Nullable Object oldObject, @Nullable Object newObject) {
+        changed(key, oldObject, newObject);
+    }
+
+    /**
+     * Locks namespace.mutations for changing a single binding: Shared while nothing records the mutations, so they do not block each other. Exclusive while a {@link MutationJournal} or {@link PersistentJournal} records them, so changing a binding and recording the change is one step, and changes of the same name are recorded in the order they were made.
+     *
+     * @return The lock taken, to be unlocked by the caller.
+     */
+    @NotNull
+    private Lock lockMutation() {
+        final Lock shared = namespace.mutations.readLock();
+        shared.lock();
+        if (namespace.journal == null && namespace.persistence == null) {
+            // Both are set only under the write lock, so they stay null until unlocked.
+            return shared;
         }
-        unbind(name);
-        bind(name, object);
+        shared.unlock();
+        final Lock exclusive = namespace.mutations.writeLock();
+        exclusive.lock();
+        return exclusive;
     }
 
     /**
-     * @see javax.naming.Context#rebind(java.lang.String, java.lang.Object)
+     * Reports a change of the binding of key to the listeners and the journal, if there are any. Caller must hold the lock taken by {@link #lockMutation()} or the write lock of namespace.mutations.
+     *
+     * @param oldObject masked, null if key was not bound.
+     * @param newObject masked, null if key has been unbound.
      */
-    @Override
-    public void rebind(@NotNull String name, @Nullable Object object) throws NamingException {
-        rebind(nameParser.parse(name), object);
+    private void changed(@NotNull Name key, @Nullable Object oldObject, @Nullable Object newObject) {
+        final EventSupport events = namespace.events;
+        if (events != null) {
+            events.changed(this, key, oldObject, newObject);
+        }
+        final MutationJournal journal = namespace.journal;
+        final PersistentJournal persistence = namespace.persistence;
+        if (journal != null || persistence != null) {
+            final String name = nameInNamespace(key);
+            if (journal != null) {
+                journal.record(name, oldObject, newObject);
+            }
+            if (persistence != null) {
+                persistence.record(name, oldObject, newObject);
+            }
+        }
     }
 
     /**
-     * @see javax.naming.Context#unbind(javax.naming.Name)
+     * Where key in this context lies now: This context and the contexts above, each with the name of the binding below. Caller must hold a lock of namespace.mutations, so no rename changes the contexts above meanwhile.
      */
-    @Override
-    public void unbind(@NotNull Name name) throws NamingException {
-        if(name.isEmpty()) {
-            throw new InvalidNameException("Cannot unbind to empty name");
+    @NotNull
+    EventSupport.Origin origin(@NotNull Name key) {
+        final List<MemoryContext> contexts = new ArrayList<MemoryContext>();
+        final List<Name> names = new ArrayList<Name>();
+        Name name = key;
+        for (MemoryContext context = this; context != null; context = context.parent) {
+            contexts.add(context);
+            names.add(name);
+            name = context.atomicName;
         }
-        else if(name.size() == 1) {
-            namesToObjects.remove(name);
-            subContexts.remove(name);
+        return new EventSupport.Origin(contexts, names);
+    }
+
+    /**
+     * @return The name of origin relative to this context, null if origin did not lie below this context.
+     */
+    @Nullable
+    Name relativeName(@NotNull EventSupport.Origin origin) {
+        final int depth = origin.contexts.indexOf(this);
+        if (depth < 0) {
+            return null;
         }
-        else {
-            Object targetContext = lookup(name.getPrefix(name.size() - 1));
-            if(targetContext == null || !(targetContext instanceof Context)) {
-                NamingException e = new NamingException("Cannot unbind object.");
-                LOGGER.error("Can not unbind object with name={} from targetContext={}.", name, targetContext);
-                LOGGER.error("", e);
-                throw e;
+        try {
+            final Name name = nameParser.parse("");
+            for (int i = depth; i >= 0; i--) {
+                name.addAll(origin.names.get(i));
             }
-            ((Context)targetContext).unbind(name.getSuffix(name.size() - 1));
+            return name;
+        }
+        catch (NamingException e) {
+            LOGGER.error("Can not build name of {} in {}.", origin.names.get(0), this, e);
+            return null;
         }
+    }
 
+    /**
+     * @return A new subcontext of this context, not yet bound.
+     */
+    @NotNull
+    MemoryContext newSubcontext(@NotNull Name key) throws NamingException {
+        MemoryContext newContext = new MemoryContext(this.env, null, namespace, null, null);
+        newContext.parent = this;
+        newContext.atomicName = key;
+        return newContext;
+    }
 
+    boolean isOfNamespace(@Nullable Object object) {
+        return object instanceof MemoryContext && ((MemoryContext) object).namespace == namespace;
     }
 
     /**
@@ -308,31 +1284,96 @@ public class MemoryContext implements Cloneable, Context  {
     }
 
     /**
+     * Moves the binding of oldName to newName in one atomic step. A subcontext is moved as a whole by relinking it to its new parent, whatever the size of the subtree, since the names of contexts below it are derived from their parents. Names spanning contexts that are no MemoryContext of this namespace are renamed by a non-atomic bind and unbind.
+     *
      * @see javax.naming.Context#rename(javax.naming.Name, javax.naming.Name)
      */
     @Override
     public void rename(@NotNull Name oldName, @NotNull Name newName) throws NamingException {
-        /* Confirm that this works.  We might have to catch the exception */
-        Object old = lookup(oldName);
-        if(newName.isEmpty()) {
+        if(oldName.isEmpty() || newName.isEmpty()) {
             throw new InvalidNameException("Cannot bind to empty name");
         }
-        
-        if(old == null) {
-            throw new NamingException("Name '" + oldName + "' not found.");
+        Object old = null;
+        boolean spansForeignContext = false;
+        final Lock lock = namespace.mutations.writeLock();
+        lock.lock();
+        try {
+            ensureOpen();
+            final Target source = walk(oldName, oldName.size() - 1);
+            final Target destination = walk(newName, newName.size() - 1);
+            if (source.foreign != null || destination.foreign != null) {
+                spansForeignContext = true;
+            }
+            else {
+                if (!source.isResolved() || source.context.bindings().get(source.key) == null) {
+                    throw new NameNotFoundException("Name '" + oldName + "' not found.");
+                }
+                if (!destination.isResolved()) {
+                    throw new NameNotFoundException(destination.key + "");
+                }
+                /* If the new name is bound throw a NameAlreadyBoundException */
+                if (destination.context.bindings().get(destination.key) != null) {
+                    throw new NameAlreadyBoundException("Name '" + newName + "' already bound");
+                }
+                final Object masked = source.context.bindings().get(source.key);
+                if (isOfNamespace(masked)) {
+                    for (MemoryContext ancestor = destination.context; ancestor != null; ancestor = ancestor.parent) {
+                        if (ancestor == masked) {
+                            throw new InvalidNameException("Cannot move '" + oldName + "' into itself: " + newName);
+                        }
+                    }
+                }
+                // Copied for forks before publishing, so readers wait for a few assignments only.
+                final ConcurrentHashMap<Name, Object> destinationBindings = destination.context.writable();
+                final ConcurrentHashMap<Name, Object> sourceBindings = source.context.writable();
+                final String from = source.context.nameInNamespace(source.key);
+                namespace.beginPublish();
+                try {
+                    destinationBindings.put(destination.key, masked);
+                    sourceBindings.remove(source.key);
+                    if (isOfNamespace(masked)) {
+                        final MemoryContext moved = (MemoryContext) masked;
+                        moved.parent = destination.context;
+                        moved.atomicName = destination.key;
+                    }
+                }
+                finally {
+                    namespace.endPublish();
+                }
+                final EventSupport events = namespace.events;
+                if (events != null) {
+                    events.renamed(source.context, source.key, destination.context, destination.key, masked);
+                }
+                final MutationJournal journal = namespace.journal;
+                final PersistentJournal persistence = namespace.persistence;
+                if (journal != null || persistence != null) {
+                    final String to = destination.context.nameInNamespace(destination.key);
+                    if (journal != null) {
+                        journal.recordRename(from, to, masked);
+                    }
+                    if (persistence != null) {
+                        persistence.recordRename(from, to);
+                    }
+                }
+                old = unmask(masked);
+            }
+        }
+        finally {
+            lock.unlock();
         }
-
-        /* If the new name is bound throw a NameAlreadyBoundException */
-        if(lookup(newName) != null) {
-            throw new NameAlreadyBoundException("Name '" + newName + "' already bound");
+        if (spansForeignContext) {
+            /* No atomicity possible. */
+            old = lookup(oldName);
+            bind(newName, old);
+            unbind(oldName);
         }
+        renameThread(old, newName);
+    }
 
-        unbind(oldName);
-        unbind(newName);
-        bind(newName, old);
-        /* If the object is a Thread, or a ThreadContext, give it the new name. */
-        if(old instanceof Thread) {
-            ((Thread)old).setName(newName.toString());
+    /* If the object is a Thread, or a ThreadContext, give it the new name. */
+    private static void renameThread(Object object, Name newName) {
+        if(object instanceof Thread) {
+            ((Thread)object).setName(newName.toString());
         }
     }
 
@@ -354,30 +1395,7 @@ public class MemoryContext implements Cloneable, Context  {
 //      if name is a directory, we should do the same as we do above
 //      if name is a properties file, we should return the keys (?)
 //      issues: default.properties ?
-        if(name == null || name.isEmpty()) {
-            /* Because there are two mappings that need to be used here,
-             * create a new mapping and add the two maps to it.  This also 
-             * adds the safety of cloning the two maps so the original is
-             * unharmed. */
-            Map enumStore = new HashMap();
-            enumStore.putAll(namesToObjects);
-            enumStore.putAll(subContexts);
-            NamingEnumeration enumerator = new ContextNames(enumStore);
-            return enumerator;
-        }
-        /* Look for a subcontext */
-        Name subName = name.getPrefix(1);
-        if(namesToObjects.containsKey(subName)) {
-            /* Nope, actual object */
-            throw new NotContextException(name + " cannot be listed");
-        }
-        if(subContexts.containsKey(subName)) {
-            return subContexts.get(subName).list(name.getSuffix(1));
-        }
-        /* Couldn't find the subcontext and it wasn't pointing at us, throw
-         * an exception. */
-        /* IMPROVE: Give this a better message */
-        throw new NamingException();
+        return list(name == null ? nameParser.parse("") : name, false);
     }
 
 
@@ -394,25 +1412,16 @@ public class MemoryContext implements Cloneable, Context  {
      */
     @Override
     public NamingEnumeration listBindings(@NotNull Name name) throws NamingException {
-        if(name == null || name.isEmpty()) {
-            /* Because there are two mappings that need to be used here,
-             * create a new mapping and add the two maps to it.  This also 
-             * adds the safety of cloning the two maps so the original is
-             * unharmed. */
-            Map enumStore = new HashMap();
-            enumStore.putAll(namesToObjects);
-            enumStore.putAll(subContexts);
-            return new ContextBindings(enumStore);
-        }
-        /* Look for a subcontext */
-        Name subName = name.getPrefix(1);
-        if(subContexts.containsKey(subName)) {
-            return subContexts.get(subName).listBindings(name.getSuffix(1));
-        }
-        else {
-        /* Couldn't find the subcontext and it wasn't pointing at us, throw an exception. */
-            throw new NamingException("MemoryContext#listBindings(\"" + name + "\"): subcontext not found.");
+        return list(name == null ? nameParser.parse("") : name, true);
+    }
+
+    private NamingEnumeration list(@NotNull Name name, boolean withObjects) throws NamingException {
+        final ContextInterceptor[] interceptors = namespace.interceptors;
+        if (interceptors.length != 0) {
+            final ContextInvocation.Operation operation = withObjects ? ContextInvocation.Operation.LIST_BINDINGS : ContextInvocation.Operation.LIST;
+            return (NamingEnumeration) new ContextInvocation(interceptors, this, operation, name, null).proceed();
         }
+        return enumerate(name, withObjects);
     }
 
     /**
@@ -425,53 +1434,195 @@ public class MemoryContext implements Cloneable, Context  {
     /* End of List functionality */
 
     /**
+     * Removes the subcontext named by name and tears it down like {@link #forceClose()}: Its whole subtree is detached in one step, then bound resources are closed if {@link #CLOSE_RESOURCES} is set.
+     *
      * @see javax.naming.Context#destroySubcontext(javax.naming.Name)
      */
     @Override
     public void destroySubcontext(Name name) throws NamingException {
-        if(name.size() > 1) {
-            if(subContexts.containsKey(name.getPrefix(1))) {
-                Context subContext = subContexts.get(name.getPrefix(1));
-                destroySubcontexts(subContext);
-                return;
-            } 
+        if(name.isEmpty()) {
+            throw new InvalidNameException("Cannot destroy context using empty name");
+        }
+        final Target target;
+        final Object bound;
+        final List<Object> resources = new ArrayList<Object>();
+        final Lock lock = namespace.mutations.writeLock();
+        lock.lock();
+        try {
+            ensureOpen();
+            target = walk(name, name.size() - 1);
+            bound = target.isResolved() ? target.context.bindings().get(target.key) : null;
+            if (isOfNamespace(bound)) {
+                // Unreachable from here on in a single step. Readers that have walked into the subtree already are taken care of by detachTree().
+                target.context.writable().remove(target.key);
+                target.context.changed(target.key, bound, null);
+                ((MemoryContext) bound).detachTree(resources);
+            }
+            else if (bound instanceof Context) {
+                target.context.writable().remove(target.key);
+                target.context.changed(target.key, bound, null);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        if (target.foreign != null) {
+            target.foreign.destroySubcontext(target.remaining);
+        }
+        else if (bound instanceof Context) {
+            if (!isOfNamespace(bound)) {
+                ((Context) bound).close();
+            }
+            closeResources(resources);
+            removeClosedListeners();
+        }
+        else if (bound != null) {
+            throw new NotContextException(name + "");
+        }
+        else {
             /* IMPROVE: Better message might be necessary */
-            throw new NameNotFoundException();
+            throw new NameNotFoundException(name + "");
+        }
+    }
+
+    /**
+     * Closes this context and all its subcontexts and detaches them from their bindings. Readers see the tree either complete or closed. Caller must hold the write lock.
+     * <p>
+     * Without a publish, so no reader waits however large the tree is: All contexts are marked closed first. Then reads in progress are invalidated. Repeated, they fail as closed, as do reads started afterwards. Only then the bindings are detached.
+     *
+     * @param resources Collects bound objects to be closed: {@link AutoCloseable}s and foreign contexts.
+     */
+    private void detachTree(@NotNull List<Object> resources) {
+        final List<MemoryContext> contexts = new ArrayList<MemoryContext>();
+        final Deque<MemoryContext> pending = new ArrayDeque<MemoryContext>();
+        pending.add(this);
+        while (!pending.isEmpty()) {
+            final MemoryContext context = pending.poll();
+            context.closed = true;
+            contexts.add(context);
+            // Forks never accessed have no subcontexts yet.
+            final State s = context.state;
+            if (s != null) {
+                for (Object object : s.map.values()) {
+                    if (isOfNamespace(object)) {
+                        pending.add((MemoryContext) object);
+                    }
+                }
+            }
+        }
+        namespace.invalidateReads();
+        final AccessCounters counters = namespace.counters;
+        final long oldestFork = namespace.oldestFork();
+        for (MemoryContext context : contexts) {
+            if (counters != null) {
+                counters.drop(context);
+            }
+            final ConcurrentHashMap<Name, Object> detached = context.detach(oldestFork);
+            if (detached == null) {
+                continue;
+            }
+            for (Object object : detached.values()) {
+                if (object instanceof LazyBinding) {
+                    // Never created: Nothing to close.
+                    object = ((LazyBinding) object).getIfCreated();
+                }
+                if (!isOfNamespace(object) && (object instanceof Context || object instanceof AutoCloseable)) {
+                    resources.add(object);
+                }
+            }
         }
-        /* Look at the contextStore to see if the name is bound there */
-        if(namesToObjects.containsKey(name)) {
-            throw new NotContextException();
+    }
+
+    /**
+     * Replaces the bindings of this context by empty ones. Bindings still needed by forks are kept for them.
+     *
+     * @return The detached bindings, null if this is a fork never accessed.
+     */
+    @Nullable
+    private ConcurrentHashMap<Name, Object> detach(long oldestFork) {
+        final State s = state;
+        if (s == null) {
+            return null;
         }
-        /* Look for the subcontext */
-        if(!subContexts.containsKey(name)) {
-            throw new NameNotFoundException();
+        final long current = namespace.generation;
+        State previous = null;
+        if (oldestFork < current) {
+            // The current bindings are needed by forks only if they were not changed since the last fork.
+            previous = s.generation == current ? s.previous : s;
+            previous = previous != null ? prune(previous, oldestFork) : null;
         }
-        Context subContext = subContexts.get(name);
-        destroySubcontexts(subContext);
-        subContext.close();
-        subContexts.remove(name);
+        state = new State(current, new ConcurrentHashMap<Name, Object>(), previous);
+        return s.map;
     }
 
-    private void destroySubcontexts(Context context) throws NamingException {
-        NamingEnumeration<Binding> bindings = context.listBindings("");
-        while (bindings.hasMore()) {
-            final Binding binding = bindings.next();
-            // Context.listBindings() may only be called with subcontexts.
-            String name = binding.getName();
-            if (binding.getObject() instanceof Context) {
-                Context subContext = (Context) binding.getObject();
-                destroySubcontexts(subContext);
-                context.destroySubcontext(name);
+    /**
+     * Closes foreign contexts detached from this namespace. If {@link #CLOSE_RESOURCES} is set, closes {@link AutoCloseable}s in parallel too, waiting {@link #CLOSE_TIMEOUT} milliseconds at most. Forks never close resources: They share them with the context forked from.
+     */
+    private void closeResources(@NotNull List<Object> resources) {
+        if (fork != null) {
+            return;
+        }
+        final List<AutoCloseable> closeables = new ArrayList<AutoCloseable>();
+        for (Object resource : resources) {
+            if (resource instanceof Context) {
+                try {
+                    ((Context) resource).close();
+                }
+                catch (NamingException e) {
+                    LOGGER.error("Closing context {} failed.", resource, e);
+                }
             }
             else {
-                // CompoundName compoundName = new CompoundName(binding.getName(), new Properties());
-                LOGGER.trace("Unbind {}", name);
-                // Here name is always a single component name. To force handling as such:
-                Properties syntax = new Properties();
-                syntax.setProperty("jndi.syntax.direction", "flat");
-                context.unbind(new CompoundName(name, syntax));
+                closeables.add((AutoCloseable) resource);
+            }
+        }
+        if (closeables.isEmpty() || !BooleanUtils.toBoolean(String.valueOf(env.get(CLOSE_RESOURCES)))) {
+            return;
+        }
+        final long timeout = NumberUtils.toLong(String.valueOf(env.get(CLOSE_TIMEOUT)), DEFAULT_CLOSE_TIMEOUT);
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(closeables.size());
+        for (final AutoCloseable closeable : closeables) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    closeable.close();
+                    return null;
+                }
+            });
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(closeables.size(), MAX_CLOSE_THREADS), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NotNull Runnable runnable) {
+                final Thread thread = new Thread(runnable, "simple-jndi-close-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            final List<Future<Void>> futures = executor.invokeAll(tasks, timeout, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < futures.size(); i++) {
+                final Future<Void> future = futures.get(i);
+                if (future.isCancelled()) {
+                    LOGGER.warn("Closing {} did not finish within {} ms.", closeables.get(i), timeout);
+                    continue;
+                }
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    LOGGER.error("Closing {} failed.", closeables.get(i), e.getCause());
+                }
             }
         }
+        catch (InterruptedException e) {
+            LOGGER.warn("Interrupted while closing {} resources.", closeables.size());
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            executor.shutdownNow();
+        }
     }
 
     /**
@@ -487,29 +1638,32 @@ public class MemoryContext implements Cloneable, Context  {
      */
     @Override
     public Context createSubcontext(Name name) throws NamingException {
-        Context newContext;
-
-        if(name.size() > 1) {
-            if(subContexts.containsKey(name.getPrefix(1))) {
-                Context subContext = subContexts.get(name.getPrefix(1));
-                newContext = subContext.createSubcontext(name.getSuffix(1));
+        if(name.isEmpty()) {
+            throw new InvalidNameException("Cannot bind to an empty name.");
+        }
+        final Target target;
+        final Lock lock = lockMutation();
+        try {
+            ensureOpen();
+            target = walk(name, name.size() - 1);
+            if (target.isResolved()) {
+                final MemoryContext newContext = target.context.newSubcontext(target.key);
+                if(target.context.writable().putIfAbsent(target.key, newContext) != null) {
+                    LOGGER.error("createSubcontext() {} already bound in {}", target.key, target.context);
+                    throw new NameAlreadyBoundException("Name " + target.key.toString()
+                        + " already bound.  Use rebind() to override");
+                }
+                target.context.changed(target.key, null, newContext);
                 return newContext;
             }
-            else {
-                throw new NameNotFoundException("The subcontext " + name.getPrefix(1) + " was not found (" + name + ").");
-            }
         }
-        try {
-            lookup(name);
+        finally {
+            lock.unlock();
         }
-        catch (NameNotFoundException ignore) { }
-
-        Name contextName = getNameParser((Name)null).parse(getNameInNamespace());
-        contextName.addAll(name);
-        newContext = new MemoryContext(this.env);
-        ((MemoryContext)newContext).setNameInNamespace(contextName);
-        bind(name, newContext);
-        return newContext;
+        if (target.foreign != null) {
+            return target.foreign.createSubcontext(target.remaining);
+        }
+        throw new NameNotFoundException("The subcontext " + target.key + " was not found (" + name + ").");
     }
 
     /**
@@ -548,8 +1702,9 @@ public class MemoryContext implements Cloneable, Context  {
             return nameParser;
         }
         Name subName = name.getPrefix(1); 
-        if(subContexts.containsKey(subName)) {
-            return subContexts.get(subName).getNameParser(name.getSuffix(1));
+        Object subContext = bindings().get(subName);
+        if(subContext instanceof Context) {
+            return ((Context) subContext).getNameParser(name.getSuffix(1));
         }
         throw new NotContextException();
     }
@@ -624,6 +1779,9 @@ public class MemoryContext implements Cloneable, Context  {
      */
     @Override
     public void close() throws NamingException {
+        if (closed) {
+            return;
+        }
         String ignoreClose = (String) env.get(IGNORE_CLOSE);
         if (!BooleanUtils.toBoolean(ignoreClose)) {
             forceClose();
@@ -635,7 +1793,115 @@ public class MemoryContext implements Cloneable, Context  {
      */
     @Override
     public String getNameInNamespace() {
-        return nameInNamespace.toString();
+        if (parent == null) {
+            return nameInNamespace.toString();
+        }
+        final List<Name> path = new ArrayList<Name>();
+        MemoryContext root;
+        do {
+            final long stamp = namespace.beginRead();
+            path.clear();
+            root = this;
+            while (root.parent != null) {
+                path.add(root.atomicName);
+                root = root.parent;
+            }
+            if (namespace.validate(stamp)) {
+                break;
+            }
+        } while (true);
+        return fullName(root, path).toString();
+    }
+
+    /**
+     * Full name of key without waiting for a consistent read. Caller must hold a lock of namespace.mutations, so no rename can change the parent chain meanwhile.
+     */
+    @NotNull
+    String nameInNamespace(@NotNull Name key) {
+        final List<Name> path = new ArrayList<Name>();
+        path.add(key);
+        MemoryContext root = this;
+        while (root.parent != null) {
+            path.add(root.atomicName);
+            root = root.parent;
+        }
+        return fullName(root, path).toString();
+    }
+
+    /**
+     * @param path Atomic names from bottom to top.
+     */
+    @NotNull
+    private static Name fullName(@NotNull MemoryContext root, @NotNull List<Name> path) {
+        final Name name = (Name) root.nameInNamespace.clone();
+        for (int i = path.size() - 1; i >= 0; i--) {
+            try {
+                name.addAll(path.get(i));
+            }
+            catch (InvalidNameException e) {
+                // Parser of root and subcontexts is created from the same environment.
+                throw new IllegalStateException(e);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Listens to changes of target. Changes are delivered asynchronously by a single thread per namespace, in the order they were made. target need not exist.
+     *
+     * @see javax.naming.event.EventContext#addNamingListener(javax.naming.Name, int, javax.naming.event.NamingListener)
+     */
+    @Override
+    public void addNamingListener(Name target, int scope, NamingListener listener) throws NamingException {
+        ensureOpen();
+        final Target foreign = walk(target, Math.max(0, target.size() - 1));
+        if (foreign.foreign instanceof EventContext) {
+            ((EventContext) foreign.foreign).addNamingListener(foreign.remaining, scope, listener);
+            return;
+        }
+        final Name normalized = nameParser.parse("");
+        for (int i = 0; i < target.size(); i++) {
+            normalized.addAll(key(target, i));
+        }
+        synchronized (namespace) {
+            if (namespace.events == null) {
+                namespace.events = new EventSupport();
+            }
+            namespace.events.add(this, normalized, scope, listener);
+        }
+    }
+
+    /**
+     * @see javax.naming.event.EventContext#addNamingListener(java.lang.String, int, javax.naming.event.NamingListener)
+     */
+    @Override
+    public void addNamingListener(String target, int scope, NamingListener listener) throws NamingException {
+        addNamingListener(nameParser.parse(target), scope, listener);
+    }
+
+    /**
+     * @see javax.naming.event.EventContext#removeNamingListener(javax.naming.event.NamingListener)
+     */
+    @Override
+    public void removeNamingListener(NamingListener listener) throws NamingException {
+        synchronized (namespace) {
+            final EventSupport events = namespace.events;
+            if (events != null) {
+                events.remove(listener);
+                if (events.isEmpty()) {
+                    namespace.events = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false: Listeners can be registered for names not yet bound.
+     * @see javax.naming.event.EventContext#targetMustExist()
+     */
+    @Override
+    public boolean targetMustExist() throws NamingException {
+        return false;
     }
 
     /* **********************************************************************
@@ -650,34 +1916,71 @@ public class MemoryContext implements Cloneable, Context  {
      * @return true of the context is empty, else false.
      */
     public boolean isEmpty() {
-        return (namesToObjects.size() > 0 || subContexts.size() > 0);
+        return bindings().size() > 0;
     }
 
     /**
-     * Set the name of the Context.  This is only used from createSubcontext. 
-     * It might get replaced by adding more constructors, but there is really
-     * no reason to expose it publicly anyway.
-     * 
-     * @param name the Name of the context.
-     * @throws NamingException if the subContext already has a name.
+     * Detaches all bindings of this context and its subcontexts in one step and closes bound resources (see {@link #CLOSE_RESOURCES}). Unlike {@link #close()} ignores {@link #IGNORE_CLOSE}.
+     * <p>
+     * A subcontext is unbound from its parent, as by {@link #destroySubcontext(Name)}, so the parent never hands out a closed context. Changed in 0.23.0: Before, the closed subcontext stayed bound.
      */
-    private void setNameInNamespace(Name name) throws NamingException {
-        if(nameLock) {
-            if(nameInNamespace != null || !nameInNamespace.isEmpty()) {
-                LOGGER.error("Name already set: name={} nameInNamespace={} this={}", name, nameInNamespace, this);
-                throw new NamingException("Name already set.");
+    public void forceClose() throws NamingException {
+        final List<Object> resources = new ArrayList<Object>();
+        final Lock lock = namespace.mutations.writeLock();
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            final MemoryContext p = parent;
+            if (p != null && p.writable().remove(atomicName, this)) {
+                p.changed(atomicName, this, null);
+            }
+            detachTree(resources);
+        }
+        finally {
+            lock.unlock();
+        }
+        closeResources(resources);
+        if (fork != null && parent == null) {
+            fork.release();
+        }
+        removeClosedListeners();
+        if (parent == null) {
+            synchronized (namespace) {
+                if (namespace.persistence != null) {
+                    namespace.persistence.close();
+                    namespace.persistence = null;
+                }
             }
         }
-        nameInNamespace = name;
-        nameLock = true;
     }
 
-    public void forceClose() throws NamingException {
-        destroySubcontexts(this);
-        env = null;
-        namesToObjects = null;
-        subContexts = null;
+    private void removeClosedListeners() {
+        synchronized (namespace) {
+            final EventSupport events = namespace.events;
+            if (events != null) {
+                events.removeClosed();
+                if (events.isEmpty()) {
+                    namespace.events = null;
+                }
+            }
+        }
     }
-}
 
+    /**
+     * @return true after {@link #close()} or {@link #forceClose()} of this context or a context above, or {@link #destroySubcontext(Name)} of this context.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
 
+    /**
+     * @throws NamingException if this context has been closed.
+     */
+    void ensureOpen() throws NamingException {
+        if (closed) {
+            throw new NamingException("Context '" + getNameInNamespace() + "' has been closed.");
+        }
+    }
+}
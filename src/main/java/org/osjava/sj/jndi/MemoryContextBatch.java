@@ -0,0 +1,267 @@
+package org.osjava.sj.jndi;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Collects bind, rebind, unbind and createSubcontext operations on a {@link MemoryContext} and its subcontexts and applies them in one atomic step by {@link #commit()}.
+ * <p>
+ * Either all operations succeed or none is applied. Concurrent lookups and listings see the namespace either before or after the commit, never partially applied. Operations are validated in the order they were added, so later operations see the effect of earlier ones, e. g. bind() into a subcontext created in the same batch.
+ * <p>
+ * A commit costs time proportional to the number of operations, not to the size of the contexts they change: The operations are validated against a view of the changes over the current bindings, then applied in place between {@link Namespace#beginPublish()} and {@link Namespace#endPublish()}. Lookups and listings starting meanwhile wait until the operations are applied, those in progress repeat themselves. Only a context still seen by a {@link MemoryContext#fork() fork} is copied before it is changed, as by a single bind(). Listeners and journals are told of every operation in the order it was added. Names reaching into a context that is no MemoryContext of the same namespace are rejected with {@link OperationNotSupportedException}.
+ * <pre>
+ * ctx.batch()
+ *     .createSubcontext("jdbc")
+ *     .bind("jdbc/primary", primary)
+ *     .rebind("config/url", url)
+ *     .unbind("config/obsolete")
+ *     .commit();
+ * </pre>
+ * Not thread safe. Use one batch per thread.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class MemoryContextBatch {
+
+    private enum Operation { BIND, REBIND, UNBIND, CREATE_SUBCONTEXT }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemoryContextBatch.class);
+    /** Marks a binding removed in the staged view. */
+    private static final Object TOMBSTONE = new Object();
+
+    private final MemoryContext context;
+    private final List<Mutation> mutations = new ArrayList<Mutation>();
+
+    MemoryContextBatch(@NotNull MemoryContext context) {
+        this.context = context;
+    }
+
+    public MemoryContextBatch bind(@NotNull Name name, @Nullable Object object) {
+        return add(Operation.BIND, name, object);
+    }
+
+    public MemoryContextBatch bind(@NotNull String name, @Nullable Object object) throws NamingException {
+        return bind(parse(name), object);
+    }
+
+    public MemoryContextBatch rebind(@NotNull Name name, @Nullable Object object) {
+        return add(Operation.REBIND, name, object);
+    }
+
+    public MemoryContextBatch rebind(@NotNull String name, @Nullable Object object) throws NamingException {
+        return rebind(parse(name), object);
+    }
+
+    /**
+     * As {@link Context#unbind(Name)} unbinding a name not bound is no error.
+     */
+    public MemoryContextBatch unbind(@NotNull Name name) {
+        return add(Operation.UNBIND, name, null);
+    }
+
+    public MemoryContextBatch unbind(@NotNull String name) throws NamingException {
+        return unbind(parse(name));
+    }
+
+    public MemoryContextBatch createSubcontext(@NotNull Name name) {
+        return add(Operation.CREATE_SUBCONTEXT, name, null);
+    }
+
+    public MemoryContextBatch createSubcontext(@NotNull String name) throws NamingException {
+        return createSubcontext(parse(name));
+    }
+
+    /**
+     * @return number of operations not yet committed.
+     */
+    public int size() {
+        return mutations.size();
+    }
+
+    /**
+     * Forgets all operations not yet committed.
+     */
+    public void discard() {
+        mutations.clear();
+    }
+
+    /**
+     * Validates all operations against the current state of the namespace and applies them atomically. Afterwards the batch is empty and can be reused.
+     *
+     * @throws NamingException The exception the failing operation would have thrown when called on {@link MemoryContext} directly. Then nothing is applied and the batch keeps its operations.
+     */
+    public void commit() throws NamingException {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        final Namespace namespace = context.namespace();
+        final Lock lock = namespace.mutations.writeLock();
+        lock.lock();
+        try {
+            context.ensureOpen();
+            final StagedView view = new StagedView();
+            for (Mutation mutation : mutations) {
+                stage(view, mutation);
+            }
+            view.publish(namespace);
+        }
+        finally {
+            lock.unlock();
+        }
+        LOGGER.debug("Committed {} operations.", mutations.size());
+        mutations.clear();
+    }
+
+    private void stage(@NotNull StagedView view, @NotNull Mutation mutation) throws NamingException {
+        final Name name = mutation.name;
+        if (name.isEmpty()) {
+            throw new InvalidNameException("Cannot bind to an empty name.");
+        }
+        MemoryContext target = context;
+        for (int i = 0; i < name.size() - 1; i++) {
+            final Name key = target.key(name, i);
+            final Object child = view.get(target, key);
+            if (context.isOfNamespace(child)) {
+                target = (MemoryContext) child;
+            }
+            else if (child instanceof Context) {
+                throw new OperationNotSupportedException(
+                        "Batches are only supported within one MemoryContext namespace: " + name.getPrefix(i + 1));
+            }
+            else {
+                LOGGER.error("{} {}: No such subcontext: {} in {}", mutation.operation, name, key, target);
+                throw new NameNotFoundException(key + "");
+            }
+        }
+        final Name key = target.key(name, name.size() - 1);
+        switch (mutation.operation) {
+            case BIND:
+                if (view.get(target, key) != null) {
+                    throw new NameAlreadyBoundException("Name " + key + " already bound.  Use rebind() to override");
+                }
+                view.put(target, key, MemoryContext.mask(mutation.object));
+                break;
+            case REBIND:
+                view.put(target, key, MemoryContext.mask(mutation.object));
+                break;
+            case UNBIND:
+                view.put(target, key, TOMBSTONE);
+                break;
+            case CREATE_SUBCONTEXT:
+                if (view.get(target, key) != null) {
+                    throw new NameAlreadyBoundException("Name " + key + " already bound.  Use rebind() to override");
+                }
+                view.put(target, key, target.newSubcontext(key));
+                break;
+        }
+    }
+
+    private MemoryContextBatch add(Operation operation, Name name, Object object) {
+        mutations.add(new Mutation(operation, (Name) name.clone(), object));
+        return this;
+    }
+
+    private Name parse(String name) throws NamingException {
+        return context.getNameParser("").parse(name);
+    }
+
+    private static final class Mutation {
+        final Operation operation;
+        final Name name;
+        final Object object;
+
+        Mutation(Operation operation, Name name, Object object) {
+            this.operation = operation;
+            this.name = name;
+            this.object = object;
+        }
+    }
+
+    /**
+     * The namespace as it will look after the commit: Staged changes per context over the current bindings.
+     */
+    private static final class StagedView {
+        // MemoryContext does not override equals(), so contexts are compared by identity.
+        private final Map<MemoryContext, Map<Name, Object>> changes = new IdentityHashMap<MemoryContext, Map<Name, Object>>();
+        /* Every change in the order of the operations, for applying and telling listeners. */
+        private final List<Change> order = new ArrayList<Change>();
+
+        /**
+         * @return The masked object, null if not bound.
+         */
+        @Nullable
+        Object get(MemoryContext context, Name key) {
+            final Map<Name, Object> staged = changes.get(context);
+            if (staged != null && staged.containsKey(key)) {
+                final Object object = staged.get(key);
+                return object == TOMBSTONE ? null : object;
+            }
+            return context.boundObject(key);
+        }
+
+        void put(MemoryContext context, Name key, Object object) {
+            Map<Name, Object> staged = changes.get(context);
+            if (staged == null) {
+                staged = new HashMap<Name, Object>();
+                changes.put(context, staged);
+            }
+            staged.put(key, object);
+            order.add(new Change(context, key, object));
+        }
+
+        /**
+         * Applies the changes to the bindings in place, wrapped in one publish. Listeners and journals are told afterwards.
+         */
+        void publish(Namespace namespace) {
+            // Copies bindings a fork still needs before readers have to wait.
+            final Map<MemoryContext, Map<Name, Object>> bindings = new IdentityHashMap<MemoryContext, Map<Name, Object>>();
+            for (MemoryContext context : changes.keySet()) {
+                bindings.put(context, context.writableBindings());
+            }
+            final Object[] replaced = new Object[order.size()];
+            namespace.beginPublish();
+            try {
+                for (int i = 0; i < replaced.length; i++) {
+                    final Change change = order.get(i);
+                    final Map<Name, Object> map = bindings.get(change.context);
+                    replaced[i] = change.object == TOMBSTONE ? map.remove(change.key) : map.put(change.key, change.object);
+                }
+            }
+            finally {
+                namespace.endPublish();
+            }
+            for (int i = 0; i < replaced.length; i++) {
+                final Change change = order.get(i);
+                if (change.object != TOMBSTONE) {
+                    change.context.published(change.key, replaced[i], change.object);
+                }
+                else if (replaced[i] != null) {
+                    change.context.published(change.key, replaced[i], null);
+                }
+            }
+        }
+    }
+
+    private static final class Change {
+        final MemoryContext context;
+        final Name key;
+        /* Masked, TOMBSTONE if removed. */
+        final Object object;
+
+        Change(MemoryContext context, Name key, Object object) {
+            this.context = context;
+            this.key = key;
+            this.object = object;
+        }
+    }
+}
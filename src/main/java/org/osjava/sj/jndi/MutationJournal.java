@@ -0,0 +1,193 @@
+package org.osjava.sj.jndi;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded journal of the mutations of a context tree, see {@link MemoryContext#enableJournal(int)}.
+ * <p>
+ * Every mutation gets a sequence number, starting with 1. Consumers like mirrors, caches or auditors remember the last sequence number they have seen and catch up with {@link #changesSince(long)}. The journal is a ring buffer of fixed capacity: Recording never allocates more than one {@link Entry} and never blocks. A consumer that has fallen behind by more than the capacity gets a {@link TruncatedException} and has to resynchronize by listing the context.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class MutationJournal {
+
+    public enum Operation { BIND, REBIND, UNBIND, CREATE_SUBCONTEXT, DESTROY_SUBCONTEXT, RENAME }
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param capacity Rounded up to a power of two.
+     */
+    MutationJournal(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        entries = new AtomicReferenceArray<Entry>(size);
+        mask = size - 1;
+    }
+
+    public int getCapacity() {
+        return entries.length();
+    }
+
+    /**
+     * @return Sequence number of the last mutation recorded, 0 if there was none.
+     */
+    public long currentSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * @return All mutations with a sequence number greater than sequence, oldest first. Mutations in progress are not included.
+     * @throws TruncatedException Some of the mutations have already been overwritten.
+     */
+    @NotNull
+    public List<Entry> changesSince(long sequence) throws TruncatedException {
+        final long last = this.sequence.get();
+        final List<Entry> changes = new ArrayList<Entry>((int) Math.min(Math.max(0, last - sequence), entries.length()));
+        for (long expected = sequence + 1; expected <= last; expected++) {
+            final Entry entry = entries.get((int) (expected & mask));
+            if (entry == null || entry.sequence < expected) {
+                // Sequence number taken, but entry not yet stored.
+                break;
+            }
+            if (entry.sequence > expected) {
+                throw new TruncatedException(sequence, Math.max(entry.sequence, last - entries.length() + 1));
+            }
+            changes.add(entry);
+        }
+        return changes;
+    }
+
+    /**
+     * Caller must hold the write lock of the namespace's mutations, so entries are numbered in the order of the mutations. Mutations of single bindings take it while a journal is enabled.
+     *
+     * @param oldObject masked, null if name was not bound.
+     * @param newObject masked, null if name has been unbound.
+     */
+    void record(@NotNull String name, @Nullable Object oldObject, @Nullable Object newObject) {
+        add(operation(oldObject, newObject), name, null, oldObject, newObject);
+    }
+
+    /**
+     * @param oldObject masked, null if name was not bound.
+     * @param newObject masked, null if name has been unbound.
+     */
+    @NotNull
+    static Operation operation(@Nullable Object oldObject, @Nullable Object newObject) {
+        if (oldObject == null) {
+            return newObject instanceof MemoryContext ? Operation.CREATE_SUBCONTEXT : Operation.BIND;
+        }
+        if (newObject == null) {
+            return oldObject instanceof Context ? Operation.DESTROY_SUBCONTEXT : Operation.UNBIND;
+        }
+        return Operation.REBIND;
+    }
+
+    void recordRename(@NotNull String oldName, @NotNull String newName, @Nullable Object object) {
+        add(Operation.RENAME, oldName, newName, object, object);
+    }
+
+    private void add(Operation operation, String name, String newName, Object oldObject, Object newObject) {
+        final long next = sequence.incrementAndGet();
+        entries.set((int) (next & mask), new Entry(next, operation, name, newName,
+                MemoryContext.unmask(oldObject), MemoryContext.unmask(newObject)));
+    }
+
+    public static final class Entry {
+        private final long sequence;
+        private final long timestamp = System.currentTimeMillis();
+        private final Operation operation;
+        private final String name;
+        private final String newName;
+        private final Object oldObject;
+        private final Object object;
+
+        Entry(long sequence, Operation operation, String name, String newName, Object oldObject, Object object) {
+            this.sequence = sequence;
+            this.operation = operation;
+            this.name = name;
+            this.newName = newName;
+            this.oldObject = oldObject;
+            this.object = object;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return Full name in the namespace. For {@link Operation#RENAME} the old name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Only set for {@link Operation#RENAME}.
+         */
+        @Nullable
+        public String getNewName() {
+            return newName;
+        }
+
+        /**
+         * @return The object bound before, null for {@link Operation#BIND} and {@link Operation#CREATE_SUBCONTEXT}.
+         */
+        @Nullable
+        public Object getOldObject() {
+            return oldObject;
+        }
+
+        /**
+         * @return The object bound now, null for {@link Operation#UNBIND} and {@link Operation#DESTROY_SUBCONTEXT}.
+         */
+        @Nullable
+        public Object getObject() {
+            return object;
+        }
+
+        @Override
+        public String toString() {
+            return sequence + " " + operation + " " + name + (newName != null ? " -> " + newName : "");
+        }
+    }
+
+    /**
+     * The consumer has fallen behind by more than the capacity of the journal.
+     */
+    public static class TruncatedException extends NamingException {
+        private final long oldestAvailable;
+
+        TruncatedException(long requested, long oldestAvailable) {
+            super("Changes since " + requested + " no longer available. Oldest available: " + oldestAvailable);
+            this.oldestAvailable = oldestAvailable;
+        }
+
+        /**
+         * @return The lowest sequence number still in the journal when the exception was thrown.
+         */
+        public long getOldestAvailable() {
+            return oldestAvailable;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.osjava.sj.jndi;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * State shared by a root {@link MemoryContext} and all subcontexts created below it.
+ * <p>
+ * Writers: Mutations of a single binding share the read lock of {@link #mutations}, so they do not block each other. Operations changing several contexts at once (e. g. {@link MemoryContextBatch#commit()}) take the write lock, validate their changes off to the side and apply them wrapped in {@link #beginPublish()} / {@link #endPublish()}. Copying bindings for forks, notifying listeners and journals happens outside. Closing a tree needs no publish at all, see {@link #invalidateReads()}.
+ * <p>
+ * Readers take no lock at all. A read spanning several contexts remembers {@link #beginRead()} and repeats itself when {@link #validate(long)} tells that a publish happened in between. So readers see the namespace either before or after a publish, never in between. As publishing takes only as long as applying the changes, readers hardly ever wait long.
+ * <p>
+ * Forks ({@link MemoryContext#fork()}) see the namespace as it was at their {@link #generation}. Every fork starts a new generation. A context about to be changed in a newer generation than its bindings keeps them for the forks and changes a copy. Forks are weakly referenced, so forks never closed do not pin old bindings forever.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+final class Namespace {
+
+    final ReentrantReadWriteLock mutations = new ReentrantReadWriteLock();
+
+    /** Odd while a publish is in progress. */
+    private volatile long sequence;
+
+    /** Incremented by every fork. Bindings of older generations are kept only as long as a fork needs them. */
+    volatile long generation;
+    /** null while no {@link javax.naming.event.NamingListener} is registered, so mutations pay nothing for events nobody listens to. */
+    volatile EventSupport events;
+    /** null unless {@link MemoryContext#enableJournal(int)} has been called. */
+    volatile MutationJournal journal;
+    /** null unless {@link MemoryContext#persistTo(java.io.File)} has been called. Set and cleared while synchronized on the namespace. */
+    volatile PersistentJournal persistence;
+    /** null unless {@link MemoryContext#enableAccessCounters()} has been called, so lookups pay nothing for counting nobody asked for. */
+    volatile AccessCounters counters;
+    /** null unless {@link MemoryContext#enableStatistics()} has been called. */
+    volatile LookupStatistics statistics;
+
+    /** Called around operations of every context of the namespace. Empty if none is configured, so operations pay only for reading the length. */
+    final ContextInterceptor[] interceptors;
+
+    private final Map<Reference<Object>, Long> forks = new ConcurrentHashMap<Reference<Object>, Long>();
+    private final ReferenceQueue<Object> collectedForks = new ReferenceQueue<Object>();
+
+    Namespace(ContextInterceptor[] interceptors) {
+        this.interceptors = interceptors;
+    }
+
+    /**
+     * @return stamp to be passed to {@link #validate(long)}. Waits while a publish is in progress, which applies a few changes only.
+     */
+    long beginRead() {
+        long stamp;
+        while (((stamp = sequence) & 1) != 0) {
+            Thread.yield();
+        }
+        return stamp;
+    }
+
+    /**
+     * @return false: Something was published since stamp was taken. Everything read must be read again.
+     */
+    boolean validate(long stamp) {
+        return sequence == stamp;
+    }
+
+    /**
+     * Caller must hold the write lock of {@link #mutations}.
+     */
+    void beginPublish() {
+        sequence++;
+    }
+
+    void endPublish() {
+        sequence++;
+    }
+
+    /**
+     * Makes reads in progress repeat themselves, without making any reader wait. For changes readers need not see atomically, because everything changed has been marked closed before. Caller must hold the write lock of {@link #mutations}.
+     */
+    void invalidateReads() {
+        sequence += 2;
+    }
+
+    /**
+     * Caller must hold the write lock of {@link #mutations}.
+     *
+     * @param fork Referenced by all contexts of the fork. The fork is alive as long as fork is reachable or until {@link #releaseFork(Object)}.
+     * @return The generation the fork sees.
+     */
+    long fork(Object fork) {
+        expungeCollectedForks();
+        final long forked = generation;
+        forks.put(new WeakReference<Object>(fork, collectedForks), forked);
+        generation = forked + 1;
+        return forked;
+    }
+
+    void releaseFork(Object fork) {
+        for (Reference<Object> reference : forks.keySet()) {
+            if (reference.get() == fork) {
+                forks.remove(reference);
+            }
+        }
+    }
+
+    /**
+     * @return The generation of the oldest live fork, Long.MAX_VALUE if there is none.
+     */
+    long oldestFork() {
+        expungeCollectedForks();
+        long oldest = Long.MAX_VALUE;
+        for (Long forked : forks.values()) {
+            oldest = Math.min(oldest, forked);
+        }
+        return oldest;
+    }
+
+    private void expungeCollectedForks() {
+        Reference<?> reference;
+        while ((reference = collectedForks.poll()) != null) {
+            forks.remove(reference);
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package org.osjava.sj.jndi;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates the deep size of object graphs for {@link Footprint}. Walks fields by reflection. Where fields can not be made accessible, as in most classes of the JDK since Java 9, maps, collections, names and Strings are estimated from their public API and other objects by their shallow size.
+ * <p>
+ * Not thread-safe: One instance per footprint.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+final class ObjectSizer {
+
+    /** Objects walked per footprint at most. Bigger graphs are truncated. */
+    static final int MAX_OBJECTS = 1000000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ObjectSizer.class);
+    private static final boolean COMPRESSED_OOPS = compressedOops();
+    private static final boolean BITS_32 = "32".equals(System.getProperty("sun.arch.data.model"));
+    private static final int REFERENCE = BITS_32 || COMPRESSED_OOPS ? 4 : 8;
+    private static final int HEADER = BITS_32 ? 8 : COMPRESSED_OOPS ? 12 : 16;
+    private static final int ARRAY_HEADER = HEADER + 4;
+    /* Latin-1 Strings need one byte per char since Java 9. */
+    private static final boolean COMPACT_STRINGS = hasField(String.class, "coder");
+    /* Header, hash, key, value, next: The entries of HashMap, Hashtable and ConcurrentHashMap. */
+    private static final long MAP_ENTRY = align(HEADER + 4 + 3 * REFERENCE);
+    private static final Class<?> NAME_IMPL = nameImpl();
+    /* Reference fields of a class and its superclasses to be walked. */
+    private static final Map<Class<?>, Field[]> FIELDS = new ConcurrentHashMap<Class<?>, Field[]>();
+    /* Classes with fields not accessible. */
+    private static final Set<Class<?>> OPAQUE = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+    private static final Map<Class<?>, Long> SHALLOW = new ConcurrentHashMap<Class<?>, Long>();
+
+    private final Footprint.Sharing sharing;
+    private final Map<Object, Object> visited = new IdentityHashMap<Object, Object>();
+    /* Sharing.EXCLUDE: Objects reachable from more than one owner, found by share(). */
+    private final Set<Object> shared = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    private final Deque<Object> stack = new ArrayDeque<Object>();
+    private int objects;
+    private boolean truncated;
+
+    ObjectSizer(@NotNull Footprint.Sharing sharing) {
+        this.sharing = sharing;
+    }
+
+    /**
+     * First pass for {@link Footprint.Sharing#EXCLUDE}: Remembers from which call an object is reached first and marks it shared if reached by another call, too. The same object passed twice as root is shared.
+     *
+     * @param root A bound object or a part of a context.
+     */
+    void share(@Nullable Object root) {
+        if (root == null || skipped(root)) {
+            return;
+        }
+        final Object owner = new Object();
+        stack.push(root);
+        while (!stack.isEmpty() && objects++ < MAX_OBJECTS) {
+            final Object object = stack.pop();
+            final Object first = visited.get(object);
+            if (first == null) {
+                visited.put(object, owner);
+                push(object);
+            }
+            else if (first != owner) {
+                shared.add(object);
+            }
+        }
+        stack.clear();
+    }
+
+    /**
+     * Ends the first pass. {@link #sizeOf(Object)} and {@link #shallow(Object)} follow.
+     */
+    void shared() {
+        visited.clear();
+        objects = 0;
+    }
+
+    /**
+     * @return Deep size of root. Objects already counted are skipped unless {@link Footprint.Sharing#EACH}, shared ones if {@link Footprint.Sharing#EXCLUDE}.
+     */
+    long sizeOf(@Nullable Object root) {
+        if (root == null || skipped(root)) {
+            return 0;
+        }
+        if (sharing == Footprint.Sharing.EACH) {
+            visited.clear();
+        }
+        long size = 0;
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            final Object object = stack.pop();
+            if (visited.containsKey(object) || shared.contains(object)) {
+                continue;
+            }
+            if (objects++ >= MAX_OBJECTS) {
+                truncated = true;
+                break;
+            }
+            visited.put(object, Boolean.TRUE);
+            size += shallowSize(object) + push(object);
+        }
+        stack.clear();
+        return size;
+    }
+
+    /**
+     * @return Size of object without anything it references.
+     */
+    long shallow(@Nullable Object object) {
+        if (object == null || shared.contains(object) || (sharing != Footprint.Sharing.EACH && visited.containsKey(object))) {
+            return 0;
+        }
+        visited.put(object, Boolean.TRUE);
+        return shallowSize(object);
+    }
+
+    /**
+     * @return Size of map without keys and values: The map object, its table and entries.
+     */
+    long mapOverhead(@NotNull Map<?, ?> map) {
+        return shallow(map) + collectionOverhead(map.getClass(), map.size());
+    }
+
+    /**
+     * @return true, if the size of an object walked has been underestimated.
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Classes, threads, class loaders, contexts and enum constants are not owned by a binding: Not counted.
+     */
+    private static boolean skipped(Object object) {
+        return object instanceof Class || object instanceof ClassLoader || object instanceof Thread
+                || object instanceof Context || object instanceof Enum || object == MemoryContext.mask(null);
+    }
+
+    /**
+     * Pushes what object references.
+     *
+     * @return Bytes estimated for internals of object that can not be walked, e. g. the table of a map.
+     */
+    private long push(Object object) {
+        final Class<?> type = object.getClass();
+        if (type.isArray()) {
+            if (!type.getComponentType().isPrimitive()) {
+                for (int i = 0, length = Array.getLength(object); i < length; i++) {
+                    pushChild(Array.get(object, i));
+                }
+            }
+            return 0;
+        }
+        final Field[] fields = fields(type);
+        if (fields != null) {
+            for (Field field : fields) {
+                try {
+                    pushChild(field.get(object));
+                }
+                catch (IllegalAccessException e) {
+                    // Accessible since fields().
+                }
+            }
+            return 0;
+        }
+        try {
+            return pushByApi(object);
+        }
+        catch (RuntimeException e) {
+            // E. g. ConcurrentModificationException of a bound map changed meanwhile.
+            LOGGER.debug("Unable to walk {}: {}", type.getName(), e.toString());
+            truncated = true;
+            return 0;
+        }
+    }
+
+    private void pushChild(Object child) {
+        if (child != null && !skipped(child)) {
+            stack.push(child);
+        }
+    }
+
+    /**
+     * For objects whose fields are not accessible.
+     */
+    private long pushByApi(Object object) {
+        if (object instanceof String) {
+            final int length = ((String) object).length();
+            final boolean latin1 = COMPACT_STRINGS && isLatin1((String) object);
+            return align(ARRAY_HEADER + (long) length * (latin1 ? 1 : 2));
+        }
+        if (object instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) object;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                pushChild(entry.getKey());
+                pushChild(entry.getValue());
+            }
+            return collectionOverhead(object.getClass(), map.size());
+        }
+        if (object instanceof Collection) {
+            final Collection<?> collection = (Collection<?>) object;
+            for (Object element : collection) {
+                pushChild(element);
+            }
+            return collectionOverhead(object.getClass(), collection.size());
+        }
+        if (object instanceof Name) {
+            final Name name = (Name) object;
+            final Enumeration<String> components = name.getAll();
+            while (components.hasMoreElements()) {
+                pushChild(components.nextElement());
+            }
+            // NameImpl holding a Vector of the components.
+            return (NAME_IMPL != null ? shallowSize(NAME_IMPL) : 0) + shallowSize(java.util.Vector.class)
+                    + align(ARRAY_HEADER + (long) Math.max(10, name.size()) * REFERENCE);
+        }
+        return 0;
+    }
+
+    /**
+     * Hash based maps and sets: table and entries. Lists: the backing array.
+     */
+    private static long collectionOverhead(Class<?> type, int size) {
+        if (Map.class.isAssignableFrom(type) || Set.class.isAssignableFrom(type)) {
+            final long table = size == 0 ? 0 : align(ARRAY_HEADER + (long) Integer.highestOneBit(Math.max(1, size * 4 / 3)) * 2 * REFERENCE);
+            // A HashSet is backed by a HashMap.
+            final long backingMap = Set.class.isAssignableFrom(type) ? shallowSize(java.util.HashMap.class) : 0;
+            return table + size * MAP_ENTRY + backingMap;
+        }
+        return align(ARRAY_HEADER + (long) Math.max(size, 10) * REFERENCE);
+    }
+
+    private static boolean isLatin1(String string) {
+        for (int i = 0; i < string.length(); i++) {
+            if (string.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long shallowSize(Object object) {
+        final Class<?> type = object.getClass();
+        if (type.isArray()) {
+            final Class<?> component = type.getComponentType();
+            return align(ARRAY_HEADER + (long) Array.getLength(object) * (component.isPrimitive() ? primitiveSize(component) : REFERENCE));
+        }
+        return shallowSize(type);
+    }
+
+    private static long shallowSize(Class<?> type) {
+        Long size = SHALLOW.get(type);
+        if (size == null) {
+            long fields = 0;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        fields += field.getType().isPrimitive() ? primitiveSize(field.getType()) : REFERENCE;
+                    }
+                }
+            }
+            size = align(HEADER + fields);
+            SHALLOW.put(type, size);
+        }
+        return size;
+    }
+
+    /**
+     * @return Non-static reference fields of type and its superclasses, made accessible. null if any of them can not be accessed.
+     */
+    @Nullable
+    private static Field[] fields(Class<?> type) {
+        final Field[] cached = FIELDS.get(type);
+        if (cached != null || OPAQUE.contains(type)) {
+            return cached;
+        }
+        try {
+            final List<Field> fields = new ArrayList<Field>();
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()) && !field.getType().isPrimitive()) {
+                        field.setAccessible(true);
+                        fields.add(field);
+                    }
+                }
+            }
+            final Field[] result = fields.toArray(new Field[fields.size()]);
+            FIELDS.put(type, result);
+            return result;
+        }
+        catch (RuntimeException e) {
+            // InaccessibleObjectException (Java 9+) or SecurityException
+            OPAQUE.add(type);
+            return null;
+        }
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static boolean hasField(Class<?> type, String name) {
+        try {
+            type.getDeclaredField(name);
+            return true;
+        }
+        catch (NoSuchFieldException e) {
+            return false;
+        }
+    }
+
+    @Nullable
+    private static Class<?> nameImpl() {
+        try {
+            return Class.forName("javax.naming.NameImpl");
+        }
+        catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return UseCompressedOops of HotSpot, true if unknown, which is the default for heaps below 32 GB.
+     */
+    private static boolean compressedOops() {
+        try {
+            final Class<?> diagnostic = Class.forName("com.sun.management.HotSpotDiagnosticMXBean");
+            final Method getPlatformMXBean = ManagementFactory.class.getMethod("getPlatformMXBean", Class.class);
+            final Object bean = getPlatformMXBean.invoke(null, diagnostic);
+            final Object option = diagnostic.getMethod("getVMOption", String.class).invoke(bean, "UseCompressedOops");
+            return Boolean.parseBoolean(String.valueOf(option.getClass().getMethod("getValue").invoke(option)));
+        }
+        catch (Exception e) {
+            LOGGER.debug("UseCompressedOops unknown, assuming true: {}", e.toString());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,591 @@
+package org.osjava.sj.jndi;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osjava.sj.jndi.MutationJournal.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps what is bound at runtime into a {@link MemoryContext} across restarts, see {@link MemoryContext#persistTo(File)}.
+ * <p>
+ * Mutations are appended to a log file. Encoding happens in the mutating thread, writing in a daemon thread, which forces everything written in one go to disk, so many mutations share one fsync. When the log has grown beyond {@link #COMPACT_THRESHOLD} the same thread folds snapshot and log into a new snapshot (file name + ".snapshot"), dropping values overwritten since, and truncates the log.
+ * <p>
+ * On startup the snapshot and then the log are replayed on top of the context as loaded from {@link org.osjava.sj.SimpleJndi#ROOT}. Bound objects must be {@link Serializable}. Others are not persisted and a warning is logged. Subcontexts are persisted by name, not by value.
+ * <p>
+ * The file is locked against other processes. Within one JVM, roots persisted to the same file share one journal, e. g. a root loaded in vain by a thread losing the race for a shared context, or the roots of several non-shared contexts: Each replays what has been written so far and records into the same log. The file is released when the last of them is closed.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class PersistentJournal {
+
+    /** Path of the log file. When set, {@link org.osjava.sj.SimpleJndiContextFactory} persists runtime bindings of the root context. */
+    public static final String FILE = "org.osjava.sj.jndi.persistence.file";
+    /** Size in bytes the log may reach before it is compacted. Default 1 MiB. */
+    public static final String COMPACT_THRESHOLD = "org.osjava.sj.jndi.persistence.compactThreshold";
+    static final long DEFAULT_COMPACT_THRESHOLD = 1024 * 1024;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistentJournal.class);
+    private static final int LOG_MAGIC = 0x534a4c47;
+    private static final int SNAPSHOT_MAGIC = 0x534a5350;
+    private static final int HEADER_SIZE = 12;
+    /** Tells the writer to finish. */
+    private static final byte[] CLOSE = new byte[0];
+    /* Journals open in this JVM by canonical file. Also guards attached. */
+    private static final Map<File, PersistentJournal> OPEN = new HashMap<File, PersistentJournal>();
+
+    private final File file;
+    private final File snapshot;
+    private final long compactThreshold;
+    private final FileChannel log;
+    private final FileLock lock;
+    /* Number of roots recording into this journal. */
+    private int attached;
+    /* Held while reading or writing the files, so a root attaching does not replay them halfway compacted. */
+    private final Object io = new Object();
+    /* Generation of the log. A snapshot covering this generation makes replaying the log superfluous. */
+    private long generation;
+    private final LinkedBlockingQueue<byte[]> pending = new LinkedBlockingQueue<byte[]>();
+    private final Thread writer;
+    private long enqueued;
+    private long written;
+    private IOException failure;
+
+    private PersistentJournal(@NotNull File file, long compactThreshold) throws IOException {
+        this.file = file;
+        this.snapshot = new File(file.getPath() + ".snapshot");
+        this.compactThreshold = compactThreshold;
+        log = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            lock = log.tryLock();
+        }
+        catch (OverlappingFileLockException e) {
+            log.close();
+            throw new IOException(file + " is already in use by this JVM.");
+        }
+        if (lock == null) {
+            log.close();
+            throw new IOException(file + " is already in use by another process.");
+        }
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "simple-jndi-persistence");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Replays snapshot and log into root and starts recording. If file is already open in this JVM, root is attached to that journal.
+     *
+     * @param compactThreshold Ignored when attaching.
+     */
+    @NotNull
+    static PersistentJournal open(@NotNull MemoryContext root, @NotNull File file, long compactThreshold) throws NamingException {
+        try {
+            final File canonical = file.getCanonicalFile();
+            synchronized (OPEN) {
+                PersistentJournal journal = OPEN.get(canonical);
+                if (journal != null) {
+                    // Everything recorded so far must be in the log before replaying it.
+                    journal.sync();
+                    synchronized (journal.io) {
+                        journal.replay(root);
+                    }
+                }
+                else {
+                    journal = new PersistentJournal(canonical, compactThreshold);
+                    try {
+                        journal.replay(root);
+                    }
+                    catch (IOException e) {
+                        journal.release();
+                        throw e;
+                    }
+                    journal.writer.start();
+                    OPEN.put(canonical, journal);
+                }
+                journal.attached++;
+                return journal;
+            }
+        }
+        catch (IOException e) {
+            final NamingException namingException = new NamingException("Unable to open " + file);
+            namingException.setRootCause(e);
+            throw namingException;
+        }
+    }
+
+    /**
+     * Caller must hold the write lock of the namespace's mutations, so records are enqueued in the order of the mutations. Mutations of single bindings take it while the namespace is persisted, see {@link MemoryContext#persistTo(File)}.
+     *
+     * @param oldObject masked, null if name was not bound.
+     * @param newObject masked, null if name has been unbound.
+     */
+    void record(@NotNull String name, @Nullable Object oldObject, @Nullable Object newObject) {
+        final Operation operation = MutationJournal.operation(oldObject, newObject);
+        byte[] serialized = null;
+        if (operation == Operation.BIND || operation == Operation.REBIND) {
+            final Object object = MemoryContext.unmask(newObject);
+            if (object != null) {
+                serialized = serialize(name, object);
+                if (serialized == null) {
+                    return;
+                }
+            }
+        }
+        enqueue(new Record(operation, name, null, serialized));
+    }
+
+    void recordRename(@NotNull String oldName, @NotNull String newName) {
+        enqueue(new Record(Operation.RENAME, oldName, newName, null));
+    }
+
+    /**
+     * Waits until everything recorded so far is on disk.
+     */
+    public void sync() throws NamingException {
+        synchronized (this) {
+            final long target = enqueued;
+            while (written < target && failure == null && writer.isAlive()) {
+                try {
+                    wait(100);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (failure != null) {
+                final NamingException namingException = new NamingException("Unable to write " + file);
+                namingException.setRootCause(failure);
+                throw namingException;
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Detaches a root. The last one writes what is pending and releases the file.
+     */
+    void close() {
+        synchronized (OPEN) {
+            if (--attached > 0) {
+                return;
+            }
+            OPEN.remove(file);
+            // Joined while holding OPEN, so the file is released before it can be opened again.
+            pending.add(CLOSE);
+            try {
+                writer.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void enqueue(Record record) {
+        synchronized (this) {
+            enqueued++;
+        }
+        pending.add(record.encode());
+    }
+
+    private void write() {
+        final List<byte[]> batch = new ArrayList<byte[]>();
+        boolean closing = false;
+        try {
+            while (!closing) {
+                batch.add(pending.take());
+                pending.drainTo(batch);
+                int count = 0;
+                synchronized (io) {
+                    for (byte[] encoded : batch) {
+                        if (encoded == CLOSE) {
+                            closing = true;
+                        }
+                        else if (failure == null) {
+                            final ByteBuffer buffer = ByteBuffer.wrap(encoded);
+                            while (buffer.hasRemaining()) {
+                                log.write(buffer, log.size());
+                            }
+                            count++;
+                        }
+                    }
+                    if (count > 0) {
+                        log.force(false);
+                    }
+                    synchronized (this) {
+                        written += count;
+                        notifyAll();
+                    }
+                    batch.clear();
+                    if (log.size() > compactThreshold) {
+                        compact();
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            LOGGER.error("Unable to write {}. Runtime bindings are no longer persisted.", file, e);
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+        }
+        catch (InterruptedException e) {
+            LOGGER.warn("Persistence of {} interrupted.", file);
+        }
+        finally {
+            release();
+        }
+    }
+
+    private void release() {
+        try {
+            lock.release();
+            log.close();
+        }
+        catch (IOException e) {
+            LOGGER.warn("Unable to close {}.", file, e);
+        }
+    }
+
+    /**
+     * Folds snapshot and log into a new snapshot, then starts a new log generation. A crash in between is harmless: On replay a log whose generation the snapshot covers is ignored.
+     */
+    private void compact() throws IOException {
+        final List<Record> records = new ArrayList<Record>();
+        if (snapshot.exists()) {
+            readRecords(snapshot, SNAPSHOT_MAGIC, records);
+        }
+        readRecords(file, LOG_MAGIC, records);
+        final List<Record> folded = fold(records);
+        final File temp = new File(snapshot.getPath() + ".tmp");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeLong(generation);
+        for (Record record : folded) {
+            out.write(record.encode());
+        }
+        out.flush();
+        final FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        finally {
+            channel.close();
+        }
+        Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        final long before = log.size();
+        log.truncate(0);
+        writeHeader(generation + 1);
+        LOGGER.debug("Compacted {}: {} records in {} bytes to {} records.", file, records.size(), before, folded.size());
+    }
+
+    /**
+     * Drops values overwritten later. Subcontext operations and renames are kept in place and nothing is moved across them, since they change the meaning of names.
+     */
+    @NotNull
+    static List<Record> fold(@NotNull List<Record> records) {
+        final List<Record> folded = new ArrayList<Record>();
+        final LinkedHashMap<String, Record> values = new LinkedHashMap<String, Record>();
+        for (Record record : records) {
+            switch (record.operation) {
+                case BIND:
+                case REBIND:
+                case UNBIND:
+                    values.remove(record.name);
+                    values.put(record.name, record);
+                    break;
+                default:
+                    folded.addAll(values.values());
+                    values.clear();
+                    folded.add(record);
+            }
+        }
+        folded.addAll(values.values());
+        return folded;
+    }
+
+    private void replay(MemoryContext root) throws IOException {
+        final List<Record> records = new ArrayList<Record>();
+        long covered = 0;
+        if (snapshot.exists()) {
+            covered = readRecords(snapshot, SNAPSHOT_MAGIC, records);
+        }
+        if (log.size() < HEADER_SIZE) {
+            log.truncate(0);
+            writeHeader(covered + 1);
+        }
+        else {
+            final List<Record> logRecords = new ArrayList<Record>();
+            generation = readRecords(file, LOG_MAGIC, logRecords);
+            if (generation > covered) {
+                records.addAll(logRecords);
+            }
+        }
+        for (Record record : records) {
+            try {
+                record.apply(root);
+            }
+            catch (NamingException e) {
+                LOGGER.warn("Unable to replay {} {}: {}", record.operation, record.name, e.toString());
+            }
+        }
+        LOGGER.debug("Replayed {} records from {}.", records.size(), file);
+    }
+
+    private void writeHeader(long generation) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(LOG_MAGIC).putLong(generation).flip();
+        while (header.hasRemaining()) {
+            log.write(header, HEADER_SIZE - header.remaining());
+        }
+        log.force(true);
+        this.generation = generation;
+    }
+
+    /**
+     * Reads records up to the first incomplete or corrupt one, as left by a crash. The log is truncated there.
+     *
+     * @return The generation from the header.
+     */
+    private long readRecords(File source, int magic, List<Record> records) throws IOException {
+        final byte[] content = Files.readAllBytes(source.toPath());
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        if (content.length < HEADER_SIZE || in.readInt() != magic) {
+            throw new IOException(source + " is no simple-jndi journal.");
+        }
+        final long generation = in.readLong();
+        int valid = HEADER_SIZE;
+        while (content.length - valid >= 8) {
+            final int length = in.readInt();
+            final long checksum = in.readInt() & 0xffffffffL;
+            if (length < 0 || content.length - valid - 8 < length) {
+                break;
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(content, valid + 8, length);
+            if (crc.getValue() != checksum) {
+                break;
+            }
+            final byte[] body = new byte[length];
+            in.readFully(body);
+            records.add(Record.decode(body));
+            valid += 8 + length;
+        }
+        if (valid < content.length) {
+            LOGGER.warn("Ignoring {} bytes of incomplete record at the end of {}.", content.length - valid, source);
+            if (source.equals(file)) {
+                log.truncate(valid);
+            }
+        }
+        return generation;
+    }
+
+    @Nullable
+    private static byte[] serialize(String name, Object object) {
+        if (!(object instanceof Serializable)) {
+            LOGGER.warn("Not persisting {}: {} is not Serializable.", name, object.getClass().getName());
+            return null;
+        }
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(object);
+            out.close();
+            return bytes.toByteArray();
+        }
+        catch (IOException e) {
+            LOGGER.warn("Not persisting {}: {}", name, e.toString());
+            return null;
+        }
+    }
+
+    static final class Record {
+        final Operation operation;
+        final String name;
+        /* Only set for RENAME. */
+        final String newName;
+        /* Serialized object of BIND and REBIND, null for null. */
+        final byte[] object;
+
+        Record(Operation operation, String name, String newName, byte[] object) {
+            this.operation = operation;
+            this.name = name;
+            this.newName = newName;
+            this.object = object;
+        }
+
+        /**
+         * @return length, CRC32 and body.
+         */
+        byte[] encode() {
+            try {
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                final DataOutputStream out = new DataOutputStream(body);
+                out.writeByte(operation.ordinal());
+                out.writeUTF(name);
+                out.writeUTF(newName != null ? newName : "");
+                out.writeInt(object != null ? object.length : -1);
+                if (object != null) {
+                    out.write(object);
+                }
+                out.flush();
+                final byte[] bytes = body.toByteArray();
+                final CRC32 crc = new CRC32();
+                crc.update(bytes);
+                final ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+                record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+                return record.array();
+            }
+            catch (IOException e) {
+                // ByteArrayOutputStream does not throw.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static Record decode(byte[] body) throws IOException {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            final Operation operation = Operation.values()[in.readByte()];
+            final String name = in.readUTF();
+            final String newName = in.readUTF();
+            final int length = in.readInt();
+            byte[] object = null;
+            if (length >= 0) {
+                object = new byte[length];
+                in.readFully(object);
+            }
+            return new Record(operation, name, newName.isEmpty() ? null : newName, object);
+        }
+
+        /**
+         * Replaying is idempotent as far as possible, so the state after replay does not depend on what has been loaded from the root directory.
+         */
+        void apply(MemoryContext root) throws NamingException {
+            switch (operation) {
+                case BIND:
+                case REBIND:
+                    root.rebind(name, deserialize());
+                    break;
+                case UNBIND:
+                    root.unbind(name);
+                    break;
+                case CREATE_SUBCONTEXT:
+                    if (!isContext(root)) {
+                        root.createSubcontext(name);
+                    }
+                    break;
+                case DESTROY_SUBCONTEXT:
+                    if (isContext(root)) {
+                        root.destroySubcontext(name);
+                    }
+                    break;
+                case RENAME:
+                    root.rename(name, newName);
+                    break;
+            }
+        }
+
+        private boolean isContext(MemoryContext root) throws NamingException {
+            try {
+                return root.lookup(name) instanceof Context;
+            }
+            catch (NameNotFoundException e) {
+                return false;
+            }
+        }
+
+        @Nullable
+        private Object deserialize() throws NamingException {
+            if (object == null) {
+                return null;
+            }
+            try {
+                final ObjectInputStream in = new ContextClassLoaderObjectInputStream(new ByteArrayInputStream(object));
+                try {
+                    return in.readObject();
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch (IOException e) {
+                throw deserializationFailed(e);
+            }
+            catch (ClassNotFoundException e) {
+                throw deserializationFailed(e);
+            }
+        }
+
+        private NamingException deserializationFailed(Exception e) {
+            final NamingException namingException = new NamingException("Unable to deserialize " + name);
+            namingException.setRootCause(e);
+            return namingException;
+        }
+    }
+
+    /**
+     * Resolves classes of the web application or the like, not only of simple-jndi's class loader.
+     */
+    private static final class ContextClassLoaderObjectInputStream extends ObjectInputStream {
+
+        ContextClassLoaderObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader != null) {
+                try {
+                    return Class.forName(desc.getName(), false, loader);
+                }
+                catch (ClassNotFoundException e) {
+                    // Fall through
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
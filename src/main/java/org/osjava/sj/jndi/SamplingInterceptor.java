@@ -0,0 +1,56 @@
+package org.osjava.sj.jndi;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.naming.NamingException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Lets its delegate see only one of rate invocations, chosen at random. The others proceed without it. Choosing takes no lock and shares no state between threads.
+ * <p>
+ * Configured by a suffix in {@link MemoryContext#INTERCEPTORS}, e. g. "com.example.Tracing@100". An interceptor found by {@link java.util.ServiceLoader} samples itself by extending this class:
+ * <pre>
+ * public class SampledTracing extends SamplingInterceptor {
+ *     public SampledTracing() {
+ *         super(new Tracing(), 100);
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class SamplingInterceptor implements ContextInterceptor {
+
+    private final ContextInterceptor delegate;
+    private final int rate;
+
+    /**
+     * @param rate 1 of rate invocations is passed to delegate. &lt;= 1: All.
+     */
+    public SamplingInterceptor(@NotNull ContextInterceptor delegate, int rate) {
+        this.delegate = delegate;
+        this.rate = rate;
+    }
+
+    @Override
+    public Object intercept(ContextInvocation invocation) throws NamingException {
+        if (rate <= 1 || ThreadLocalRandom.current().nextInt(rate) == 0) {
+            return delegate.intercept(invocation);
+        }
+        return invocation.proceed();
+    }
+
+    @NotNull
+    public ContextInterceptor getDelegate() {
+        return delegate;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    @Override
+    public String toString() {
+        return delegate + "@" + rate;
+    }
+}
@@ -2,6 +2,7 @@ package org.osjava.sj.loader;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.BooleanUtils;
+import org.osjava.sj.jndi.FlightRecorderEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -97,10 +98,13 @@ public class FileBasedJndiLoader extends JndiLoader {
      */
     private void loadFile(File file, Context ctxt, Context parentCtxt, String subName, boolean preserveFileNameAsContextName) throws NamingException, IOException {
         LOGGER.debug("Loading {}", file.getAbsolutePath());
+        final Object event = FlightRecorderEvent.FILE_LOAD.begin();
         String parentName = file.getName();
         parentName = handleColonReplacement(parentName);
         Context subContext = ctxt;
+        final long parseStart = event != null ? System.nanoTime() : 0;
         Properties properties = toProperties(file);
+        final long parseTime = event != null ? System.nanoTime() - parseStart : 0;
         if (isNotNamespacedTypeDefinition(properties)) {
             // preserve the file name as object name.
             subName = FilenameUtils.getBaseName(parentName);
@@ -115,6 +119,9 @@ public class FileBasedJndiLoader extends JndiLoader {
             subName = parentName;
         }
         load(properties, subContext, parentCtxt, subName);
+        if (event != null) {
+            FlightRecorderEvent.FILE_LOAD.commit(event, file.getAbsolutePath(), file.length(), parseTime, properties.size());
+        }
     }
 
     /**
@@ -36,6 +36,7 @@ import org.apache.commons.io.FilenameUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.osjava.StringUtils;
+import org.osjava.sj.jndi.FlightRecorderEvent;
 import org.osjava.sj.jndi.JndiUtils;
 import org.osjava.sj.loader.convert.ConverterIF;
 import org.osjava.sj.loader.convert.ConverterRegistry;
@@ -63,6 +64,12 @@ public class JndiLoader {
     private final Properties envAsProperties;
 
     Hashtable environment = new Hashtable();
+    /* Only set by SnapshotImage while parsing: Remembers the properties each object was converted from. Keys compared by identity. */
+    Map<Object, Properties> conversions;
+    /* null unless set by recordSources(). */
+    private Map<Object, Properties> sources;
+    /* null unless profiling, see setProfiler(). */
+    LoadProfiler profiler;
     private Logger LOGGER = LoggerFactory.getLogger(this.getClass());
     public static final String FILENAME_TO_CONTEXT = "org.osjava.sj.filenameToContext";
 
@@ -81,6 +88,25 @@ public class JndiLoader {
         envAsProperties = props;
     }
 
+    /**
+     * @param profiler Records where the time of loading goes. null: Stop profiling.
+     */
+    public void setProfiler(@Nullable LoadProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    @Nullable
+    public LoadProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * @param sources Filled with every object created by a converter and the properties it was created from, keyed by identity. Also filled later, when objects bound lazily are created. Must be thread-safe. null: Stop recording.
+     */
+    public void recordSources(@Nullable Map<Object, Properties> sources) {
+        this.sources = sources;
+    }
+
     /**
      * For example a DataSource definition file with properties without namespace, e. g. "type=javax.sql.DataSource" instead of "Sybase/type=javax.sql.DataSource".
      */
@@ -116,6 +142,18 @@ public class JndiLoader {
     }
 
     void load(Properties properties, Context subContext, Context parentCtxt, String subName) throws NamingException {
+        final int mark = profiler != null ? profiler.enter(LoadProfiler.Phase.ANALYSIS) : 0;
+        try {
+            analyse(properties, subContext, parentCtxt, subName);
+        }
+        finally {
+            if (profiler != null) {
+                profiler.exit(mark);
+            }
+        }
+    }
+
+    private void analyse(Properties properties, Context subContext, Context parentCtxt, String subName) throws NamingException {
 
         // NOTE: "type" effectively turns on pseudo-nodes; if it isn't there then other pseudo-nodes will result in re-bind errors.
 
@@ -163,7 +201,11 @@ public class JndiLoader {
             if (typeKey.equals("datasourceOrBeanProperty")) {
                 // Reached only by datasource and bean declarations? Yes, but not always! Not from org.osjava.sj.memory.JndiLoaderTest.testBeanConverter(). testBeanConverter() enters the "else" branch.  Not reached, when the attributes are prefixed with a namespace as in roots/datasource/ds.properties (used in SimpleJndiNewTest.sharedContextWithDataSource2MatchingDelimiter()).
                 // rebind(): For every file there is already a context created and bound under the file's name. In case of bean or datasource declarations the binding must not be a context but the value (the bean, the datasource) itself. This is true as long as the datasource or bean properties are not namespaced. Then the "else" branch is executed.
+                final int mark = profiler != null ? profiler.enter(LoadProfiler.Phase.BIND) : 0;
                 parentCtxt.rebind(subName, value);
+                if (profiler != null) {
+                    profiler.exit(mark);
+                }
             }
             else {
                 jndiPut(subContext, typeKey, value);
@@ -348,10 +390,20 @@ public class JndiLoader {
         Name name = extractContextName(key);
         if (name != null) {
             Context deepestCtx = createSubContexts(name, ctxt);
-            deepestCtx.bind(extractObjectName(key), value);
+            final String objectName = extractObjectName(key);
+            final int mark = profiler != null ? profiler.enter(LoadProfiler.Phase.BIND) : 0;
+            deepestCtx.bind(objectName, value);
+            if (profiler != null) {
+                profiler.exit(mark);
+            }
         }
         else {
-            ctxt.bind(toCompoundName(key), value);
+            final Name compoundName = toCompoundName(key);
+            final int mark = profiler != null ? profiler.enter(LoadProfiler.Phase.BIND) : 0;
+            ctxt.bind(compoundName, value);
+            if (profiler != null) {
+                profiler.exit(mark);
+            }
         }
     }
 
@@ -360,6 +412,7 @@ public class JndiLoader {
      * @param name Name of the contexts to be created in parentContext.
      */
     Context createSubContexts(Name name, Context parentContext) throws NamingException {
+        final int mark = profiler != null ? profiler.enter(LoadProfiler.Phase.SUBCONTEXT) : 0;
         Context currentCtx = parentContext;
         for(int i=0; i < name.size(); i++) {
             Object obj;
@@ -378,11 +431,16 @@ public class JndiLoader {
                 currentCtx = currentCtx.createSubcontext(name.get(i));
             }
         }
+        if (profiler != null) {
+            profiler.exit(mark);
+        }
         return currentCtx;
     }
 
     @Nullable
-    private Object convert(Properties properties) {
+    Object convert(Properties properties) {
+        final Object event = FlightRecorderEvent.CONVERSION.begin();
+        final int mark = profiler != null ? profiler.enter(LoadProfiler.Phase.CONVERSION) : 0;
         String type = properties.getProperty("type");
         Object obj = properties.get("valueToConvert");
 
@@ -393,6 +451,19 @@ public class JndiLoader {
         else {
             obj = processType(properties, type, obj);
         }
+        if (conversions != null && obj != null) {
+            conversions.put(obj, properties);
+        }
+        final Map<Object, Properties> sources = this.sources;
+        if (sources != null && obj != null) {
+            sources.put(obj, properties);
+        }
+        if (profiler != null) {
+            profiler.exitConversion(mark, type);
+        }
+        if (event != null) {
+            FlightRecorderEvent.CONVERSION.commit(event, type, converterClassName, obj != null ? obj.getClass().getName() : null);
+        }
         return obj;
 
     }
@@ -429,6 +500,9 @@ public class JndiLoader {
                             }
                             else {
                                 LOGGER.error("", e);
+                                if (profiler != null) {
+                                    profiler.conversionFailed(type, obj, e.toString());
+                                }
                             }
                         }
                     }
@@ -436,6 +510,9 @@ public class JndiLoader {
                 else if (environment.containsKey(Context.OBJECT_FACTORIES)) {
                     obj = JndiUtils.toReference(properties, type);
                 }
+                else if (profiler != null) {
+                    profiler.conversionFailed(type, obj, "No converter and no " + Context.OBJECT_FACTORIES);
+                }
             }
         }
         return obj;
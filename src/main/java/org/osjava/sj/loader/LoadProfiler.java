@@ -0,0 +1,535 @@
+package org.osjava.sj.loader;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records where the time of loading a root goes: Wall time, CPU time and allocated bytes per {@link Phase}, per file and per converted type. Enabled by {@link #REPORT} or {@link JndiLoader#setProfiler(LoadProfiler)}.
+ * <p>
+ * Phases nest, e. g. a conversion happens during the analysis of a file's keys. Time spent in a nested phase is only counted for the nested phase, so the phases add up to the time spent loading. Files and types are counted inclusively. While profiling, a file is read completely before it is parsed, to tell reading from parsing. CPU time and allocation are only reported where the JVM supports measuring them, otherwise they are 0. Allocation is measured by com.sun.management.ThreadMXBean, accessed by reflection.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class LoadProfiler {
+
+    /** "true": Log a summary after loading. A file name: Also write the report as JSON to that file. */
+    public static final String REPORT = "org.osjava.sj.loadReport";
+
+    public enum Phase {
+        /** Traversing directories. */
+        WALK,
+        /** Reading files. */
+        READ,
+        /** Parsing properties, ini and xml files. */
+        PARSE,
+        /** Replacing ${sj.sys:...} in values. */
+        SUBSTITUTION,
+        /** Analysing keys for namespaces and types. */
+        ANALYSIS,
+        /** Converting values into objects of their types. */
+        CONVERSION,
+        /** Creating subcontexts. */
+        SUBCONTEXT,
+        /** Binding objects. */
+        BIND
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadProfiler.class);
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = cpuTimeSupported();
+    /* com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long), null if not available. */
+    private static final Method ALLOCATED_BYTES = allocatedBytesMethod();
+
+    private final long started = System.nanoTime();
+    private volatile long finished;
+    private final Map<Phase, Measure> phases = new EnumMap<Phase, Measure>(Phase.class);
+    private final List<Measure> files = Collections.synchronizedList(new ArrayList<Measure>());
+    private final ConcurrentHashMap<String, Measure> types = new ConcurrentHashMap<String, Measure>();
+    private final List<Failure> failures = Collections.synchronizedList(new ArrayList<Failure>());
+    private final ThreadLocal<ArrayList<Frame>> stacks = new ThreadLocal<ArrayList<Frame>>() {
+        @Override
+        protected ArrayList<Frame> initialValue() {
+            return new ArrayList<Frame>();
+        }
+    };
+
+    public LoadProfiler() {
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new Measure(phase.name()));
+        }
+    }
+
+    private static boolean cpuTimeSupported() {
+        try {
+            return THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+        }
+        catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    @Nullable
+    private static Method allocatedBytesMethod() {
+        try {
+            final Class<?> sunThreadMXBean = Class.forName("com.sun.management.ThreadMXBean");
+            if (!sunThreadMXBean.isInstance(THREADS)
+                    || !(Boolean) sunThreadMXBean.getMethod("isThreadAllocatedMemoryEnabled").invoke(THREADS)) {
+                return null;
+            }
+            final Method method = sunThreadMXBean.getMethod("getThreadAllocatedBytes", long.class);
+            method.invoke(THREADS, Thread.currentThread().getId());
+            return method;
+        }
+        catch (Exception e) {
+            LOGGER.debug("Allocation not measurable: {}", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @return The size of the stack before, to be passed to {@link #exit(int)}.
+     */
+    int enter(@NotNull Phase phase) {
+        return push(new Frame(phase, null));
+    }
+
+    int enterFile(@NotNull String path) {
+        return push(new Frame(null, path));
+    }
+
+    private int push(Frame frame) {
+        final ArrayList<Frame> stack = stacks.get();
+        frame.start();
+        stack.add(frame);
+        return stack.size() - 1;
+    }
+
+    /**
+     * Ends all phases entered since mark was returned, even those not ended because of an Exception.
+     */
+    void exit(int mark) {
+        final ArrayList<Frame> stack = stacks.get();
+        while (stack.size() > mark) {
+            final Frame frame = stack.remove(stack.size() - 1);
+            frame.end();
+            if (frame.phase != null) {
+                phases.get(frame.phase).add(frame.wall - frame.childWall, frame.cpu - frame.childCpu, frame.allocated - frame.childAllocated);
+            }
+            if (frame.type != null) {
+                Measure measure = types.get(frame.type);
+                if (measure == null) {
+                    final Measure created = new Measure(frame.type);
+                    measure = types.putIfAbsent(frame.type, created);
+                    if (measure == null) {
+                        measure = created;
+                    }
+                }
+                measure.add(frame.wall, frame.cpu, frame.allocated);
+            }
+            if (frame.path != null) {
+                final Measure file = new Measure(frame.path);
+                file.add(frame.wall, frame.cpu, frame.allocated);
+                file.bytes = frame.bytes;
+                file.properties = frame.properties;
+                files.add(file);
+            }
+            if (!stack.isEmpty()) {
+                final Frame parent = stack.get(stack.size() - 1);
+                parent.childWall += frame.wall;
+                parent.childCpu += frame.cpu;
+                parent.childAllocated += frame.allocated;
+            }
+        }
+    }
+
+    /**
+     * @param type Counted as converted type, null if there is no type.
+     */
+    void exitConversion(int mark, @Nullable String type) {
+        final ArrayList<Frame> stack = stacks.get();
+        if (stack.size() > mark) {
+            stack.get(mark).type = type != null ? type : "(none)";
+        }
+        exit(mark);
+    }
+
+    /**
+     * @param properties Number of properties found in the file, -1 if unknown.
+     */
+    void exitFile(int mark, int properties) {
+        final ArrayList<Frame> stack = stacks.get();
+        if (stack.size() > mark) {
+            stack.get(mark).properties = properties;
+        }
+        exit(mark);
+    }
+
+    /**
+     * Sets the size of the file currently loaded by this thread.
+     */
+    void fileSize(long bytes) {
+        final ArrayList<Frame> stack = stacks.get();
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            if (stack.get(i).path != null) {
+                stack.get(i).bytes = bytes;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records a value bound as it was, because it could not be converted into its type.
+     */
+    void conversionFailed(@Nullable String type, @Nullable Object value, @NotNull String reason) {
+        String path = null;
+        final ArrayList<Frame> stack = stacks.get();
+        for (int i = stack.size() - 1; i >= 0 && path == null; i--) {
+            path = stack.get(i).path;
+        }
+        failures.add(new Failure(path, type, value != null ? value.toString() : null, reason));
+    }
+
+    /**
+     * Stops the clock of {@link #getWallNanos()}.
+     */
+    public void finish() {
+        finished = System.nanoTime();
+    }
+
+    /**
+     * @return Nanoseconds from creation until {@link #finish()}, or until now if not finished.
+     */
+    public long getWallNanos() {
+        return (finished != 0 ? finished : System.nanoTime()) - started;
+    }
+
+    /**
+     * @return Per phase, in the order of {@link Phase}.
+     */
+    @NotNull
+    public List<Measure> getPhases() {
+        return new ArrayList<Measure>(phases.values());
+    }
+
+    /**
+     * @return Per file, slowest first.
+     */
+    @NotNull
+    public List<Measure> getFiles() {
+        final List<Measure> sorted;
+        synchronized (files) {
+            sorted = new ArrayList<Measure>(files);
+        }
+        Collections.sort(sorted, Measure.BY_WALL);
+        return sorted;
+    }
+
+    /**
+     * @return Per converted type, most expensive first.
+     */
+    @NotNull
+    public List<Measure> getTypes() {
+        final List<Measure> sorted = new ArrayList<Measure>(types.values());
+        Collections.sort(sorted, Measure.BY_WALL);
+        return sorted;
+    }
+
+    /**
+     * @return In the order they happened.
+     */
+    @NotNull
+    public List<Failure> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<Failure>(failures);
+        }
+    }
+
+    /**
+     * @return The whole report.
+     */
+    @NotNull
+    public String toJson() {
+        final StringBuilder json = new StringBuilder();
+        json.append("{\n  \"wallNanos\": ").append(getWallNanos()).append(",\n");
+        json.append("  \"cpuTimeMeasured\": ").append(CPU_TIME).append(",\n");
+        json.append("  \"allocationMeasured\": ").append(ALLOCATED_BYTES != null).append(",\n");
+        appendJson(json, "phases", "phase", getPhases());
+        json.append(",\n");
+        appendJson(json, "files", "path", getFiles());
+        json.append(",\n");
+        appendJson(json, "types", "type", getTypes());
+        json.append(",\n  \"failures\": [");
+        final List<Failure> failures = getFailures();
+        for (int i = 0; i < failures.size(); i++) {
+            final Failure failure = failures.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"path\": ").append(quote(failure.path));
+            json.append(", \"type\": ").append(quote(failure.type));
+            json.append(", \"value\": ").append(quote(failure.value));
+            json.append(", \"reason\": ").append(quote(failure.reason)).append('}');
+        }
+        json.append(failures.isEmpty() ? "]" : "\n  ]");
+        json.append("\n}\n");
+        return json.toString();
+    }
+
+    private static void appendJson(StringBuilder json, String name, String key, List<Measure> measures) {
+        json.append("  \"").append(name).append("\": [");
+        for (int i = 0; i < measures.size(); i++) {
+            final Measure measure = measures.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"").append(key).append("\": \"").append(escape(measure.name)).append('"');
+            json.append(", \"count\": ").append(measure.count);
+            json.append(", \"wallNanos\": ").append(measure.wallNanos);
+            json.append(", \"cpuNanos\": ").append(measure.cpuNanos);
+            json.append(", \"allocatedBytes\": ").append(measure.allocatedBytes);
+            if (key.equals("path")) {
+                json.append(", \"bytes\": ").append(measure.bytes);
+                json.append(", \"properties\": ").append(measure.properties);
+            }
+            json.append('}');
+        }
+        json.append(measures.isEmpty() ? "]" : "\n  ]");
+    }
+
+    private static String quote(@Nullable String s) {
+        return s != null ? '"' + escape(s) + '"' : "null";
+    }
+
+    private static String escape(String s) {
+        final StringBuilder escaped = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * @param limit Number of files and types listed at most.
+     * @return A report to be read by humans: Phases, slowest files, most expensive types and conversion failures.
+     */
+    @NotNull
+    public String summary(int limit) {
+        final StringBuilder summary = new StringBuilder();
+        final List<Measure> files = getFiles();
+        summary.append(String.format(Locale.ROOT, "Loaded %d files in %.1f ms%n", files.size(), getWallNanos() / 1e6));
+        summary.append(String.format(Locale.ROOT, "%-40s %8s %10s %10s %12s%n", "Phase", "count", "wall ms", "cpu ms", "allocated"));
+        for (Measure phase : getPhases()) {
+            appendLine(summary, phase.name, phase);
+        }
+        summary.append(String.format(Locale.ROOT, "Slowest files:%n"));
+        for (Measure file : files.subList(0, Math.min(limit, files.size()))) {
+            appendLine(summary, file.name + " (" + file.bytes + " bytes, " + file.properties + " properties)", file);
+        }
+        summary.append(String.format(Locale.ROOT, "Most expensive types:%n"));
+        final List<Measure> types = getTypes();
+        for (Measure type : types.subList(0, Math.min(limit, types.size()))) {
+            appendLine(summary, type.name, type);
+        }
+        final List<Failure> failures = getFailures();
+        if (!failures.isEmpty()) {
+            summary.append(String.format(Locale.ROOT, "Conversion failures: %d%n", failures.size()));
+            for (Failure failure : failures.subList(0, Math.min(limit, failures.size()))) {
+                summary.append(String.format(Locale.ROOT, "  %s%n", failure));
+            }
+        }
+        return summary.toString();
+    }
+
+    private static void appendLine(StringBuilder summary, String name, Measure measure) {
+        summary.append(String.format(Locale.ROOT, "%-40s %8d %10.2f %10.2f %12d%n",
+                name, measure.count, measure.wallNanos / 1e6, measure.cpuNanos / 1e6, measure.allocatedBytes));
+    }
+
+    private static long cpuTime() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long allocatedBytes() {
+        if (ALLOCATED_BYTES == null) {
+            return 0;
+        }
+        try {
+            return (Long) ALLOCATED_BYTES.invoke(THREADS, Thread.currentThread().getId());
+        }
+        catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Measured time and allocation of a phase, a file or a type.
+     */
+    public static final class Measure {
+        static final Comparator<Measure> BY_WALL = new Comparator<Measure>() {
+            @Override
+            public int compare(Measure m1, Measure m2) {
+                return m1.wallNanos < m2.wallNanos ? 1 : (m1.wallNanos == m2.wallNanos ? m1.name.compareTo(m2.name) : -1);
+            }
+        };
+
+        private final String name;
+        private long count;
+        private long wallNanos;
+        private long cpuNanos;
+        private long allocatedBytes;
+        private long bytes;
+        private int properties;
+
+        Measure(String name) {
+            this.name = name;
+        }
+
+        synchronized void add(long wall, long cpu, long allocated) {
+            count++;
+            wallNanos += wall;
+            cpuNanos += cpu;
+            allocatedBytes += allocated;
+        }
+
+        /**
+         * @return Phase, path of the file or type.
+         */
+        @NotNull
+        public String getName() {
+            return name;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getWallNanos() {
+            return wallNanos;
+        }
+
+        public synchronized long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        public synchronized long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * @return Size of a file, 0 for phases and types.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return Number of properties in a file, 0 for phases and types.
+         */
+        public int getProperties() {
+            return properties;
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + getWallNanos() + "ns";
+        }
+    }
+
+    /**
+     * A value that could not be converted into its type. It was bound unconverted, usually as String.
+     */
+    public static final class Failure {
+        private final String path;
+        private final String type;
+        private final String value;
+        private final String reason;
+
+        Failure(String path, String type, String value, String reason) {
+            this.path = path;
+            this.type = type;
+            this.value = value;
+            this.reason = reason;
+        }
+
+        /**
+         * @return The file the value was found in, null if not loaded from a file.
+         */
+        @Nullable
+        public String getPath() {
+            return path;
+        }
+
+        @Nullable
+        public String getType() {
+            return type;
+        }
+
+        @Nullable
+        public String getValue() {
+            return value;
+        }
+
+        @NotNull
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return (path != null ? path + ": " : "") + type + " from '" + value + "': " + reason;
+        }
+    }
+
+    private static final class Frame {
+        final Phase phase;
+        final String path;
+        String type;
+        long bytes;
+        int properties = -1;
+        long wall;
+        long cpu;
+        long allocated;
+        long childWall;
+        long childCpu;
+        long childAllocated;
+
+        Frame(Phase phase, String path) {
+            this.phase = phase;
+            this.path = path;
+        }
+
+        void start() {
+            allocated = allocatedBytes();
+            cpu = cpuTime();
+            wall = System.nanoTime();
+        }
+
+        /**
+         * Turns the start values into durations.
+         */
+        void end() {
+            wall = System.nanoTime() - wall;
+            cpu = cpuTime() - cpu;
+            allocated = allocatedBytes() - allocated;
+        }
+    }
+}
@@ -2,19 +2,31 @@ package org.osjava.sj.loader;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.StringUtils;
+import org.jetbrains.annotations.Nullable;
+import org.osjava.sj.jndi.FlightRecorderEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.naming.Context;
 import javax.naming.NamingException;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * @author Holger Thurow (thurow.h@gmail.com)
@@ -22,12 +34,38 @@ import java.util.Properties;
  */
 public class NioBasedJndiLoader extends JndiLoader {
 
+    /**
+     * Number of threads reading and parsing the files of a directory or jar in parallel. "true": One per processor. Not set, "false", 0 or 1: Files are read one after the other. See {@link #setExecutor(ExecutorService)}.
+     */
+    public static final String PARALLELISM = "org.osjava.sj.loadParallelism";
+
     private static Logger LOGGER = LoggerFactory.getLogger(NioBasedJndiLoader.class);
 
+    /* null unless set by setExecutor(). */
+    private ExecutorService executor;
+    /* Only set while binding the files of a parallel walk: The files parsed in advance. */
+    private Map<Path, Future<Object>> parsed;
+
     public NioBasedJndiLoader(final Hashtable env) {
         super(env);
     }
 
+    /**
+     * Files found in directories and jars are then read and parsed by executor, all of them before the first is bound. Subcontexts are created and the properties bound in the order the files were found, so the result is the same as without executor. Trades memory for time: All properties of a root are held at once.
+     * <p>
+     * While profiling, the time of a file only covers reading and parsing and phases add up to more than the wall time.
+     *
+     * @param executor Not shut down by the loader. null: Use {@link #PARALLELISM}.
+     */
+    public void setExecutor(@Nullable ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    @Nullable
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
     /**
      * @param fileOrDirectory Not a jar file. To load jar files use {@link #loadJar(File, String, Context, boolean)}
      * @param preserveRootFileNameAsContextName true: If fileOrDirectory is a file, the file's name is taken as context name. This rule is only applied to files which are root files. Files found while traversing directories will always result in subcontexts named as the file. The only exception are files named "default".
@@ -51,7 +89,7 @@ public class NioBasedJndiLoader extends JndiLoader {
     public void loadJar(File jarFile, String rootDir, Context ctxt, boolean preserveFileNameAsContextName) throws IOException {
         Path path = Paths.get(jarFile.toURI());
         try (FileSystem fs = FileSystems.newFileSystem(path, null)) {
-            Files.walkFileTree(fs.getPath(rootDir), new MySimpleFileVisitor(rootDir, ctxt, "", preserveFileNameAsContextName));
+            walk(fs.getPath(rootDir), new MySimpleFileVisitor(rootDir, ctxt, "", preserveFileNameAsContextName));
         }
     }
 
@@ -59,13 +97,74 @@ public class NioBasedJndiLoader extends JndiLoader {
      *
      * @param preserveFileNameAsContextName Siehe {@link #load(File, Context, boolean)}. Can be false in case of root files.
      */
-    private void loadFile(final Path path, final Context ctxt, Context parentCtxt
+    void loadFile(final Path path, final Context ctxt, Context parentCtxt
             , final boolean preserveFileNameAsContextName) throws IOException, NamingException {
+        final Future<Object> future = parsed != null ? parsed.get(path) : null;
+        if (future != null) {
+            // Read and parse time have been recorded by parse().
+            load(path, get(future), ctxt, parentCtxt, preserveFileNameAsContextName);
+            return;
+        }
         LOGGER.debug("Loading {}", path);
+        final Object event = FlightRecorderEvent.FILE_LOAD.begin();
+        final int mark = profiler != null ? profiler.enterFile(path.toString()) : 0;
+        Properties properties = null;
+        try {
+            final long parseStart = event != null ? System.nanoTime() : 0;
+            properties = toProperties(path);
+            final long parseTime = event != null ? System.nanoTime() - parseStart : 0;
+            load(path, properties, ctxt, parentCtxt, preserveFileNameAsContextName);
+            if (event != null) {
+                FlightRecorderEvent.FILE_LOAD.commit(event, path.toString(), Files.size(path), parseTime, properties.size());
+            }
+        }
+        finally {
+            if (profiler != null) {
+                profiler.exitFile(mark, properties != null ? properties.size() : -1);
+            }
+        }
+    }
+
+    /**
+     * Only called when loading in parallel, see {@link #setExecutor(ExecutorService)}.
+     *
+     * @return false: path is not parsed in advance, but by {@link #loadFile(Path, Context, Context, boolean)} if it needs to.
+     */
+    boolean isParsedInAdvance(Path path) {
+        return true;
+    }
+
+    /**
+     * Reads and parses a file without binding anything. Called in parallel.
+     */
+    private Properties parse(final Path path) throws IOException {
+        LOGGER.debug("Parsing {}", path);
+        final Object event = FlightRecorderEvent.FILE_LOAD.begin();
+        final int mark = profiler != null ? profiler.enterFile(path.toString()) : 0;
+        Properties properties = null;
+        try {
+            final long parseStart = event != null ? System.nanoTime() : 0;
+            properties = toProperties(path);
+            if (event != null) {
+                FlightRecorderEvent.FILE_LOAD.commit(event, path.toString(), Files.size(path), System.nanoTime() - parseStart, properties.size());
+            }
+            return properties;
+        }
+        finally {
+            if (profiler != null) {
+                profiler.exitFile(mark, properties != null ? properties.size() : -1);
+            }
+        }
+    }
+
+    /**
+     * Binds the properties of a file.
+     */
+    private void load(final Path path, final Properties properties, final Context ctxt, Context parentCtxt
+            , final boolean preserveFileNameAsContextName) throws NamingException {
         String parentName  = path.getFileName().toString();
         parentName = handleColonReplacement(parentName);
         Context subContext = ctxt;
-        Properties properties = toProperties(path);
         String subName = null;
         if (isNotNamespacedTypeDefinition(properties)) {
             // preserve the file name as object name.
@@ -75,7 +174,11 @@ public class NioBasedJndiLoader extends JndiLoader {
         else if (!FilenameUtils.getBaseName(parentName).equals("default")) {
             parentName = FilenameUtils.getBaseName(parentName);
             if (preserveFileNameAsContextName) {
+                final int subcontextMark = profiler != null ? profiler.enter(LoadProfiler.Phase.SUBCONTEXT) : 0;
                 subContext = ctxt.createSubcontext(parentName);
+                if (profiler != null) {
+                    profiler.exit(subcontextMark);
+                }
                 parentCtxt = ctxt;
             }
             subName = parentName;
@@ -99,18 +202,216 @@ public class NioBasedJndiLoader extends JndiLoader {
 
         properties.setDelimiter( (String) environment.get(DELIMITER) );
 
+        if (profiler != null) {
+            return toProperties(path, properties, profiler);
+        }
         try (InputStream stream = Files.newInputStream(path)){
             properties.load(stream);
             return properties;
         }
     }
 
+    /**
+     * Reads the file completely before parsing it, so reading and parsing are measured separately.
+     */
+    private static Properties toProperties(Path path, SJProperties properties, LoadProfiler profiler) throws IOException {
+        final byte[] bytes;
+        final int readMark = profiler.enter(LoadProfiler.Phase.READ);
+        try {
+            bytes = Files.readAllBytes(path);
+        }
+        finally {
+            profiler.exit(readMark);
+        }
+        profiler.fileSize(bytes.length);
+        properties.profiler = profiler;
+        final int parseMark = profiler.enter(LoadProfiler.Phase.PARSE);
+        try {
+            properties.load(new ByteArrayInputStream(bytes));
+            return properties;
+        }
+        finally {
+            profiler.exit(parseMark);
+            properties.profiler = null;
+        }
+    }
+
     /**
      * Loads all .properties", .ini, .xml files in a directory into a context.
      */
     private void loadDirectory(File directory, final String platformSpecificRootDir, final Context ctxt, final Context parentCtxt, final String subName) throws NamingException, IOException {
+        walk(directory.toPath(), new MySimpleFileVisitor(platformSpecificRootDir, ctxt, "", false));
+    }
+
+    private void walk(Path start, MySimpleFileVisitor visitor) throws IOException {
+        ExecutorService executor = this.executor;
+        final int parallelism = parallelism();
+        if (executor == null && parallelism > 1) {
+            executor = new ForkJoinPool(parallelism);
+        }
+        final Discovery discovery = executor != null ? new Discovery(executor) : null;
+        final int mark = profiler != null ? profiler.enter(LoadProfiler.Phase.WALK) : 0;
+        try {
+            Files.walkFileTree(start, discovery != null ? discovery : visitor);
+        }
+        finally {
+            if (profiler != null) {
+                profiler.exit(mark);
+            }
+        }
+        if (discovery != null) {
+            try {
+                discovery.replay(visitor);
+            }
+            finally {
+                discovery.cancel();
+                if (executor != this.executor) {
+                    executor.shutdown();
+                }
+            }
+        }
+    }
+
+    private int parallelism() {
+        final Object value = environment.get(PARALLELISM);
+        if (value == null || value.toString().trim().isEmpty() || value.toString().trim().equalsIgnoreCase("false")) {
+            return 1;
+        }
+        if (value.toString().trim().equalsIgnoreCase("true")) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        try {
+            return Integer.parseInt(value.toString().trim());
+        }
+        catch (NumberFormatException e) {
+            LOGGER.warn("{}={} ignored. Expected \"true\" or a number.", PARALLELISM, value);
+            return 1;
+        }
+    }
+
+    /**
+     * Records the walk and submits every file found to be parsed, to be replayed by {@link MySimpleFileVisitor} when the walk is done.
+     */
+    private class Discovery extends SimpleFileVisitor<Path> {
+        private final ExecutorService executor;
+        /* Visits in order: Directory entered, file or directory left. */
+        private final List<Path> paths = new ArrayList<>();
+        private final List<Boolean> entered = new ArrayList<>();
+        private final List<BasicFileAttributes> attributes = new ArrayList<>();
+        private final Map<Path, Future<Object>> parsed = new HashMap<>();
+
+        Discovery(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+            if (!paths.isEmpty() && isIgnored(dir)) {
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            record(dir, true, attrs);
+            return super.preVisitDirectory(dir, attrs);
+        }
 
-        Files.walkFileTree(directory.toPath(), new MySimpleFileVisitor(platformSpecificRootDir, ctxt, "", false));
+        @Override
+        public FileVisitResult visitFile(final Path path, final BasicFileAttributes attrs) throws IOException {
+            record(path, false, attrs);
+            if (!isParsedInAdvance(path)) {
+                return super.visitFile(path, attrs);
+            }
+            parsed.put(path, executor.submit(new Callable<Object>() {
+                /**
+                 * @return The properties or the Exception thrown while parsing, to be thrown when replaying.
+                 */
+                @Override
+                public Object call() {
+                    try {
+                        return parse(path);
+                    }
+                    catch (IOException | RuntimeException e) {
+                        return e;
+                    }
+                }
+            }));
+            return super.visitFile(path, attrs);
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+            record(dir, false, null);
+            return super.postVisitDirectory(dir, exc);
+        }
+
+        private void record(Path path, boolean enter, BasicFileAttributes attrs) {
+            paths.add(path);
+            entered.add(enter);
+            attributes.add(attrs);
+        }
+
+        void replay(MySimpleFileVisitor visitor) throws IOException {
+            NioBasedJndiLoader.this.parsed = parsed;
+            try {
+                for (int i = 0; i < paths.size(); i++) {
+                    final Path path = paths.get(i);
+                    if (entered.get(i)) {
+                        visitor.preVisitDirectory(path, attributes.get(i));
+                    }
+                    else if (attributes.get(i) != null) {
+                        visitor.visitFile(path, attributes.get(i));
+                    }
+                    else {
+                        visitor.postVisitDirectory(path, null);
+                    }
+                }
+            }
+            finally {
+                NioBasedJndiLoader.this.parsed = null;
+            }
+        }
+
+        /**
+         * Stops parsing files not needed anymore, because replaying failed.
+         */
+        void cancel() {
+            for (Future<Object> future : parsed.values()) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * @return The properties parsed, or the Exception thrown by parsing as if the file had been parsed by the calling thread.
+     */
+    private static Properties get(Future<Object> future) throws IOException {
+        final Object result;
+        try {
+            result = future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for files to be parsed.");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        if (result instanceof IOException) {
+            throw (IOException) result;
+        }
+        if (result instanceof RuntimeException) {
+            throw (RuntimeException) result;
+        }
+        return (Properties) result;
+    }
+
+    /**
+     * @return true for directories of version control systems, which are not loaded.
+     */
+    private static boolean isIgnored(Path dir) {
+        final Path name = dir.getFileName();
+        return name != null && (name.toString().equals(".svn") || name.toString().equals("CVS"));
     }
 
     class MySimpleFileVisitor extends SimpleFileVisitor<Path> {
@@ -145,9 +446,15 @@ public class NioBasedJndiLoader extends JndiLoader {
 //                    String subCtxName = compoundName.get(compoundName.size() - 1);
                     String[] parts = StringUtils.split(dirString, File.separatorChar);
                     String subCtxName = parts[parts.length - 1];
-                    if (!subCtxName.equals(".svn") && !subCtxName.equals("CVS")) {
-                        subCtxName = handleColonReplacement(subCtxName);
-                        contexts.add(contexts.get(contexts.size() - 1).createSubcontext(subCtxName));
+                    if (isIgnored(dir)) {
+                        // Like FileBasedJndiLoader: Neither the directory nor its files are loaded. postVisitDirectory() is not called.
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    subCtxName = handleColonReplacement(subCtxName);
+                    final int mark = profiler != null ? profiler.enter(LoadProfiler.Phase.SUBCONTEXT) : 0;
+                    contexts.add(contexts.get(contexts.size() - 1).createSubcontext(subCtxName));
+                    if (profiler != null) {
+                        profiler.exit(mark);
                     }
                 }
                 catch (NamingException e) {
@@ -160,12 +467,8 @@ public class NioBasedJndiLoader extends JndiLoader {
         @Override
         public FileVisitResult visitFile(final Path path, final BasicFileAttributes attrs) throws IOException {
             try {
-                if (path.toString().equals(platformSpecificRootDir)) {
-                    loadFile(path, contexts.get(contexts.size() - 1), null, preserveRootFileNameAsContextName);
-                }
-                else {
-                    loadFile(path, contexts.get(contexts.size() - 1), null, true);
-                }
+                final boolean preserveFileNameAsContextName = !path.toString().equals(platformSpecificRootDir) || preserveRootFileNameAsContextName;
+                loadFile(path, contexts.get(contexts.size() - 1), null, preserveFileNameAsContextName);
             }
             catch (NamingException e) {
                 LOGGER.error("path: {} ctxt: {} subName: {}", path, ctxt, subName);
@@ -48,6 +48,8 @@ public class SJProperties extends Properties {
     protected ArrayList index = new ArrayList();
     
     private final StrSubstitutor substitutor;
+    /* null unless profiling. */
+    LoadProfiler profiler;
 
     SJProperties() {
         this(null);
@@ -75,7 +77,14 @@ public class SJProperties extends Properties {
     @Override
     public synchronized Object put(Object key, Object value) {
         if (value instanceof String) {
-            value = substitutor.replace(value);
+            if (profiler != null && ((String) value).contains("${")) {
+                final int mark = profiler.enter(LoadProfiler.Phase.SUBSTITUTION);
+                value = substitutor.replace(value);
+                profiler.exit(mark);
+            }
+            else {
+                value = substitutor.replace(value);
+            }
         }
         if(index.contains(key)) {
             Object obj = get(key);
@@ -0,0 +1,840 @@
+package org.osjava.sj.loader;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osjava.sj.SimpleJndi;
+import org.osjava.sj.jndi.LazyBinding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.CompositeName;
+import javax.naming.CompoundName;
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NamingException;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.naming.StringRefAddr;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Binary image of what {@link NioBasedJndiLoader} bound while loading a root directory, so the next start need not parse the files again.
+ * <p>
+ * The image holds, per source file, the createSubcontext(), bind() and rebind() calls the file resulted in, together with size, modification time and CRC32 of the file. The loader returned by {@link #loader()} walks the root as usual, but replays the calls of every file whose size and modification time, or at least checksum, are unchanged and only parses the others. Files resulting in objects the image can not represent and files with ${sj.sys:...} placeholders, whose values depend on system properties, are always parsed.
+ * <p>
+ * Layout: A string table shared by all entries, then the table of source files, each with its calls. Values are stored typed: Strings, wrappers of primitives, BigDecimal, BigInteger, Date, lists of those from multi-value attributes, and {@link Reference}s with {@link StringRefAddr}s. Objects created by converters (DataSources, beans) are stored as the properties they were converted from. They are bound as {@link LazyBinding} and converted when first looked up or listed, so a start from the image only converts what is used. The image is memory-mapped, and the calls of a file are only decoded when the file is replayed.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class SnapshotImage {
+
+    /** Path of the image file. Written after the root has been loaded, read on the next start. */
+    public static final String IMAGE = "org.osjava.sj.image";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotImage.class);
+    private static final int MAGIC = 0x534a494d;
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** The environment properties a loaded tree depends on. An image written with other values is ignored. */
+    private static final String[] ENVIRONMENT_KEYS = {
+            JndiLoader.DELIMITER,
+            JndiLoader.COLON_REPLACE,
+            JndiLoader.FILENAME_TO_CONTEXT,
+            Context.OBJECT_FACTORIES,
+            SimpleJndi.JNDI_SYNTAX_SEPARATOR,
+            "jndi.syntax.direction",
+            SimpleJndi.ENC
+    };
+
+    private static final byte CREATE_SUBCONTEXT = 0;
+    private static final byte BIND = 1;
+    private static final byte REBIND = 2;
+
+    private static final byte STRING_NAME = 0;
+    private static final byte COMPOUND_NAME = 1;
+    private static final byte COMPOSITE_NAME = 2;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte SHORT = 4;
+    private static final byte BYTE = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte FLOAT = 7;
+    private static final byte BOOLEAN = 8;
+    private static final byte CHARACTER = 9;
+    private static final byte BIG_DECIMAL = 10;
+    private static final byte BIG_INTEGER = 11;
+    private static final byte DATE = 12;
+    private static final byte REFERENCE = 13;
+    private static final byte LIST = 14;
+    private static final byte CONVERTED = 15;
+
+    /** Prefix of placeholders replaced by system properties, see SJProperties. */
+    private static final byte[] SUBSTITUTION = "${sj.sys:".getBytes(Charset.forName("US-ASCII"));
+    /** Marks a value the image can not represent. */
+    private static final Object NOT_REPRESENTABLE = new Object();
+
+    private final File file;
+    private final String environmentKey;
+    private final ImageLoader loader;
+    /* Sources as found in the image read, keyed by absolute path. */
+    private final Map<String, Source> previous = new HashMap<String, Source>();
+    /* Sources of this load, in the order they were loaded. */
+    private final Map<String, Source> current = new LinkedHashMap<String, Source>();
+    private MappedByteBuffer image;
+    private int[] stringOffsets;
+    private String[] strings;
+    private boolean changed;
+    private int replayed;
+    private int parsed;
+
+    private SnapshotImage(@NotNull File file, @NotNull Hashtable environment) {
+        this.file = file;
+        this.environmentKey = environmentKey(environment);
+        this.loader = new ImageLoader(environment);
+    }
+
+    /**
+     * Reads the image, if there is one matching environment. An unreadable image is logged and ignored, then all files are parsed.
+     */
+    @NotNull
+    public static SnapshotImage open(@NotNull File file, @NotNull Hashtable environment) {
+        final SnapshotImage snapshotImage = new SnapshotImage(file, environment);
+        if (file.isFile()) {
+            try {
+                snapshotImage.read();
+            }
+            catch (IOException e) {
+                LOGGER.warn("Ignoring image {}: {}", file, e.toString());
+                snapshotImage.previous.clear();
+            }
+            catch (RuntimeException e) {
+                LOGGER.warn("Ignoring corrupt image {}: {}", file, e.toString());
+                snapshotImage.previous.clear();
+            }
+        }
+        return snapshotImage;
+    }
+
+    /**
+     * @return Use instead of a plain NioBasedJndiLoader to load the roots.
+     */
+    @NotNull
+    public NioBasedJndiLoader loader() {
+        return loader;
+    }
+
+    /**
+     * Writes the image, unless all files have been replayed unchanged.
+     */
+    public void save() throws IOException {
+        for (String path : previous.keySet()) {
+            if (!current.containsKey(path)) {
+                changed = true;
+                break;
+            }
+        }
+        if (changed) {
+            write();
+            changed = false;
+        }
+        // Release the mapping.
+        image = null;
+        LOGGER.debug("Image {}: {} files replayed, {} parsed.", file, replayed, parsed);
+    }
+
+    public int getReplayedFileCount() {
+        return replayed;
+    }
+
+    public int getParsedFileCount() {
+        return parsed;
+    }
+
+    @NotNull
+    private static String environmentKey(Hashtable environment) {
+        final TreeMap<String, String> relevant = new TreeMap<String, String>();
+        for (String key : ENVIRONMENT_KEYS) {
+            final Object value = environment.get(key);
+            if (value != null) {
+                relevant.put(key, value.toString());
+            }
+        }
+        return relevant.toString();
+    }
+
+    private final class ImageLoader extends NioBasedJndiLoader {
+
+        ImageLoader(Hashtable env) {
+            super(env);
+        }
+
+        @Override
+        void loadFile(Path path, Context ctxt, Context parentCtxt, boolean preserveFileNameAsContextName) throws IOException, NamingException {
+            if (path.getFileSystem() != FileSystems.getDefault()) {
+                super.loadFile(path, ctxt, parentCtxt, preserveFileNameAsContextName);
+                return;
+            }
+            final File sourceFile = path.toFile().getAbsoluteFile();
+            final String key = sourceFile.getPath();
+            final Source old = previous.get(key);
+            if (old != null && old.representable && isUnchanged(old, sourceFile)) {
+                replay(old, ctxt);
+                current.put(key, old);
+                replayed++;
+                return;
+            }
+            final byte[] content = Files.readAllBytes(sourceFile.toPath());
+            final Source source = new Source(key, sourceFile.length(), sourceFile.lastModified(), checksum(content));
+            source.ops = new ArrayList<Op>();
+            if (contains(content, SUBSTITUTION)) {
+                // Substituted values are only valid as long as the system properties do not change.
+                source.representable = false;
+            }
+            conversions = new IdentityHashMap<Object, Properties>();
+            try {
+                super.loadFile(path, recording(ctxt, new ArrayList<Object>(), source), parentCtxt, preserveFileNameAsContextName);
+            }
+            finally {
+                conversions = null;
+            }
+            if (!source.representable) {
+                source.ops = null;
+            }
+            if (old == null || old.checksum != source.checksum || old.representable != source.representable) {
+                changed = true;
+            }
+            current.put(key, source);
+            parsed++;
+        }
+
+        /**
+         * Files to be replayed are not parsed. Files only touched are parsed in vain, the checksum is not computed twice.
+         */
+        @Override
+        boolean isParsedInAdvance(Path path) {
+            if (path.getFileSystem() != FileSystems.getDefault()) {
+                return true;
+            }
+            final File sourceFile = path.toFile().getAbsoluteFile();
+            final Source old = previous.get(sourceFile.getPath());
+            return old == null || !old.representable || sourceFile.length() != old.size || sourceFile.lastModified() != old.modified;
+        }
+
+        private boolean isUnchanged(Source old, File sourceFile) throws IOException {
+            if (sourceFile.length() != old.size) {
+                return false;
+            }
+            final long modified = sourceFile.lastModified();
+            if (modified == old.modified) {
+                return true;
+            }
+            // Touched, e. g. by a checkout, but maybe not changed.
+            if (checksum(sourceFile) == old.checksum) {
+                old.modified = modified;
+                changed = true;
+                return true;
+            }
+            return false;
+        }
+
+        private Context recording(Context ctxt, List<Object> path, Source source) {
+            return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class[]{Context.class}, new Recorder(ctxt, path, source));
+        }
+
+        /**
+         * Records the calls a file results in. Contexts returned are recorded too.
+         */
+        private final class Recorder implements InvocationHandler {
+            private final Context target;
+            /* Names to look up from the context passed to loadFile() to get to target. */
+            private final List<Object> path;
+            private final Source source;
+
+            Recorder(Context target, List<Object> path, Source source) {
+                this.target = target;
+                this.path = path;
+                this.source = source;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                final Object result;
+                try {
+                    result = method.invoke(target, args);
+                }
+                catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+                final String name = method.getName();
+                if (name.equals("createSubcontext")) {
+                    source.add(new Op(CREATE_SUBCONTEXT, path, args[0], null));
+                    return subcontext((Context) result, args[0]);
+                }
+                if (name.equals("bind") || name.equals("rebind")) {
+                    source.add(new Op(name.equals("bind") ? BIND : REBIND, path, args[0], representable(args[1])));
+                }
+                else if (name.equals("lookup") && result instanceof Context) {
+                    return subcontext((Context) result, args[0]);
+                }
+                return result;
+            }
+
+            private Context subcontext(Context context, Object name) {
+                final List<Object> subPath = new ArrayList<Object>(path);
+                subPath.add(name);
+                return recording(context, subPath, source);
+            }
+        }
+
+        /**
+         * @return value, a {@link Deferred} for objects created by a converter or {@link #NOT_REPRESENTABLE}.
+         */
+        private Object representable(Object value) {
+            if (value == null || isScalar(value)) {
+                return value;
+            }
+            if (value.getClass() == Reference.class) {
+                final Enumeration<RefAddr> addrs = ((Reference) value).getAll();
+                while (addrs.hasMoreElements()) {
+                    final RefAddr addr = addrs.nextElement();
+                    if (!(addr instanceof StringRefAddr) || addr.getContent() == null) {
+                        return NOT_REPRESENTABLE;
+                    }
+                }
+                return value;
+            }
+            if (value.getClass() == LinkedList.class) {
+                for (Object element : (List) value) {
+                    if (element == null || !isScalar(element)) {
+                        return NOT_REPRESENTABLE;
+                    }
+                }
+                return value;
+            }
+            final Properties properties = conversions.get(value);
+            if (properties != null) {
+                for (Object propertyValue : properties.values()) {
+                    if (!(propertyValue instanceof String) && representable(propertyValue) == NOT_REPRESENTABLE) {
+                        return NOT_REPRESENTABLE;
+                    }
+                }
+                return new Deferred(properties, this);
+            }
+            return NOT_REPRESENTABLE;
+        }
+    }
+
+    private static boolean isScalar(Object value) {
+        final Class<?> type = value.getClass();
+        return type == String.class || type == Integer.class || type == Long.class || type == Short.class
+                || type == Byte.class || type == Double.class || type == Float.class || type == Boolean.class
+                || type == Character.class || type == BigDecimal.class || type == BigInteger.class || type == Date.class;
+    }
+
+    private void replay(Source source, Context ctxt) {
+        if (source.ops == null) {
+            source.ops = decodeOps(source);
+        }
+        for (Op op : source.ops) {
+            try {
+                Context context = ctxt;
+                for (Object name : op.path) {
+                    context = (Context) (name instanceof Name ? context.lookup((Name) name) : context.lookup((String) name));
+                }
+                op.apply(context, loader);
+            }
+            catch (NamingException e) {
+                // As the loader does.
+                LOGGER.error("Replaying {} failed.", source.path, e);
+            }
+        }
+    }
+
+    private static long checksum(File file) throws IOException {
+        return checksum(Files.readAllBytes(file.toPath()));
+    }
+
+    private static long checksum(byte[] content) {
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    private static boolean contains(byte[] content, byte[] part) {
+        outer:
+        for (int i = 0; i <= content.length - part.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (content[i + j] != part[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static final class Source {
+        final String path;
+        final long size;
+        long modified;
+        final long checksum;
+        /* false: Resulted in objects the image can not represent, so has to be parsed every time. */
+        boolean representable = true;
+        /* Decoded from the image only when replayed. */
+        List<Op> ops;
+        int opsOffset = -1;
+
+        Source(String path, long size, long modified, long checksum) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+        }
+
+        void add(Op op) {
+            if (op.value == NOT_REPRESENTABLE) {
+                representable = false;
+            }
+            else if (representable) {
+                ops.add(op);
+            }
+        }
+    }
+
+    private static final class Op {
+        final byte kind;
+        /* String or Name each. */
+        final List<Object> path;
+        final Object name;
+        final Object value;
+
+        Op(byte kind, List<Object> path, Object name, Object value) {
+            this.kind = kind;
+            this.path = path;
+            this.name = name;
+            this.value = value;
+        }
+
+        void apply(Context context, JndiLoader loader) throws NamingException {
+            Object object = value;
+            if (object instanceof Deferred) {
+                object = ((Deferred) object).copy(loader);
+            }
+            else if (object instanceof LinkedList) {
+                object = new LinkedList((List) object);
+            }
+            else if (object instanceof Date) {
+                object = ((Date) object).clone();
+            }
+            switch (kind) {
+                case CREATE_SUBCONTEXT:
+                    if (name instanceof Name) {
+                        context.createSubcontext((Name) name);
+                    }
+                    else {
+                        context.createSubcontext((String) name);
+                    }
+                    break;
+                case BIND:
+                    if (name instanceof Name) {
+                        context.bind((Name) name, object);
+                    }
+                    else {
+                        context.bind((String) name, object);
+                    }
+                    break;
+                default:
+                    if (name instanceof Name) {
+                        context.rebind((Name) name, object);
+                    }
+                    else {
+                        context.rebind((String) name, object);
+                    }
+            }
+        }
+    }
+
+    /**
+     * An object created by a converter, converted when first looked up or listed.
+     */
+    static final class Deferred extends LazyBinding {
+        private final Properties properties;
+        private final JndiLoader loader;
+
+        Deferred(Properties properties, JndiLoader loader) {
+            this.properties = properties;
+            this.loader = loader;
+        }
+
+        Deferred copy(JndiLoader loader) {
+            return new Deferred(properties, loader);
+        }
+
+        @Nullable
+        @Override
+        protected Object create() {
+            return loader.convert(properties);
+        }
+    }
+
+    /* ****************************************************************
+     * Reading                                                        *
+     * ****************************************************************/
+
+    private void read() throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally {
+            // The mapping stays valid.
+            channel.close();
+        }
+        if (image.getInt() != MAGIC || image.getInt() != VERSION) {
+            throw new IOException("Unsupported format.");
+        }
+        final String key = readUtf(image);
+        if (!key.equals(environmentKey)) {
+            LOGGER.info("Ignoring image {}: Written for another environment.", file);
+            return;
+        }
+        final int stringCount = image.getInt();
+        stringOffsets = new int[stringCount];
+        strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            stringOffsets[i] = image.position();
+            image.position(image.position() + 4 + image.getInt(image.position()));
+        }
+        final int sourceCount = image.getInt();
+        for (int i = 0; i < sourceCount; i++) {
+            final Source source = new Source(string(image.getInt()), image.getLong(), image.getLong(), image.getLong());
+            final int length = image.getInt();
+            if (length < 0) {
+                source.representable = false;
+            }
+            else {
+                source.opsOffset = image.position();
+                image.position(image.position() + length);
+            }
+            previous.put(source.path, source);
+        }
+    }
+
+    private static String readUtf(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private String string(int index) {
+        if (index < 0) {
+            return null;
+        }
+        String string = strings[index];
+        if (string == null) {
+            final ByteBuffer buffer = image.duplicate();
+            buffer.position(stringOffsets[index]);
+            string = readUtf(buffer);
+            strings[index] = string;
+        }
+        return string;
+    }
+
+    private List<Op> decodeOps(Source source) {
+        final ByteBuffer buffer = image.duplicate();
+        buffer.position(source.opsOffset);
+        final int count = buffer.getInt();
+        final List<Op> ops = new ArrayList<Op>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                final byte kind = buffer.get();
+                final int pathLength = buffer.getInt();
+                final List<Object> path = new ArrayList<Object>(pathLength);
+                for (int j = 0; j < pathLength; j++) {
+                    path.add(readName(buffer));
+                }
+                final Object name = readName(buffer);
+                ops.add(new Op(kind, path, name, kind == CREATE_SUBCONTEXT ? null : readValue(buffer)));
+            }
+        }
+        catch (NamingException e) {
+            throw new IllegalStateException(e);
+        }
+        return ops;
+    }
+
+    private Object readName(ByteBuffer buffer) throws NamingException {
+        final byte kind = buffer.get();
+        final String name = string(buffer.getInt());
+        switch (kind) {
+            case COMPOUND_NAME:
+                return loader.toCompoundName(name);
+            case COMPOSITE_NAME:
+                return new CompositeName(name);
+            default:
+                return name;
+        }
+    }
+
+    private Object readValue(ByteBuffer buffer) {
+        final byte tag = buffer.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return string(buffer.getInt());
+            case INTEGER:
+                return buffer.getInt();
+            case LONG:
+                return buffer.getLong();
+            case SHORT:
+                return buffer.getShort();
+            case BYTE:
+                return buffer.get();
+            case DOUBLE:
+                return buffer.getDouble();
+            case FLOAT:
+                return buffer.getFloat();
+            case BOOLEAN:
+                return buffer.get() != 0;
+            case CHARACTER:
+                return buffer.getChar();
+            case BIG_DECIMAL:
+                return new BigDecimal(string(buffer.getInt()));
+            case BIG_INTEGER:
+                return new BigInteger(string(buffer.getInt()));
+            case DATE:
+                return new Date(buffer.getLong());
+            case REFERENCE: {
+                final Reference reference = new Reference(string(buffer.getInt()), string(buffer.getInt()), string(buffer.getInt()));
+                final int count = buffer.getInt();
+                for (int i = 0; i < count; i++) {
+                    reference.add(new StringRefAddr(string(buffer.getInt()), string(buffer.getInt())));
+                }
+                return reference;
+            }
+            case LIST: {
+                final int count = buffer.getInt();
+                final LinkedList list = new LinkedList();
+                for (int i = 0; i < count; i++) {
+                    list.add(readValue(buffer));
+                }
+                return list;
+            }
+            case CONVERTED: {
+                final int count = buffer.getInt();
+                final Properties properties = new Properties();
+                for (int i = 0; i < count; i++) {
+                    properties.put(string(buffer.getInt()), readValue(buffer));
+                }
+                return new Deferred(properties, loader);
+            }
+            default:
+                throw new IllegalStateException("Unknown value tag " + tag);
+        }
+    }
+
+    /* ****************************************************************
+     * Writing                                                        *
+     * ****************************************************************/
+
+    private void write() throws IOException {
+        final Map<String, Integer> stringTable = new LinkedHashMap<String, Integer>();
+        final ByteArrayOutputStream sourceBytes = new ByteArrayOutputStream();
+        final DataOutputStream sources = new DataOutputStream(sourceBytes);
+        sources.writeInt(current.size());
+        for (Source source : current.values()) {
+            sources.writeInt(index(stringTable, source.path));
+            sources.writeLong(source.size);
+            sources.writeLong(source.modified);
+            sources.writeLong(source.checksum);
+            if (!source.representable) {
+                sources.writeInt(-1);
+                continue;
+            }
+            final ByteArrayOutputStream opBytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(opBytes);
+            out.writeInt(source.ops.size());
+            for (Op op : source.ops) {
+                out.writeByte(op.kind);
+                out.writeInt(op.path.size());
+                for (Object name : op.path) {
+                    writeName(out, stringTable, name);
+                }
+                writeName(out, stringTable, op.name);
+                if (op.kind != CREATE_SUBCONTEXT) {
+                    writeValue(out, stringTable, op.value);
+                }
+            }
+            out.flush();
+            sources.writeInt(opBytes.size());
+            opBytes.writeTo(sources);
+        }
+        sources.flush();
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(sourceBytes.size() + 1024);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeUtf(out, environmentKey);
+        out.writeInt(stringTable.size());
+        for (String string : stringTable.keySet()) {
+            writeUtf(out, string);
+        }
+        sourceBytes.writeTo(out);
+        out.flush();
+
+        final File temp = new File(file.getPath() + ".tmp");
+        final FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        finally {
+            channel.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeUtf(DataOutputStream out, String string) throws IOException {
+        final byte[] bytes = string.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static int index(Map<String, Integer> stringTable, String string) {
+        if (string == null) {
+            return -1;
+        }
+        Integer index = stringTable.get(string);
+        if (index == null) {
+            index = stringTable.size();
+            stringTable.put(string, index);
+        }
+        return index;
+    }
+
+    private static void writeName(DataOutputStream out, Map<String, Integer> stringTable, Object name) throws IOException {
+        out.writeByte(name instanceof CompoundName ? COMPOUND_NAME : name instanceof Name ? COMPOSITE_NAME : STRING_NAME);
+        out.writeInt(index(stringTable, name.toString()));
+    }
+
+    private static void writeValue(DataOutputStream out, Map<String, Integer> stringTable, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        }
+        else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeInt(index(stringTable, (String) value));
+        }
+        else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        }
+        else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        }
+        else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        }
+        else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeByte((Boolean) value ? 1 : 0);
+        }
+        else if (value instanceof Character) {
+            out.writeByte(CHARACTER);
+            out.writeChar((Character) value);
+        }
+        else if (value instanceof BigDecimal) {
+            out.writeByte(BIG_DECIMAL);
+            out.writeInt(index(stringTable, value.toString()));
+        }
+        else if (value instanceof BigInteger) {
+            out.writeByte(BIG_INTEGER);
+            out.writeInt(index(stringTable, value.toString()));
+        }
+        else if (value instanceof Date) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        }
+        else if (value instanceof Deferred) {
+            final Properties properties = ((Deferred) value).properties;
+            out.writeByte(CONVERTED);
+            out.writeInt(properties.size());
+            for (Map.Entry<Object, Object> property : properties.entrySet()) {
+                out.writeInt(index(stringTable, (String) property.getKey()));
+                writeValue(out, stringTable, property.getValue());
+            }
+        }
+        else if (value instanceof Reference) {
+            final Reference reference = (Reference) value;
+            out.writeByte(REFERENCE);
+            out.writeInt(index(stringTable, reference.getClassName()));
+            out.writeInt(index(stringTable, reference.getFactoryClassName()));
+            out.writeInt(index(stringTable, reference.getFactoryClassLocation()));
+            out.writeInt(reference.size());
+            for (int i = 0; i < reference.size(); i++) {
+                out.writeInt(index(stringTable, reference.get(i).getType()));
+                out.writeInt(index(stringTable, (String) reference.get(i).getContent()));
+            }
+        }
+        else {
+            final List list = (List) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                writeValue(out, stringTable, element);
+            }
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package org.osjava.sj.remote;
+
+import org.jetbrains.annotations.NotNull;
+import org.osjava.sj.jndi.JndiUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.Binding;
+import javax.naming.ConfigurationException;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.Reference;
+import javax.naming.event.EventContext;
+import javax.naming.event.NamespaceChangeListener;
+import javax.naming.event.NamingEvent;
+import javax.naming.event.NamingExceptionEvent;
+import javax.naming.event.ObjectChangeListener;
+import javax.naming.spi.NamingManager;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves a loaded context to {@link RemoteContext}s in other JVMs on the same host, so the root is loaded once instead of by every JVM.
+ * <p>
+ * Listens on the loopback interface only. Serves only clients that know the shared {@link RemoteContext#SECRET}, as every binding, passwords of DataSources included, can be looked up. A client proves to know it by answering a random challenge, so the secret is never sent. Every connection is served by its own thread. Answers to pipelined requests are flushed together, when no more requests are waiting. If the context is an {@link EventContext}, every change is pushed to the clients to invalidate their caches.
+ * <p>
+ * Objects are transferred serialized. Clients deserialize only classes allowed by {@link RemoteContext#ALLOWED_CLASSES}. A bound {@link Reference} is transferred instead of the object created from it and is resolved by the client. Other objects that are not Serializable can not be looked up remotely.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class NamespaceServer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NamespaceServer.class);
+    /* Milliseconds a client has to answer the challenge. */
+    private static final int HANDSHAKE_TIMEOUT = 10000;
+
+    private final Context context;
+    private final ServerSocket serverSocket;
+    private final String separator;
+    private final String secret;
+    private final SecureRandom random = new SecureRandom();
+    private final Set<Connection> connections = new CopyOnWriteArraySet<Connection>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final Invalidator invalidator = new Invalidator();
+    private Thread acceptor;
+    private volatile boolean closed;
+
+    /**
+     * Takes the secret from {@link RemoteContext#SECRET} in the environment of context or from the system property of that name.
+     *
+     * @param port 0: Any free port. See {@link #getPort()}.
+     * @throws javax.naming.ConfigurationException No secret configured.
+     */
+    public NamespaceServer(@NotNull Context context, int port) throws IOException, NamingException {
+        this(context, port, RemoteContext.secret(context.getEnvironment()));
+    }
+
+    /**
+     * @param port 0: Any free port. See {@link #getPort()}.
+     * @param secret To be known by the clients, see {@link RemoteContext#SECRET}.
+     */
+    public NamespaceServer(@NotNull Context context, int port, @NotNull String secret) throws IOException, NamingException {
+        if (secret.isEmpty()) {
+            throw new ConfigurationException("Empty secret.");
+        }
+        this.context = context;
+        this.secret = secret;
+        final Object separator = context.getEnvironment().get("jndi.syntax.separator");
+        this.separator = separator != null ? separator.toString() : "/";
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Number of requests answered so far. Lookups served from the caches of the clients are not counted.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public synchronized void start() throws NamingException {
+        if (acceptor != null) {
+            return;
+        }
+        if (context instanceof EventContext) {
+            ((EventContext) context).addNamingListener("", EventContext.SUBTREE_SCOPE, invalidator);
+        }
+        else {
+            LOGGER.warn("{} is no EventContext. Clients will not notice changes.", context.getClass().getName());
+        }
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "simple-jndi-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOGGER.info("Serving {} on {}.", context, serverSocket.getLocalSocketAddress());
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                final Connection connection = new Connection(socket);
+                final Thread thread = new Thread(connection, "simple-jndi-server-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            }
+            catch (IOException e) {
+                if (!closed) {
+                    LOGGER.warn("Accepting connections failed.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops listening and disconnects all clients. The context is not closed.
+     */
+    public synchronized void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        }
+        catch (IOException e) {
+            LOGGER.debug("Closing {}: {}", serverSocket, e.toString());
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        if (context instanceof EventContext) {
+            try {
+                ((EventContext) context).removeNamingListener(invalidator);
+            }
+            catch (NamingException e) {
+                LOGGER.debug("Removing listener: {}", e.toString());
+            }
+        }
+    }
+
+    private void invalidate(String name) {
+        for (Connection connection : connections) {
+            connection.invalidate(name);
+        }
+    }
+
+    private final class Invalidator implements NamespaceChangeListener, ObjectChangeListener {
+
+        @Override
+        public void objectAdded(NamingEvent evt) {
+            invalidate(evt.getNewBinding().getName());
+        }
+
+        @Override
+        public void objectRemoved(NamingEvent evt) {
+            invalidate(evt.getOldBinding().getName());
+        }
+
+        @Override
+        public void objectRenamed(NamingEvent evt) {
+            invalidate(evt.getOldBinding().getName());
+            invalidate(evt.getNewBinding().getName());
+        }
+
+        @Override
+        public void objectChanged(NamingEvent evt) {
+            invalidate(evt.getNewBinding().getName());
+        }
+
+        @Override
+        public void namingExceptionThrown(NamingExceptionEvent evt) {
+            LOGGER.warn("Clients may not notice changes anymore.", evt.getException());
+        }
+    }
+
+    private final class Connection implements Runnable {
+        private final Socket socket;
+        private final DataOutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        @Override
+        public void run() {
+            try {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                if (!authenticate(in)) {
+                    LOGGER.warn("Client {} does not know the secret. Disconnected.", socket.getRemoteSocketAddress());
+                    return;
+                }
+                synchronized (out) {
+                    out.writeByte(Protocol.ACCEPTED);
+                    out.flush();
+                    // Not before, so no invalidation precedes the greeting and unauthenticated clients learn no names.
+                    connections.add(this);
+                }
+                while (true) {
+                    final int id = in.readInt();
+                    final byte operation = in.readByte();
+                    final String name = in.readUTF();
+                    requestCount.incrementAndGet();
+                    final byte[] answer = answer(operation, name);
+                    synchronized (out) {
+                        out.writeInt(id);
+                        out.write(answer);
+                        // Answers to pipelined requests in one packet.
+                        if (in.available() == 0) {
+                            out.flush();
+                        }
+                    }
+                }
+            }
+            catch (EOFException e) {
+                LOGGER.debug("Client {} disconnected.", socket.getRemoteSocketAddress());
+            }
+            catch (SocketException e) {
+                LOGGER.debug("Client {} disconnected: {}", socket.getRemoteSocketAddress(), e.toString());
+            }
+            catch (IOException e) {
+                LOGGER.warn("Serving {} failed.", socket.getRemoteSocketAddress(), e);
+            }
+            finally {
+                close();
+            }
+        }
+
+        private boolean authenticate(DataInputStream in) throws IOException {
+            final byte[] challenge = new byte[Protocol.CHALLENGE_LENGTH];
+            random.nextBytes(challenge);
+            out.writeInt(Protocol.MAGIC);
+            out.writeUTF(separator);
+            out.write(challenge);
+            out.flush();
+            final byte[] proof = new byte[Protocol.PROOF_LENGTH];
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            in.readFully(proof);
+            socket.setSoTimeout(0);
+            // Constant time, so the time taken tells nothing about the secret.
+            return MessageDigest.isEqual(Protocol.prove(secret, challenge), proof);
+        }
+
+        /**
+         * @return status and payload
+         */
+        private byte[] answer(byte operation, String name) throws IOException {
+            final Answer answer = new Answer();
+            try {
+                if (operation == Protocol.LOOKUP) {
+                    lookup(name, answer);
+                }
+                else if (operation == Protocol.LIST) {
+                    list(name, answer);
+                }
+                else {
+                    throw new IOException("Unknown operation " + operation);
+                }
+            }
+            catch (NameNotFoundException e) {
+                answer.reset();
+                answer.writeByte(Protocol.NOT_FOUND);
+                answer.writeUTF(String.valueOf(e.getMessage()));
+            }
+            catch (NamingException e) {
+                answer.reset();
+                answer.writeByte(Protocol.ERROR);
+                answer.writeUTF(e.toString());
+            }
+            return answer.toByteArray();
+        }
+
+        /**
+         * Answers the object bound to name, not the object created from a bound {@link Reference}. That one is created by the client.
+         */
+        private void lookup(String name, Answer answer) throws NamingException, IOException {
+            final Object object = JndiUtils.lookupBound(context, context.getNameParser("").parse(name));
+            if (object instanceof Context) {
+                answer.writeByte(Protocol.CONTEXT);
+                return;
+            }
+            final byte[] bytes;
+            try {
+                bytes = Protocol.serialize(object);
+            }
+            catch (NotSerializableException e) {
+                throw new NamingException(name + " can not be transferred: " + e.getMessage() + " is not Serializable.");
+            }
+            answer.writeByte(Protocol.VALUE);
+            answer.writeInt(bytes.length);
+            answer.write(bytes);
+        }
+
+        private void list(String name, Answer answer) throws NamingException, IOException {
+            final List<String> names = new ArrayList<String>();
+            final List<byte[]> values = new ArrayList<byte[]>();
+            final NamingEnumeration bindings = context.listBindings(name);
+            try {
+                while (bindings.hasMore()) {
+                    final Binding binding = (Binding) bindings.next();
+                    if (binding.getObject() instanceof Context) {
+                        names.add(binding.getName());
+                        values.add(null);
+                        continue;
+                    }
+                    try {
+                        values.add(Protocol.serialize(binding.getObject()));
+                        names.add(binding.getName());
+                    }
+                    catch (NotSerializableException e) {
+                        LOGGER.debug("Not listing {}: {} is not Serializable.", binding.getName(), e.getMessage());
+                    }
+                }
+            }
+            finally {
+                bindings.close();
+            }
+            answer.writeByte(Protocol.BINDINGS);
+            answer.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                answer.writeUTF(names.get(i));
+                final byte[] value = values.get(i);
+                if (value == null) {
+                    answer.writeByte(Protocol.CONTEXT);
+                }
+                else {
+                    answer.writeByte(Protocol.VALUE);
+                    answer.writeInt(value.length);
+                    answer.write(value);
+                }
+            }
+        }
+
+        void invalidate(String name) {
+            try {
+                synchronized (out) {
+                    out.writeInt(Protocol.PUSH);
+                    out.writeByte(Protocol.INVALIDATE);
+                    out.writeUTF(name);
+                    out.flush();
+                }
+            }
+            catch (IOException e) {
+                LOGGER.debug("Invalidating {} at {} failed: {}", name, socket.getRemoteSocketAddress(), e.toString());
+                close();
+            }
+        }
+
+        void close() {
+            connections.remove(this);
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                LOGGER.debug("Closing {}: {}", socket, e.toString());
+            }
+        }
+    }
+
+    /**
+     * An answer is assembled completely before being written, so a failure half way does not corrupt the stream.
+     */
+    private static final class Answer extends DataOutputStream {
+        Answer() {
+            super(new ByteArrayOutputStream());
+        }
+
+        void reset() {
+            ((ByteArrayOutputStream) out).reset();
+            written = 0;
+        }
+
+        byte[] toByteArray() {
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+
+    /**
+     * Serves the context configured by jndi.properties or system properties, e. g. java -Dorg.osjava.sj.root=... -Dorg.osjava.sj.remote.secret=... org.osjava.sj.remote.NamespaceServer 1099
+     *
+     * @param args port
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: NamespaceServer <port>");
+            System.exit(1);
+        }
+        // The context of the factory itself, not the InitialContext delegating to it.
+        final Context context = NamingManager.getInitialContext(new InitialContext().getEnvironment());
+        final NamespaceServer server = new NamespaceServer(context, Integer.parseInt(args[0]));
+        server.start();
+        server.acceptor.join();
+    }
+}
@@ -0,0 +1,166 @@
+package org.osjava.sj.remote;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Wire format shared by {@link NamespaceServer} and {@link RemoteContext}.
+ * <p>
+ * On connect the server sends {@link #MAGIC}, the separator of its names and a random challenge of {@link #CHALLENGE_LENGTH} bytes. The client proves to know the shared secret by answering {@link #prove(String, byte[])} of the challenge, {@link #PROOF_LENGTH} bytes. The server answers {@link #ACCEPTED} or disconnects. Then the client sends requests: int id (&gt; 0), byte operation, UTF name. They may be pipelined. The server answers in order: int id, byte status, payload depending on status. In between it pushes invalidations: int {@link #PUSH}, byte {@link #INVALIDATE}, UTF name.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+final class Protocol {
+
+    static final int MAGIC = 0x534a5250;
+
+    /* Operations */
+    static final byte LOOKUP = 1;
+    static final byte LIST = 2;
+
+    /* Status */
+    /** int length, serialized object */
+    static final byte VALUE = 1;
+    /** no payload */
+    static final byte CONTEXT = 2;
+    /** UTF message */
+    static final byte NOT_FOUND = 3;
+    /** UTF message */
+    static final byte ERROR = 4;
+    /** int count, count times UTF name, byte {@link #VALUE} + payload or {@link #CONTEXT} */
+    static final byte BINDINGS = 5;
+    /** UTF name */
+    static final byte INVALIDATE = 6;
+
+    /** no payload, sent once after the client has proven to know the secret */
+    static final byte ACCEPTED = 7;
+
+    /** Id of messages not answering a request. */
+    static final int PUSH = 0;
+
+    static final int CHALLENGE_LENGTH = 32;
+    static final int PROOF_LENGTH = 32;
+
+    /**
+     * Classes always allowed to be deserialized: Class names or package names followed by ".*" for the classes of a package, not of its subpackages. Arrays of allowed classes and of primitives are allowed, too. Not java.net.URL, which resolves its host when put into a HashMap.
+     */
+    private static final List<String> ALLOWED = Arrays.asList(
+            "java.lang.*", "java.util.*", "java.math.*", "java.time.*", "java.sql.Date", "java.sql.Time", "java.sql.Timestamp", "java.net.URI", "javax.naming.*");
+
+    private Protocol() {
+    }
+
+    /**
+     * @throws NotSerializableException object is not {@link Serializable}.
+     */
+    @NotNull
+    static byte[] serialize(@Nullable Object object) throws IOException {
+        if (object != null && !(object instanceof Serializable)) {
+            throw new NotSerializableException(object.getClass().getName());
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return HMAC-SHA256 of challenge, keyed with secret.
+     */
+    @NotNull
+    static byte[] prove(@NotNull String secret, @NotNull byte[] challenge) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(Charset.forName("UTF-8")), "HmacSHA256"));
+            return mac.doFinal(challenge);
+        }
+        catch (GeneralSecurityException e) {
+            // Every JRE supports HmacSHA256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param allowed Classes to be deserialized in addition to those of {@link #ALLOWED}: Class names or package names followed by ".*".
+     * @throws InvalidClassException The stream contains an object of a class not allowed.
+     */
+    @Nullable
+    static Object deserialize(@NotNull byte[] bytes, @NotNull Collection<String> allowed) throws IOException, ClassNotFoundException {
+        final ObjectInputStream in = new ContextClassLoaderObjectInputStream(new ByteArrayInputStream(bytes), allowed);
+        try {
+            return in.readObject();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    static boolean isAllowed(@NotNull String className, @NotNull Collection<String> allowed) {
+        String name = className;
+        if (name.startsWith("[")) {
+            name = name.substring(name.lastIndexOf('[') + 1);
+            if (!name.startsWith("L")) {
+                // Array of primitives
+                return true;
+            }
+            name = name.substring(1, name.length() - 1);
+        }
+        final int dot = name.lastIndexOf('.');
+        final String packageMembers = (dot == -1 ? "" : name.substring(0, dot)) + ".*";
+        return ALLOWED.contains(name) || ALLOWED.contains(packageMembers) || allowed.contains(name) || allowed.contains(packageMembers);
+    }
+
+    /**
+     * Resolves classes of the web application or the like, not only of simple-jndi's class loader. Only allowed classes are resolved, so a stream can not instantiate arbitrary Serializable classes found on the class path.
+     */
+    private static final class ContextClassLoaderObjectInputStream extends ObjectInputStream {
+
+        private final Collection<String> allowed;
+
+        ContextClassLoaderObjectInputStream(InputStream in, Collection<String> allowed) throws IOException {
+            super(in);
+            this.allowed = allowed;
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxy", "Deserializing proxies is not allowed.");
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (!isAllowed(desc.getName(), allowed)) {
+                throw new InvalidClassException(desc.getName(), "Not allowed to be deserialized. See " + RemoteContext.ALLOWED_CLASSES + ".");
+            }
+            final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader != null) {
+                try {
+                    return Class.forName(desc.getName(), false, loader);
+                }
+                catch (ClassNotFoundException e) {
+                    // Fall through
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
@@ -0,0 +1,781 @@
+package org.osjava.sj.remote;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osjava.sj.jndi.ContextBindings;
+import org.osjava.sj.jndi.ContextNames;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.CommunicationException;
+import javax.naming.CompoundName;
+import javax.naming.ConfigurationException;
+import javax.naming.Context;
+import javax.naming.InvalidNameException;
+import javax.naming.Name;
+import javax.naming.NameNotFoundException;
+import javax.naming.NameParser;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.Reference;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.spi.NamingManager;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-only {@link Context} on the namespace served by a {@link NamespaceServer} in another JVM on the same host.
+ * <p>
+ * Every object looked up is cached, as is a missing name or a listing. Cached lookups do not leave the JVM. The server pushes every change, which removes the changed name, everything below it and the listing of its context from the cache. A change can not be seen before the push has arrived. Lookups that miss the cache are sent over one connection, possibly together with lookups of other threads. {@link #lookupAll(String...)} sends several lookups at once and waits for them together.
+ * <p>
+ * Bound {@link Reference}s are resolved in this JVM, so a DataSource bound as Reference is created by the client. Modifying operations throw {@link OperationNotSupportedException}. If the connection breaks, the cache is cleared and the next lookup reconnects.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class RemoteContext implements Context {
+
+    /** [host:]port of the {@link NamespaceServer}. Host defaults to the loopback address. */
+    public static final String ADDRESS = "org.osjava.sj.remote.address";
+    /** Milliseconds to wait for an answer of the server. Default 10000. */
+    public static final String TIMEOUT = "org.osjava.sj.remote.timeout";
+    /** Shared secret of the {@link NamespaceServer} and its clients. Mandatory for both. Never sent over the connection. */
+    public static final String SECRET = "org.osjava.sj.remote.secret";
+    /**
+     * Comma separated classes of objects to be deserialized in addition to those of java.lang, java.util, java.math, java.time and javax.naming: Class names or package names followed by ".*". Lookups of objects of other classes fail.
+     */
+    public static final String ALLOWED_CLASSES = "org.osjava.sj.remote.allowedClasses";
+    private static final long DEFAULT_TIMEOUT = 10000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RemoteContext.class);
+
+    /* Cached for names not bound. */
+    private static final Object NOT_BOUND = new Object();
+
+    private final Client client;
+    /* Whether close() disconnects. */
+    private final boolean owner;
+    private final Name prefix;
+    /* prefix and separator, empty for the root. Cache keys are absolute names. */
+    private final String keyPrefix;
+    private final Hashtable env;
+    private final Properties syntax = new Properties();
+
+    /**
+     * Connects to the server at {@link #ADDRESS}. Closing this context disconnects.
+     */
+    public RemoteContext(@NotNull Hashtable env) throws NamingException {
+        this(new Client(address(env), timeout(env), secret(env), allowedClasses(env)), true, env);
+    }
+
+    RemoteContext(@NotNull Client client, boolean owner, @NotNull Hashtable env) throws NamingException {
+        this.client = client;
+        this.owner = owner;
+        this.env = (Hashtable) env.clone();
+        this.env.put("jndi.syntax.separator", client.separator());
+        syntax.put("jndi.syntax.direction", "left_to_right");
+        syntax.put("jndi.syntax.separator", client.separator());
+        prefix = new CompoundName("", syntax);
+        keyPrefix = "";
+    }
+
+    private RemoteContext(RemoteContext parent, Name prefix) {
+        this.client = parent.client;
+        this.owner = false;
+        this.env = parent.env;
+        this.syntax.putAll(parent.syntax);
+        this.prefix = prefix;
+        this.keyPrefix = prefix.toString() + syntax.getProperty("jndi.syntax.separator");
+    }
+
+    static InetSocketAddress address(Hashtable env) throws ConfigurationException {
+        Object address = env.get(ADDRESS);
+        if (address == null) {
+            address = System.getProperty(ADDRESS);
+        }
+        if (address == null) {
+            throw new ConfigurationException(ADDRESS + " not set.");
+        }
+        final String value = address.toString().trim();
+        final int colon = value.lastIndexOf(':');
+        try {
+            return colon == -1
+                    ? new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(value))
+                    : new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+        }
+        catch (IllegalArgumentException e) {
+            throw new ConfigurationException(ADDRESS + "=" + value + " is no [host:]port.");
+        }
+    }
+
+    @NotNull
+    static String secret(Hashtable env) throws ConfigurationException {
+        Object secret = env.get(SECRET);
+        if (secret == null) {
+            secret = System.getProperty(SECRET);
+        }
+        if (secret == null || secret.toString().isEmpty()) {
+            throw new ConfigurationException(SECRET + " not set.");
+        }
+        return secret.toString();
+    }
+
+    @NotNull
+    static Set<String> allowedClasses(Hashtable env) {
+        final Set<String> allowed = new HashSet<String>();
+        final Object classes = env.get(ALLOWED_CLASSES);
+        if (classes != null) {
+            for (String className : classes.toString().split(",")) {
+                if (!className.trim().isEmpty()) {
+                    allowed.add(className.trim());
+                }
+            }
+        }
+        return allowed;
+    }
+
+    static long timeout(Hashtable env) {
+        final Object timeout = env.get(TIMEOUT);
+        if (timeout != null) {
+            try {
+                return Long.parseLong(timeout.toString().trim());
+            }
+            catch (NumberFormatException e) {
+                LOGGER.warn("Unsupported {}={}. Using {}.", TIMEOUT, timeout, DEFAULT_TIMEOUT);
+            }
+        }
+        return DEFAULT_TIMEOUT;
+    }
+
+    @Override
+    public Object lookup(String name) throws NamingException {
+        if (name.isEmpty()) {
+            return new RemoteContext(this, prefix);
+        }
+        // Most names are canonical already: No parsing for a cache hit.
+        final Object cached = client.cache.get(keyPrefix.isEmpty() ? name : keyPrefix + name);
+        if (cached != null) {
+            return cached(cached, name);
+        }
+        return lookup(parse(name));
+    }
+
+    @Override
+    public Object lookup(Name name) throws NamingException {
+        if (name.isEmpty()) {
+            return new RemoteContext(this, prefix);
+        }
+        final String key = absolute(name).toString();
+        final Object cached = client.cache.get(key);
+        if (cached != null) {
+            return cached(cached, key);
+        }
+        return lookupAll(Collections.singletonList(key))[0];
+    }
+
+    /**
+     * Looks up all names with a single round trip to the server for those not cached.
+     *
+     * @return The objects in the order of names.
+     * @throws NameNotFoundException One of the names is not bound.
+     */
+    public Object[] lookupAll(String... names) throws NamingException {
+        final List<String> keys = new ArrayList<String>(names.length);
+        for (String name : names) {
+            keys.add(absolute(parse(name)).toString());
+        }
+        return lookupAll(keys);
+    }
+
+    private Object[] lookupAll(List<String> keys) throws NamingException {
+        final Object[] objects = new Object[keys.size()];
+        final List<String> missed = new ArrayList<String>();
+        for (int i = 0; i < keys.size(); i++) {
+            final Object cached = client.cache.get(keys.get(i));
+            if (cached == null) {
+                missed.add(keys.get(i));
+            }
+            objects[i] = cached;
+        }
+        if (!missed.isEmpty()) {
+            final long epoch = client.epoch.get();
+            final Pending[] answers = client.send(Protocol.LOOKUP, missed);
+            for (int i = 0, j = 0; i < objects.length; i++) {
+                if (objects[i] == null) {
+                    objects[i] = toCached(answers[j++], keys.get(i), epoch);
+                }
+            }
+        }
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = cached(objects[i], keys.get(i));
+        }
+        return objects;
+    }
+
+    private Object cached(Object cached, String name) throws NameNotFoundException {
+        if (cached == NOT_BOUND) {
+            throw new NameNotFoundException(name + " not found.");
+        }
+        return cached;
+    }
+
+    /**
+     * @return What to cache for key. Cached only if no change has been pushed since epoch, the answer might be older than that change otherwise.
+     */
+    private Object toCached(Pending answer, String key, long epoch) throws NamingException {
+        answer.await(client.timeout);
+        Object object;
+        switch (answer.status) {
+            case Protocol.VALUE:
+                object = deserialize(answer.value, key, client.allowedClasses);
+                if (object instanceof Reference) {
+                    object = resolve((Reference) object, key);
+                }
+                break;
+            case Protocol.CONTEXT:
+                object = new RemoteContext(this, parseAbsolute(key));
+                break;
+            case Protocol.NOT_FOUND:
+                object = NOT_BOUND;
+                break;
+            default:
+                throw new NamingException(answer.message);
+        }
+        if (client.epoch.get() == epoch) {
+            client.cache.put(key, object);
+        }
+        return object;
+    }
+
+    private Object resolve(Reference reference, String key) throws NamingException {
+        try {
+            return NamingManager.getObjectInstance(reference, parseAbsolute(key), null, env);
+        }
+        catch (NamingException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            final NamingException namingException = new NamingException("Unable to resolve " + key);
+            namingException.setRootCause(e);
+            throw namingException;
+        }
+    }
+
+    private static Object deserialize(byte[] bytes, String key, Set<String> allowedClasses) throws NamingException {
+        try {
+            return Protocol.deserialize(bytes, allowedClasses);
+        }
+        catch (Exception e) {
+            final NamingException namingException = new NamingException("Unable to deserialize " + key);
+            namingException.setRootCause(e);
+            throw namingException;
+        }
+    }
+
+    private Name absolute(Name name) throws InvalidNameException {
+        final Name absolute = (Name) prefix.clone();
+        for (int i = 0; i < name.size(); i++) {
+            absolute.add(name.get(i));
+        }
+        return absolute;
+    }
+
+    private Name parse(String name) throws NamingException {
+        return new CompoundName(name, syntax);
+    }
+
+    private Name parseAbsolute(String key) throws NamingException {
+        return new CompoundName(key, syntax);
+    }
+
+    @Override
+    public NamingEnumeration list(Name name) throws NamingException {
+        return new ContextNames(entries(name));
+    }
+
+    @Override
+    public NamingEnumeration list(String name) throws NamingException {
+        return list(parse(name));
+    }
+
+    @Override
+    public NamingEnumeration listBindings(Name name) throws NamingException {
+        return new ContextBindings(entries(name));
+    }
+
+    @Override
+    public NamingEnumeration listBindings(String name) throws NamingException {
+        return listBindings(parse(name));
+    }
+
+    /**
+     * @return Bindings of the context name, References not resolved, as a {@link org.osjava.sj.jndi.MemoryContext} lists them.
+     */
+    private Map<String, Object> entries(Name name) throws NamingException {
+        final String key = absolute(name).toString();
+        final Map<String, Object> cached = client.lists.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final long epoch = client.epoch.get();
+        final Pending answer = client.send(Protocol.LIST, Collections.singletonList(key))[0];
+        answer.await(client.timeout);
+        if (answer.status == Protocol.NOT_FOUND) {
+            throw new NameNotFoundException(answer.message);
+        }
+        if (answer.status != Protocol.BINDINGS) {
+            throw new NamingException(answer.message);
+        }
+        final Map<String, Object> entries = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < answer.names.size(); i++) {
+            final String atom = answer.names.get(i);
+            final byte[] value = answer.values.get(i);
+            if (value == null) {
+                final Name subcontext = absolute(name);
+                subcontext.add(atom);
+                entries.put(atom, new RemoteContext(this, subcontext));
+            }
+            else {
+                entries.put(atom, deserialize(value, key + client.separator() + atom, client.allowedClasses));
+            }
+        }
+        final Map<String, Object> unmodifiable = Collections.unmodifiableMap(entries);
+        if (client.epoch.get() == epoch) {
+            client.lists.put(key, unmodifiable);
+        }
+        return unmodifiable;
+    }
+
+    @Override
+    public Object lookupLink(Name name) throws NamingException {
+        return lookup(name);
+    }
+
+    @Override
+    public Object lookupLink(String name) throws NamingException {
+        return lookup(name);
+    }
+
+    @Override
+    public NameParser getNameParser(Name name) throws NamingException {
+        return new NameParser() {
+            @Override
+            public Name parse(String name) throws NamingException {
+                return RemoteContext.this.parse(name);
+            }
+        };
+    }
+
+    @Override
+    public NameParser getNameParser(String name) throws NamingException {
+        return getNameParser(parse(name));
+    }
+
+    @Override
+    public Name composeName(Name name, Name prefix) throws NamingException {
+        final Name composed = (Name) prefix.clone();
+        composed.addAll(name);
+        return composed;
+    }
+
+    @Override
+    public String composeName(String name, String prefix) throws NamingException {
+        return composeName(parse(name), parse(prefix)).toString();
+    }
+
+    @Override
+    public Object addToEnvironment(String propName, Object propVal) throws NamingException {
+        return env.put(propName, propVal);
+    }
+
+    @Override
+    public Object removeFromEnvironment(String propName) throws NamingException {
+        return env.remove(propName);
+    }
+
+    @Override
+    public Hashtable getEnvironment() throws NamingException {
+        return (Hashtable) env.clone();
+    }
+
+    /**
+     * Disconnects if this context has been created by {@link #RemoteContext(Hashtable)}. Otherwise does nothing.
+     */
+    @Override
+    public void close() throws NamingException {
+        if (owner) {
+            client.close();
+        }
+    }
+
+    @Override
+    public String getNameInNamespace() throws NamingException {
+        return prefix.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteContext{address=" + client.address + ", name=" + prefix + "}";
+    }
+
+    @Override
+    public void bind(Name name, Object obj) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void bind(String name, Object obj) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void rebind(Name name, Object obj) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void rebind(String name, Object obj) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void unbind(Name name) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void unbind(String name) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void rename(Name oldName, Name newName) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void rename(String oldName, String newName) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void destroySubcontext(Name name) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public void destroySubcontext(String name) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public Context createSubcontext(Name name) throws NamingException {
+        throw readOnly();
+    }
+
+    @Override
+    public Context createSubcontext(String name) throws NamingException {
+        throw readOnly();
+    }
+
+    private OperationNotSupportedException readOnly() {
+        return new OperationNotSupportedException("Namespace served by " + client.address + " is read-only here. Change it in the server.");
+    }
+
+    /**
+     * Answer to a request, filled by the reading thread.
+     */
+    static final class Pending {
+        private final CountDownLatch done = new CountDownLatch(1);
+        byte status;
+        byte[] value;
+        String message;
+        List<String> names;
+        /* null for a subcontext */
+        List<byte[]> values;
+
+        void complete() {
+            done.countDown();
+        }
+
+        void fail(String message) {
+            status = Protocol.ERROR;
+            this.message = message;
+            done.countDown();
+        }
+
+        void await(long timeout) throws NamingException {
+            try {
+                if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                    throw new CommunicationException("No answer within " + timeout + " ms.");
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CommunicationException("Interrupted while waiting for an answer.");
+            }
+        }
+    }
+
+    /**
+     * Connection and cache shared by a root context and its subcontexts.
+     */
+    static final class Client {
+        final InetSocketAddress address;
+        final long timeout;
+        private final String secret;
+        final Set<String> allowedClasses;
+        final ConcurrentHashMap<String, Object> cache = new ConcurrentHashMap<String, Object>();
+        final ConcurrentHashMap<String, Map<String, Object>> lists = new ConcurrentHashMap<String, Map<String, Object>>();
+        /* Incremented by every pushed change. */
+        final AtomicLong epoch = new AtomicLong();
+        private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+        private final AtomicInteger ids = new AtomicInteger();
+        private volatile String separator;
+        private volatile Link link;
+        private volatile boolean closed;
+
+        Client(InetSocketAddress address, long timeout, String secret, Set<String> allowedClasses) throws NamingException {
+            this.address = address;
+            this.timeout = timeout;
+            this.secret = secret;
+            this.allowedClasses = allowedClasses;
+            link();
+        }
+
+        String separator() {
+            return separator;
+        }
+
+        /**
+         * Sends all requests and flushes once.
+         */
+        Pending[] send(byte operation, List<String> names) throws NamingException {
+            final Link link = link();
+            final Pending[] answers = new Pending[names.size()];
+            try {
+                synchronized (link.out) {
+                    for (int i = 0; i < answers.length; i++) {
+                        int id;
+                        do {
+                            id = ids.incrementAndGet() & Integer.MAX_VALUE;
+                        } while (id == Protocol.PUSH);
+                        answers[i] = new Pending();
+                        pending.put(id, answers[i]);
+                        link.out.writeInt(id);
+                        link.out.writeByte(operation);
+                        link.out.writeUTF(names.get(i));
+                    }
+                    link.out.flush();
+                }
+            }
+            catch (IOException e) {
+                link.broken(e);
+                final ServiceUnavailableException exception = new ServiceUnavailableException("Connection to " + address + " broken.");
+                exception.setRootCause(e);
+                throw exception;
+            }
+            return answers;
+        }
+
+        private Link link() throws NamingException {
+            Link l = link;
+            if (l != null) {
+                return l;
+            }
+            synchronized (this) {
+                if (closed) {
+                    throw new ServiceUnavailableException("Disconnected from " + address + ".");
+                }
+                if (link == null) {
+                    try {
+                        link = new Link(this);
+                    }
+                    catch (IOException e) {
+                        final ServiceUnavailableException exception = new ServiceUnavailableException("Unable to connect to " + address + ".");
+                        exception.setRootCause(e);
+                        throw exception;
+                    }
+                }
+                return link;
+            }
+        }
+
+        void invalidate(String name) {
+            epoch.incrementAndGet();
+            final String below = name + separator;
+            cache.remove(name);
+            lists.remove(name);
+            final int lastSeparator = name.lastIndexOf(separator);
+            lists.remove(lastSeparator == -1 ? "" : name.substring(0, lastSeparator));
+            removeBelow(cache, below);
+            removeBelow(lists, below);
+        }
+
+        private static void removeBelow(Map<String, ?> map, String below) {
+            for (Iterator<String> keys = map.keySet().iterator(); keys.hasNext(); ) {
+                if (keys.next().startsWith(below)) {
+                    keys.remove();
+                }
+            }
+        }
+
+        /**
+         * Nothing pushed can be received anymore, so all cached may be stale.
+         */
+        void disconnected(Link broken, String reason) {
+            synchronized (this) {
+                if (link == broken) {
+                    link = null;
+                }
+            }
+            epoch.incrementAndGet();
+            cache.clear();
+            lists.clear();
+            for (Integer id : pending.keySet()) {
+                final Pending p = pending.remove(id);
+                if (p != null) {
+                    p.fail(reason);
+                }
+            }
+        }
+
+        void close() {
+            final Link l;
+            synchronized (this) {
+                closed = true;
+                l = link;
+            }
+            if (l != null) {
+                l.broken(null);
+            }
+        }
+    }
+
+    /**
+     * One connection. Replaced by a new one once broken.
+     */
+    private static final class Link implements Runnable {
+        private final Client client;
+        private final Socket socket;
+        private final DataInputStream in;
+        final DataOutputStream out;
+
+        Link(Client client) throws IOException {
+            this.client = client;
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(client.address, (int) client.timeout);
+                socket.setSoTimeout((int) client.timeout);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                if (in.readInt() != Protocol.MAGIC) {
+                    throw new IOException(client.address + " is no NamespaceServer.");
+                }
+                client.separator = in.readUTF();
+                final byte[] challenge = new byte[Protocol.CHALLENGE_LENGTH];
+                in.readFully(challenge);
+                out.write(Protocol.prove(client.secret, challenge));
+                out.flush();
+                final int accepted = in.read();
+                if (accepted != Protocol.ACCEPTED) {
+                    throw new IOException(client.address + " rejected " + SECRET + ".");
+                }
+                // Pushes may be rare.
+                socket.setSoTimeout(0);
+            }
+            catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            final Thread reader = new Thread(this, "simple-jndi-remote-" + client.address.getPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final int id = in.readInt();
+                    final byte status = in.readByte();
+                    if (id == Protocol.PUSH) {
+                        client.invalidate(in.readUTF());
+                        continue;
+                    }
+                    final Pending answer = client.pending.remove(id);
+                    if (answer == null) {
+                        throw new IOException("Answer to unknown request " + id + ".");
+                    }
+                    answer.status = status;
+                    switch (status) {
+                        case Protocol.VALUE:
+                            answer.value = readBytes();
+                            break;
+                        case Protocol.CONTEXT:
+                            break;
+                        case Protocol.BINDINGS:
+                            final int count = in.readInt();
+                            answer.names = new ArrayList<String>(count);
+                            answer.values = new ArrayList<byte[]>(count);
+                            for (int i = 0; i < count; i++) {
+                                answer.names.add(in.readUTF());
+                                answer.values.add(in.readByte() == Protocol.CONTEXT ? null : readBytes());
+                            }
+                            break;
+                        default:
+                            answer.message = in.readUTF();
+                    }
+                    answer.complete();
+                }
+            }
+            catch (IOException e) {
+                broken(e);
+            }
+        }
+
+        private byte[] readBytes() throws IOException {
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        /**
+         * @param e null: Closed on purpose.
+         */
+        void broken(@Nullable IOException e) {
+            if (e != null && !socket.isClosed()) {
+                LOGGER.warn("Connection to {} broken: {}", client.address, e.toString());
+            }
+            try {
+                socket.close();
+            }
+            catch (IOException closing) {
+                LOGGER.debug("Closing {}: {}", socket, closing.toString());
+            }
+            client.disconnected(this, e != null ? "Connection to " + client.address + " broken: " + e : "Disconnected from " + client.address + ".");
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.osjava.sj.remote;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.spi.InitialContextFactory;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Initial Context Factory for a {@link RemoteContext} on the namespace served by the {@link NamespaceServer} at {@link RemoteContext#ADDRESS}.
+ * <p>
+ * All contexts created for the same address, {@link RemoteContext#SECRET} and {@link RemoteContext#ALLOWED_CLASSES} share one connection and one cache for the lifetime of the JVM, so every new InitialContext benefits from the lookups of the previous ones. Closing them does not disconnect.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class RemoteContextFactory implements InitialContextFactory {
+
+    /* Keyed by address, secret and allowed classes, so a client does not share a connection authenticated by another secret. */
+    private static final ConcurrentHashMap<List<Object>, RemoteContext.Client> clients =
+            new ConcurrentHashMap<List<Object>, RemoteContext.Client>();
+
+    @Override
+    public Context getInitialContext(Hashtable environment) throws NamingException {
+        final InetSocketAddress address = RemoteContext.address(environment);
+        final String secret = RemoteContext.secret(environment);
+        final Set<String> allowedClasses = RemoteContext.allowedClasses(environment);
+        final List<Object> key = Arrays.<Object>asList(address, secret, allowedClasses);
+        RemoteContext.Client client = clients.get(key);
+        if (client == null) {
+            final RemoteContext.Client created = new RemoteContext.Client(address, RemoteContext.timeout(environment), secret, allowedClasses);
+            client = clients.putIfAbsent(key, created);
+            if (client == null) {
+                client = created;
+            }
+            else {
+                // Lost the race against a concurrent getInitialContext().
+                created.close();
+            }
+        }
+        return new RemoteContext(client, false, environment);
+    }
+}
@@ -0,0 +1,372 @@
+package org.osjava.sj.tools;
+
+import org.apache.commons.lang.BooleanUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osjava.sj.SimpleJndi;
+import org.osjava.sj.SimpleJndiContextFactory;
+import org.osjava.sj.jndi.Footprint;
+import org.osjava.sj.jndi.MemoryContext;
+import org.osjava.sj.jndi.PersistentJournal;
+import org.osjava.sj.loader.LoadProfiler;
+import org.osjava.sj.loader.NioBasedJndiLoader;
+import org.osjava.sj.loader.SnapshotImage;
+
+import javax.naming.Binding;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Loads a root like {@link SimpleJndiContextFactory} does and prints what it costs: Load time per phase, slowest files, number of contexts and bindings, depth and fan-out histograms, largest subtrees, values bound more than once and values that could not be converted into their types. Meant to be run in a build to catch configurations slowing down startup:
+ * <pre>
+ * java -cp simple-jndi.jar:... org.osjava.sj.tools.Inspect [options] jndi.properties [root]
+ * </pre>
+ * root overrides {@link SimpleJndi#ROOT} of jndi.properties, e. g. "config". It may also name a JAR not on classpath, optionally followed by the directory in it, e. g. "lib/config.jar!/root". Such a JAR is loaded by Inspect only, SimpleJndi does not know this syntax. Options:
+ * <pre>
+ * --top n                 Lines per listing, default 10.
+ * --max-millis n          Fail if loading took longer.
+ * --max-bindings n        Fail if more objects were bound.
+ * --max-bytes n           Fail if the tree uses more heap.
+ * --fail-on-conversion    Fail if a value could not be converted into its type.
+ * </pre>
+ * Exit code 0 if all limits are met, 1 if a limit is exceeded, 2 if the root could not be loaded or the arguments are wrong. {@link PersistentJournal#FILE} and {@link SnapshotImage#IMAGE} are ignored, so the files themselves are loaded and nothing is written.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public final class Inspect {
+
+    static final int OK = 0;
+    static final int LIMIT_EXCEEDED = 1;
+    static final int ERROR = 2;
+
+    private int top = 10;
+    private long maxMillis = -1;
+    private long maxBindings = -1;
+    private long maxBytes = -1;
+    private boolean failOnConversion;
+    /* Set if root names a JAR. */
+    private String jarRoot;
+    private File jar;
+    private String rootInJar;
+
+    private int contexts;
+    private int bindings;
+    private final Map<Integer, Integer> depths = new TreeMap<Integer, Integer>();
+    private final Map<Integer, Integer> fanOuts = new TreeMap<Integer, Integer>();
+    private final Map<Object, List<String>> names = new HashMap<Object, List<String>>();
+
+    private Inspect() { }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out));
+    }
+
+    /**
+     * @return Exit code.
+     */
+    static int run(String[] args, PrintStream out) {
+        final Inspect inspect = new Inspect();
+        final List<String> files = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--top")) {
+                    inspect.top = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("--max-millis")) {
+                    inspect.maxMillis = Long.parseLong(args[++i]);
+                }
+                else if (args[i].equals("--max-bindings")) {
+                    inspect.maxBindings = Long.parseLong(args[++i]);
+                }
+                else if (args[i].equals("--max-bytes")) {
+                    inspect.maxBytes = Long.parseLong(args[++i]);
+                }
+                else if (args[i].equals("--fail-on-conversion")) {
+                    inspect.failOnConversion = true;
+                }
+                else if (args[i].startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+                else {
+                    files.add(args[i]);
+                }
+            }
+            if (files.isEmpty() || files.size() > 2) {
+                throw new IllegalArgumentException("Expected jndi.properties and optionally root");
+            }
+        }
+        catch (RuntimeException e) {
+            out.println(e.getMessage() != null ? e.getMessage() : e.toString());
+            out.println("Usage: Inspect [--top n] [--max-millis n] [--max-bindings n] [--max-bytes n] [--fail-on-conversion] jndi.properties [root]");
+            return ERROR;
+        }
+        final Hashtable<String, String> env;
+        try {
+            env = environment(new File(files.get(0)));
+        }
+        catch (IOException e) {
+            out.println("Unable to read " + files.get(0) + ": " + e);
+            return ERROR;
+        }
+        if (files.size() == 2) {
+            final String root = files.get(1);
+            final int jarEnd = jarEnd(root);
+            if (jarEnd > 0) {
+                inspect.jarRoot = root;
+                inspect.jar = new File(root.substring(0, jarEnd));
+                inspect.rootInJar = jarEnd + 2 < root.length() ? root.substring(jarEnd + 2) : "/";
+                env.remove(SimpleJndi.ROOT);
+            }
+            else {
+                env.put(SimpleJndi.ROOT, root);
+            }
+        }
+        return inspect.inspect(env, out);
+    }
+
+    /**
+     * @return Index of the end of ".jar" in a root like "lib/config.jar" or "lib/config.jar!/root/in/jar", -1 if root is no JAR.
+     */
+    private static int jarEnd(String root) {
+        final int separator = root.indexOf(".jar!/");
+        if (separator > 0) {
+            return separator + ".jar".length();
+        }
+        return root.endsWith(".jar") ? root.length() : -1;
+    }
+
+    @NotNull
+    private static Hashtable<String, String> environment(File file) throws IOException {
+        final Properties properties = new Properties();
+        final InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        }
+        finally {
+            in.close();
+        }
+        final Hashtable<String, String> env = new Hashtable<String, String>();
+        for (String key : properties.stringPropertyNames()) {
+            env.put(key, properties.getProperty(key));
+        }
+        env.remove(PersistentJournal.FILE);
+        env.remove(SnapshotImage.IMAGE);
+        env.remove(LoadProfiler.REPORT);
+        return env;
+    }
+
+    private int inspect(Hashtable<String, String> env, PrintStream out) {
+        final LoadProfiler profiler = new LoadProfiler();
+        final Context root;
+        try {
+            root = SimpleJndiContextFactory.loadRoot(env, profiler);
+        }
+        catch (NamingException e) {
+            out.println("Unable to load " + rootName(env) + ": " + e);
+            if (e.getRootCause() != null) {
+                out.println("Caused by: " + e.getRootCause());
+            }
+            return ERROR;
+        }
+        if (jar != null) {
+            try {
+                loadJar(root, profiler, BooleanUtils.toBoolean(env.get(SimpleJndi.FILENAME_TO_CONTEXT)));
+            }
+            catch (IOException | NamingException e) {
+                out.println("Unable to load " + jarRoot + ": " + e);
+                close(root);
+                return ERROR;
+            }
+        }
+        try {
+            out.print(profiler.summary(top));
+            final Object separator = root.getEnvironment().get(SimpleJndi.JNDI_SYNTAX_SEPARATOR);
+            walk(root, "", separator != null ? separator.toString() : "/", 0);
+            out.println();
+            out.printf(Locale.ROOT, "%d contexts, %d bindings%n", contexts, bindings);
+            out.println("Bindings per depth:");
+            printHistogram(depths, false, out);
+            out.println("Contexts per number of bindings and subcontexts:");
+            printHistogram(fanOuts, true, out);
+            long bytes = -1;
+            if (root instanceof MemoryContext) {
+                final Footprint footprint = ((MemoryContext) root).footprint(Footprint.Sharing.ONCE);
+                bytes = footprint.getTotalBytes();
+                out.printf(Locale.ROOT, "Heap: %d bytes (structure %d, values %d)%n", bytes, footprint.getTotalStructureBytes(), footprint.getTotalValueBytes());
+                out.println("Largest subtrees:");
+                for (Footprint subtree : largest(footprint)) {
+                    out.printf(Locale.ROOT, "  %s: %d bytes, %d bindings%n", subtree.getName(), subtree.getTotalBytes(), subtree.getTotalBindingCount());
+                }
+            }
+            printDuplicates(out);
+            return checkLimits(profiler, bytes, out);
+        }
+        catch (NamingException e) {
+            out.println("Unable to inspect " + rootName(env) + ": " + e);
+            return ERROR;
+        }
+        finally {
+            close(root);
+        }
+    }
+
+    /**
+     * Loads {@link #jar} into root as {@link SimpleJndi} loads a root directory.
+     */
+    private void loadJar(Context root, LoadProfiler profiler, boolean fileNameToContext) throws IOException, NamingException {
+        final NioBasedJndiLoader loader = new NioBasedJndiLoader(root.getEnvironment());
+        loader.setProfiler(profiler);
+        loader.loadJar(jar, rootInJar, root, fileNameToContext);
+        profiler.finish();
+    }
+
+    @Nullable
+    private String rootName(Hashtable<String, String> env) {
+        return jarRoot != null ? jarRoot : env.get(SimpleJndi.ROOT);
+    }
+
+    private static void close(Context root) {
+        try {
+            root.close();
+        }
+        catch (NamingException ignore) { }
+    }
+
+    private void walk(Context context, String prefix, String separator, int depth) throws NamingException {
+        contexts++;
+        int fanOut = 0;
+        final NamingEnumeration<Binding> enumeration = context.listBindings("");
+        while (enumeration.hasMore()) {
+            final Binding binding = enumeration.next();
+            fanOut++;
+            final Object object = binding.getObject();
+            final String name = prefix + binding.getName();
+            if (object instanceof Context) {
+                walk((Context) object, name + separator, separator, depth + 1);
+            }
+            else {
+                bindings++;
+                increment(depths, depth + 1);
+                if (object != null) {
+                    List<String> bound = names.get(object);
+                    if (bound == null) {
+                        bound = new ArrayList<String>(1);
+                        names.put(object, bound);
+                    }
+                    bound.add(name);
+                }
+            }
+        }
+        increment(fanOuts, bucket(fanOut));
+    }
+
+    /**
+     * @return 0, 1, 2, 4, 8 ...: The lower bound of the power of 2 range n is in.
+     */
+    private static int bucket(int n) {
+        return n == 0 ? 0 : Integer.highestOneBit(n);
+    }
+
+    private static void increment(Map<Integer, Integer> histogram, int key) {
+        final Integer count = histogram.get(key);
+        histogram.put(key, count != null ? count + 1 : 1);
+    }
+
+    /**
+     * @param buckets Keys are returned by {@link #bucket(int)}.
+     */
+    private static void printHistogram(Map<Integer, Integer> histogram, boolean buckets, PrintStream out) {
+        for (Map.Entry<Integer, Integer> entry : histogram.entrySet()) {
+            final int key = entry.getKey();
+            final String range = buckets && key > 1 ? key + "-" + (2 * key - 1) : String.valueOf(key);
+            out.printf(Locale.ROOT, "  %9s: %d%n", range, entry.getValue());
+        }
+    }
+
+    private List<Footprint> largest(Footprint root) {
+        final List<Footprint> subtrees = new ArrayList<Footprint>();
+        collect(root, subtrees);
+        Collections.sort(subtrees, new Comparator<Footprint>() {
+            @Override
+            public int compare(Footprint f1, Footprint f2) {
+                return f1.getTotalBytes() < f2.getTotalBytes() ? 1 : (f1.getTotalBytes() == f2.getTotalBytes() ? f1.getName().compareTo(f2.getName()) : -1);
+            }
+        });
+        return subtrees.subList(0, Math.min(top, subtrees.size()));
+    }
+
+    private static void collect(Footprint footprint, List<Footprint> subtrees) {
+        for (Footprint subcontext : footprint.getSubcontexts()) {
+            subtrees.add(subcontext);
+            collect(subcontext, subtrees);
+        }
+    }
+
+    private void printDuplicates(PrintStream out) {
+        final List<Map.Entry<Object, List<String>>> duplicates = new ArrayList<Map.Entry<Object, List<String>>>();
+        int bound = 0;
+        for (Map.Entry<Object, List<String>> entry : names.entrySet()) {
+            if (entry.getValue().size() > 1) {
+                duplicates.add(entry);
+                bound += entry.getValue().size();
+            }
+        }
+        Collections.sort(duplicates, new Comparator<Map.Entry<Object, List<String>>>() {
+            @Override
+            public int compare(Map.Entry<Object, List<String>> e1, Map.Entry<Object, List<String>> e2) {
+                final int diff = e2.getValue().size() - e1.getValue().size();
+                return diff != 0 ? diff : e1.getValue().get(0).compareTo(e2.getValue().get(0));
+            }
+        });
+        out.printf(Locale.ROOT, "Duplicate values: %d values bound %d times%n", duplicates.size(), bound);
+        for (Map.Entry<Object, List<String>> entry : duplicates.subList(0, Math.min(top, duplicates.size()))) {
+            final List<String> bindings = entry.getValue();
+            Collections.sort(bindings);
+            out.printf(Locale.ROOT, "  %dx %s (%s): %s%n", bindings.size(), abbreviate(String.valueOf(entry.getKey())),
+                    entry.getKey().getClass().getName(), bindings.size() > 3 ? bindings.subList(0, 3) + " ..." : bindings);
+        }
+    }
+
+    private static String abbreviate(String value) {
+        return value.length() > 40 ? value.substring(0, 37) + "..." : value;
+    }
+
+    private int checkLimits(LoadProfiler profiler, long bytes, PrintStream out) {
+        int exitCode = OK;
+        final long millis = profiler.getWallNanos() / 1000000;
+        if (maxMillis >= 0 && millis > maxMillis) {
+            out.printf(Locale.ROOT, "FAILED: Loading took %d ms, more than %d ms%n", millis, maxMillis);
+            exitCode = LIMIT_EXCEEDED;
+        }
+        if (maxBindings >= 0 && bindings > maxBindings) {
+            out.printf(Locale.ROOT, "FAILED: %d bindings, more than %d%n", bindings, maxBindings);
+            exitCode = LIMIT_EXCEEDED;
+        }
+        if (maxBytes >= 0 && bytes > maxBytes) {
+            out.printf(Locale.ROOT, "FAILED: %d bytes, more than %d%n", bytes, maxBytes);
+            exitCode = LIMIT_EXCEEDED;
+        }
+        final int failures = profiler.getFailures().size();
+        if (failOnConversion && failures > 0) {
+            out.printf(Locale.ROOT, "FAILED: %d values not converted%n", failures);
+            exitCode = LIMIT_EXCEEDED;
+        }
+        return exitCode;
+    }
+}
@@ -0,0 +1,145 @@
+package org.osjava.sj;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osjava.sj.jndi.MappedContext;
+import org.osjava.sj.jndi.MemoryContext;
+import org.osjava.sj.loader.SnapshotImage;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class ContextCacheTest {
+
+    @Before
+    public void setUp() {
+        MemoryContextFactory.clearCache();
+    }
+
+    @After
+    public void tearDown() {
+        MemoryContextFactory.clearCache();
+    }
+
+    private Hashtable<String, String> sharedEnv(String delimiter) {
+        final Hashtable<String, String> env = new Hashtable<String, String>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "org.osjava.sj.MemoryContextFactory");
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put(SimpleJndi.SHARED, "true");
+        env.put(SimpleJndi.ROOT, "");
+        env.put("org.osjava.sj.delimiter", delimiter);
+        env.put(SimpleJndi.JNDI_SYNTAX_SEPARATOR, delimiter);
+        return env;
+    }
+
+    @Test
+    public void fingerprintIgnoresIrrelevantProperties() {
+        final Hashtable<String, String> env1 = sharedEnv("/");
+        final Hashtable<String, String> env2 = sharedEnv("/");
+        env2.put("org.osjava.sj.jndi.ignoreClose", "true");
+        env2.put("some.other.property", "any");
+        assertEquals(ContextCache.fingerprint(env1), ContextCache.fingerprint(env2));
+
+        env2.put(SimpleJndi.ENC, "java:comp/env");
+        assertNotEquals(ContextCache.fingerprint(env1), ContextCache.fingerprint(env2));
+    }
+
+    @Test
+    public void fingerprintCoversHowContextIsBuiltAndClosed() {
+        final String plain = ContextCache.fingerprint(sharedEnv("/"));
+        for (String key : new String[] {SnapshotImage.IMAGE, MappedContext.MAPPED_FILE, MemoryContext.CLOSE_RESOURCES}) {
+            final Hashtable<String, String> env = sharedEnv("/");
+            env.put(key, "x");
+            assertNotEquals(key, plain, ContextCache.fingerprint(env));
+        }
+    }
+
+    @Test
+    public void sameRootDifferentDelimiter() throws NamingException {
+        final InitialContext slash = new InitialContext(sharedEnv("/"));
+        final InitialContext dot = new InitialContext(sharedEnv("."));
+        try {
+            slash.bind("name", "slash");
+            dot.bind("name", "dot");
+            assertEquals("slash", new InitialContext(sharedEnv("/")).lookup("name"));
+            assertEquals("dot", new InitialContext(sharedEnv(".")).lookup("name"));
+            assertEquals(2, MemoryContextFactory.getContextCache().size());
+        }
+        finally {
+            slash.close();
+            dot.close();
+        }
+        assertEquals(0, MemoryContextFactory.getContextCache().size());
+    }
+
+    @Test
+    public void idleEviction() throws Exception {
+        final Hashtable<String, String> env = sharedEnv("/");
+        env.put(ContextCache.IDLE_TIMEOUT, "50");
+        final List<ContextCache.EvictionCause> events = new ArrayList<ContextCache.EvictionCause>();
+        final ContextCache.EvictionListener listener = new ContextCache.EvictionListener() {
+            @Override
+            public void evicted(String fingerprint, Context context, ContextCache.EvictionCause cause) {
+                events.add(cause);
+            }
+        };
+        final ContextCache<Context> cache = MemoryContextFactory.getContextCache();
+        cache.addEvictionListener(listener);
+        try {
+            new InitialContext(env).bind("name", "value");
+            assertEquals(1, cache.size());
+            Thread.sleep(100);
+            assertEquals(1, cache.evictIdle());
+            assertEquals(0, cache.size());
+            assertEquals(1, events.size());
+            assertEquals(ContextCache.EvictionCause.IDLE, events.get(0));
+            // A new, empty context is created.
+            assertEquals(0, countBindings(new InitialContext(env)));
+        }
+        finally {
+            cache.removeEvictionListener(listener);
+        }
+    }
+
+    @Test
+    public void weakRetention() throws Exception {
+        final Hashtable<String, String> env = sharedEnv("/");
+        env.put(ContextCache.RETENTION, "weak");
+        new InitialContext(env).bind("name", "value");
+        final ContextCache<Context> cache = MemoryContextFactory.getContextCache();
+        for (int i = 0; i < 20 && cache.size() > 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(0, cache.size());
+        assertTrue(cache.getCollectedEvictionCount() > 0);
+    }
+
+    @Test
+    public void strongRetentionIsDefault() throws Exception {
+        new InitialContext(sharedEnv("/")).bind("name", "value");
+        System.gc();
+        assertEquals("value", new InitialContext(sharedEnv("/")).lookup("name"));
+        new InitialContext(sharedEnv("/")).close();
+    }
+
+    private int countBindings(Context ctx) throws NamingException {
+        int count = 0;
+        final javax.naming.NamingEnumeration enumeration = ctx.list("");
+        while (enumeration.hasMore()) {
+            enumeration.next();
+            count++;
+        }
+        return count;
+    }
+}
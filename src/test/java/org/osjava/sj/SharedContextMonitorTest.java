@@ -0,0 +1,199 @@
+package org.osjava.sj;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NameNotFoundException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class SharedContextMonitorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    @Before
+    public void setUp() {
+        SimpleJndiContextFactory.clearCache();
+        MemoryContextFactory.clearCache();
+    }
+
+    @After
+    public void tearDown() {
+        SimpleJndiContextFactory.clearCache();
+        MemoryContextFactory.clearCache();
+    }
+
+    private Hashtable<String, String> sharedEnv(String factory) {
+        final Hashtable<String, String> env = new Hashtable<String, String>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, factory);
+        env.put(SimpleJndi.ROOT, folder.getRoot().getAbsolutePath());
+        env.put(SimpleJndi.SHARED, "true");
+        env.put(SimpleJndi.JNDI_SYNTAX_SEPARATOR, "/");
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put(ContextCache.JMX, "true");
+        return env;
+    }
+
+    private Set<ObjectName> monitors(String factory) throws Exception {
+        return server.queryNames(new ObjectName("org.osjava.sj:type=SharedContext,factory=" + factory + ",*"), null);
+    }
+
+    @Test
+    public void statisticsAndReload() throws Exception {
+        write("app.properties", "db.url=jdbc:hsqldb:mem:test\ndb.poolSize=10\nname=app\n");
+        final InitialContext ctx = new InitialContext(sharedEnv(SimpleJndiContextFactory.class.getName()));
+        final Set<ObjectName> names = monitors("SimpleJndiContextFactory");
+        assertEquals(1, names.size());
+        final ObjectName name = names.iterator().next();
+
+        assertEquals(3, server.getAttribute(name, "BindingCount"));
+        assertEquals(2, server.getAttribute(name, "SubcontextCount"));
+        server.invoke(name, "resetStatistics", null, null);
+        assertEquals("jdbc:hsqldb:mem:test", ctx.lookup("app/db/url"));
+        assertEquals("app", ctx.lookup("app/name"));
+        try {
+            ctx.lookup("app/missing");
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+        assertEquals(3L, server.getAttribute(name, "LookupCount"));
+        assertEquals(1L, server.getAttribute(name, "MissCount"));
+        assertTrue((Long) server.getAttribute(name, "LatencyP99Nanos") <= (Long) server.getAttribute(name, "LatencyMaxNanos"));
+
+        final String dump = (String) server.invoke(name, "dump", new Object[] {"app", 0, 10}, new String[] {"java.lang.String", "int", "int"});
+        assertTrue(dump, dump.contains("name = app (java.lang.String)"));
+        assertTrue(dump, dump.contains("db/"));
+        assertFalse(dump, dump.contains("poolSize"));
+
+        final String footprint = (String) server.invoke(name, "footprint", new Object[] {"", 1, "exclude"}, new String[] {"java.lang.String", "int", "java.lang.String"});
+        assertTrue(footprint, footprint.startsWith("(root): "));
+        assertTrue(footprint, footprint.contains("\n  app: "));
+        assertTrue(footprint, footprint.contains("environment"));
+
+        write("app.properties", "db.url=jdbc:hsqldb:mem:test\ndb.poolSize=20\nname=app\nuser=sa\n");
+        assertEquals(2, server.invoke(name, "reload", null, null));
+        assertEquals("20", ctx.lookup("app/db/poolSize"));
+        assertEquals("sa", ctx.lookup("app/user"));
+
+        ctx.close();
+        assertTrue(monitors("SimpleJndiContextFactory").isEmpty());
+    }
+
+    @Test
+    public void dumpHidesSecrets() throws Exception {
+        write("app.properties", "password=geheim\nurl=jdbc:postgresql://db/app?user=app&password=geheim\n"
+                + "port=5432\nport.type=java.lang.Integer\nname=app\n");
+        final InitialContext ctx = new InitialContext(sharedEnv(SimpleJndiContextFactory.class.getName()));
+        final ObjectName name = monitors("SimpleJndiContextFactory").iterator().next();
+        final String dump = (String) server.invoke(name, "dump", new Object[] {"app", 0, 10}, new String[] {"java.lang.String", "int", "int"});
+        assertFalse(dump, dump.contains("geheim"));
+        assertTrue(dump, dump.contains("password = **** (java.lang.String)"));
+        assertTrue(dump, dump.contains("url = **** (java.lang.String)"));
+        assertTrue(dump, dump.contains("port (java.lang.Integer)"));
+        assertTrue(dump, dump.contains("name = app (java.lang.String)"));
+        ctx.close();
+    }
+
+    @Test
+    public void reloadKeepsUnchangedObjects() throws Exception {
+        write("pools.properties", "a.type=" + Pool.class.getName() + "\na.converter=org.osjava.sj.loader.convert.BeanConverter\na.size=1\n"
+                + "b.type=" + Pool.class.getName() + "\nb.converter=org.osjava.sj.loader.convert.BeanConverter\nb.size=1\n");
+        final Hashtable<String, String> env = sharedEnv(SimpleJndiContextFactory.class.getName());
+        env.put(org.osjava.sj.jndi.MemoryContext.CLOSE_RESOURCES, "true");
+        final InitialContext ctx = new InitialContext(env);
+        final ObjectName name = monitors("SimpleJndiContextFactory").iterator().next();
+        final Pool a = (Pool) ctx.lookup("pools/a");
+        final Pool b = (Pool) ctx.lookup("pools/b");
+
+        write("pools.properties", "a.type=" + Pool.class.getName() + "\na.converter=org.osjava.sj.loader.convert.BeanConverter\na.size=1\n"
+                + "b.type=" + Pool.class.getName() + "\nb.converter=org.osjava.sj.loader.convert.BeanConverter\nb.size=2\n");
+        assertEquals(1, server.invoke(name, "reload", null, null));
+        assertSame(a, ctx.lookup("pools/a"));
+        assertFalse(a.closed);
+        final Pool reloaded = (Pool) ctx.lookup("pools/b");
+        assertEquals(2, reloaded.getSize());
+        assertFalse(reloaded.closed);
+        assertTrue(b.closed);
+
+        // The reloaded objects are compared by their properties, too.
+        assertEquals(0, server.invoke(name, "reload", null, null));
+        assertSame(reloaded, ctx.lookup("pools/b"));
+        assertFalse(reloaded.closed);
+        ctx.close();
+    }
+
+    /** No equals(), like a DataSource. */
+    public static class Pool implements AutoCloseable {
+        private int size;
+        volatile boolean closed;
+
+        public int getSize() {
+            return size;
+        }
+
+        public void setSize(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void memoryContextFactory() throws Exception {
+        final InitialContext ctx = new InitialContext(sharedEnv(MemoryContextFactory.class.getName()));
+        ctx.bind("name", "value");
+        final ObjectName name = monitors("MemoryContextFactory").iterator().next();
+        assertEquals(1, server.getAttribute(name, "BindingCount"));
+        try {
+            server.invoke(name, "reload", null, null);
+            fail();
+        }
+        catch (Exception expected) {
+            // UnsupportedOperationException wrapped by the MBeanServer.
+        }
+        ctx.close();
+        assertTrue(monitors("MemoryContextFactory").isEmpty());
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        final Hashtable<String, String> env = sharedEnv(MemoryContextFactory.class.getName());
+        env.remove(ContextCache.JMX);
+        final InitialContext ctx = new InitialContext(env);
+        assertTrue(monitors("MemoryContextFactory").isEmpty());
+        ctx.close();
+    }
+
+    private void write(String fileName, String content) throws IOException {
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(new File(folder.getRoot(), fileName)), "UTF-8");
+        try {
+            writer.write(content);
+        }
+        finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.osjava.sj.loader;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osjava.sj.SimpleJndi;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class LoadProfilerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Hashtable env;
+    private File root;
+
+    @Before
+    public void setUp() throws IOException {
+        env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        env.put(JndiLoader.DELIMITER, "/");
+        root = folder.newFolder("root");
+        System.setProperty("LoadProfilerTest.host", "localhost");
+        write("config.properties", "name=value\nhost=${sj.sys:LoadProfilerTest.host}\nnumber=42\nnumber/type=java.lang.Integer\n");
+        write("app/db.properties", "url=jdbc:hsqldb:mem:test\nport=9001\nport/type=java.lang.Integer\nflag=true\nflag/type=java.lang.Boolean\n");
+    }
+
+    @Test
+    public void phasesFilesAndTypes() throws Exception {
+        final LoadProfiler profiler = new LoadProfiler();
+        final NioBasedJndiLoader loader = new NioBasedJndiLoader(env);
+        loader.setProfiler(profiler);
+        final MemoryContext ctx = new MemoryContext(env);
+        loader.load(root, ctx, false);
+        profiler.finish();
+        assertEquals("localhost", ctx.lookup("config/host"));
+
+        final Map<String, LoadProfiler.Measure> phases = new HashMap<String, LoadProfiler.Measure>();
+        long phaseNanos = 0;
+        for (LoadProfiler.Measure phase : profiler.getPhases()) {
+            phases.put(phase.getName(), phase);
+            phaseNanos += phase.getWallNanos();
+        }
+        assertEquals(1, phases.get("WALK").getCount());
+        assertEquals(2, phases.get("READ").getCount());
+        assertEquals(2, phases.get("PARSE").getCount());
+        assertEquals(1, phases.get("SUBSTITUTION").getCount());
+        assertEquals(3, phases.get("CONVERSION").getCount());
+        assertTrue(phases.get("SUBCONTEXT").getCount() >= 3);
+        assertEquals(6, phases.get("BIND").getCount());
+        // Exclusive times: Phases add up to no more than the whole.
+        assertTrue(phaseNanos <= profiler.getWallNanos());
+
+        final List<LoadProfiler.Measure> files = profiler.getFiles();
+        assertEquals(2, files.size());
+        assertTrue(files.get(0).getWallNanos() >= files.get(1).getWallNanos());
+        final LoadProfiler.Measure db = files.get(0).getName().endsWith("db.properties") ? files.get(0) : files.get(1);
+        assertEquals(new File(root, "app/db.properties").length(), db.getBytes());
+        assertEquals(5, db.getProperties());
+
+        final Map<String, Long> types = new HashMap<String, Long>();
+        for (LoadProfiler.Measure type : profiler.getTypes()) {
+            types.put(type.getName(), type.getCount());
+        }
+        assertEquals(Long.valueOf(2), types.get("java.lang.Integer"));
+        assertEquals(Long.valueOf(1), types.get("java.lang.Boolean"));
+
+        final String summary = profiler.summary(1);
+        assertTrue(summary, summary.contains("Loaded 2 files"));
+        // Only the slowest type.
+        assertTrue(summary, summary.contains("java.lang.Integer") ^ summary.contains("java.lang.Boolean"));
+        ctx.close();
+    }
+
+    @Test
+    public void jsonReportBySimpleJndi() throws Exception {
+        final File report = new File(folder.getRoot(), "report.json");
+        env.put(SimpleJndi.ROOT, root.getAbsolutePath());
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "org.osjava.sj.SimpleJndiContextFactory");
+        env.put(LoadProfiler.REPORT, report.getAbsolutePath());
+        final InitialContext ctx = new InitialContext(env);
+        assertEquals(9001, ctx.lookup("app/db/port"));
+        ctx.close();
+
+        final String json = FileUtils.readFileToString(report, "UTF-8");
+        assertTrue(json, json.startsWith("{"));
+        assertTrue(json, json.contains("\"phase\": \"PARSE\""));
+        assertTrue(json, json.contains("\"type\": \"java.lang.Integer\", \"count\": 2"));
+        assertTrue(json, json.contains(new File(root, "config.properties").getAbsolutePath().replace("\\", "\\\\")));
+    }
+
+    private void write(String path, String content) throws IOException {
+        final File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        }
+        finally {
+            out.close();
+        }
+    }
+}
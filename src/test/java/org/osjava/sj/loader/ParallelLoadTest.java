@@ -0,0 +1,170 @@
+package org.osjava.sj.loader;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.naming.Binding;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class ParallelLoadTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = folder.newFolder("root");
+        final File fixtures = new File("src/test/resources/roots");
+        FileUtils.write(new File(root, "default.properties"), "name=root\n", "UTF-8");
+        FileUtils.copyFileToDirectory(new File(fixtures, "testini.ini"), root);
+        FileUtils.copyFileToDirectory(new File(fixtures, "xmltest.xml"), root);
+        FileUtils.copyFileToDirectory(new File(fixtures, "datasourceNotNamespaced.properties"), root);
+        FileUtils.copyDirectoryToDirectory(new File(fixtures, "typedProperty"), root);
+        for (int i = 0; i < 20; i++) {
+            final File directory = new File(root, "d" + i);
+            FileUtils.write(new File(directory, "default.properties"), "size=" + i + "\n", "UTF-8");
+            for (int j = 0; j < 10; j++) {
+                FileUtils.write(new File(directory, "f" + j + ".properties"),
+                        "key.sub=value-" + i + "-" + j + "\nnum=" + j + "\nnum.type=java.lang.Integer\n", "UTF-8");
+            }
+            FileUtils.write(new File(directory, "nested/default.properties"), "depth=2\n", "UTF-8");
+        }
+        FileUtils.write(new File(root, "d0/.svn/entries.properties"), "svn=true\n", "UTF-8");
+        FileUtils.write(new File(root, "d1/CVS/Root.properties"), "cvs=true\n", "UTF-8");
+    }
+
+    private Hashtable<String, String> env() {
+        final Hashtable<String, String> env = new Hashtable<String, String>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "org.osjava.sj.MemoryContextFactory");
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        env.put(JndiLoader.DELIMITER, ".");
+        return env;
+    }
+
+    @Test
+    public void sameAsSequential() throws Exception {
+        final Map<String, String> sequential = load(new NioBasedJndiLoader(env()));
+        assertEquals("root", sequential.get("name"));
+        assertEquals("value-3-4", sequential.get("d3/f4/key/sub"));
+        assertEquals("2", sequential.get("d19/nested/depth"));
+        for (String name : sequential.keySet()) {
+            assertFalse(name, name.contains("svn") || name.contains("cvs"));
+        }
+
+        final Hashtable<String, String> env = env();
+        env.put(NioBasedJndiLoader.PARALLELISM, "4");
+        assertEquals(sequential, load(new NioBasedJndiLoader(env)));
+        env.put(NioBasedJndiLoader.PARALLELISM, "true");
+        assertEquals(sequential, load(new NioBasedJndiLoader(env)));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final NioBasedJndiLoader loader = new NioBasedJndiLoader(env());
+            loader.setExecutor(executor);
+            assertEquals(sequential, load(loader));
+            assertFalse(executor.isShutdown());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void profiled() throws Exception {
+        final Hashtable<String, String> env = env();
+        env.put(NioBasedJndiLoader.PARALLELISM, "4");
+        final NioBasedJndiLoader loader = new NioBasedJndiLoader(env);
+        final LoadProfiler profiler = new LoadProfiler();
+        loader.setProfiler(profiler);
+        load(loader);
+        // Files in .svn and CVS are not loaded.
+        assertEquals(5 + 20 * 12, profiler.getFiles().size());
+        for (LoadProfiler.Measure phase : profiler.getPhases()) {
+            if (phase.getName().equals("READ") || phase.getName().equals("PARSE") || phase.getName().equals("BIND")) {
+                assertTrue(phase.getName(), phase.getCount() > 0);
+            }
+        }
+    }
+
+    @Test
+    public void failureAsSequential() throws Exception {
+        FileUtils.write(new File(root, "d5/broken.xml"), "<config><unclosed></config>", "UTF-8");
+        final Exception sequential = failure(new NioBasedJndiLoader(env()));
+        assertNotNull(sequential);
+        final Hashtable<String, String> env = env();
+        env.put(NioBasedJndiLoader.PARALLELISM, "4");
+        final Exception parallel = failure(new NioBasedJndiLoader(env));
+        assertNotNull(parallel);
+        assertEquals(sequential.getClass(), parallel.getClass());
+    }
+
+    private Exception failure(NioBasedJndiLoader loader) throws NamingException {
+        final Context ctxt = new InitialContext(env());
+        try {
+            loader.load(root, ctxt, false);
+            return null;
+        }
+        catch (Exception e) {
+            return e;
+        }
+        finally {
+            ctxt.close();
+        }
+    }
+
+    /**
+     * @return Full names of all objects bound. Values of objects without meaningful toString() are replaced by their class names.
+     */
+    private Map<String, String> load(NioBasedJndiLoader loader) throws Exception {
+        final Context ctxt = new InitialContext(env());
+        try {
+            loader.load(root, ctxt, false);
+            final Map<String, String> bindings = new TreeMap<String, String>();
+            dump(ctxt, "", bindings);
+            return bindings;
+        }
+        finally {
+            ctxt.close();
+        }
+    }
+
+    private static void dump(Context ctxt, String prefix, Map<String, String> bindings) throws NamingException {
+        final NamingEnumeration<Binding> enumeration = ctxt.listBindings("");
+        while (enumeration.hasMore()) {
+            final Binding binding = enumeration.next();
+            final Object value = binding.getObject();
+            if (value instanceof Context) {
+                bindings.put(prefix + binding.getName(), "(context)");
+                dump((Context) value, prefix + binding.getName() + "/", bindings);
+            }
+            else if (value instanceof String || value instanceof Number || value instanceof Boolean
+                    || value instanceof Collection || value instanceof Map) {
+                bindings.put(prefix + binding.getName(), value.toString());
+            }
+            else {
+                bindings.put(prefix + binding.getName(), value == null ? "null" : value.getClass().getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.osjava.sj.loader;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osjava.sj.MyBean;
+import org.osjava.sj.jndi.JndiUtils;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.Binding;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class SnapshotImageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Hashtable env;
+    private File root;
+    private File image;
+
+    @Before
+    public void setUp() throws IOException {
+        env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        env.put(JndiLoader.DELIMITER, "/");
+        root = folder.newFolder("root");
+        image = new File(folder.getRoot(), "root.image");
+        write("config.properties", "name=value\nnumber=42\nnumber/type=java.lang.Integer\nnested/deep/flag=true\nnested/deep/flag/type=java.lang.Boolean\n");
+        write("beans/bean.properties", "type=org.osjava.sj.MyBean\nconverter=org.osjava.sj.loader.convert.BeanConverter\n");
+        write("multi.properties", "ages/type=java.lang.Integer\nages=24\nages=25\n");
+    }
+
+    @Test
+    public void replayUnchangedFiles() throws Exception {
+        SnapshotImage snapshotImage = load();
+        assertEquals(3, snapshotImage.getParsedFileCount());
+        assertTrue(image.isFile());
+
+        snapshotImage = load();
+        assertEquals(3, snapshotImage.getReplayedFileCount());
+        assertEquals(0, snapshotImage.getParsedFileCount());
+        final Context ctx = loaded;
+        assertEquals("value", ctx.lookup("config/name"));
+        assertEquals(42, ctx.lookup("config/number"));
+        assertEquals(Boolean.TRUE, ctx.lookup("config/nested/deep/flag"));
+        final List ages = (List) ctx.lookup("multi/ages");
+        assertEquals(2, ages.size());
+        assertEquals(25, ages.get(1));
+        // Converted on first lookup.
+        final Object bean = ctx.lookup("beans/bean");
+        assertTrue(bean instanceof MyBean);
+        assertSame(bean, ctx.lookup("beans/bean"));
+    }
+
+    @Test
+    public void parseChangedFilesOnly() throws Exception {
+        load();
+        write("config.properties", "name=changed\n");
+        SnapshotImage snapshotImage = load();
+        assertEquals(2, snapshotImage.getReplayedFileCount());
+        assertEquals(1, snapshotImage.getParsedFileCount());
+        assertEquals("changed", loaded.lookup("config/name"));
+
+        // Only touched: The checksum tells it is unchanged.
+        final File config = new File(root, "config.properties");
+        assertTrue(config.setLastModified(config.lastModified() + 10000));
+        snapshotImage = load();
+        assertEquals(3, snapshotImage.getReplayedFileCount());
+        assertEquals("changed", loaded.lookup("config/name"));
+    }
+
+    @Test
+    public void otherEnvironmentIgnoresImage() throws Exception {
+        load();
+        env.put(JndiLoader.COLON_REPLACE, "--");
+        final SnapshotImage snapshotImage = load();
+        assertEquals(0, snapshotImage.getReplayedFileCount());
+        assertEquals(3, snapshotImage.getParsedFileCount());
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        env.put(NioBasedJndiLoader.PARALLELISM, "4");
+        SnapshotImage snapshotImage = load();
+        assertEquals(3, snapshotImage.getParsedFileCount());
+        write("config.properties", "name=changed\n");
+        snapshotImage = load();
+        assertEquals(2, snapshotImage.getReplayedFileCount());
+        assertEquals(1, snapshotImage.getParsedFileCount());
+        assertEquals("changed", loaded.lookup("config/name"));
+        assertEquals(25, ((List) loaded.lookup("multi/ages")).get(1));
+
+        snapshotImage = load();
+        assertEquals(3, snapshotImage.getReplayedFileCount());
+        assertEquals(0, snapshotImage.getParsedFileCount());
+        assertTrue(loaded.lookup("beans/bean") instanceof MyBean);
+    }
+
+    @Test
+    public void substitutedFilesAlwaysParsed() throws Exception {
+        write("system.properties", "value=${sj.sys:snapshot.test.value}\n");
+        System.setProperty("snapshot.test.value", "first");
+        try {
+            load();
+            assertEquals("first", loaded.lookup("system/value"));
+            System.setProperty("snapshot.test.value", "second");
+            final SnapshotImage snapshotImage = load();
+            assertEquals(3, snapshotImage.getReplayedFileCount());
+            assertEquals(1, snapshotImage.getParsedFileCount());
+            assertEquals("second", loaded.lookup("system/value"));
+        }
+        finally {
+            System.clearProperty("snapshot.test.value");
+        }
+    }
+
+    /**
+     * Replayed converter-built objects look as if the file had been parsed: Created once even by concurrent first lookups, listed and looked up unresolved as themselves.
+     */
+    @Test
+    public void convertedObjectsCreatedOnce() throws Exception {
+        load();
+        load();
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Object>> lookups = new ArrayList<Future<Object>>();
+            for (int i = 0; i < threads; i++) {
+                lookups.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        start.await();
+                        return loaded.lookup("beans/bean");
+                    }
+                }));
+            }
+            start.countDown();
+            final Object bean = lookups.get(0).get();
+            assertTrue(bean instanceof MyBean);
+            for (Future<Object> lookup : lookups) {
+                assertSame(bean, lookup.get());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        load();
+        final NamingEnumeration<Binding> bindings = loaded.listBindings("beans");
+        final Object listed = bindings.next().getObject();
+        assertTrue(listed instanceof MyBean);
+        assertSame(listed, JndiUtils.lookupBound(loaded, loaded.getNameParser("").parse("beans/bean")));
+        assertSame(listed, loaded.lookup("beans/bean"));
+    }
+
+    private Context loaded;
+
+    private SnapshotImage load() throws IOException, NamingException {
+        loaded = new MemoryContext(env);
+        final SnapshotImage snapshotImage = SnapshotImage.open(image, env);
+        snapshotImage.loader().load(root, loaded, false);
+        snapshotImage.save();
+        return snapshotImage;
+    }
+
+    private void write(String path, String content) throws IOException {
+        final File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("ISO-8859-1"));
+        }
+        finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.osjava.sj.memory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osjava.sj.jndi.AccessCounters;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class AccessCountersTest {
+
+    private MemoryContext ctx;
+
+    @Before
+    public void setUp() throws NamingException {
+        Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        ctx = new MemoryContext(env);
+        ctx.createSubcontext("app");
+        ctx.bind("app/hot", "hot");
+        ctx.bind("app/warm", "warm");
+        ctx.bind("app/dead", "dead");
+        ctx.bind("unused", "unused");
+    }
+
+    @Test(expected = OperationNotSupportedException.class)
+    public void disabledByDefault() throws NamingException {
+        assertNull(ctx.getAccessCounters());
+        ctx.lookup("app/hot");
+        ctx.accessReport(10);
+    }
+
+    @Test
+    public void report() throws Exception {
+        ctx.enableAccessCounters();
+        for (int i = 0; i < 5; i++) {
+            ctx.lookup("app/hot");
+        }
+        final Context app = (Context) ctx.lookup("app");
+        app.lookup("warm");
+        app.lookup("warm");
+        for (int i = 0; i < 3; i++) {
+            lookupMissing("app/missing");
+        }
+        lookupMissing("nowhere/missing");
+
+        final AccessCounters.Report report = ctx.accessReport(2);
+        assertEquals(2, report.getHottest().size());
+        assertEquals("app/hot", report.getHottest().get(0).getName());
+        assertEquals(5, report.getHottest().get(0).getCount());
+        assertEquals("app/warm", report.getHottest().get(1).getName());
+        assertEquals(2, report.getHottest().get(1).getCount());
+
+        assertEquals("app/missing", report.getMissHotspots().get(0).getName());
+        assertEquals(3, report.getMissHotspots().get(0).getCount());
+        assertEquals("nowhere", report.getMissHotspots().get(1).getName());
+
+        assertEquals("[app/dead, unused]", names(report.getNeverRead()));
+        assertTrue(report.toString().contains("app/hot"));
+
+        // Counted per context, not per name: Follows a renamed context.
+        ctx.rename("app", "application");
+        assertEquals("application/hot", ctx.accessReport(1).getHottest().get(0).getName());
+
+        ctx.getAccessCounters().reset();
+        assertTrue(ctx.accessReport(10).getHottest().isEmpty());
+        ctx.disableAccessCounters();
+        assertNull(ctx.getAccessCounters());
+    }
+
+    @Test
+    public void missedNamesCapped() throws Exception {
+        ctx.enableAccessCounters();
+        for (int i = 0; i < AccessCounters.MAX_MISSED_NAMES + 10; i++) {
+            lookupMissing("app/missing" + i);
+        }
+        lookupMissing("app/missing0");
+        AccessCounters.Report report = ctx.accessReport(AccessCounters.MAX_MISSED_NAMES * 2);
+        assertEquals(AccessCounters.MAX_MISSED_NAMES, report.getMissHotspots().size());
+        assertEquals("app/missing0", report.getMissHotspots().get(0).getName());
+        assertEquals(2, report.getMissHotspots().get(0).getCount());
+        assertEquals(10, report.getOtherMisses());
+
+        // Destroying a context frees its share of the table.
+        ctx.destroySubcontext("app");
+        report = ctx.accessReport(10);
+        assertTrue(report.getMissHotspots().isEmpty());
+        lookupMissing("missing");
+        assertEquals("missing", ctx.accessReport(10).getMissHotspots().get(0).getName());
+
+        ctx.getAccessCounters().reset();
+        assertEquals(0, ctx.accessReport(10).getOtherMisses());
+    }
+
+    @Test
+    public void concurrentLookups() throws Exception {
+        ctx.enableAccessCounters();
+        final int threads = 4;
+        final int lookups = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> started = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < lookups; i++) {
+                            ctx.lookup("app/hot");
+                        }
+                    }
+                    catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            thread.start();
+            started.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : started) {
+            thread.join();
+        }
+        assertEquals(threads * lookups, ctx.accessReport(1).getHottest().get(0).getCount());
+    }
+
+    private void lookupMissing(String name) {
+        try {
+            ctx.lookup(name);
+            fail(name);
+        }
+        catch (NamingException expected) { }
+    }
+
+    private static String names(List<AccessCounters.Entry> entries) {
+        final List<String> names = new ArrayList<String>();
+        for (AccessCounters.Entry entry : entries) {
+            names.add(entry.getName());
+        }
+        return names.toString();
+    }
+}
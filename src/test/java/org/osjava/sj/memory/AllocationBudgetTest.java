@@ -0,0 +1,196 @@
+package org.osjava.sj.memory;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.osjava.sj.jndi.DelimiterConvertingContext;
+import org.osjava.sj.jndi.MemoryContext;
+import org.osjava.sj.loader.convert.ConverterIF;
+import org.osjava.sj.loader.convert.ConverterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NamingEnumeration;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bytes allocated per operation on hot paths must stay within budget. Allocation depends on the JVM (object layout, JDK classes, escape analysis), so budgets are kept per java.specification.version of the HotSpot server VM, see {@link #BUDGETS}. A budget is about 1.5 times the highest of three runs of this test, as logged by {@link #assertBudget(String, Operation)}. The margin absorbs JIT differences between builds, but not a new allocation per call or per name component. Re-measure when a budget fails for a change that is meant to allocate more.
+ * <p>
+ * Measured with com.sun.management.ThreadMXBean#getThreadAllocatedBytes. Skipped on JVMs without it and on JVMs no budgets have been measured for. To add one, run the test there, e. g. with a budget of Long.MAX_VALUE, and take the logged bytes.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class AllocationBudgetTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AllocationBudgetTest.class);
+    private static final int WARMUP = 20000;
+    private static final int OPERATIONS = 10000;
+    private static final int ROUNDS = 5;
+
+    private static final String LOOKUP_STRING = "lookup(String)";
+    private static final String LOOKUP_NAME = "lookup(Name)";
+    private static final String LOOKUP_CONVERTING = "DelimiterConvertingContext.lookup(String)";
+    private static final String LIST = "list(String) of 10 bindings";
+    private static final String CONVERSION = "conversion to java.lang.Integer";
+    /** Budgets in bytes per operation by java.specification.version, measured on the 64 bit HotSpot server VM with compressed oops and default GC. */
+    private static final Map<String, Map<String, Long>> BUDGETS = new HashMap<String, Map<String, Long>>();
+
+    static {
+        final Map<String, Long> java17 = new HashMap<String, Long>();
+        // Measured 1576 - 1648 bytes.
+        java17.put(LOOKUP_STRING, 2500L);
+        // Measured 1160 - 1232 bytes.
+        java17.put(LOOKUP_NAME, 1850L);
+        // Measured 1792 - 1864 bytes.
+        java17.put(LOOKUP_CONVERTING, 2800L);
+        // Measured 3832 - 4128 bytes.
+        java17.put(LIST, 6200L);
+        // Measured 168 bytes.
+        java17.put(CONVERSION, 250L);
+        BUDGETS.put("17", java17);
+    }
+
+    private static Map<String, Long> budgets;
+
+    private static Object threads;
+    private static Method allocatedBytes;
+
+    private MemoryContext root;
+    private Name name;
+
+    @BeforeClass
+    public static void allocationMeasurable() throws Exception {
+        final String version = System.getProperty("java.specification.version");
+        final String vm = String.valueOf(System.getProperty("java.vm.name"));
+        budgets = vm.endsWith("64-Bit Server VM") ? BUDGETS.get(version) : null;
+        Assume.assumeTrue("No allocation budgets measured for " + vm + " " + version, budgets != null);
+        threads = ManagementFactory.getThreadMXBean();
+        try {
+            final Class<?> sunThreadMXBean = Class.forName("com.sun.management.ThreadMXBean");
+            Assume.assumeTrue(sunThreadMXBean.isInstance(threads)
+                    && (Boolean) sunThreadMXBean.getMethod("isThreadAllocatedMemorySupported").invoke(threads)
+                    && (Boolean) sunThreadMXBean.getMethod("isThreadAllocatedMemoryEnabled").invoke(threads));
+            allocatedBytes = sunThreadMXBean.getMethod("getThreadAllocatedBytes", long.class);
+        }
+        catch (ClassNotFoundException e) {
+            Assume.assumeNoException(e);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        env.put("org.osjava.sj.delimiter", ".");
+        root = new MemoryContext(env);
+        final Context config = root.createSubcontext("app").createSubcontext("config");
+        for (int i = 0; i < 10; i++) {
+            config.bind("name" + i, "value" + i);
+        }
+        name = root.getNameParser("").parse("app/config/name5");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        root.close();
+    }
+
+    @Test
+    public void lookupString() throws Exception {
+        assertBudget(LOOKUP_STRING, new Operation() {
+            @Override
+            public Object run() throws Exception {
+                return root.lookup("app/config/name5");
+            }
+        });
+    }
+
+    @Test
+    public void lookupName() throws Exception {
+        assertBudget(LOOKUP_NAME, new Operation() {
+            @Override
+            public Object run() throws Exception {
+                return root.lookup(name);
+            }
+        });
+    }
+
+    @Test
+    public void lookupWithDelimiterConversion() throws Exception {
+        final Context ctx = new DelimiterConvertingContext(root);
+        assertBudget(LOOKUP_CONVERTING, new Operation() {
+            @Override
+            public Object run() throws Exception {
+                return ctx.lookup("app.config.name5");
+            }
+        });
+    }
+
+    @Test
+    public void list() throws Exception {
+        assertBudget(LIST, new Operation() {
+            @Override
+            public Object run() throws Exception {
+                final NamingEnumeration list = root.list("app/config");
+                Object last = null;
+                while (list.hasMore()) {
+                    last = list.next();
+                }
+                return last;
+            }
+        });
+    }
+
+    @Test
+    public void typedConversion() throws Exception {
+        final ConverterIF converter = new ConverterRegistry().getConverter("java.lang.Integer");
+        final Properties properties = new Properties();
+        properties.setProperty("valueToConvert", "4711");
+        assertBudget(CONVERSION, new Operation() {
+            @Override
+            public Object run() throws Exception {
+                return converter.convert(properties, "java.lang.Integer");
+            }
+        });
+    }
+
+    /**
+     * The least of {@link #ROUNDS} measurements counts, to ignore a round disturbed by compilation or class loading.
+     */
+    private static void assertBudget(String operation, Operation op) throws Exception {
+        final long budget = budgets.get(operation);
+        for (int i = 0; i < WARMUP; i++) {
+            op.run();
+        }
+        long least = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            final long before = allocated();
+            for (int i = 0; i < OPERATIONS; i++) {
+                op.run();
+            }
+            least = Math.min(least, (allocated() - before) / OPERATIONS);
+        }
+        LOGGER.info("{}: {} bytes per operation, budget {}", operation, least, budget);
+        assertTrue(operation + " allocates " + least + " bytes per operation, budget is " + budget, least <= budget);
+    }
+
+    private static long allocated() throws Exception {
+        return (Long) allocatedBytes.invoke(threads, Thread.currentThread().getId());
+    }
+
+    private interface Operation {
+        Object run() throws Exception;
+    }
+}
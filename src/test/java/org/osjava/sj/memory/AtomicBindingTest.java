@@ -0,0 +1,142 @@
+package org.osjava.sj.memory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NamingException;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class AtomicBindingTest {
+
+    private MemoryContext ctx;
+
+    @Before
+    public void setUp() throws NamingException {
+        Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        ctx = new MemoryContext(env);
+        ctx.createSubcontext("jdbc");
+    }
+
+    @After
+    public void tearDown() throws NamingException {
+        ctx.close();
+    }
+
+    @Test
+    public void putIfAbsent() throws NamingException {
+        assertTrue(ctx.putIfAbsent("jdbc/ds", "first"));
+        assertFalse(ctx.putIfAbsent("jdbc/ds", "second"));
+        assertEquals("first", ctx.lookup("jdbc/ds"));
+        // Bound to null is bound, too.
+        assertTrue(ctx.putIfAbsent("jdbc/null", null));
+        assertFalse(ctx.putIfAbsent("jdbc/null", "value"));
+        assertNull(ctx.lookup("jdbc/null"));
+    }
+
+    @Test
+    public void compareAndRebind() throws NamingException {
+        ctx.bind("jdbc/ds", "first");
+        assertFalse(ctx.compareAndRebind("jdbc/ds", "other", "second"));
+        assertEquals("first", ctx.lookup("jdbc/ds"));
+        assertTrue(ctx.compareAndRebind("jdbc/ds", "first", "second"));
+        assertEquals("second", ctx.lookup("jdbc/ds"));
+        assertFalse(ctx.compareAndRebind("jdbc/unbound", null, "value"));
+    }
+
+    @Test
+    public void nullValues() throws NamingException {
+        ctx.bind("jdbc/null", null);
+        assertNull(ctx.lookup("jdbc/null"));
+        assertTrue(ctx.compareAndRebind("jdbc/null", null, "value"));
+        assertEquals("value", ctx.lookup("jdbc/null"));
+    }
+
+    @Test
+    public void rebindNeverHidesBinding() throws Exception {
+        ctx.bind("jdbc/ds", 0);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(2);
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 20000; i++) {
+                        assertNotNull(ctx.lookup("jdbc/ds"));
+                    }
+                }
+                catch (Throwable e) {
+                    failure.set(e);
+                }
+                finally {
+                    done.countDown();
+                }
+            }
+        };
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 20000; i++) {
+                        ctx.rebind("jdbc/ds", i);
+                    }
+                }
+                catch (Throwable e) {
+                    failure.set(e);
+                }
+                finally {
+                    done.countDown();
+                }
+            }
+        };
+        reader.start();
+        writer.start();
+        done.await();
+        assertNull(String.valueOf(failure.get()), failure.get());
+    }
+
+    @Test
+    public void concurrentBindHasExactlyOneWinner() throws Exception {
+        final int threads = 8;
+        final AtomicInteger winners = new AtomicInteger();
+        final AtomicInteger losers = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final int value = i;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        ctx.bind("jdbc/ds", value);
+                        winners.incrementAndGet();
+                    }
+                    catch (NameAlreadyBoundException e) {
+                        losers.incrementAndGet();
+                    }
+                    catch (Exception ignore) { }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        assertEquals(1, winners.get());
+        assertEquals(threads - 1, losers.get());
+    }
+}
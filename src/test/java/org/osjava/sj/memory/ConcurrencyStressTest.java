@@ -0,0 +1,523 @@
+package org.osjava.sj.memory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osjava.sj.jndi.MemoryContext;
+import org.osjava.sj.jndi.MutationJournal;
+
+import javax.naming.Context;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hammers one namespace from many threads. Any exception other than the NamingExceptions an operation may legitimately throw under concurrency fails the test, as do lost bindings, NameAlreadyBoundExceptions for names no other thread touches, and histories of single-key operations that are not linearizable.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class ConcurrencyStressTest {
+
+    private static final int THREADS = Math.min(16, Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    private static final int OPERATIONS = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MemoryContext root;
+    private final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+
+    @Before
+    public void setUp() throws NamingException {
+        final Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        root = new MemoryContext(env);
+        root.createSubcontext("shared");
+    }
+
+    @After
+    public void tearDown() throws NamingException {
+        root.close();
+    }
+
+    /**
+     * Every thread owns its keys: bind, rebind and unbind them while all threads read everybody's keys. Afterwards every key holds the last value its owner wrote.
+     */
+    @Test
+    public void noLostBindings() throws Exception {
+        final int keys = 50;
+        run(new Worker() {
+            @Override
+            public void run(int thread) throws Exception {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    final String own = "shared/t" + thread + "_" + (i % keys);
+                    if (i < keys) {
+                        root.bind(own, value(thread, i));
+                    }
+                    else if (i % 7 == 0) {
+                        root.unbind(own);
+                        // Nobody else binds own: Any NameAlreadyBoundException is a phantom.
+                        root.bind(own, value(thread, i));
+                    }
+                    else {
+                        root.rebind(own, value(thread, i));
+                    }
+                    final String other = "shared/t" + random.nextInt(THREADS) + "_" + random.nextInt(keys);
+                    try {
+                        assertTrue(root.lookup(other) instanceof String);
+                    }
+                    catch (NameNotFoundException expected) {
+                        // Not yet bound or between unbind and bind.
+                    }
+                }
+            }
+        });
+        for (int thread = 0; thread < THREADS; thread++) {
+            for (int key = 0; key < keys; key++) {
+                final int last = OPERATIONS - keys + key;
+                assertEquals(value(thread, last), root.lookup("shared/t" + thread + "_" + key));
+            }
+        }
+        assertEquals(THREADS * keys, count(root.list("shared")));
+    }
+
+    /**
+     * All threads race to bind the same fresh name: Exactly one wins, every other one gets a NameAlreadyBoundException, and everybody then reads the winner's value.
+     */
+    @Test
+    public void exactlyOneBindWins() throws Exception {
+        final int rounds = 200;
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        final AtomicInteger[] winners = new AtomicInteger[rounds];
+        for (int round = 0; round < rounds; round++) {
+            winners[round] = new AtomicInteger(-1);
+        }
+        run(new Worker() {
+            @Override
+            public void run(int thread) throws Exception {
+                for (int round = 0; round < rounds; round++) {
+                    final String name = "shared/race" + round;
+                    barrier.await(10, TimeUnit.SECONDS);
+                    try {
+                        root.bind(name, value(thread, round));
+                        assertTrue("Two winners in round " + round, winners[round].compareAndSet(-1, thread));
+                    }
+                    catch (NameAlreadyBoundException expected) { }
+                    barrier.await(10, TimeUnit.SECONDS);
+                    assertEquals(value(winners[round].get(), round), root.lookup(name));
+                }
+            }
+        });
+        for (int round = 0; round < rounds; round++) {
+            assertNotEquals(-1, winners[round].get());
+        }
+    }
+
+    /**
+     * Subcontexts are created, filled and destroyed while other threads look into them and list them. Readers see a binding, a missing name or a closed context, never a broken one.
+     */
+    @Test
+    public void createAndDestroySubcontexts() throws Exception {
+        final int contexts = 8;
+        run(new Worker() {
+            @Override
+            public void run(int thread) throws Exception {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    final String name = "shared/ctx" + random.nextInt(contexts);
+                    try {
+                        switch (random.nextInt(4)) {
+                            case 0:
+                                root.createSubcontext(name).bind("value", value(thread, i));
+                                break;
+                            case 1:
+                                root.destroySubcontext(name);
+                                break;
+                            case 2:
+                                assertTrue(root.lookup(name + "/value") instanceof String);
+                                break;
+                            default:
+                                count(root.listBindings(name));
+                        }
+                    }
+                    catch (NameNotFoundException expected) { }
+                    catch (NameAlreadyBoundException expected) { }
+                    catch (NamingException expected) {
+                        // Context destroyed between createSubcontext() and bind(), or while listing.
+                        assertTrue(expected.getMessage(), String.valueOf(expected.getMessage()).contains("has been closed"));
+                    }
+                }
+            }
+        });
+        // Still consistent: Every remaining subcontext is open and listable.
+        final NamingEnumeration<?> remaining = root.listBindings("shared");
+        while (remaining.hasMore()) {
+            final Object object = ((javax.naming.Binding) remaining.next()).getObject();
+            assertFalse(((MemoryContext) object).isClosed());
+            count(((Context) object).list(""));
+        }
+    }
+
+    /**
+     * The namespace is closed while readers and writers are busy. Afterwards every operation fails with a NamingException, never with a RuntimeException.
+     */
+    @Test
+    public void closeWhileBusy() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            root.bind("shared/name" + i, "value" + i);
+        }
+        final CountDownLatch started = new CountDownLatch(THREADS);
+        final Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    started.await();
+                    root.close();
+                }
+                catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        });
+        closer.start();
+        run(new Worker() {
+            @Override
+            public void run(int thread) throws Exception {
+                started.countDown();
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    final String name = "shared/name" + random.nextInt(100);
+                    try {
+                        switch (random.nextInt(4)) {
+                            case 0:
+                                root.rebind(name, value(thread, i));
+                                break;
+                            case 1:
+                                root.createSubcontext("shared/sub" + thread + "_" + i);
+                                break;
+                            case 2:
+                                count(root.list("shared"));
+                                break;
+                            default:
+                                root.lookup(name);
+                        }
+                    }
+                    catch (NamingException expected) { }
+                }
+            }
+        });
+        closer.join(TimeUnit.SECONDS.toMillis(30));
+        assertFailures();
+        assertTrue(root.isClosed());
+        try {
+            root.lookup("shared/name1");
+            fail();
+        }
+        catch (NamingException expected) { }
+    }
+
+    /**
+     * One key as a register: Threads rebind unique values and read them back. The recorded history must be linearizable.
+     */
+    @Test
+    public void singleKeyHistoryIsLinearizable() throws Exception {
+        final History history = new History();
+        run(new Worker() {
+            @Override
+            public void run(int thread) throws Exception {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    if (random.nextInt(4) == 0) {
+                        final String value = value(thread, i);
+                        final long start = System.nanoTime();
+                        root.rebind("shared/register", value);
+                        history.write(value, start, System.nanoTime());
+                    }
+                    else {
+                        final long start = System.nanoTime();
+                        Object value;
+                        try {
+                            value = root.lookup("shared/register");
+                        }
+                        catch (NameNotFoundException e) {
+                            value = null;
+                        }
+                        history.read((String) value, start, System.nanoTime());
+                    }
+                }
+            }
+        });
+        history.check();
+    }
+
+    /**
+     * Threads rebind and unbind a few names while journal and persistence record. Replaying either of them must end with what is bound, so no two changes of a name were recorded in the opposite order.
+     */
+    @Test
+    public void journalsRecordInOrderOfMutations() throws Exception {
+        final int keys = 2;
+        final MutationJournal journal = root.enableJournal(1 << 16);
+        final File file = new File(folder.getRoot(), "stress.journal");
+        root.persistTo(file);
+        run(new Worker() {
+            @Override
+            public void run(int thread) throws Exception {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    final String name = "shared/hot" + random.nextInt(keys);
+                    if (random.nextInt(8) == 0) {
+                        try {
+                            root.unbind(name);
+                        }
+                        catch (NameNotFoundException expected) { }
+                    }
+                    else {
+                        root.rebind(name, value(thread, i));
+                    }
+                }
+            }
+        });
+        final Map<String, Object> live = new HashMap<String, Object>();
+        for (int key = 0; key < keys; key++) {
+            final String name = "shared/hot" + key;
+            try {
+                live.put(name, root.lookup(name));
+            }
+            catch (NameNotFoundException e) {
+                live.put(name, null);
+            }
+        }
+
+        final Map<String, Object> replayed = new HashMap<String, Object>();
+        for (int key = 0; key < keys; key++) {
+            replayed.put("shared/hot" + key, null);
+        }
+        // Unbinding records null as object.
+        for (MutationJournal.Entry entry : journal.changesSince(0)) {
+            if (entry.getName().startsWith("shared/hot")) {
+                replayed.put(entry.getName(), entry.getObject());
+            }
+        }
+        assertEquals(live, replayed);
+
+        root.close();
+        final Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        root = new MemoryContext(env);
+        root.createSubcontext("shared");
+        root.persistTo(file);
+        for (Map.Entry<String, Object> binding : live.entrySet()) {
+            try {
+                assertEquals(binding.getKey(), binding.getValue(), root.lookup(binding.getKey()));
+            }
+            catch (NameNotFoundException e) {
+                assertNull(binding.getKey(), binding.getValue());
+            }
+        }
+    }
+
+    /**
+     * Starts {@link #THREADS} threads, waits for all of them and fails with the first unexpected Throwable.
+     */
+    private void run(final Worker worker) throws InterruptedException {
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        worker.run(thread);
+                    }
+                    catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            }, "stress-" + i));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(60));
+            assertFalse("Deadlock? " + thread.getName() + " still running", thread.isAlive());
+        }
+        assertFailures();
+    }
+
+    private void assertFailures() {
+        if (!failures.isEmpty()) {
+            final StringWriter trace = new StringWriter();
+            failures.peek().printStackTrace(new PrintWriter(trace));
+            fail(failures.size() + " failures, first: " + trace);
+        }
+    }
+
+    private static String value(int thread, int i) {
+        return thread + ":" + i;
+    }
+
+    private static int count(NamingEnumeration<?> enumeration) throws NamingException {
+        int count = 0;
+        while (enumeration.hasMore()) {
+            enumeration.next();
+            count++;
+        }
+        return count;
+    }
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    /**
+     * History of a register with unique written values, checked for the conditions every linearizable register history meets:
+     * <ul>
+     *     <li>A read does not return a value before its write began.</li>
+     *     <li>A read does not return a value overwritten by a write completed before the read began.</li>
+     *     <li>A read does not return "unbound" after a write completed.</li>
+     *     <li>Of two reads one after the other, the second does not return a value older than the first one did.</li>
+     * </ul>
+     */
+    private static final class History {
+
+        private final Queue<Operation> writes = new ConcurrentLinkedQueue<Operation>();
+        private final Queue<Operation> reads = new ConcurrentLinkedQueue<Operation>();
+
+        void write(String value, long start, long end) {
+            writes.add(new Operation(value, start, end));
+        }
+
+        void read(String value, long start, long end) {
+            reads.add(new Operation(value, start, end));
+        }
+
+        /**
+         * Sweeps over the operations sorted by time instead of comparing all pairs, so that long histories can be checked.
+         */
+        void check() {
+            final Map<String, Operation> byValue = new HashMap<String, Operation>();
+            for (Operation write : writes) {
+                byValue.put(write.value, write);
+            }
+            // Writes by end, each with the latest start of all writes ended so far.
+            final List<Operation> ended = new ArrayList<Operation>(writes);
+            Collections.sort(ended, BY_END);
+            final long[] ends = new long[ended.size()];
+            final long[] latestStart = new long[ended.size()];
+            for (int i = 0; i < ended.size(); i++) {
+                ends[i] = ended.get(i).end;
+                latestStart[i] = Math.max(ended.get(i).start, i > 0 ? latestStart[i - 1] : Long.MIN_VALUE);
+            }
+            final List<Operation> checked = new ArrayList<Operation>();
+            for (Operation read : reads) {
+                // Writes completed before the read began.
+                final int before = completedBefore(ends, read.start);
+                if (read.value == null) {
+                    assertEquals("Read unbound after write " + (before > 0 ? ended.get(0) : null) + " completed: " + read, 0, before);
+                    continue;
+                }
+                final Operation write = byValue.get(read.value);
+                assertNotNull("Read a value never written: " + read, write);
+                assertTrue("Read " + read + " ended before its write " + write + " began", read.end >= write.start);
+                assertFalse("Read " + read + " returned a value overwritten before the read began",
+                        before > 0 && latestStart[before - 1] > write.end);
+                read.write = write;
+                checked.add(read);
+            }
+            // For every read: The latest write start of the reads ended before it began.
+            final List<Operation> byStart = new ArrayList<Operation>(checked);
+            Collections.sort(byStart, BY_START);
+            final List<Operation> byEnd = new ArrayList<Operation>(checked);
+            Collections.sort(byEnd, BY_END);
+            Operation newest = null;
+            int next = 0;
+            for (Operation second : byStart) {
+                while (next < byEnd.size() && byEnd.get(next).end < second.start) {
+                    final Operation first = byEnd.get(next++);
+                    if (newest == null || first.write.start > newest.write.start) {
+                        newest = first;
+                    }
+                }
+                assertFalse("Read " + second + " after " + newest + " returned an older value",
+                        newest != null && second.write.end < newest.write.start);
+            }
+        }
+
+        /**
+         * @return Number of ends &lt; time.
+         */
+        private static int completedBefore(long[] ends, long time) {
+            int low = 0;
+            int high = ends.length;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (ends[middle] < time) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static final Comparator<Operation> BY_START = new Comparator<Operation>() {
+        @Override
+        public int compare(Operation o1, Operation o2) {
+            return Long.compare(o1.start, o2.start);
+        }
+    };
+
+    private static final Comparator<Operation> BY_END = new Comparator<Operation>() {
+        @Override
+        public int compare(Operation o1, Operation o2) {
+            return Long.compare(o1.end, o2.end);
+        }
+    };
+
+    private static final class Operation {
+        final String value;
+        final long start;
+        final long end;
+        /* For reads: The write read from. */
+        Operation write;
+
+        Operation(String value, long start, long end) {
+            this.value = value;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return value + " [" + start + ", " + end + "]";
+        }
+    }
+}
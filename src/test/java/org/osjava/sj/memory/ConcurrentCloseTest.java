@@ -0,0 +1,127 @@
+package org.osjava.sj.memory;
+
+import org.junit.Test;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class ConcurrentCloseTest {
+
+    private MemoryContext createContext() throws NamingException {
+        Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        final MemoryContext ctx = new MemoryContext(env);
+        ctx.createSubcontext("a");
+        ctx.bind("a/name", "value");
+        return ctx;
+    }
+
+    @Test
+    public void operationsAfterCloseFailCleanly() throws NamingException {
+        final MemoryContext ctx = createContext();
+        final Context sub = (Context) ctx.lookup("a");
+        ctx.close();
+        assertTrue(ctx.isClosed());
+        assertTrue(((MemoryContext) sub).isClosed());
+        try {
+            ctx.lookup("a/name");
+            fail();
+        }
+        catch (NamingException expected) {
+            assertFalse(expected instanceof NameNotFoundException);
+        }
+        try {
+            sub.bind("other", "other");
+            fail();
+        }
+        catch (NamingException expected) { }
+        try {
+            ctx.list("");
+            fail();
+        }
+        catch (NamingException expected) { }
+        // Closing twice is harmless.
+        ctx.close();
+        assertNotNull(ctx.getEnvironment());
+    }
+
+    @Test
+    public void readersOfClosedTreeSeeItClosedNotPartlyDetached() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            final MemoryContext ctx = createContext();
+            for (int i = 0; i < 100; i++) {
+                ctx.createSubcontext("a/" + i);
+                ctx.bind("a/" + i + "/name", "value");
+            }
+            final Context sub = (Context) ctx.lookup("a");
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            final CountDownLatch started = new CountDownLatch(1);
+            final Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        while (true) {
+                            for (int i = 99; i >= 0; i--) {
+                                assertEquals("value", sub.lookup(i + "/name"));
+                            }
+                        }
+                    }
+                    catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            reader.start();
+            started.await();
+            ctx.close();
+            reader.join(5000);
+            assertFalse(reader.isAlive());
+            final Throwable e = failure.get();
+            assertTrue(String.valueOf(e), e instanceof NamingException && !(e instanceof NameNotFoundException));
+        }
+    }
+
+    @Test
+    public void readersDuringCloseNeverFailWithRuntimeException() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            final MemoryContext ctx = createContext();
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            final CountDownLatch started = new CountDownLatch(1);
+            final Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        while (true) {
+                            assertEquals("value", ctx.lookup("a/name"));
+                        }
+                    }
+                    catch (NamingException expected) {
+                        // Closed
+                    }
+                    catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            reader.start();
+            started.await();
+            ctx.close();
+            reader.join(5000);
+            assertFalse(reader.isAlive());
+            assertNull(String.valueOf(failure.get()), failure.get());
+        }
+    }
+}
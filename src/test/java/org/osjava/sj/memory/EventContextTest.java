@@ -0,0 +1,181 @@
+package org.osjava.sj.memory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.NamingException;
+import javax.naming.event.EventContext;
+import javax.naming.event.NamespaceChangeListener;
+import javax.naming.event.NamingEvent;
+import javax.naming.event.NamingExceptionEvent;
+import javax.naming.event.ObjectChangeListener;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class EventContextTest {
+
+    private MemoryContext ctx;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() throws NamingException {
+        Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        ctx = new MemoryContext(env);
+        ctx.createSubcontext("a");
+        ctx.createSubcontext("a/b");
+        listener = new RecordingListener();
+    }
+
+    @After
+    public void tearDown() throws NamingException {
+        ctx.removeNamingListener(listener);
+        ctx.close();
+    }
+
+    @Test
+    public void objectScope() throws Exception {
+        ctx.addNamingListener("a/name", EventContext.OBJECT_SCOPE, listener);
+        ctx.bind("a/name", "1");
+        ctx.bind("a/other", "other");
+        ctx.rebind("a/name", "2");
+        ctx.unbind("a/name");
+        listener.await(3);
+        assertEquals("0:a/name:null>1", listener.events.get(0));
+        assertEquals("3:a/name:1>2", listener.events.get(1));
+        assertEquals("1:a/name:2>null", listener.events.get(2));
+    }
+
+    @Test
+    public void oneLevelScope() throws Exception {
+        ctx.addNamingListener("a", EventContext.ONELEVEL_SCOPE, listener);
+        ctx.bind("a/b/deep", "deep");
+        ctx.bind("a/name", "1");
+        listener.await(1);
+        Thread.sleep(100);
+        assertEquals(1, listener.events.size());
+        assertEquals("0:a/name:null>1", listener.events.get(0));
+    }
+
+    @Test
+    public void subtreeScopeRelativeToSource() throws Exception {
+        final EventContext a = (EventContext) ctx.lookup("a");
+        a.addNamingListener("", EventContext.SUBTREE_SCOPE, listener);
+        ctx.bind("outside", "outside");
+        ctx.bind("a/b/deep", "deep");
+        ctx.batch().rebind("a/name", "1").unbind("a/b/deep").commit();
+        listener.await(3);
+        assertEquals("0:b/deep:null>deep", listener.events.get(0));
+        assertEquals("0:name:null>1", listener.events.get(1));
+        assertEquals("1:b/deep:deep>null", listener.events.get(2));
+        a.removeNamingListener(listener);
+    }
+
+    @Test
+    public void rename() throws Exception {
+        ctx.addNamingListener("a", EventContext.SUBTREE_SCOPE, listener);
+        ctx.bind("a/b/name", "value");
+        ctx.rename("a/b/name", "a/renamed");
+        listener.await(2);
+        assertEquals("2:a/renamed:value", listener.events.get(1));
+    }
+
+    @Test
+    public void changesQueuedBeforeRenameKeepTheirNames() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingListener blocking = new RecordingListener() {
+            @Override
+            public void objectAdded(NamingEvent evt) {
+                super.objectAdded(evt);
+                blocked.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        ctx.addNamingListener("", EventContext.SUBTREE_SCOPE, blocking);
+        try {
+            ctx.bind("first", "first");
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            // Queued while the dispatcher is busy.
+            ctx.bind("a/b/name", "value");
+            ctx.rename("a", "moved");
+            ctx.bind("moved/b/other", "other");
+            release.countDown();
+            blocking.await(4);
+            assertEquals("0:a/b/name:null>value", blocking.events.get(1));
+            assertEquals("2:moved:null", blocking.events.get(2).replaceAll(":[^:]*$", ":null"));
+            assertEquals("0:moved/b/other:null>other", blocking.events.get(3));
+        }
+        finally {
+            release.countDown();
+            ctx.removeNamingListener(blocking);
+        }
+    }
+
+    @Test
+    public void removeListener() throws Exception {
+        ctx.addNamingListener("a", EventContext.SUBTREE_SCOPE, listener);
+        ctx.removeNamingListener(listener);
+        ctx.bind("a/name", "1");
+        Thread.sleep(100);
+        assertTrue(listener.events.isEmpty());
+    }
+
+    private static class RecordingListener implements NamespaceChangeListener, ObjectChangeListener {
+        final List<String> events = new ArrayList<String>();
+
+        synchronized void await(int count) throws InterruptedException {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (events.size() < count && System.nanoTime() < deadline) {
+                wait(100);
+            }
+            assertEquals(events.toString(), count, events.size());
+        }
+
+        private synchronized void record(String event) {
+            events.add(event);
+            notifyAll();
+        }
+
+        @Override
+        public void objectAdded(NamingEvent evt) {
+            record(evt.getType() + ":" + evt.getNewBinding().getName() + ":null>" + evt.getNewBinding().getObject());
+        }
+
+        @Override
+        public void objectRemoved(NamingEvent evt) {
+            record(evt.getType() + ":" + evt.getOldBinding().getName() + ":" + evt.getOldBinding().getObject() + ">null");
+        }
+
+        @Override
+        public void objectRenamed(NamingEvent evt) {
+            record(evt.getType() + ":" + evt.getNewBinding().getName() + ":" + evt.getNewBinding().getObject());
+        }
+
+        @Override
+        public void objectChanged(NamingEvent evt) {
+            record(evt.getType() + ":" + evt.getNewBinding().getName() + ":" + evt.getOldBinding().getObject() + ">" + evt.getNewBinding().getObject());
+        }
+
+        @Override
+        public void namingExceptionThrown(NamingExceptionEvent evt) {
+            record("exception");
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.osjava.sj.memory;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osjava.sj.jndi.FlightRecorderEvent;
+import org.osjava.sj.jndi.MemoryContext;
+import org.osjava.sj.loader.NioBasedJndiLoader;
+
+import javax.naming.NamingException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * The Flight Recorder is driven by reflection, because the tests are compiled for Java 7 too.
+ *
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class FlightRecorderEventTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void noEventsWithoutRecording() {
+        assertFalse(FlightRecorderEvent.isRecording());
+        assertNull(FlightRecorderEvent.LOOKUP.begin());
+        // Does nothing.
+        FlightRecorderEvent.LOOKUP.commit(null, "name", true);
+    }
+
+    @Test
+    public void recorded() throws Exception {
+        Assume.assumeTrue(FlightRecorderEvent.enable());
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(new File(folder.getRoot(), "app.properties")), "UTF-8");
+        try {
+            writer.write("name=app\npoolSize=10\npoolSize.type=java.lang.Integer\n");
+        }
+        finally {
+            writer.close();
+        }
+        final Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+
+        final Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        final Object recording = recordingClass.getConstructor().newInstance();
+        final Map<String, String> settings = new HashMap<String, String>();
+        for (String event : new String[] {"org.osjava.sj.Lookup", "org.osjava.sj.FileLoad", "org.osjava.sj.Conversion"}) {
+            settings.put(event + "#enabled", "true");
+            settings.put(event + "#threshold", "0 ns");
+        }
+        recordingClass.getMethod("setSettings", Map.class).invoke(recording, settings);
+        recordingClass.getMethod("start").invoke(recording);
+        final File dump = new File(folder.getRoot(), "recording.jfr");
+        try {
+            assertTrue(FlightRecorderEvent.isRecording());
+            final MemoryContext ctx = new MemoryContext(env);
+            new NioBasedJndiLoader(env).load(folder.getRoot(), ctx, false);
+            assertEquals(10, ctx.lookup("app/poolSize"));
+            try {
+                ctx.lookup("app/missing");
+                fail();
+            }
+            catch (NamingException expected) { }
+            ctx.close();
+        }
+        finally {
+            recordingClass.getMethod("stop").invoke(recording);
+            recordingClass.getMethod("dump", Path.class).invoke(recording, dump.toPath());
+            recordingClass.getMethod("close").invoke(recording);
+        }
+        assertFalse(FlightRecorderEvent.isRecording());
+
+        final List<String> events = readEvents(dump);
+        assertTrue(events.toString(), events.contains("org.osjava.sj.Lookup app/poolSize true"));
+        assertTrue(events.toString(), events.contains("org.osjava.sj.Lookup app/missing false"));
+        assertTrue(events.toString(), events.contains("org.osjava.sj.FileLoad " + new File(folder.getRoot(), "app.properties").getPath()));
+        assertTrue(events.toString(), events.contains("org.osjava.sj.Conversion java.lang.Integer"));
+    }
+
+    /**
+     * @return Per event its type and first fields.
+     */
+    private static List<String> readEvents(File file) throws Exception {
+        final Method readAllEvents = Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents", Path.class);
+        final Class<?> recordedObject = Class.forName("jdk.jfr.consumer.RecordedObject");
+        final Method getValue = recordedObject.getMethod("getValue", String.class);
+        final Method getEventType = Class.forName("jdk.jfr.consumer.RecordedEvent").getMethod("getEventType");
+        final Method getName = Class.forName("jdk.jfr.EventType").getMethod("getName");
+        final List<String> events = new ArrayList<String>();
+        for (Object event : (List<?>) readAllEvents.invoke(null, file.toPath())) {
+            final String type = (String) getName.invoke(getEventType.invoke(event));
+            if (type.equals("org.osjava.sj.Lookup")) {
+                events.add(type + " " + getValue.invoke(event, "name") + " " + getValue.invoke(event, "found"));
+            }
+            else if (type.equals("org.osjava.sj.FileLoad")) {
+                events.add(type + " " + getValue.invoke(event, "path"));
+            }
+            else if (type.equals("org.osjava.sj.Conversion")) {
+                events.add(type + " " + getValue.invoke(event, "type"));
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,108 @@
+package org.osjava.sj.memory;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osjava.sj.jndi.Footprint;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class FootprintTest {
+
+    private static final String LARGE = StringUtils.repeat("x", 100000);
+
+    private MemoryContext root;
+
+    @Before
+    public void setUp() throws NamingException {
+        final Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        root = new MemoryContext(env);
+        final Context a = root.createSubcontext("a");
+        final Context b = root.createSubcontext("b");
+        a.bind("large", LARGE);
+        b.bind("large", LARGE);
+        final Map<String, Integer> map = new HashMap<String, Integer>();
+        for (int i = 0; i < 1000; i++) {
+            map.put("key" + i, i);
+        }
+        b.createSubcontext("c").bind("map", map);
+    }
+
+    @After
+    public void tearDown() throws NamingException {
+        root.close();
+    }
+
+    @Test
+    public void structureAndValues() throws NamingException {
+        final Footprint footprint = root.footprint(Footprint.Sharing.ONCE);
+        assertEquals("", footprint.getName());
+        assertEquals(3, footprint.getTotalBindingCount());
+        assertEquals(0, footprint.getBindingCount());
+        final List<Footprint> subcontexts = footprint.getSubcontexts();
+        assertEquals("a", subcontexts.get(0).getName());
+        assertEquals("b", subcontexts.get(1).getName());
+        final Footprint c = subcontexts.get(1).getSubcontexts().get(0);
+        assertEquals("b/c", c.getName());
+        // 1000 entries, each with key, Integer and map entry.
+        assertTrue(String.valueOf(c.getValueBytes()), c.getValueBytes() > 1000 * 50 && c.getValueBytes() < 1000 * 200);
+
+        // Every subcontext has its own environment, parser, map and names.
+        for (Footprint context : new Footprint[] {footprint, subcontexts.get(0), subcontexts.get(1), c}) {
+            for (Footprint.Part part : Footprint.Part.values()) {
+                if (part != Footprint.Part.VALUES) {
+                    assertTrue(context.getName() + " " + part, context.getBytes(part) > 0);
+                }
+            }
+        }
+        assertEquals(footprint.getTotalStructureBytes() + footprint.getTotalValueBytes(), footprint.getTotalBytes());
+        assertFalse(footprint.isTruncated());
+
+        final String report = footprint.report(1);
+        assertTrue(report, report.startsWith("(root): " + footprint.getTotalBytes() + " bytes, 3 bindings"));
+        assertTrue(report, report.contains("\n  b: "));
+        assertFalse(report, report.contains("b/c"));
+    }
+
+    @Test
+    public void sharedObjects() throws NamingException {
+        // Counted where first seen: in "a".
+        Footprint footprint = root.footprint(Footprint.Sharing.ONCE);
+        assertTrue(footprint.getSubcontexts().get(0).getValueBytes() >= LARGE.length());
+        assertTrue(footprint.getSubcontexts().get(1).getValueBytes() < 100);
+        final long once = footprint.getTotalBytes();
+
+        footprint = root.footprint(Footprint.Sharing.EACH);
+        assertTrue(footprint.getSubcontexts().get(0).getValueBytes() >= LARGE.length());
+        assertTrue(footprint.getSubcontexts().get(1).getValueBytes() >= LARGE.length());
+        assertTrue(footprint.getTotalBytes() > once);
+
+        // Unbinding one of them would not free the String.
+        footprint = root.footprint(Footprint.Sharing.EXCLUDE);
+        assertTrue(footprint.getSubcontexts().get(0).getValueBytes() < 100);
+        assertTrue(footprint.getSubcontexts().get(1).getValueBytes() < 100);
+        assertTrue(footprint.getTotalBytes() < once);
+    }
+
+    @Test
+    public void subtree() throws NamingException {
+        final Footprint footprint = ((MemoryContext) root.lookup("b")).footprint(Footprint.Sharing.ONCE);
+        assertEquals("b", footprint.getName());
+        assertEquals(2, footprint.getTotalBindingCount());
+        assertEquals(1, footprint.getSubcontexts().size());
+    }
+}
@@ -0,0 +1,141 @@
+package org.osjava.sj.memory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import java.util.Hashtable;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class ForkTest {
+
+    private MemoryContext ctx;
+
+    @Before
+    public void setUp() throws NamingException {
+        Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        ctx = new MemoryContext(env);
+        ctx.createSubcontext("a");
+        ctx.createSubcontext("a/b");
+        ctx.bind("a/b/name", "value");
+        ctx.bind("top", "top");
+    }
+
+    @After
+    public void tearDown() throws NamingException {
+        ctx.close();
+    }
+
+    @Test
+    public void lookupEmptyNameForks() throws NamingException {
+        final Object fork = ctx.lookup("");
+        assertTrue(fork instanceof MemoryContext);
+        assertNotSame(ctx, fork);
+        assertEquals("value", ((Context) fork).lookup("a/b/name"));
+    }
+
+    @Test
+    public void lookupEmptyNameForksOnFirstAccess() throws NamingException {
+        final Context fork = (Context) ctx.lookup("");
+        ctx.rebind("a/b/name", "before first access");
+        assertEquals("before first access", fork.lookup("a/b/name"));
+        ctx.rebind("a/b/name", "after first access");
+        assertEquals("before first access", fork.lookup("a/b/name"));
+    }
+
+    @Test
+    public void forkClosedAlthoughOriginalIgnoresClose() throws NamingException {
+        Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        env.put(MemoryContext.IGNORE_CLOSE, "true");
+        final MemoryContext original = new MemoryContext(env);
+        original.bind("name", "value");
+        final MemoryContext fork = original.fork();
+        assertEquals("value", fork.lookup("name"));
+        fork.close();
+        assertTrue(fork.isClosed());
+        assertEquals("true", original.getEnvironment().get(MemoryContext.IGNORE_CLOSE));
+        original.close();
+        assertFalse(original.isClosed());
+        original.forceClose();
+    }
+
+    @Test
+    public void changesOfOriginalNotVisibleInFork() throws NamingException {
+        final MemoryContext fork = ctx.fork();
+        ctx.rebind("a/b/name", "changed");
+        ctx.bind("a/new", "new");
+        ctx.unbind("top");
+        assertEquals("value", fork.lookup("a/b/name"));
+        assertEquals("top", fork.lookup("top"));
+        try {
+            fork.lookup("a/new");
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+    }
+
+    @Test
+    public void changesOfForkNotVisibleInOriginal() throws NamingException {
+        final MemoryContext fork = ctx.fork();
+        fork.rebind("a/b/name", "changed");
+        fork.createSubcontext("a/c");
+        assertEquals("changed", fork.lookup("a/b/name"));
+        assertEquals("value", ctx.lookup("a/b/name"));
+        try {
+            ctx.lookup("a/c");
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+    }
+
+    @Test
+    public void closingForkKeepsOriginal() throws NamingException {
+        final MemoryContext fork = ctx.fork();
+        fork.lookup("a/b/name");
+        fork.close();
+        assertEquals("value", ctx.lookup("a/b/name"));
+        assertEquals("top", ctx.lookup("top"));
+    }
+
+    @Test
+    public void forkOfSubcontext() throws NamingException {
+        final MemoryContext fork = ((MemoryContext) ctx.lookup("a")).fork();
+        assertEquals("a", fork.getNameInNamespace());
+        assertEquals("a/b", ((Context) fork.lookup("b")).getNameInNamespace());
+        assertEquals("value", fork.lookup("b/name"));
+    }
+
+    @Test
+    public void forkOfFork() throws NamingException {
+        final MemoryContext fork = ctx.fork();
+        final MemoryContext forkOfFork = fork.fork();
+        fork.rebind("a/b/name", "fork");
+        ctx.rebind("a/b/name", "original");
+        assertEquals("value", forkOfFork.lookup("a/b/name"));
+        assertEquals("fork", fork.lookup("a/b/name"));
+        assertEquals("original", ctx.lookup("a/b/name"));
+    }
+
+    @Test
+    public void severalGenerations() throws NamingException {
+        final MemoryContext fork1 = ctx.fork();
+        ctx.rebind("a/b/name", "2");
+        final MemoryContext fork2 = ctx.fork();
+        ctx.rebind("a/b/name", "3");
+        assertEquals("value", fork1.lookup("a/b/name"));
+        assertEquals("2", fork2.lookup("a/b/name"));
+        assertEquals("3", ctx.lookup("a/b/name"));
+    }
+}
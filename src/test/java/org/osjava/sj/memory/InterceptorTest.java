@@ -0,0 +1,172 @@
+package org.osjava.sj.memory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osjava.sj.jndi.ContextInterceptor;
+import org.osjava.sj.jndi.ContextInvocation;
+import org.osjava.sj.jndi.MemoryContext;
+import org.osjava.sj.jndi.SamplingInterceptor;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class InterceptorTest {
+
+    private Hashtable env;
+
+    @Before
+    public void setUp() {
+        env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        Tracing.calls.clear();
+        ServiceInterceptor.count.set(0);
+    }
+
+    @Test
+    public void chainFromEnvironment() throws NamingException {
+        env.put(MemoryContext.INTERCEPTORS, Tracing.class.getName() + ", " + Caching.class.getName());
+        final MemoryContext ctx = new MemoryContext(env);
+        final Context app = ctx.createSubcontext("app");
+        app.bind("name", "value");
+        assertEquals("value", ctx.lookup("app/name"));
+        // Served by Caching, which Tracing sees nevertheless.
+        assertEquals("value", ctx.lookup("app/name"));
+        final NamingEnumeration list = app.list("");
+        assertTrue(list.hasMore());
+        ctx.rebind("app/name", "other");
+        ctx.unbind("app/name");
+        try {
+            ctx.lookup("app/name");
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+        assertEquals(
+                "[BIND name, LOOKUP app/name, LOOKUP app/name, LIST , REBIND app/name, UNBIND app/name, LOOKUP app/name]",
+                Tracing.calls.toString());
+        ctx.close();
+    }
+
+    @Test
+    public void rewriteBoundObject() throws NamingException {
+        env.put(MemoryContext.INTERCEPTORS, new ContextInterceptor() {
+            @Override
+            public Object intercept(ContextInvocation invocation) throws NamingException {
+                if (invocation.getObject() instanceof String) {
+                    invocation.setObject(((String) invocation.getObject()).toUpperCase());
+                }
+                return invocation.proceed();
+            }
+        });
+        final MemoryContext ctx = new MemoryContext(env);
+        ctx.bind("name", "value");
+        assertEquals("VALUE", ctx.lookup("name"));
+        // Forks keep the interceptors.
+        ctx.fork().bind("other", "value");
+        ctx.close();
+    }
+
+    @Test
+    public void sampling() throws NamingException {
+        final AtomicInteger seen = new AtomicInteger();
+        final SamplingInterceptor sampling = new SamplingInterceptor(new ContextInterceptor() {
+            @Override
+            public Object intercept(ContextInvocation invocation) throws NamingException {
+                seen.incrementAndGet();
+                return invocation.proceed();
+            }
+        }, 10);
+        env.put(MemoryContext.INTERCEPTORS, Collections.singletonList(sampling));
+        final MemoryContext ctx = new MemoryContext(env);
+        ctx.bind("name", "value");
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("value", ctx.lookup("name"));
+        }
+        assertTrue(String.valueOf(seen.get()), seen.get() > 500 && seen.get() < 2000);
+        ctx.close();
+    }
+
+    @Test
+    public void samplingConfiguredByName() throws NamingException {
+        env.put(MemoryContext.INTERCEPTORS, Tracing.class.getName() + "@1000000");
+        final MemoryContext ctx = new MemoryContext(env);
+        ctx.bind("name", "value");
+        assertEquals("value", ctx.lookup("name"));
+        assertTrue(Tracing.calls.size() <= 2);
+        ctx.close();
+    }
+
+    @Test
+    public void serviceLoader() throws NamingException {
+        final MemoryContext without = new MemoryContext(env);
+        without.bind("name", "value");
+        assertEquals(0, ServiceInterceptor.count.get());
+
+        env.put(MemoryContext.INTERCEPTOR_SERVICES, "true");
+        final MemoryContext with = new MemoryContext(env);
+        with.bind("name", "value");
+        with.lookup("name");
+        assertEquals(2, ServiceInterceptor.count.get());
+        without.close();
+        with.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownInterceptor() {
+        env.put(MemoryContext.INTERCEPTORS, "org.example.Missing");
+        new MemoryContext(env);
+    }
+
+    public static class Tracing implements ContextInterceptor {
+        static final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public Object intercept(ContextInvocation invocation) throws NamingException {
+            calls.add(invocation.toString());
+            return invocation.proceed();
+        }
+    }
+
+    public static class Caching implements ContextInterceptor {
+        private final Map<String, Object> cache = Collections.synchronizedMap(new HashMap<String, Object>());
+
+        @Override
+        public Object intercept(ContextInvocation invocation) throws NamingException {
+            final String key = invocation.getContext().getNameInNamespace() + "/" + invocation.getName();
+            if (invocation.getOperation() != ContextInvocation.Operation.LOOKUP) {
+                cache.clear();
+                return invocation.proceed();
+            }
+            Object object = cache.get(key);
+            if (object == null) {
+                object = invocation.proceed();
+                cache.put(key, object);
+            }
+            return object;
+        }
+    }
+
+    public static class ServiceInterceptor implements ContextInterceptor {
+        static final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Object intercept(ContextInvocation invocation) throws NamingException {
+            count.incrementAndGet();
+            return invocation.proceed();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.osjava.sj.memory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osjava.sj.jndi.MemoryContext;
+import org.osjava.sj.jndi.MutationJournal;
+
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import java.util.Hashtable;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class JournalTest {
+
+    private MemoryContext ctx;
+
+    @Before
+    public void setUp() throws NamingException {
+        Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        ctx = new MemoryContext(env);
+    }
+
+    @After
+    public void tearDown() throws NamingException {
+        ctx.close();
+    }
+
+    @Test
+    public void recordsAllOperations() throws NamingException {
+        ctx.bind("before", "not recorded");
+        final MutationJournal journal = ctx.enableJournal(16);
+        assertEquals(0, journal.currentSequence());
+        ctx.createSubcontext("a");
+        final MemoryContext a = (MemoryContext) ctx.lookup("a");
+        a.bind("name", "1");
+        a.rebind("name", "2");
+        ctx.rename("a/name", "renamed");
+        ctx.unbind("renamed");
+        ctx.batch().createSubcontext("b").bind("b/x", "x").commit();
+        ctx.destroySubcontext("b");
+
+        final List<MutationJournal.Entry> changes = ctx.changesSince(0);
+        assertEquals(changes.toString(), 8, changes.size());
+        assertEntry(changes.get(0), 1, MutationJournal.Operation.CREATE_SUBCONTEXT, "a");
+        assertEntry(changes.get(1), 2, MutationJournal.Operation.BIND, "a/name");
+        assertEntry(changes.get(2), 3, MutationJournal.Operation.REBIND, "a/name");
+        assertEquals("1", changes.get(2).getOldObject());
+        assertEquals("2", changes.get(2).getObject());
+        assertEntry(changes.get(3), 4, MutationJournal.Operation.RENAME, "a/name");
+        assertEquals("renamed", changes.get(3).getNewName());
+        assertEntry(changes.get(4), 5, MutationJournal.Operation.UNBIND, "renamed");
+        assertEntry(changes.get(5), 6, MutationJournal.Operation.CREATE_SUBCONTEXT, "b");
+        assertEntry(changes.get(6), 7, MutationJournal.Operation.BIND, "b/x");
+        assertEntry(changes.get(7), 8, MutationJournal.Operation.DESTROY_SUBCONTEXT, "b");
+
+        assertEquals(3, ctx.changesSince(5).size());
+        assertTrue(ctx.changesSince(8).isEmpty());
+    }
+
+    @Test
+    public void batchRecordedInOrderOfOperations() throws NamingException {
+        ctx.createSubcontext("a");
+        ctx.createSubcontext("b");
+        ctx.enableJournal(8);
+        ctx.batch().bind("a/x", "1").bind("b/y", "2").rebind("a/x", "3").unbind("b/y").bind("a/z", "4").commit();
+        final List<MutationJournal.Entry> changes = ctx.changesSince(0);
+        assertEquals(changes.toString(), 5, changes.size());
+        assertEntry(changes.get(0), 1, MutationJournal.Operation.BIND, "a/x");
+        assertEntry(changes.get(1), 2, MutationJournal.Operation.BIND, "b/y");
+        assertEntry(changes.get(2), 3, MutationJournal.Operation.REBIND, "a/x");
+        assertEquals("1", changes.get(2).getOldObject());
+        assertEntry(changes.get(3), 4, MutationJournal.Operation.UNBIND, "b/y");
+        assertEntry(changes.get(4), 5, MutationJournal.Operation.BIND, "a/z");
+        assertEquals("3", ctx.lookup("a/x"));
+    }
+
+    @Test
+    public void namesFollowRenamedSubcontexts() throws NamingException {
+        ctx.createSubcontext("a");
+        ctx.createSubcontext("a/b");
+        ctx.enableJournal(4);
+        ctx.rename("a", "moved");
+        ctx.bind("moved/b/name", "value");
+        final List<MutationJournal.Entry> changes = ctx.changesSince(0);
+        assertEntry(changes.get(1), 2, MutationJournal.Operation.BIND, "moved/b/name");
+    }
+
+    @Test
+    public void consumerFallenBehind() throws NamingException {
+        final MutationJournal journal = ctx.enableJournal(3);
+        assertEquals(4, journal.getCapacity());
+        for (int i = 0; i < 10; i++) {
+            ctx.rebind("name", i);
+        }
+        assertEquals(10, journal.currentSequence());
+        assertEquals(4, ctx.changesSince(6).size());
+        try {
+            ctx.changesSince(2);
+            fail();
+        }
+        catch (MutationJournal.TruncatedException e) {
+            assertEquals(7, e.getOldestAvailable());
+        }
+    }
+
+    @Test(expected = OperationNotSupportedException.class)
+    public void notEnabled() throws NamingException {
+        assertNull(ctx.getJournal());
+        ctx.changesSince(0);
+    }
+
+    private static void assertEntry(MutationJournal.Entry entry, long sequence, MutationJournal.Operation operation, String name) {
+        assertEquals(entry.toString(), sequence, entry.getSequence());
+        assertEquals(entry.toString(), operation, entry.getOperation());
+        assertEquals(entry.toString(), name, entry.getName());
+    }
+}
@@ -0,0 +1,155 @@
+package org.osjava.sj.memory;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osjava.sj.jndi.MappedContext;
+import org.osjava.sj.jndi.MappedNamespace;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.Binding;
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.NotContextException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.Reference;
+import javax.naming.StringRefAddr;
+import javax.naming.spi.ObjectFactory;
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class MappedNamespaceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MemoryContext source;
+    private File file;
+    private Hashtable env;
+
+    @Before
+    public void setUp() throws NamingException {
+        env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        source = new MemoryContext(env);
+        source.createSubcontext("app");
+        source.createSubcontext("app/db");
+        source.bind("app/db/url", "jdbc:hsqldb:mem:test");
+        source.bind("app/db/poolSize", 10);
+        source.bind("app/timeout", 2500L);
+        source.bind("app/rate", new BigDecimal("0.25"));
+        source.bind("app/enabled", true);
+        source.bind("app/started", new Date(1000));
+        source.bind("app/notShareable", new Object());
+        final Reference reference = new Reference(String.class.getName(), TestFactory.class.getName(), null);
+        reference.add(new StringRefAddr("value", "created"));
+        source.bind("app/resolved", reference);
+        file = new File(folder.getRoot(), "namespace.mapped");
+    }
+
+    @Test
+    public void lookup() throws Exception {
+        assertEquals(7, MappedNamespace.publish(source, file));
+        final MappedContext ctx = new MappedContext(file, env);
+        assertEquals("jdbc:hsqldb:mem:test", ctx.lookup("app/db/url"));
+        assertEquals(10, ctx.lookup("app/db/poolSize"));
+        assertEquals(2500L, ctx.lookup("app/timeout"));
+        assertEquals(new BigDecimal("0.25"), ctx.lookup("app/rate"));
+        assertEquals(Boolean.TRUE, ctx.lookup("app/enabled"));
+        assertEquals(new Date(1000), ctx.lookup("app/started"));
+        assertEquals("created", ctx.lookup("app/resolved"));
+
+        final Context db = (Context) ctx.lookup("app/db");
+        assertEquals("app/db", db.getNameInNamespace());
+        assertEquals(10, db.lookup("poolSize"));
+
+        try {
+            ctx.lookup("app/notShareable");
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+        try {
+            ctx.lookup("app/timeout/sub");
+            fail();
+        }
+        catch (NotContextException expected) { }
+    }
+
+    @Test
+    public void listBindings() throws Exception {
+        MappedNamespace.publish(source, file);
+        final MappedContext ctx = new MappedContext(file, env);
+        final Map<String, Object> bindings = new HashMap<String, Object>();
+        final NamingEnumeration<Binding> enumeration = ctx.listBindings("app");
+        while (enumeration.hasMore()) {
+            final Binding binding = enumeration.next();
+            bindings.put(binding.getName(), binding.getObject());
+        }
+        assertEquals(6, bindings.size());
+        assertTrue(bindings.get("db") instanceof Context);
+        assertEquals(2500L, bindings.get("timeout"));
+        assertTrue(bindings.get("resolved") instanceof Reference);
+        assertTrue(ctx.list("app/db").hasMore());
+    }
+
+    @Test
+    public void readOnly() throws Exception {
+        MappedNamespace.publish(source, file);
+        final Context db = (Context) new MappedContext(file, env).lookup("app/db");
+        try {
+            db.rebind("url", "other");
+            fail();
+        }
+        catch (OperationNotSupportedException expected) { }
+        try {
+            db.createSubcontext("sub");
+            fail();
+        }
+        catch (OperationNotSupportedException expected) { }
+    }
+
+    @Test
+    public void switchToNewlyPublishedNamespace() throws Exception {
+        MappedNamespace.publish(source, file);
+        final Hashtable readerEnv = (Hashtable) env.clone();
+        readerEnv.put(MappedContext.MAPPED_REFRESH_INTERVAL, "3600000");
+        final MappedContext ctx = new MappedContext(file, readerEnv);
+        final Context db = (Context) ctx.lookup("app/db");
+        final long generation = ctx.getGeneration();
+
+        source.rebind("app/db/url", "jdbc:hsqldb:mem:other");
+        source.unbind("app/timeout");
+        MappedNamespace.publish(source, file);
+        assertTrue(ctx.refresh());
+        assertNotEquals(generation, ctx.getGeneration());
+        assertFalse(ctx.refresh());
+        // Subcontexts follow.
+        assertEquals("jdbc:hsqldb:mem:other", db.lookup("url"));
+        try {
+            ctx.lookup("app/timeout");
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+    }
+
+    public static class TestFactory implements ObjectFactory {
+        @Override
+        public Object getObjectInstance(Object obj, Name name, Context nameCtx, Hashtable<?, ?> environment) {
+            return ((Reference) obj).get("value").getContent();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.osjava.sj.memory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osjava.sj.jndi.MemoryContext;
+import org.osjava.sj.jndi.MemoryContextBatch;
+
+import javax.naming.Binding;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class MemoryContextBatchTest {
+
+    private MemoryContext ctx;
+
+    @Before
+    public void setUp() throws NamingException {
+        Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        ctx = new MemoryContext(env);
+        ctx.createSubcontext("config");
+        ctx.bind("config/url", "old");
+        ctx.bind("config/obsolete", "obsolete");
+    }
+
+    @After
+    public void tearDown() throws NamingException {
+        ctx.close();
+    }
+
+    @Test
+    public void commit() throws NamingException {
+        final MemoryContextBatch batch = ctx.batch()
+                .createSubcontext("jdbc")
+                .bind("jdbc/primary", "primary")
+                .rebind("config/url", "new")
+                .unbind("config/obsolete");
+        assertEquals(4, batch.size());
+        // Nothing visible before commit.
+        try {
+            ctx.lookup("jdbc/primary");
+            fail();
+        }
+        catch (NamingException expected) { }
+        batch.commit();
+        assertEquals(0, batch.size());
+        assertEquals("primary", ctx.lookup("jdbc/primary"));
+        assertEquals("new", ctx.lookup("config/url"));
+        try {
+            ctx.lookup("config/obsolete");
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+        assertTrue(ctx.lookup("jdbc") instanceof MemoryContext);
+    }
+
+    @Test
+    public void failingOperationAppliesNothing() throws NamingException {
+        final MemoryContextBatch batch = ctx.batch()
+                .rebind("config/url", "new")
+                .createSubcontext("jdbc")
+                .bind("config/url", "duplicate");
+        try {
+            batch.commit();
+            fail();
+        }
+        catch (NameAlreadyBoundException expected) { }
+        assertEquals("old", ctx.lookup("config/url"));
+        try {
+            ctx.lookup("jdbc");
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+        assertEquals(3, batch.size());
+    }
+
+    @Test
+    public void missingSubcontext() throws NamingException {
+        try {
+            ctx.batch().bind("missing/name", "value").commit();
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+    }
+
+    @Test
+    public void readersNeverSeePartialCommit() throws Exception {
+        ctx.bind("config/a", 0);
+        ctx.bind("config/b", 0);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (done.getCount() > 0) {
+                        // a and b are always committed together, so a listing must never show different values.
+                        final Hashtable<String, Object> values = new Hashtable<String, Object>();
+                        final NamingEnumeration<Binding> bindings = ctx.listBindings("config");
+                        while (bindings.hasMore()) {
+                            final Binding binding = bindings.next();
+                            values.put(binding.getName(), binding.getObject());
+                        }
+                        assertEquals(values.get("a"), values.get("b"));
+                    }
+                }
+                catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        reader.start();
+        for (int i = 1; i < 5000; i++) {
+            ctx.batch().rebind("config/a", i).rebind("config/b", i).commit();
+        }
+        done.countDown();
+        reader.join();
+        assertNull(String.valueOf(failure.get()), failure.get());
+    }
+}
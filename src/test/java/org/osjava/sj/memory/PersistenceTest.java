@@ -0,0 +1,151 @@
+package org.osjava.sj.memory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osjava.sj.jndi.MemoryContext;
+import org.osjava.sj.jndi.PersistentJournal;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Hashtable;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class PersistenceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MemoryContext createContext(String compactThreshold) throws NamingException {
+        Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        if (compactThreshold != null) {
+            env.put(PersistentJournal.COMPACT_THRESHOLD, compactThreshold);
+        }
+        final MemoryContext ctx = new MemoryContext(env);
+        // As if loaded from the root directory.
+        ctx.createSubcontext("loaded");
+        ctx.bind("loaded/name", "loaded");
+        return ctx;
+    }
+
+    @Test
+    public void replayOnTopOfLoadedRoot() throws Exception {
+        final File file = new File(folder.getRoot(), "bindings.journal");
+        MemoryContext ctx = createContext(null);
+        ctx.persistTo(file);
+        ctx.createSubcontext("runtime");
+        ctx.bind("runtime/number", 42);
+        ctx.bind("runtime/temp", "temp");
+        ctx.unbind("runtime/temp");
+        ctx.rebind("loaded/name", "overwritten");
+        ctx.bind("runtime/notSerializable", new Object());
+        ctx.createSubcontext("runtime/sub");
+        ctx.bind("runtime/sub/value", "value");
+        ctx.rename("runtime/sub", "moved");
+        ctx.close();
+
+        ctx = createContext(null);
+        ctx.persistTo(file);
+        assertEquals(42, ctx.lookup("runtime/number"));
+        assertEquals("overwritten", ctx.lookup("loaded/name"));
+        assertEquals("value", ctx.lookup("moved/value"));
+        assertTrue(ctx.lookup("moved") instanceof Context);
+        assertNotBound(ctx, "runtime/temp");
+        assertNotBound(ctx, "runtime/notSerializable");
+        assertNotBound(ctx, "runtime/sub");
+        ctx.close();
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        final File file = new File(folder.getRoot(), "bindings.journal");
+        MemoryContext ctx = createContext("2048");
+        final PersistentJournal journal = ctx.persistTo(file);
+        for (int i = 0; i < 500; i++) {
+            ctx.rebind("counter", i);
+            if (i % 50 == 0) {
+                journal.sync();
+            }
+        }
+        ctx.destroySubcontext("loaded");
+        journal.sync();
+        ctx.close();
+        assertTrue(new File(file.getPath() + ".snapshot").exists());
+        assertTrue(file.length() < 2048);
+
+        ctx = createContext(null);
+        ctx.persistTo(file);
+        assertEquals(499, ctx.lookup("counter"));
+        assertNotBound(ctx, "loaded");
+        ctx.close();
+    }
+
+    @Test
+    public void incompleteRecordIsIgnored() throws Exception {
+        final File file = new File(folder.getRoot(), "bindings.journal");
+        MemoryContext ctx = createContext(null);
+        ctx.persistTo(file);
+        ctx.bind("first", "first");
+        ctx.bind("second", "second");
+        ctx.close();
+        // Crash while appending the second record.
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        ctx = createContext(null);
+        ctx.persistTo(file);
+        assertEquals("first", ctx.lookup("first"));
+        assertNotBound(ctx, "second");
+        ctx.bind("third", "third");
+        ctx.close();
+
+        ctx = createContext(null);
+        ctx.persistTo(file);
+        assertEquals("third", ctx.lookup("third"));
+        ctx.close();
+    }
+
+    @Test
+    public void fileSharedWithinJvm() throws NamingException {
+        final File file = new File(folder.getRoot(), "bindings.journal");
+        final MemoryContext first = createContext(null);
+        first.persistTo(file);
+        first.bind("a", "1");
+        final MemoryContext second = createContext(null);
+        second.persistTo(file);
+        assertEquals("1", second.lookup("a"));
+        second.bind("b", "2");
+        second.close();
+        first.bind("c", "3");
+        first.close();
+
+        final MemoryContext reopened = createContext(null);
+        reopened.persistTo(file);
+        try {
+            assertEquals("1", reopened.lookup("a"));
+            assertEquals("2", reopened.lookup("b"));
+            assertEquals("3", reopened.lookup("c"));
+        }
+        finally {
+            reopened.close();
+        }
+    }
+
+    private static void assertNotBound(Context ctx, String name) throws NamingException {
+        try {
+            ctx.lookup(name);
+            fail(name);
+        }
+        catch (NameNotFoundException expected) { }
+    }
+}
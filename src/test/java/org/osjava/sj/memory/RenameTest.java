@@ -0,0 +1,108 @@
+package org.osjava.sj.memory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.Context;
+import javax.naming.InvalidNameException;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import java.util.Hashtable;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class RenameTest {
+
+    private MemoryContext ctx;
+
+    @Before
+    public void setUp() throws NamingException {
+        Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        ctx = new MemoryContext(env);
+        ctx.createSubcontext("a");
+        ctx.createSubcontext("a/b");
+        ctx.bind("a/b/leaf", "value");
+        ctx.createSubcontext("target");
+    }
+
+    @After
+    public void tearDown() throws NamingException {
+        ctx.close();
+    }
+
+    @Test
+    public void renameLeaf() throws NamingException {
+        ctx.rename("a/b/leaf", "target/leaf");
+        assertEquals("value", ctx.lookup("target/leaf"));
+        try {
+            ctx.lookup("a/b/leaf");
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+    }
+
+    @Test
+    public void renameSubcontextRenamesSubtree() throws NamingException {
+        final Context b = (Context) ctx.lookup("a/b");
+        assertEquals("a/b", b.getNameInNamespace());
+        ctx.rename("a", "target/moved");
+        assertSame(b, ctx.lookup("target/moved/b"));
+        assertEquals("value", ctx.lookup("target/moved/b/leaf"));
+        assertEquals("target/moved/b", b.getNameInNamespace());
+        // Subcontexts created after the move get names below the new location.
+        assertEquals("target/moved/b/c", ((Context) ctx.createSubcontext("target/moved/b/c")).getNameInNamespace());
+    }
+
+    @Test
+    public void renameLargeSubtree() throws NamingException {
+        final Context large = ctx.createSubcontext("large");
+        for (int i = 0; i < 100; i++) {
+            final Context sub = large.createSubcontext("sub" + i);
+            for (int j = 0; j < 100; j++) {
+                sub.bind("name" + j, j);
+            }
+        }
+        ctx.rename("large", "target/large");
+        assertEquals(99, ctx.lookup("target/large/sub99/name99"));
+        assertEquals("target/large/sub99", ((Context) ctx.lookup("target/large/sub99")).getNameInNamespace());
+    }
+
+    @Test
+    public void cannotMoveIntoItself() throws NamingException {
+        try {
+            ctx.rename("a", "a/b/a");
+            fail();
+        }
+        catch (InvalidNameException expected) { }
+        assertEquals("value", ctx.lookup("a/b/leaf"));
+    }
+
+    @Test
+    public void newNameAlreadyBound() throws NamingException {
+        ctx.bind("target/leaf", "other");
+        try {
+            ctx.rename("a/b/leaf", "target/leaf");
+            fail();
+        }
+        catch (NameAlreadyBoundException expected) { }
+        assertEquals("value", ctx.lookup("a/b/leaf"));
+        assertEquals("other", ctx.lookup("target/leaf"));
+    }
+
+    @Test
+    public void oldNameNotBound() throws NamingException {
+        try {
+            ctx.rename("a/missing", "target/missing");
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+    }
+}
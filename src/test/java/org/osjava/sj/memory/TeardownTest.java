@@ -0,0 +1,179 @@
+package org.osjava.sj.memory;
+
+import org.junit.Test;
+import org.osjava.datasource.SJDataSource;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Hashtable;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class TeardownTest {
+
+    private MemoryContext createContext(boolean closeResources) throws NamingException {
+        Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        if (closeResources) {
+            env.put(MemoryContext.CLOSE_RESOURCES, "true");
+            env.put(MemoryContext.CLOSE_TIMEOUT, "2000");
+        }
+        final MemoryContext ctx = new MemoryContext(env);
+        ctx.createSubcontext("a");
+        ctx.createSubcontext("a/b");
+        ctx.bind("a/b/name", "value");
+        ctx.bind("a/other", "other");
+        return ctx;
+    }
+
+    @Test
+    public void destroyNestedSubcontext() throws NamingException {
+        final MemoryContext ctx = createContext(false);
+        ctx.destroySubcontext("a/b");
+        assertEquals("other", ctx.lookup("a/other"));
+        try {
+            ctx.lookup("a/b");
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+    }
+
+    @Test
+    public void forceCloseUnbindsSubcontext() throws NamingException {
+        final MemoryContext ctx = createContext(false);
+        final MemoryContext sub = (MemoryContext) ctx.lookup("a/b");
+        sub.forceClose();
+        assertTrue(sub.isClosed());
+        assertEquals("other", ctx.lookup("a/other"));
+        try {
+            ctx.lookup("a/b");
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+        try {
+            ctx.bind("a/b/name", "value");
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+        // A new subcontext of the same name is independent of the closed one.
+        ctx.createSubcontext("a/b");
+        ctx.bind("a/b/name", "new");
+        assertEquals("new", ctx.lookup("a/b/name"));
+        assertTrue(sub.isClosed());
+    }
+
+    @Test
+    public void poolSharedByDataSourcesClosedByLastOne() throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty("pool", "teardownTestShared");
+        final SJDataSource first = new SJDataSource("org.hsqldb.jdbcDriver", "jdbc:hsqldb:mem:teardownTest", "sa", "", properties);
+        final SJDataSource second = new SJDataSource("org.hsqldb.jdbcDriver", "jdbc:hsqldb:mem:teardownTest", "sa", "", properties);
+        first.getConnection().close();
+        second.getConnection().close();
+        first.close();
+        second.getConnection().close();
+        second.close();
+        try {
+            DriverManager.getConnection("jdbc:apache:commons:dbcp:teardownTestShared");
+            fail("Pool not closed");
+        }
+        catch (SQLException expected) { }
+        // Built again on demand.
+        first.getConnection().close();
+        first.close();
+    }
+
+    @Test
+    public void resourcesNotClosedByDefault() throws NamingException {
+        final MemoryContext ctx = createContext(false);
+        final CountingCloseable closeable = new CountingCloseable(0, null);
+        ctx.bind("a/b/closeable", closeable);
+        ctx.forceClose();
+        assertEquals(0, closeable.closed.get());
+    }
+
+    @Test
+    public void closeResourcesInParallel() throws NamingException {
+        final MemoryContext ctx = createContext(true);
+        final CountingCloseable[] closeables = new CountingCloseable[8];
+        for (int i = 0; i < closeables.length; i++) {
+            closeables[i] = new CountingCloseable(300, null);
+            ctx.bind(i % 2 == 0 ? "a/c" + i : "a/b/c" + i, closeables[i]);
+        }
+        final long start = System.currentTimeMillis();
+        ctx.forceClose();
+        final long duration = System.currentTimeMillis() - start;
+        for (CountingCloseable closeable : closeables) {
+            assertEquals(1, closeable.closed.get());
+        }
+        assertTrue("Took " + duration + " ms", duration < closeables.length * 300);
+    }
+
+    @Test
+    public void closeTimesOut() throws NamingException {
+        final MemoryContext ctx = createContext(true);
+        final CountDownLatch never = new CountDownLatch(1);
+        ctx.bind("a/b/hanging", new CountingCloseable(0, never));
+        final CountingCloseable fast = new CountingCloseable(0, null);
+        ctx.bind("a/fast", fast);
+        final long start = System.currentTimeMillis();
+        ctx.forceClose();
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(1, fast.closed.get());
+        never.countDown();
+    }
+
+    @Test
+    public void destroySubcontextClosesItsResources() throws NamingException {
+        final MemoryContext ctx = createContext(true);
+        final CountingCloseable inB = new CountingCloseable(0, null);
+        final CountingCloseable inA = new CountingCloseable(0, null);
+        ctx.bind("a/b/closeable", inB);
+        ctx.bind("a/closeable", inA);
+        ctx.destroySubcontext("a/b");
+        assertEquals(1, inB.closed.get());
+        assertEquals(0, inA.closed.get());
+    }
+
+    @Test
+    public void forkDoesNotCloseResources() throws NamingException {
+        final MemoryContext ctx = createContext(true);
+        final CountingCloseable closeable = new CountingCloseable(0, null);
+        ctx.bind("a/b/closeable", closeable);
+        final MemoryContext fork = ctx.fork();
+        assertSame(closeable, fork.lookup("a/b/closeable"));
+        fork.close();
+        assertEquals(0, closeable.closed.get());
+        assertSame(closeable, ctx.lookup("a/b/closeable"));
+    }
+
+    private static class CountingCloseable implements AutoCloseable {
+        final AtomicInteger closed = new AtomicInteger();
+        private final long sleep;
+        private final CountDownLatch latch;
+
+        CountingCloseable(long sleep, CountDownLatch latch) {
+            this.sleep = sleep;
+            this.latch = latch;
+        }
+
+        @Override
+        public void close() throws Exception {
+            if (latch != null) {
+                latch.await();
+            }
+            Thread.sleep(sleep);
+            closed.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.osjava.sj.remote;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osjava.sj.jndi.JndiUtils;
+import org.osjava.sj.jndi.MemoryContext;
+
+import javax.naming.Binding;
+import javax.naming.ConfigurationException;
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.Reference;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.StringRefAddr;
+import javax.naming.spi.ObjectFactory;
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class RemoteContextTest {
+
+    private static final String SECRET = "s3cret";
+    private MemoryContext served;
+    private NamespaceServer server;
+    private RemoteContext client;
+
+    @Before
+    public void setUp() throws Exception {
+        Hashtable env = new Hashtable();
+        env.put("jndi.syntax.direction", "left_to_right");
+        env.put("jndi.syntax.separator", "/");
+        served = new MemoryContext(env);
+        served.createSubcontext("app");
+        served.createSubcontext("app/db");
+        served.bind("app/db/url", "jdbc:hsqldb:mem:test");
+        served.bind("app/db/poolSize", 10);
+        final Reference reference = new Reference(Resource.class.getName(), ResourceFactory.class.getName(), null);
+        reference.add(new StringRefAddr("name", "pool"));
+        served.bind("app/resource", reference);
+        served.bind("setting", new Setting("value"));
+        server = new NamespaceServer(served, 0, SECRET);
+        server.start();
+
+        client = new RemoteContext(clientEnv());
+    }
+
+    private Hashtable clientEnv() {
+        final Hashtable clientEnv = new Hashtable();
+        clientEnv.put(RemoteContext.ADDRESS, String.valueOf(server.getPort()));
+        clientEnv.put(RemoteContext.SECRET, SECRET);
+        return clientEnv;
+    }
+
+    @After
+    public void tearDown() throws NamingException {
+        client.close();
+        server.close();
+        served.close();
+    }
+
+    @Test
+    public void cachedLookup() throws Exception {
+        assertEquals("jdbc:hsqldb:mem:test", client.lookup("app/db/url"));
+        final long requests = server.getRequestCount();
+        assertEquals("jdbc:hsqldb:mem:test", client.lookup("app/db/url"));
+        final Context db = (Context) client.lookup("app/db");
+        assertEquals("app/db", db.getNameInNamespace());
+        assertEquals("jdbc:hsqldb:mem:test", db.lookup("url"));
+        // Only app/db has been asked for.
+        assertEquals(requests + 1, server.getRequestCount());
+    }
+
+    @Test
+    public void changeInvalidatesCache() throws Exception {
+        assertEquals(10, client.lookup("app/db/poolSize"));
+        assertNotBound("app/db/user");
+        served.rebind("app/db/poolSize", 20);
+        served.bind("app/db/user", "sa");
+        assertEquals(20, awaitChange("app/db/poolSize", 10));
+        assertEquals("sa", client.lookup("app/db/user"));
+
+        // Removes everything below a destroyed context.
+        served.unbind("app/db/poolSize");
+        served.unbind("app/db/url");
+        served.unbind("app/db/user");
+        served.destroySubcontext("app/db");
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                client.lookup("app/db/user");
+                Thread.sleep(10);
+            }
+            catch (NamingException expected) {
+                // As thrown by MemoryContext for a name below a missing context.
+                return;
+            }
+        }
+        fail("app/db/user still cached");
+    }
+
+    @Test
+    public void lookupAll() throws Exception {
+        final long requests = server.getRequestCount();
+        final Object[] objects = client.lookupAll("app/db/url", "app/db/poolSize", "app/db");
+        assertEquals("jdbc:hsqldb:mem:test", objects[0]);
+        assertEquals(10, objects[1]);
+        assertTrue(objects[2] instanceof Context);
+        assertEquals(requests + 3, server.getRequestCount());
+        try {
+            client.lookupAll("app/db/url", "app/missing");
+            fail();
+        }
+        catch (NameNotFoundException expected) { }
+    }
+
+    @Test
+    public void referenceResolvedByClient() throws Exception {
+        final Resource resource = (Resource) client.lookup("app/resource");
+        assertEquals("pool", resource.name);
+        assertSame(resource, client.lookup("app/resource"));
+        // Neither resolved nor replaced by the server.
+        assertTrue(JndiUtils.lookupBound(served, served.getNameParser("").parse("app/resource")) instanceof Reference);
+    }
+
+    @Test
+    public void listBindings() throws Exception {
+        final Map<String, Object> bindings = new HashMap<String, Object>();
+        final NamingEnumeration enumeration = client.listBindings("app");
+        while (enumeration.hasMore()) {
+            final Binding binding = (Binding) enumeration.next();
+            bindings.put(binding.getName(), binding.getObject());
+        }
+        assertEquals(2, bindings.size());
+        assertTrue(bindings.get("db") instanceof Context);
+        assertTrue(bindings.get("resource") instanceof Reference);
+        assertTrue(client.list("app/db").hasMore());
+    }
+
+    @Test
+    public void wrongSecret() throws Exception {
+        final Hashtable env = clientEnv();
+        env.put(RemoteContext.SECRET, "guessed");
+        try {
+            new RemoteContext(env);
+            fail();
+        }
+        catch (ServiceUnavailableException expected) { }
+        env.remove(RemoteContext.SECRET);
+        try {
+            new RemoteContext(env);
+            fail();
+        }
+        catch (ConfigurationException expected) { }
+        try {
+            new NamespaceServer(served, 0);
+            fail();
+        }
+        catch (ConfigurationException expected) { }
+    }
+
+    @Test
+    public void allowedClasses() throws Exception {
+        try {
+            client.lookup("setting");
+            fail();
+        }
+        catch (NamingException expected) {
+            assertTrue(expected.getRootCause() instanceof InvalidClassException);
+        }
+        final Hashtable env = clientEnv();
+        env.put(RemoteContext.ALLOWED_CLASSES, Setting.class.getName());
+        final RemoteContext allowing = new RemoteContext(env);
+        try {
+            assertEquals("value", ((Setting) allowing.lookup("setting")).value);
+        }
+        finally {
+            allowing.close();
+        }
+        assertTrue(Protocol.isAllowed("[[I", Collections.<String>emptySet()));
+        assertTrue(Protocol.isAllowed("[Ljava.lang.String;", Collections.<String>emptySet()));
+        assertFalse(Protocol.isAllowed("java.net.URL", Collections.<String>emptySet()));
+        assertFalse(Protocol.isAllowed("java.lang.invoke.SerializedLambda", Collections.<String>emptySet()));
+        assertTrue(Protocol.isAllowed("org.example.Bean", Collections.singleton("org.example.*")));
+        assertFalse(Protocol.isAllowed("org.example.sub.Bean", Collections.singleton("org.example.*")));
+    }
+
+    @Test(expected = OperationNotSupportedException.class)
+    public void readOnly() throws NamingException {
+        client.bind("app/other", "other");
+    }
+
+    @Test
+    public void sharedBetweenInitialContexts() throws Exception {
+        final Hashtable env = clientEnv();
+        env.put(RemoteContext.ADDRESS, "localhost:" + server.getPort());
+        final RemoteContextFactory factory = new RemoteContextFactory();
+        final Context first = factory.getInitialContext(env);
+        assertEquals(10, first.lookup("app/db/poolSize"));
+        first.close();
+        final long requests = server.getRequestCount();
+        assertEquals(10, factory.getInitialContext(env).lookup("app/db/poolSize"));
+        assertEquals(requests, server.getRequestCount());
+    }
+
+    private Object awaitChange(String name, Object old) throws Exception {
+        final long deadline = System.currentTimeMillis() + 5000;
+        Object object = client.lookup(name);
+        while (old.equals(object) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            object = client.lookup(name);
+        }
+        return object;
+    }
+
+    private void assertNotBound(String name) throws NamingException {
+        try {
+            client.lookup(name);
+            fail(name);
+        }
+        catch (NameNotFoundException expected) { }
+    }
+
+    /**
+     * Not Serializable, so the Reference is transferred.
+     */
+    public static class Resource {
+        final String name;
+
+        Resource(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class Setting implements Serializable {
+        final String value;
+
+        Setting(String value) {
+            this.value = value;
+        }
+    }
+
+    public static class ResourceFactory implements ObjectFactory {
+        @Override
+        public Object getObjectInstance(Object obj, Name name, Context nameCtx, Hashtable<?, ?> environment) {
+            return new Resource((String) ((Reference) obj).get("name").getContent());
+        }
+    }
+}
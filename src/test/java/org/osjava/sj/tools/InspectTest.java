@@ -0,0 +1,109 @@
+package org.osjava.sj.tools;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osjava.sj.SimpleJndi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Holger Thurow (thurow.h@gmail.com)
+ */
+public class InspectTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    private static final String APP = "db.url=jdbc:hsqldb:mem:test\ndb.poolSize=10\ndb.poolSize.type=java.lang.Integer\n"
+            + "name=app\nowner=app\ntimeout=30\ntimeout.type=java.time.Duration\n";
+
+    @Test
+    public void directory() throws Exception {
+        final File root = folder.newFolder("root");
+        write(new File(root, "app.properties"), APP);
+        write(new File(root, "other.properties"), "name=app\n");
+        final File env = write(folder.newFile("jndi.properties"),
+                SimpleJndi.ROOT + "=" + root.getAbsolutePath().replace('\\', '/') + "\n" + SimpleJndi.JNDI_SYNTAX_SEPARATOR + "=/\n");
+
+        assertEquals(Inspect.OK, Inspect.run(new String[] {env.getAbsolutePath()}, out()));
+        final String report = report();
+        assertTrue(report, report.contains("Loaded 2 files"));
+        assertTrue(report, report.contains("4 contexts, 6 bindings"));
+        // app/db/url and app/db/poolSize at depth 3.
+        assertTrue(report, report.matches("(?s).*Bindings per depth:\\s+2: 4\\s+3: 2\\s.*"));
+        assertTrue(report, report.contains("Largest subtrees:\n  app: "));
+        assertTrue(report, report.contains("3x app (java.lang.String): [app/name, app/owner, other/name]"));
+        assertTrue(report, report.contains("Conversion failures: 1"));
+        assertTrue(report, report.contains("java.time.Duration from '30'"));
+    }
+
+    @Test
+    public void limits() throws Exception {
+        final File root = folder.newFolder("root");
+        write(new File(root, "app.properties"), APP);
+        final File env = write(folder.newFile("jndi.properties"), SimpleJndi.JNDI_SYNTAX_SEPARATOR + "=/\n");
+        final String path = root.getAbsolutePath();
+
+        assertEquals(Inspect.OK, Inspect.run(new String[] {"--max-bindings", "5", env.getAbsolutePath(), path}, out()));
+        assertEquals(Inspect.LIMIT_EXCEEDED, Inspect.run(new String[] {"--max-bindings", "4", env.getAbsolutePath(), path}, out()));
+        assertTrue(report(), report().contains("FAILED: 5 bindings, more than 4"));
+        assertEquals(Inspect.LIMIT_EXCEEDED, Inspect.run(new String[] {"--fail-on-conversion", env.getAbsolutePath(), path}, out()));
+        assertEquals(Inspect.LIMIT_EXCEEDED, Inspect.run(new String[] {"--max-bytes", "100", env.getAbsolutePath(), path}, out()));
+        assertEquals(Inspect.ERROR, Inspect.run(new String[] {"--unknown", env.getAbsolutePath()}, out()));
+        assertEquals(Inspect.ERROR, Inspect.run(new String[] {env.getAbsolutePath(), new File(folder.getRoot(), "missing.jar").getAbsolutePath()}, out()));
+    }
+
+    @Test
+    public void jar() throws Exception {
+        final File jar = folder.newFile("config.jar");
+        final JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new JarEntry("config/"));
+            out.putNextEntry(new JarEntry("config/app.properties"));
+            out.write(APP.getBytes("UTF-8"));
+            out.closeEntry();
+        }
+        finally {
+            out.close();
+        }
+        final File env = write(folder.newFile("jndi.properties"), SimpleJndi.JNDI_SYNTAX_SEPARATOR + "=/\n");
+
+        assertEquals(Inspect.OK, Inspect.run(new String[] {env.getAbsolutePath(), jar.getAbsolutePath() + "!/config"}, out()));
+        final String report = report();
+        assertTrue(report, report.contains("Loaded 1 files"));
+        assertTrue(report, report.contains("3 contexts, 5 bindings"));
+    }
+
+    private PrintStream out() throws UnsupportedEncodingException {
+        bytes.reset();
+        return new PrintStream(bytes, true, "UTF-8");
+    }
+
+    private String report() throws UnsupportedEncodingException {
+        return bytes.toString("UTF-8").replace(System.getProperty("line.separator"), "\n");
+    }
+
+    private static File write(File file, String content) throws IOException {
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        }
+        finally {
+            writer.close();
+        }
+        return file;
+    }
+}